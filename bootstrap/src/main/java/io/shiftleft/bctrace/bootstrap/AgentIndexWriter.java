@@ -0,0 +1,150 @@
+package io.shiftleft.bctrace.bootstrap;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Scanner;
+import java.util.jar.JarFile;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * Build time tool that writes the index of the library jars of an agent, so the
+ * {@link BctraceClassLoader} does not have to scan them at startup.
+ * <br><br>
+ * For each jar listed in "libraries.txt", in order, the index contains its name and size, its
+ * manifest, the packages to define, and for every file entry its name, compression method, local
+ * header offset and sizes.
+ * <br><br>
+ * Usage: AgentIndexWriter agentClassesFolder
+ *
+ * @author Ignacio del Valle Alles idelvall@shiftleft.io
+ */
+public class AgentIndexWriter {
+
+  public static final String LIBRARIES_DESCRIPTOR = "libraries.txt";
+  public static final String INDEX_NAME = "libraries.idx";
+
+  static final int MAGIC = 0x42435849;
+  static final int VERSION = 1;
+
+  public static void main(String[] args) throws IOException {
+    if (args.length != 1) {
+      System.err.println("Usage: AgentIndexWriter agentClassesFolder");
+      System.exit(1);
+    }
+    File folder = new File(args[0]);
+    int entries = write(folder, new File(folder, INDEX_NAME));
+    System.out.println("Written agent index with " + entries + " entries");
+  }
+
+  /**
+   * @return number of file entries indexed
+   */
+  public static int write(File folder, File indexFile) throws IOException {
+    List<String> jars = readDescriptor(new File(folder, LIBRARIES_DESCRIPTOR));
+    int ret = 0;
+    DataOutputStream dos = new DataOutputStream(
+        new BufferedOutputStream(new FileOutputStream(indexFile)));
+    try {
+      dos.writeInt(MAGIC);
+      dos.writeInt(VERSION);
+      dos.writeInt(jars.size());
+      for (int i = 0; i < jars.size(); i++) {
+        ret += writeJar(dos, jars.get(i), new File(folder, jars.get(i)));
+      }
+    } finally {
+      dos.close();
+    }
+    return ret;
+  }
+
+  private static List<String> readDescriptor(File descriptor) throws IOException {
+    List<String> ret = new ArrayList<String>();
+    Scanner scanner = new Scanner(descriptor, "UTF-8");
+    try {
+      while (scanner.hasNextLine()) {
+        String jar = scanner.nextLine().trim();
+        if (!jar.isEmpty()) {
+          ret.add(jar);
+        }
+      }
+    } finally {
+      scanner.close();
+    }
+    return ret;
+  }
+
+  private static int writeJar(DataOutputStream dos, String name, File file) throws IOException {
+    byte[] manifest = readManifest(file);
+    if (manifest == null) {
+      throw new IOException(
+          "Library jars used by agent require a manifest. Error found in jar " + name);
+    }
+    ByteBuffer zip = CentralDirectory.map(file);
+    List<String> packages = new ArrayList<String>();
+    ByteArrayOutputStream entriesBytes = new ByteArrayOutputStream();
+    DataOutputStream entries = new DataOutputStream(entriesBytes);
+    int entryCount = 0;
+    CentralDirectory cd = new CentralDirectory(zip);
+    while (cd.next()) {
+      String entryName = cd.getName();
+      if (entryName.endsWith("/")) {
+        if (!entryName.startsWith("META-INF/")) {
+          packages.add(entryName);
+        }
+      } else {
+        entries.writeUTF(entryName);
+        entries.writeShort(cd.getMethod());
+        entries.writeInt(cd.getLocalHeaderOffset());
+        entries.writeInt(cd.getCompressedSize());
+        entries.writeInt(cd.getSize());
+        entryCount++;
+      }
+    }
+    entries.flush();
+
+    dos.writeUTF(name);
+    dos.writeInt(zip.limit());
+    dos.writeInt(manifest.length);
+    dos.write(manifest);
+    dos.writeInt(packages.size());
+    for (int i = 0; i < packages.size(); i++) {
+      dos.writeUTF(packages.get(i));
+    }
+    dos.writeInt(entryCount);
+    entriesBytes.writeTo(dos);
+    return entryCount;
+  }
+
+  private static byte[] readManifest(File file) throws IOException {
+    ZipFile zipFile = new ZipFile(file);
+    try {
+      ZipEntry entry = zipFile.getEntry(JarFile.MANIFEST_NAME);
+      if (entry == null) {
+        return null;
+      }
+      InputStream is = zipFile.getInputStream(entry);
+      try {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        int n;
+        while ((n = is.read(buffer)) != -1) {
+          baos.write(buffer, 0, n);
+        }
+        return baos.toByteArray();
+      } finally {
+        is.close();
+      }
+    } finally {
+      zipFile.close();
+    }
+  }
+}
@@ -1,47 +1,81 @@
 package io.shiftleft.bctrace.bootstrap;
 
+import java.io.BufferedInputStream;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.lang.reflect.Method;
+import java.net.JarURLConnection;
+import java.net.URISyntaxException;
 import java.net.URL;
 import java.net.URLConnection;
 import java.net.URLStreamHandler;
 import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.security.AllPermission;
 import java.security.CodeSource;
 import java.security.Permissions;
 import java.security.ProtectionDomain;
 import java.security.cert.Certificate;
-import java.util.Collections;
+import java.util.ArrayList;
 import java.util.Enumeration;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.NoSuchElementException;
 import java.util.Scanner;
 import java.util.jar.Attributes;
 import java.util.jar.JarFile;
 import java.util.jar.Manifest;
-import java.util.zip.ZipEntry;
-import java.util.zip.ZipInputStream;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
 
 /**
- * A jars-in-jar class loader that stores entries in direct memory.
+ * A jars-in-jar class loader that serves entries lazily from a memory mapped view of the agent
+ * jar.
  *
  * Main jar is required to contain a "libraries.txt" descriptor in the root namespace, where each
  * line contains the relative path of the managed inner jars
  *
+ * On creation, the names and offsets of the entries of the inner jars, their manifests and
+ * packages are read from the "libraries.idx" index written at build time by
+ * {@link AgentIndexWriter}, so no jar is scanned. Without it, they are read from the central
+ * directory of each inner jar. Entry bytes are read on demand: stored entries directly from the
+ * mapped file, and compressed entries are inflated each time they are requested (classes are
+ * requested once). Inner jars must be stored (not compressed) in the agent jar to be mapped.
+ * Otherwise they are read once into the heap, and still indexed and inflated lazily.
+ *
+ * The loader is registered as parallel capable (when running on Java 7+), so classes are loaded
+ * under per class name locks. The index is not modified after creation and every read uses its
+ * own view of the shared buffers, so serving bytes takes no lock.
+ *
  * @author Ignacio del Valle Alles idelvall@shiftleft.io
  */
 public class BctraceClassLoader extends ClassLoader {
 
   private static final String URL_PROTOCOL = "bctrace-agent";
 
+  static {
+    registerParallelCapable();
+  }
+
   private final URLStreamHandler handler = new AgentURLStreamHandler();
-  private final Map<String, Map<URL, ByteBuffer>> resourceMap = new HashMap<String, Map<URL, ByteBuffer>>();
+  private final Map<String, Entry> resourceMap = new HashMap<String, Entry>();
 
   private final ProtectionDomain agentProtectionDomain;
 
   public BctraceClassLoader(String agentJarName) {
+    this(agentJarName, ClassLoader.getSystemClassLoader());
+  }
+
+  /**
+   * @param agentClassLoader class loader of the agent jar, providing the descriptor, the index and
+   * the inner jars
+   */
+  BctraceClassLoader(String agentJarName, ClassLoader agentClassLoader) {
     super(null);
     try {
       Permissions permissions = new Permissions();
@@ -52,44 +86,24 @@ public class BctraceClassLoader extends ClassLoader {
           permissions,
           this,
           null);
-      Scanner scanner = new Scanner(ClassLoader.getSystemResourceAsStream("libraries.txt"));
-      while (scanner.hasNextLine()) {
-        String jar = scanner.nextLine();
-        URL url = ClassLoader.getSystemResource(jar);
-        Manifest mf = getManifest(new ZipInputStream(url.openStream()));
-        if (mf == null) {
-          throw new Error(
-              "Library jars used by agent require a manifest. Error found in jar " + jar);
+      Map<File, ByteBuffer> mappedJars = new HashMap<File, ByteBuffer>();
+      InputStream index = agentClassLoader.getResourceAsStream(AgentIndexWriter.INDEX_NAME);
+      if (index != null) {
+        try {
+          loadIndex(new DataInputStream(new BufferedInputStream(index)), agentClassLoader,
+              mappedJars);
+        } finally {
+          index.close();
         }
-        ZipInputStream zis = new ZipInputStream(url.openStream());
-        ZipEntry zipEntry;
-        while ((zipEntry = zis.getNextEntry()) != null) {
-          String name = zipEntry.getName();
-          URL entryURL = new URL(URL_PROTOCOL, null, -1, jar + "!" + name, handler);
-          if (name.endsWith("/")) {
-            if (!name.startsWith("META-INF/")) {
-              try {
-                definePackage(name, mf, entryURL);
-              } catch (IllegalArgumentException iae) {
-                // Race conditions due to concurrent definition
-                if (getPackage(name) == null) {
-                  throw new AssertionError(
-                      "Package " + name + " has already been defined but it could not be found");
-                }
-              }
-            }
-          } else {
-            byte[] bytes = read(zis);
-            Map<URL, ByteBuffer> entryMap = resourceMap.get(name);
-            if (entryMap == null) {
-              entryMap = new HashMap<URL, ByteBuffer>();
-              resourceMap.put(name, entryMap);
-            }
-            ByteBuffer byteBuffer = ByteBuffer.allocateDirect(bytes.length);
-            byteBuffer.put(bytes);
-            byteBuffer.flip();
-            entryMap.put(entryURL, byteBuffer);
+      } else {
+        Scanner scanner = new Scanner(
+            agentClassLoader.getResourceAsStream(AgentIndexWriter.LIBRARIES_DESCRIPTOR));
+        while (scanner.hasNextLine()) {
+          String jar = scanner.nextLine().trim();
+          if (jar.isEmpty()) {
+            continue;
           }
+          scanJar(jar, getJarBuffer(jar, agentClassLoader, mappedJars));
         }
       }
     } catch (Exception ex) {
@@ -97,41 +111,221 @@ public class BctraceClassLoader extends ClassLoader {
     }
   }
 
-  private static Manifest getManifest(ZipInputStream zis) throws IOException {
-    ZipEntry zipEntry;
-    while ((zipEntry = zis.getNextEntry()) != null) {
-      if (zipEntry.getName().equals(JarFile.MANIFEST_NAME)) {
-        return new Manifest(zis);
+  /**
+   * ClassLoader.registerAsParallelCapable() is not available in Java 6
+   */
+  private static void registerParallelCapable() {
+    try {
+      Method method = ClassLoader.class.getDeclaredMethod("registerAsParallelCapable");
+      method.setAccessible(true);
+      method.invoke(null);
+    } catch (NoSuchMethodException ex) {
+      // Java 6
+    } catch (Exception ex) {
+      throw new Error("Could not register agent class loader as parallel capable", ex);
+    }
+  }
+
+  /**
+   * @return the bytes of the inner jar, a view of the mapped agent jar if it is stored in it
+   */
+  private ByteBuffer getJarBuffer(String jar, ClassLoader agentClassLoader,
+      Map<File, ByteBuffer> mappedJars) throws IOException {
+    URL url = agentClassLoader.getResource(jar);
+    if (url == null) {
+      throw new Error("Library jar " + jar + " not found");
+    }
+    ByteBuffer ret = mapStoredJar(url, mappedJars);
+    if (ret != null) {
+      return ret;
+    }
+    // Compressed in the agent jar, not in a local file, or not mappable
+    InputStream is = url.openStream();
+    try {
+      return ByteBuffer.wrap(read(is)).order(ByteOrder.LITTLE_ENDIAN);
+    } finally {
+      is.close();
+    }
+  }
+
+  /**
+   * @return view of the inner jar in the mapped agent jar, or null if it can not be mapped
+   */
+  static ByteBuffer mapStoredJar(URL url, Map<File, ByteBuffer> mappedJars) {
+    if (!url.getProtocol().equals("jar")) {
+      return null;
+    }
+    try {
+      URLConnection conn = url.openConnection();
+      if (!(conn instanceof JarURLConnection)) {
+        return null;
+      }
+      URL outerURL = ((JarURLConnection) conn).getJarFileURL();
+      String entryName = ((JarURLConnection) conn).getEntryName();
+      if (!outerURL.getProtocol().equals("file") || entryName == null) {
+        return null;
+      }
+      File file = new File(outerURL.toURI());
+      ByteBuffer outer = mappedJars.get(file);
+      if (outer == null) {
+        outer = CentralDirectory.map(file);
+        mappedJars.put(file, outer);
+      }
+      return CentralDirectory.findStoredEntry(outer, entryName);
+    } catch (URISyntaxException ex) {
+      return null;
+    } catch (IllegalArgumentException ex) {
+      // URI not hierarchical or with authority
+      return null;
+    } catch (IOException ex) {
+      return null;
+    }
+  }
+
+  /**
+   * Adds the entries of the jars in the build time index, and defines their packages.
+   */
+  private void loadIndex(DataInputStream dis, ClassLoader agentClassLoader,
+      Map<File, ByteBuffer> mappedJars) throws IOException {
+    if (dis.readInt() != AgentIndexWriter.MAGIC || dis.readInt() != AgentIndexWriter.VERSION) {
+      throw new IOException("Invalid agent index " + AgentIndexWriter.INDEX_NAME);
+    }
+    int jarCount = dis.readInt();
+    for (int i = 0; i < jarCount; i++) {
+      String jar = dis.readUTF();
+      int jarSize = dis.readInt();
+      byte[] manifest = new byte[dis.readInt()];
+      dis.readFully(manifest);
+      String[] packages = new String[dis.readInt()];
+      for (int j = 0; j < packages.length; j++) {
+        packages[j] = dis.readUTF();
+      }
+      ByteBuffer zip = getJarBuffer(jar, agentClassLoader, mappedJars);
+      if (zip.limit() != jarSize) {
+        throw new IOException("Agent index " + AgentIndexWriter.INDEX_NAME
+            + " does not match library jar " + jar);
+      }
+      int entryCount = dis.readInt();
+      for (int j = 0; j < entryCount; j++) {
+        String name = dis.readUTF();
+        addEntry(name, new Entry(jar, zip, dis.readUnsignedShort(), dis.readInt(),
+            dis.readInt(), dis.readInt()));
+      }
+      definePackages(jar, new Manifest(new ByteArrayInputStream(manifest)), packages);
+    }
+  }
+
+  /**
+   * Adds the entries of the jar, read from its central directory, and defines its packages.
+   */
+  private void scanJar(String jar, ByteBuffer zip) throws IOException {
+    Entry manifestEntry = null;
+    List<String> packages = new ArrayList<String>();
+    CentralDirectory cd = new CentralDirectory(zip);
+    while (cd.next()) {
+      String name = cd.getName();
+      if (name.endsWith("/")) {
+        if (!name.startsWith("META-INF/")) {
+          packages.add(name);
+        }
+        continue;
+      }
+      Entry entry = new Entry(jar, zip, cd.getMethod(), cd.getLocalHeaderOffset(),
+          cd.getCompressedSize(), cd.getSize());
+      addEntry(name, entry);
+      if (name.equals(JarFile.MANIFEST_NAME) && manifestEntry == null) {
+        manifestEntry = entry;
+      }
+    }
+    if (manifestEntry == null) {
+      throw new Error(
+          "Library jars used by agent require a manifest. Error found in jar " + jar);
+    }
+    definePackages(jar, new Manifest(new ByteArrayInputStream(manifestEntry.getBytes())),
+        packages.toArray(new String[packages.size()]));
+  }
+
+  private void addEntry(String name, Entry entry) {
+    // Entries present in several jars are kept in the order of the descriptor
+    Entry last = resourceMap.get(name);
+    if (last == null) {
+      resourceMap.put(name, entry);
+    } else {
+      while (last.next != null) {
+        last = last.next;
+      }
+      last.next = entry;
+    }
+  }
+
+  private void definePackages(String jar, Manifest mf, String[] packages) throws IOException {
+    for (int i = 0; i < packages.length; i++) {
+      String name = packages[i];
+      URL entryURL = new URL(URL_PROTOCOL, null, -1, jar + "!" + name, handler);
+      try {
+        definePackage(name, mf, entryURL);
+      } catch (IllegalArgumentException iae) {
+        // Race conditions due to concurrent definition
+        if (getPackage(name) == null) {
+          throw new AssertionError(
+              "Package " + name + " has already been defined but it could not be found");
+        }
       }
     }
-    return null;
   }
 
   @Override
   protected Class<?> findClass(String name) throws ClassNotFoundException {
-    Map<URL, ByteBuffer> entryMap = resourceMap.get(name.replace('.', '/') + ".class");
-    if (entryMap == null) {
+    Entry entry = resourceMap.get(name.replace('.', '/') + ".class");
+    if (entry == null) {
       throw new ClassNotFoundException(name);
     }
-    ByteBuffer byteBuffer = entryMap.values().iterator().next();
-    byte[] bytes = new byte[byteBuffer.limit()];
-    synchronized (byteBuffer) {
-      byteBuffer.position(0);
-      byteBuffer.get(bytes);
+    try {
+      if (entry.method == CentralDirectory.STORED) {
+        return super.defineClass(name, entry.getStoredBuffer(), this.agentProtectionDomain);
+      }
+      byte[] bytes = entry.getBytes();
+      return super.defineClass(name, bytes, 0, bytes.length, this.agentProtectionDomain);
+    } catch (IOException ex) {
+      throw new ClassNotFoundException(name, ex);
     }
-    return super.defineClass(name, bytes, 0, bytes.length, this.agentProtectionDomain);
   }
 
   @Override
   protected Enumeration<URL> findResources(String name) {
     name = removeLeadingSlash(name);
-    Map<URL, ByteBuffer> entryMap = resourceMap.get(name);
-    if (entryMap == null) {
+    final Entry first = resourceMap.get(name);
+    if (first == null) {
       return null;
     }
-    return Collections.enumeration(entryMap.keySet());
+    final String entryName = name;
+    return new Enumeration<URL>() {
+      private Entry next = first;
+
+      @Override
+      public boolean hasMoreElements() {
+        return next != null;
+      }
+
+      @Override
+      public URL nextElement() {
+        if (next == null) {
+          throw new NoSuchElementException();
+        }
+        URL ret = getURL(next, entryName);
+        next = next.next;
+        return ret;
+      }
+    };
   }
 
+  private URL getURL(Entry entry, String name) {
+    try {
+      return new URL(URL_PROTOCOL, null, -1, entry.jar + "!" + name, handler);
+    } catch (IOException ex) {
+      throw new AssertionError(ex);
+    }
+  }
 
   /**
    * Default getResource() fails to get resources from bootstrap classloader inside a jar added via
@@ -165,7 +359,6 @@ public class BctraceClassLoader extends ClassLoader {
     return super.getPackage(getNormalizedPackageName(name));
   }
 
-
   private void definePackage(String name, Manifest man, URL url) throws IllegalArgumentException {
     if (getPackage(name) != null) {
       return;
@@ -253,21 +446,17 @@ public class BctraceClassLoader extends ClassLoader {
 
     @Override
     public InputStream getInputStream() throws IOException {
-      String name = url.getFile().substring(url.getFile().lastIndexOf("!") + 1);
-      Map<URL, ByteBuffer> entryMap = resourceMap.get(name);
-      if (entryMap == null) {
-        return null;
+      String file = url.getFile();
+      int separator = file.lastIndexOf("!");
+      String jar = file.substring(0, separator);
+      Entry entry = resourceMap.get(file.substring(separator + 1));
+      while (entry != null && !entry.jar.equals(jar)) {
+        entry = entry.next;
       }
-      ByteBuffer byteBuffer = entryMap.get(url);
-      if (byteBuffer == null) {
+      if (entry == null) {
         return null;
       }
-      byte[] bytes = new byte[byteBuffer.limit()];
-      synchronized (byteBuffer) {
-        byteBuffer.position(0);
-        byteBuffer.get(bytes);
-      }
-      return new ByteArrayInputStream(bytes);
+      return new ByteArrayInputStream(entry.getBytes());
     }
   }
 
@@ -279,16 +468,69 @@ public class BctraceClassLoader extends ClassLoader {
     }
   }
 
-  private static byte[] toByteArray(InputStream is) throws IOException {
-    ByteArrayOutputStream out = new ByteArrayOutputStream();
-    byte[] buffer = new byte[1024];
-    while (true) {
-      int r = is.read(buffer);
-      if (r == -1) {
-        break;
+  /**
+   * Location of an entry in an inner jar. Entries with the same name in several jars are linked,
+   * in the order of the jars in the descriptor.
+   */
+  private static final class Entry {
+
+    private final String jar;
+    private final ByteBuffer zip;
+    private final int method;
+    private final int localHeaderOffset;
+    private final int compressedSize;
+    private final int size;
+    private Entry next;
+
+    Entry(String jar, ByteBuffer zip, int method, int localHeaderOffset, int compressedSize,
+        int size) {
+      this.jar = jar;
+      this.zip = zip;
+      this.method = method;
+      this.localHeaderOffset = localHeaderOffset;
+      this.compressedSize = compressedSize;
+      this.size = size;
+    }
+
+    ByteBuffer getStoredBuffer() throws IOException {
+      return CentralDirectory.slice(zip, getDataOffset(), size);
+    }
+
+    byte[] getBytes() throws IOException {
+      ByteBuffer data = CentralDirectory.slice(zip, getDataOffset(), compressedSize);
+      byte[] compressed = new byte[compressedSize];
+      data.get(compressed);
+      if (method == CentralDirectory.STORED) {
+        return compressed;
+      }
+      if (method != CentralDirectory.DEFLATED) {
+        throw new IOException("Unsupported compression method " + method + " in jar " + jar);
       }
-      out.write(buffer, 0, r);
+      Inflater inflater = new Inflater(true);
+      try {
+        inflater.setInput(compressed);
+        byte[] ret = new byte[size];
+        int count = 0;
+        while (count < size) {
+          int n = inflater.inflate(ret, count, size - count);
+          if (n == 0 && (inflater.finished() || inflater.needsInput())) {
+            break;
+          }
+          count += n;
+        }
+        if (count != size) {
+          throw new IOException("Truncated entry in jar " + jar);
+        }
+        return ret;
+      } catch (DataFormatException ex) {
+        throw new IOException("Invalid compressed entry in jar " + jar + ": " + ex.getMessage());
+      } finally {
+        inflater.end();
+      }
+    }
+
+    private int getDataOffset() throws IOException {
+      return CentralDirectory.getDataOffset(zip, localHeaderOffset);
     }
-    return out.toByteArray();
   }
 }
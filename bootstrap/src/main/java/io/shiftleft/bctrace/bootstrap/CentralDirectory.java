@@ -0,0 +1,131 @@
+package io.shiftleft.bctrace.bootstrap;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+/**
+ * Cursor over the central directory records of a zip file held in a little endian buffer.
+ *
+ * @author Ignacio del Valle Alles idelvall@shiftleft.io
+ */
+final class CentralDirectory {
+
+  static final int STORED = 0;
+  static final int DEFLATED = 8;
+
+  private static final int END_OF_CENTRAL_DIRECTORY = 0x06054b50;
+  private static final int CENTRAL_DIRECTORY_ENTRY = 0x02014b50;
+  private static final int LOCAL_HEADER = 0x04034b50;
+
+  private final ByteBuffer zip;
+  private int nextPos;
+  private int pos = -1;
+
+  CentralDirectory(ByteBuffer zip) throws IOException {
+    this.zip = zip;
+    this.nextPos = getCentralDirectoryOffset(zip);
+  }
+
+  /**
+   * Moves to the next record.
+   *
+   * @return false if there are no more records
+   */
+  boolean next() {
+    if (zip.getInt(nextPos) != CENTRAL_DIRECTORY_ENTRY) {
+      return false;
+    }
+    pos = nextPos;
+    nextPos += 46 + getNameLength() + (zip.getShort(pos + 30) & 0xFFFF)
+        + (zip.getShort(pos + 32) & 0xFFFF);
+    return true;
+  }
+
+  String getName() throws IOException {
+    int length = getNameLength();
+    byte[] bytes = new byte[length];
+    for (int i = 0; i < length; i++) {
+      bytes[i] = zip.get(pos + 46 + i);
+    }
+    return new String(bytes, "UTF-8");
+  }
+
+  int getMethod() {
+    return zip.getShort(pos + 10) & 0xFFFF;
+  }
+
+  int getCompressedSize() {
+    return zip.getInt(pos + 20);
+  }
+
+  int getSize() {
+    return zip.getInt(pos + 24);
+  }
+
+  int getLocalHeaderOffset() {
+    return zip.getInt(pos + 42);
+  }
+
+  private int getNameLength() {
+    return zip.getShort(pos + 28) & 0xFFFF;
+  }
+
+  /**
+   * @return view of the data of the entry, or null if not found or compressed
+   */
+  static ByteBuffer findStoredEntry(ByteBuffer zip, String entryName) throws IOException {
+    CentralDirectory cd = new CentralDirectory(zip);
+    while (cd.next()) {
+      if (cd.getName().equals(entryName)) {
+        if (cd.getMethod() != STORED) {
+          return null;
+        }
+        return slice(zip, getDataOffset(zip, cd.getLocalHeaderOffset()), cd.getCompressedSize());
+      }
+    }
+    return null;
+  }
+
+  /**
+   * @return read only mapping of the file
+   */
+  static ByteBuffer map(File file) throws IOException {
+    RandomAccessFile raf = new RandomAccessFile(file, "r");
+    try {
+      // The mapping remains valid after the channel is closed
+      return raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length())
+          .order(ByteOrder.LITTLE_ENDIAN);
+    } finally {
+      raf.close();
+    }
+  }
+
+  static int getDataOffset(ByteBuffer zip, int localHeaderOffset) throws IOException {
+    if (zip.getInt(localHeaderOffset) != LOCAL_HEADER) {
+      throw new IOException("Invalid zip file: local header not found");
+    }
+    return localHeaderOffset + 30 + (zip.getShort(localHeaderOffset + 26) & 0xFFFF)
+        + (zip.getShort(localHeaderOffset + 28) & 0xFFFF);
+  }
+
+  static ByteBuffer slice(ByteBuffer buffer, int offset, int length) {
+    ByteBuffer ret = buffer.duplicate();
+    ret.limit(offset + length);
+    ret.position(offset);
+    return ret.slice().order(ByteOrder.LITTLE_ENDIAN);
+  }
+
+  private static int getCentralDirectoryOffset(ByteBuffer zip) throws IOException {
+    int minPos = Math.max(0, zip.limit() - 22 - 0xFFFF);
+    for (int pos = zip.limit() - 22; pos >= minPos; pos--) {
+      if (zip.getInt(pos) == END_OF_CENTRAL_DIRECTORY) {
+        return zip.getInt(pos + 16);
+      }
+    }
+    throw new IOException("Invalid zip file: end of central directory not found");
+  }
+}
@@ -0,0 +1,269 @@
+package io.shiftleft.bctrace.bootstrap;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Measures the time taken by several threads to concurrently load all the classes of a library
+ * jar through a {@link BctraceClassLoader}, compared with a subclass that is not registered as
+ * parallel capable (and hence loads classes holding the lock of the class loader instance).
+ * <br><br>
+ * The agent jar is created in a temporary directory, with the library jar stored and (unless
+ * disabled) the index written by {@link AgentIndexWriter}, as built by the agent archetype. The
+ * measurement is run in a child JVM having it in the system class path, as required by the class
+ * loader. The time taken to create the class loader (reading the index, or scanning the library
+ * jar without it) is reported too.
+ * <br><br>
+ * Usage: AgentClassLoadingBenchmark libraryJar [threads] [rounds] [index]
+ *
+ * @author Ignacio del Valle Alles idelvall@shiftleft.io
+ */
+public class AgentClassLoadingBenchmark {
+
+  private static final String LIBRARY_NAME = "library.jar";
+
+  public static void main(String[] args) throws Exception {
+    if (args.length > 0 && args[0].equals("run")) {
+      run(new File(args[1]), Integer.parseInt(args[2]), Integer.parseInt(args[3]));
+      return;
+    }
+    if (args.length == 0) {
+      System.err.println(
+          "Usage: AgentClassLoadingBenchmark libraryJar [threads] [rounds] [index]");
+      System.exit(1);
+    }
+    File library = new File(args[0]);
+    int threads = args.length > 1 ? Integer.parseInt(args[1]) : 8;
+    int rounds = args.length > 2 ? Integer.parseInt(args[2]) : 20;
+    boolean index = args.length <= 3 || Boolean.parseBoolean(args[3]);
+
+    File agentJar = File.createTempFile("bctrace-agent", ".jar");
+    agentJar.deleteOnExit();
+    createAgentJar(agentJar, library, index);
+
+    String javaBin = System.getProperty("java.home") + File.separator + "bin" + File.separator
+        + "java";
+    ProcessBuilder pb = new ProcessBuilder(javaBin, "-cp",
+        System.getProperty("java.class.path") + File.pathSeparator + agentJar.getAbsolutePath(),
+        AgentClassLoadingBenchmark.class.getName(), "run", library.getAbsolutePath(),
+        String.valueOf(threads), String.valueOf(rounds));
+    pb.redirectErrorStream(true);
+    Process process = pb.start();
+    BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream()));
+    String line;
+    while ((line = reader.readLine()) != null) {
+      System.out.println(line);
+    }
+    System.exit(process.waitFor());
+  }
+
+  private static void createAgentJar(File agentJar, File library, boolean index)
+      throws IOException {
+    ZipOutputStream zos = new ZipOutputStream(new FileOutputStream(agentJar));
+    try {
+      byte[] descriptor = (LIBRARY_NAME + "\n").getBytes("UTF-8");
+      ZipEntry descriptorEntry = new ZipEntry(AgentIndexWriter.LIBRARIES_DESCRIPTOR);
+      zos.putNextEntry(descriptorEntry);
+      zos.write(descriptor);
+      zos.closeEntry();
+
+      byte[] bytes = read(library);
+      CRC32 crc = new CRC32();
+      crc.update(bytes);
+      ZipEntry libraryEntry = new ZipEntry(LIBRARY_NAME);
+      libraryEntry.setMethod(ZipEntry.STORED);
+      libraryEntry.setSize(bytes.length);
+      libraryEntry.setCompressedSize(bytes.length);
+      libraryEntry.setCrc(crc.getValue());
+      zos.putNextEntry(libraryEntry);
+      zos.write(bytes);
+      zos.closeEntry();
+
+      if (index) {
+        zos.putNextEntry(new ZipEntry(AgentIndexWriter.INDEX_NAME));
+        zos.write(createIndex(descriptor, bytes));
+        zos.closeEntry();
+      }
+    } finally {
+      zos.close();
+    }
+  }
+
+  /**
+   * Writes the index from a folder laid out as the agent classes folder of the archetype
+   */
+  private static byte[] createIndex(byte[] descriptor, byte[] library) throws IOException {
+    File folder = File.createTempFile("bctrace-agent", "");
+    if (!folder.delete() || !folder.mkdir()) {
+      throw new IOException("Could not create temporary folder " + folder);
+    }
+    File descriptorFile = new File(folder, AgentIndexWriter.LIBRARIES_DESCRIPTOR);
+    File libraryFile = new File(folder, LIBRARY_NAME);
+    File indexFile = new File(folder, AgentIndexWriter.INDEX_NAME);
+    try {
+      write(descriptorFile, descriptor);
+      write(libraryFile, library);
+      AgentIndexWriter.write(folder, indexFile);
+      return read(indexFile);
+    } finally {
+      descriptorFile.delete();
+      libraryFile.delete();
+      indexFile.delete();
+      folder.delete();
+    }
+  }
+
+  private static void run(File library, int threads, int rounds) throws Exception {
+    String[] classNames = getClassNames(library);
+    System.out.println(classNames.length + " classes, " + threads + " threads, " + rounds
+        + " rounds");
+    // Warm up
+    for (int i = 0; i < 3; i++) {
+      measure(new BctraceClassLoader(LIBRARY_NAME), classNames, threads);
+      measure(new SerialClassLoader(LIBRARY_NAME), classNames, threads);
+    }
+    long[] creation = new long[rounds];
+    long[] parallel = new long[rounds];
+    long[] serial = new long[rounds];
+    for (int i = 0; i < rounds; i++) {
+      long start = System.nanoTime();
+      BctraceClassLoader loader = new BctraceClassLoader(LIBRARY_NAME);
+      creation[i] = System.nanoTime() - start;
+      parallel[i] = measure(loader, classNames, threads);
+      serial[i] = measure(new SerialClassLoader(LIBRARY_NAME), classNames, threads);
+    }
+    boolean indexed = ClassLoader.getSystemResource(AgentIndexWriter.INDEX_NAME) != null;
+    System.out.println(String.format("class loader creation (%s): median %.2f ms, best %.2f ms",
+        indexed ? "indexed" : "scanned", median(creation) / 1e6, best(creation) / 1e6));
+    report("parallel capable", parallel, classNames.length);
+    report("not parallel capable", serial, classNames.length);
+    System.out.println(String.format("Speedup: %.2fx", (double) median(serial)
+        / median(parallel)));
+  }
+
+  private static long measure(final ClassLoader cl, final String[] classNames, final int threads)
+      throws InterruptedException {
+    final CountDownLatch startLatch = new CountDownLatch(1);
+    final CountDownLatch endLatch = new CountDownLatch(threads);
+    final AtomicInteger next = new AtomicInteger();
+    for (int t = 0; t < threads; t++) {
+      Thread thread = new Thread() {
+        @Override
+        public void run() {
+          try {
+            startLatch.await();
+            int i;
+            while ((i = next.getAndIncrement()) < classNames.length) {
+              try {
+                cl.loadClass(classNames[i]);
+              } catch (ClassNotFoundException ex) {
+                // Dependency of the class not available in the library jar
+              } catch (LinkageError ex) {
+                // Idem
+              }
+            }
+          } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+          } finally {
+            endLatch.countDown();
+          }
+        }
+      };
+      thread.setDaemon(true);
+      thread.start();
+    }
+    long start = System.nanoTime();
+    startLatch.countDown();
+    endLatch.await();
+    return System.nanoTime() - start;
+  }
+
+  private static void report(String name, long[] nanos, int classes) {
+    System.out.println(String.format("%s: median %.2f ms, best %.2f ms (%.1f us/class)", name,
+        median(nanos) / 1e6, best(nanos) / 1e6, median(nanos) / 1e3 / classes));
+  }
+
+  private static long median(long[] values) {
+    long[] sorted = values.clone();
+    Arrays.sort(sorted);
+    return sorted[sorted.length / 2];
+  }
+
+  private static long best(long[] values) {
+    long ret = Long.MAX_VALUE;
+    for (int i = 0; i < values.length; i++) {
+      ret = Math.min(ret, values[i]);
+    }
+    return ret;
+  }
+
+  private static String[] getClassNames(File library) throws IOException {
+    List<String> ret = new ArrayList<String>();
+    ZipFile zip = new ZipFile(library);
+    try {
+      Enumeration<? extends ZipEntry> entries = zip.entries();
+      while (entries.hasMoreElements()) {
+        String name = entries.nextElement().getName();
+        if (name.endsWith(".class") && !name.startsWith("META-INF/")
+            && !name.endsWith("module-info.class")) {
+          ret.add(name.substring(0, name.length() - 6).replace('/', '.'));
+        }
+      }
+    } finally {
+      zip.close();
+    }
+    return ret.toArray(new String[ret.size()]);
+  }
+
+  private static void write(File file, byte[] bytes) throws IOException {
+    FileOutputStream fos = new FileOutputStream(file);
+    try {
+      fos.write(bytes);
+    } finally {
+      fos.close();
+    }
+  }
+
+  private static byte[] read(File file) throws IOException {
+    InputStream is = new FileInputStream(file);
+    try {
+      byte[] ret = new byte[(int) file.length()];
+      int count = 0;
+      while (count < ret.length) {
+        int n = is.read(ret, count, ret.length - count);
+        if (n < 0) {
+          throw new IOException("Unexpected end of file " + file);
+        }
+        count += n;
+      }
+      return ret;
+    } finally {
+      is.close();
+    }
+  }
+
+  /**
+   * Not registered as parallel capable, so loadClass() synchronizes on the class loader instance
+   */
+  private static class SerialClassLoader extends BctraceClassLoader {
+
+    SerialClassLoader(String agentJarName) {
+      super(agentJarName);
+    }
+  }
+}
@@ -0,0 +1,124 @@
+package io.shiftleft.bctrace.bootstrap;
+
+import static io.shiftleft.bctrace.bootstrap.AgentJarFixture.createLoader;
+import static io.shiftleft.bctrace.bootstrap.AgentJarFixture.getBytes;
+import static io.shiftleft.bctrace.bootstrap.AgentJarFixture.getEntryName;
+import static io.shiftleft.bctrace.bootstrap.AgentJarFixture.read;
+import static io.shiftleft.bctrace.bootstrap.AgentJarFixture.writeAgentJar;
+import static io.shiftleft.bctrace.bootstrap.AgentJarFixture.writeDescriptor;
+import static io.shiftleft.bctrace.bootstrap.AgentJarFixture.writeLibrary;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.URL;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * @author Ignacio del Valle Alles idelvall@shiftleft.io
+ */
+public class AgentIndexWriterTest {
+
+  private static final String LIBRARY1 = "library1.jar";
+  private static final String LIBRARY2 = "library2.jar";
+  private static final String RESOURCE = "fixture/resource.txt";
+
+  @Rule
+  public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+  @Test
+  public void testRoundTrip() throws Exception {
+    File folder = createFolder();
+    // Manifests of both jars, class and resource of the first one, resource of the second one
+    assertEquals(5, AgentIndexWriter.write(folder, new File(folder, AgentIndexWriter.INDEX_NAME)));
+    // The index is used: removing the descriptor would make scanning fail
+    assertTrue(new File(folder, AgentIndexWriter.LIBRARIES_DESCRIPTOR).delete());
+    File agentJar = temporaryFolder.newFile("agent.jar");
+    writeAgentJar(agentJar, folder, true);
+    BctraceClassLoader loader = createLoader(agentJar);
+
+    Class loaded = loader.loadClass(Indexed.class.getName());
+    assertSame(loader, loaded.getClassLoader());
+    assertEquals(Indexed.class.getName(), loaded.newInstance().toString());
+    Package pkg = loaded.getPackage();
+    assertNotNull(pkg);
+    assertEquals(AgentJarFixture.IMPLEMENTATION_TITLE, pkg.getImplementationTitle());
+    assertSame(pkg, loader.getPackage(Indexed.class.getPackage().getName()));
+
+    List<URL> urls = Collections.list(loader.getResources(RESOURCE));
+    assertEquals(2, urls.size());
+    assertEquals(LIBRARY1, new String(read(urls.get(0).openStream()), "UTF-8"));
+    assertEquals(LIBRARY2, new String(read(urls.get(1).openStream()), "UTF-8"));
+    assertArrayEquals(getBytes(Indexed.class),
+        read(loader.findResource(getEntryName(Indexed.class)).openStream()));
+  }
+
+  @Test
+  public void testStaleIndex() throws Exception {
+    File folder = createFolder();
+    AgentIndexWriter.write(folder, new File(folder, AgentIndexWriter.INDEX_NAME));
+    // Rebuilt after the index was written
+    Map<String, byte[]> entries = new LinkedHashMap<String, byte[]>();
+    entries.put(RESOURCE, "rebuilt".getBytes("UTF-8"));
+    writeLibrary(new File(folder, LIBRARY2), ZipEntry.DEFLATED, entries);
+    File agentJar = temporaryFolder.newFile("agent.jar");
+    writeAgentJar(agentJar, folder, true);
+    try {
+      createLoader(agentJar);
+      fail();
+    } catch (RuntimeException ex) {
+      assertTrue(ex.getCause() instanceof IOException);
+      assertTrue(ex.getCause().getMessage().contains("does not match library jar " + LIBRARY2));
+    }
+  }
+
+  @Test(expected = IOException.class)
+  public void testMissingManifest() throws Exception {
+    File folder = temporaryFolder.newFolder();
+    ZipOutputStream zos = new ZipOutputStream(new FileOutputStream(new File(folder, LIBRARY1)));
+    try {
+      zos.putNextEntry(new ZipEntry(RESOURCE));
+      zos.write(1);
+      zos.closeEntry();
+    } finally {
+      zos.close();
+    }
+    writeDescriptor(folder, LIBRARY1);
+    AgentIndexWriter.write(folder, new File(folder, AgentIndexWriter.INDEX_NAME));
+  }
+
+  private File createFolder() throws Exception {
+    File folder = temporaryFolder.newFolder();
+    Map<String, byte[]> entries = new LinkedHashMap<String, byte[]>();
+    entries.put(getEntryName(Indexed.class), getBytes(Indexed.class));
+    entries.put(RESOURCE, LIBRARY1.getBytes("UTF-8"));
+    writeLibrary(new File(folder, LIBRARY1), ZipEntry.STORED, entries);
+    entries.clear();
+    entries.put(RESOURCE, LIBRARY2.getBytes("UTF-8"));
+    writeLibrary(new File(folder, LIBRARY2), ZipEntry.DEFLATED, entries);
+    writeDescriptor(folder, LIBRARY1, LIBRARY2);
+    return folder;
+  }
+
+  public static class Indexed {
+
+    @Override
+    public String toString() {
+      return getClass().getName();
+    }
+  }
+}
@@ -0,0 +1,165 @@
+package io.shiftleft.bctrace.bootstrap;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.jar.Attributes;
+import java.util.jar.JarFile;
+import java.util.jar.Manifest;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Builds agent jars in the layout expected by {@link BctraceClassLoader}: a "libraries.txt"
+ * descriptor and the library jars in the root of the agent jar, plus the "libraries.idx" index if
+ * present in the folder the agent jar is built from.
+ *
+ * @author Ignacio del Valle Alles idelvall@shiftleft.io
+ */
+final class AgentJarFixture {
+
+  static final String IMPLEMENTATION_TITLE = "bctrace-fixture";
+
+  private AgentJarFixture() {
+  }
+
+  /**
+   * Writes a library jar with a manifest, the directory entries of the given entries and the
+   * entries themselves, in order.
+   *
+   * @param method ZipEntry.STORED or ZipEntry.DEFLATED
+   */
+  static void writeLibrary(File file, int method, Map<String, byte[]> entries)
+      throws IOException {
+    Manifest mf = new Manifest();
+    mf.getMainAttributes().put(Attributes.Name.MANIFEST_VERSION, "1.0");
+    mf.getMainAttributes().put(Attributes.Name.IMPLEMENTATION_TITLE, IMPLEMENTATION_TITLE);
+    ByteArrayOutputStream manifest = new ByteArrayOutputStream();
+    mf.write(manifest);
+
+    Set<String> directories = new HashSet<String>();
+    ZipOutputStream zos = new ZipOutputStream(new FileOutputStream(file));
+    try {
+      putEntry(zos, "META-INF/", new byte[0], method);
+      putEntry(zos, JarFile.MANIFEST_NAME, manifest.toByteArray(), method);
+      for (Map.Entry<String, byte[]> entry : entries.entrySet()) {
+        String name = entry.getKey();
+        int slash = name.lastIndexOf('/');
+        if (slash > 0) {
+          putDirectories(zos, name.substring(0, slash + 1), method, directories);
+        }
+        putEntry(zos, name, entry.getValue(), method);
+      }
+    } finally {
+      zos.close();
+    }
+  }
+
+  static void writeDescriptor(File folder, String... jars) throws IOException {
+    StringBuilder sb = new StringBuilder();
+    for (int i = 0; i < jars.length; i++) {
+      sb.append(jars[i]).append('\n');
+    }
+    write(new File(folder, AgentIndexWriter.LIBRARIES_DESCRIPTOR),
+        sb.toString().getBytes("UTF-8"));
+  }
+
+  /**
+   * Writes the agent jar with the files of the folder.
+   *
+   * @param storeLibraries whether the library jars are stored (so they can be mapped) or deflated
+   */
+  static void writeAgentJar(File agentJar, File folder, boolean storeLibraries)
+      throws IOException {
+    ZipOutputStream zos = new ZipOutputStream(new FileOutputStream(agentJar));
+    try {
+      File[] files = folder.listFiles();
+      for (int i = 0; i < files.length; i++) {
+        int method = storeLibraries && files[i].getName().endsWith(".jar") ? ZipEntry.STORED
+            : ZipEntry.DEFLATED;
+        putEntry(zos, files[i].getName(), read(files[i]), method);
+      }
+    } finally {
+      zos.close();
+    }
+  }
+
+  static BctraceClassLoader createLoader(File agentJar) throws IOException {
+    URLClassLoader agentClassLoader = new URLClassLoader(new URL[]{agentJar.toURI().toURL()},
+        null);
+    return new BctraceClassLoader(agentJar.getName(), agentClassLoader);
+  }
+
+  static String getEntryName(Class clazz) {
+    return clazz.getName().replace('.', '/') + ".class";
+  }
+
+  static byte[] getBytes(Class clazz) throws IOException {
+    return read(clazz.getClassLoader().getResourceAsStream(getEntryName(clazz)));
+  }
+
+  static byte[] read(InputStream is) throws IOException {
+    try {
+      ByteArrayOutputStream baos = new ByteArrayOutputStream();
+      byte[] buffer = new byte[4096];
+      int n;
+      while ((n = is.read(buffer)) != -1) {
+        baos.write(buffer, 0, n);
+      }
+      return baos.toByteArray();
+    } finally {
+      is.close();
+    }
+  }
+
+  static byte[] read(File file) throws IOException {
+    return read(new FileInputStream(file));
+  }
+
+  static void write(File file, byte[] bytes) throws IOException {
+    OutputStream os = new FileOutputStream(file);
+    try {
+      os.write(bytes);
+    } finally {
+      os.close();
+    }
+  }
+
+  private static void putDirectories(ZipOutputStream zos, String dir, int method,
+      Set<String> added) throws IOException {
+    if (!added.add(dir)) {
+      return;
+    }
+    int slash = dir.lastIndexOf('/', dir.length() - 2);
+    if (slash > 0) {
+      putDirectories(zos, dir.substring(0, slash + 1), method, added);
+    }
+    putEntry(zos, dir, new byte[0], method);
+  }
+
+  private static void putEntry(ZipOutputStream zos, String name, byte[] bytes, int method)
+      throws IOException {
+    ZipEntry entry = new ZipEntry(name);
+    entry.setMethod(method);
+    if (method == ZipEntry.STORED) {
+      CRC32 crc = new CRC32();
+      crc.update(bytes);
+      entry.setSize(bytes.length);
+      entry.setCompressedSize(bytes.length);
+      entry.setCrc(crc.getValue());
+    }
+    zos.putNextEntry(entry);
+    zos.write(bytes);
+    zos.closeEntry();
+  }
+}
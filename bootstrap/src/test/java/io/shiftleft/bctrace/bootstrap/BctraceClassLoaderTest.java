@@ -0,0 +1,157 @@
+package io.shiftleft.bctrace.bootstrap;
+
+import static io.shiftleft.bctrace.bootstrap.AgentJarFixture.createLoader;
+import static io.shiftleft.bctrace.bootstrap.AgentJarFixture.getBytes;
+import static io.shiftleft.bctrace.bootstrap.AgentJarFixture.getEntryName;
+import static io.shiftleft.bctrace.bootstrap.AgentJarFixture.read;
+import static io.shiftleft.bctrace.bootstrap.AgentJarFixture.writeAgentJar;
+import static io.shiftleft.bctrace.bootstrap.AgentJarFixture.writeDescriptor;
+import static io.shiftleft.bctrace.bootstrap.AgentJarFixture.writeLibrary;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.ZipEntry;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * @author Ignacio del Valle Alles idelvall@shiftleft.io
+ */
+public class BctraceClassLoaderTest {
+
+  private static final String STORED_JAR = "stored.jar";
+  private static final String DEFLATED_JAR = "deflated.jar";
+  private static final String RESOURCE = "fixture/resource.txt";
+
+  @Rule
+  public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+  @Test
+  public void testStoredAgentJar() throws Exception {
+    File agentJar = createAgentJar(true);
+    assertLoads(createLoader(agentJar));
+  }
+
+  @Test
+  public void testCompressedAgentJar() throws Exception {
+    File agentJar = createAgentJar(false);
+    assertLoads(createLoader(agentJar));
+  }
+
+  @Test
+  public void testMapAgentJar() throws Exception {
+    File agentJar = createAgentJar(true);
+    // Characters that URL decoding would have changed or rejected
+    assertTrue(agentJar.getPath().contains("+") && agentJar.getPath().contains(" "));
+    Map<File, ByteBuffer> mappedJars = new HashMap<File, ByteBuffer>();
+    ByteBuffer stored = BctraceClassLoader.mapStoredJar(getURL(agentJar, STORED_JAR), mappedJars);
+    assertNotNull(stored);
+    // Local header of the first entry of the library jar
+    assertEquals(0x04034b50, stored.getInt(0));
+    assertEquals(Collections.singleton(agentJar.getAbsoluteFile()), mappedJars.keySet());
+
+    // Not mappable: read from the stream instead
+    assertNull(BctraceClassLoader.mapStoredJar(getURL(createAgentJar(false), STORED_JAR),
+        mappedJars));
+    assertNull(BctraceClassLoader.mapStoredJar(getURL(
+        new File(temporaryFolder.getRoot(), "missing.jar"), STORED_JAR), mappedJars));
+  }
+
+  @Test
+  public void testDuplicateEntries() throws Exception {
+    BctraceClassLoader loader = createLoader(createAgentJar(true));
+    List<URL> urls = Collections.list(loader.getResources(RESOURCE));
+    assertEquals(2, urls.size());
+    assertTrue(urls.get(0).getFile().startsWith(STORED_JAR + "!"));
+    assertTrue(urls.get(1).getFile().startsWith(DEFLATED_JAR + "!"));
+    assertEquals(STORED_JAR, new String(read(urls.get(0).openStream()), "UTF-8"));
+    assertEquals(DEFLATED_JAR, new String(read(urls.get(1).openStream()), "UTF-8"));
+    assertEquals(urls.get(0), loader.getResource(RESOURCE));
+    assertEquals(STORED_JAR, new String(read(loader.getResourceAsStream(RESOURCE)), "UTF-8"));
+  }
+
+  @Test
+  public void testResourceURLs() throws Exception {
+    BctraceClassLoader loader = createLoader(createAgentJar(true));
+    // Classes are also in the system class path, that getResource() looks up first
+    URL url = loader.findResource(getEntryName(Deflated.class));
+    assertEquals("bctrace-agent", url.getProtocol());
+    assertEquals(DEFLATED_JAR + "!" + getEntryName(Deflated.class), url.getFile());
+    assertArrayEquals(getBytes(Deflated.class), read(url.openStream()));
+    assertArrayEquals(getBytes(Stored.class),
+        read(loader.findResource("/" + getEntryName(Stored.class)).openStream()));
+    assertNull(loader.getResource("fixture/missing.txt"));
+    assertFalse(loader.getResources("fixture/missing.txt").hasMoreElements());
+  }
+
+  private static URL getURL(File jar, String entryName) throws Exception {
+    return new URL("jar:" + jar.toURI().toURL() + "!/" + entryName);
+  }
+
+  /**
+   * Classes from stored and deflated entries of stored and deflated library jars
+   */
+  private static void assertLoads(BctraceClassLoader loader) throws Exception {
+    for (Class clazz : new Class[]{Stored.class, Deflated.class}) {
+      Class loaded = loader.loadClass(clazz.getName());
+      assertSame(loader, loaded.getClassLoader());
+      assertEquals(clazz.getName(), loaded.newInstance().toString());
+      assertEquals(AgentJarFixture.IMPLEMENTATION_TITLE,
+          loaded.getPackage().getImplementationTitle());
+    }
+  }
+
+  /**
+   * Agent jar in a directory whose name needs escaping in URLs, with a stored and a deflated
+   * library jar, both containing the same resource
+   */
+  private File createAgentJar(boolean storeLibraries) throws Exception {
+    File dir = new File(temporaryFolder.getRoot(), "bctrace a+b");
+    File folder = temporaryFolder.newFolder();
+    Map<String, byte[]> entries = new LinkedHashMap<String, byte[]>();
+    entries.put(getEntryName(Stored.class), getBytes(Stored.class));
+    entries.put(RESOURCE, STORED_JAR.getBytes("UTF-8"));
+    writeLibrary(new File(folder, STORED_JAR), ZipEntry.STORED, entries);
+    entries.clear();
+    entries.put(getEntryName(Deflated.class), getBytes(Deflated.class));
+    entries.put(RESOURCE, DEFLATED_JAR.getBytes("UTF-8"));
+    writeLibrary(new File(folder, DEFLATED_JAR), ZipEntry.DEFLATED, entries);
+    writeDescriptor(folder, STORED_JAR, DEFLATED_JAR);
+    if (!dir.isDirectory() && !dir.mkdir()) {
+      throw new IllegalStateException("Could not create " + dir);
+    }
+    File ret = File.createTempFile("agent", ".jar", dir);
+    writeAgentJar(ret, folder, storeLibraries);
+    return ret;
+  }
+
+  public static class Stored {
+
+    @Override
+    public String toString() {
+      return getClass().getName();
+    }
+  }
+
+  public static class Deflated {
+
+    @Override
+    public String toString() {
+      return getClass().getName();
+    }
+  }
+}
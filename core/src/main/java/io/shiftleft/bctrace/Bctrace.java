@@ -26,7 +26,11 @@ package io.shiftleft.bctrace;
 
 import io.shiftleft.bctrace.asm.CallbackTransformer;
 import io.shiftleft.bctrace.asm.Transformer;
-import io.shiftleft.bctrace.jmx.CallCounterHook;
+import io.shiftleft.bctrace.filter.MethodFilter;
+import io.shiftleft.bctrace.filter.MethodFilter.DirectMethodFilter;
+import io.shiftleft.bctrace.jmx.HookManager;
+import io.shiftleft.bctrace.jmx.MetricsHttpServer;
+import io.shiftleft.bctrace.jmx.MetricsSnapshots;
 import io.shiftleft.bctrace.hook.Hook;
 import io.shiftleft.bctrace.logging.AgentLoggerFactory;
 import io.shiftleft.bctrace.logging.Level;
@@ -37,6 +41,12 @@ import io.shiftleft.bctrace.runtime.CallbackEnabler;
 import java.net.URL;
 import java.security.AccessController;
 import java.security.PrivilegedAction;
+import java.security.ProtectionDomain;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
 
 /**
  * Framework entry point.
@@ -47,25 +57,42 @@ public final class Bctrace {
 
   private static final Logger LOGGER = createLogger();
 
+  private static final int PRIORITY_MATCH_BY_NAME = 1;
+  private static final int PRIORITY_MATCH_BY_HIERARCHY = 2;
+  private static final int PRIORITY_MATCH_EXACT = 3;
+
   private final InstrumentationImpl instrumentation;
-  private final Hook[] hooks;
   private final Agent agent;
+  private volatile Hook[] hooks;
+  private volatile boolean[] removedHooks;
+  private CallbackTransformer cbTransformer;
+  private final boolean callCounterProbes;
+  private final boolean methodTimerProbes;
 
-  public Bctrace(InstrumentationImpl instrumentation, Agent agent, boolean addDefaultHooks) {
+  /**
+   * @param callCounterProbes whether to inject the built-in call counter probe in instrumented
+   * methods (see {@link io.shiftleft.bctrace.runtime.CallCounters})
+   */
+  public Bctrace(InstrumentationImpl instrumentation, Agent agent, boolean callCounterProbes) {
     this.agent = agent;
     this.instrumentation = instrumentation;
-    if(addDefaultHooks){
-      this.hooks = addDefaultHooks(agent.getHooks());
-    } else {
-      this.hooks = agent.getHooks();
-    }
+    this.callCounterProbes = callCounterProbes;
+    this.methodTimerProbes = Boolean.getBoolean(SystemProperty.METHOD_TIMING);
+    this.hooks = agent.getHooks();
+    this.removedHooks = new boolean[this.hooks.length];
   }
 
-  private static Hook[] addDefaultHooks(Hook[] hooks) {
-    Hook[] ret = new Hook[hooks.length + 1];
-    System.arraycopy(hooks, 0, ret, 0, hooks.length);
-    ret[ret.length - 1] = new CallCounterHook();
-    return ret;
+  public boolean isCallCounterProbes() {
+    return callCounterProbes;
+  }
+
+  /**
+   * @return whether to inject the built-in timer probe in instrumented methods (see {@link
+   * io.shiftleft.bctrace.runtime.MethodTimers}), as set by the {@link
+   * SystemProperty#METHOD_TIMING} system property
+   */
+  public boolean isMethodTimerProbes() {
+    return methodTimerProbes;
   }
 
   public void init() {
@@ -76,10 +103,10 @@ public final class Bctrace {
         listeners[i] = this.hooks[i].getListener();
       }
       if (instrumentation != null && instrumentation.getJavaInstrumentation() != null) {
-        CallbackTransformer cbTransformer = new CallbackTransformer(hooks);
+        cbTransformer = new CallbackTransformer(hooks);
         instrumentation.getJavaInstrumentation()
             .addTransformer(cbTransformer, false);
-        Callback.listeners = listeners;
+        Callback.setListeners(listeners);
         Callback.errorListener = new ErrorListener() {
           @Override
           public void onError(Throwable th) {
@@ -88,6 +115,9 @@ public final class Bctrace {
         };
         Transformer transformer = new Transformer(this.instrumentation, this, cbTransformer);
         instrumentation.getJavaInstrumentation().addTransformer(transformer, true);
+        HookManager.getInstance().setBctrace(this);
+        MetricsHttpServer.startIfConfigured();
+        MetricsSnapshots.getInstance().startIfConfigured();
       }
       disableThreadNotification();
       agent.afterRegistration();
@@ -95,6 +125,273 @@ public final class Bctrace {
     }
   }
 
+  /**
+   * Schedules the background retransformation of the classes already loaded by the JVM (dynamic
+   * attach). Classes that no hook can match are skipped, and the rest are retransformed in order of
+   * hook match confidence: exact class matches first, then hierarchy matches, and finally classes
+   * only accepted by name.
+   */
+  public void retransformLoadedClasses() {
+    if (instrumentation == null || !instrumentation.isRetransformClassesSupported()) {
+      return;
+    }
+    RetransformationScheduler scheduler = instrumentation.getRetransformationScheduler();
+    Class[] loadedClasses = instrumentation.getAllLoadedClasses();
+    for (int i = 0; i < loadedClasses.length; i++) {
+      Class clazz = loadedClasses[i];
+      if (!instrumentation.isModifiableClass(clazz)) {
+        continue;
+      }
+      int priority = getMatchPriority(clazz, 0);
+      if (priority > 0) {
+        scheduler.schedule(clazz, priority);
+      }
+    }
+    scheduler.start();
+  }
+
+  /**
+   * Hook match confidence for the hooks starting at the specified index. 0 if none can match.
+   */
+  private int getMatchPriority(Class clazz, int fromHookIndex) {
+    String jvmClassName = clazz.getName().replace('.', '/');
+    ClassLoader cl = clazz.getClassLoader();
+    ProtectionDomain protectionDomain = getProtectionDomain(clazz);
+    Hook[] hooks = this.hooks;
+    int ret = 0;
+    for (int i = fromHookIndex; i < hooks.length; i++) {
+      MethodFilter filter = hooks[i].getFilter();
+      if (filter == null || isHookRemoved(i)
+          || !filter.acceptClass(jvmClassName, protectionDomain, cl)) {
+        continue;
+      }
+      int priority;
+      if (filter instanceof DirectMethodFilter) {
+        DirectMethodFilter directFilter = (DirectMethodFilter) filter;
+        if (!directFilter.isVirtual()) {
+          priority = PRIORITY_MATCH_EXACT;
+        } else if (isSubtypeOf(clazz, directFilter.getClassName().replace('/', '.'))) {
+          priority = PRIORITY_MATCH_BY_HIERARCHY;
+        } else {
+          priority = 0;
+        }
+      } else {
+        priority = PRIORITY_MATCH_BY_NAME;
+      }
+      if (priority > ret) {
+        ret = priority;
+      }
+    }
+    return ret;
+  }
+
+  private static boolean isSubtypeOf(Class clazz, String typeName) {
+    if (clazz == null) {
+      return false;
+    }
+    if (clazz.getName().equals(typeName)) {
+      return true;
+    }
+    if (isSubtypeOf(clazz.getSuperclass(), typeName)) {
+      return true;
+    }
+    Class[] interfaces = clazz.getInterfaces();
+    for (int i = 0; i < interfaces.length; i++) {
+      if (isSubtypeOf(interfaces[i], typeName)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private static ProtectionDomain getProtectionDomain(final Class clazz) {
+    return AccessController.doPrivileged(new PrivilegedAction<ProtectionDomain>() {
+      public ProtectionDomain run() {
+        return clazz.getProtectionDomain();
+      }
+    });
+  }
+
+  /**
+   * Registers new hooks at runtime, and schedules the retransformation of the loaded classes they
+   * could match. New hooks are appended, so indexes of previous hooks remain the same.
+   */
+  public void addHooks(Hook... newHooks) {
+    if (newHooks == null || newHooks.length == 0) {
+      return;
+    }
+    int fromHookIndex;
+    synchronized (this) {
+      Hook[] hooks = this.hooks;
+      fromHookIndex = hooks.length;
+      Hook[] updatedHooks = Arrays.copyOf(hooks, hooks.length + newHooks.length);
+      System.arraycopy(newHooks, 0, updatedHooks, fromHookIndex, newHooks.length);
+      if (cbTransformer != null) {
+        // Callback methods and listeners have to be available before any class is instrumented
+        cbTransformer.addDirectListeners(newHooks);
+        Object[] listeners = Arrays.copyOf(Callback.getListeners(), updatedHooks.length);
+        for (int i = fromHookIndex; i < updatedHooks.length; i++) {
+          listeners[i] = updatedHooks[i].getListener();
+        }
+        Callback.setListeners(listeners);
+      }
+      // Published in this order, so readers of hooks always find its removed state
+      this.removedHooks = Arrays.copyOf(this.removedHooks, updatedHooks.length);
+      this.hooks = updatedHooks;
+    }
+    if (instrumentation == null || !instrumentation.isRetransformClassesSupported()) {
+      return;
+    }
+    RetransformationScheduler scheduler = instrumentation.getRetransformationScheduler();
+    List<Class> candidates = getCandidateClasses(newHooks);
+    for (int c = 0; c < candidates.size(); c++) {
+      Class clazz = candidates.get(c);
+      if (!instrumentation.isModifiableClass(clazz)) {
+        continue;
+      }
+      int priority = getMatchPriority(clazz, fromHookIndex);
+      if (priority > 0) {
+        scheduler.schedule(clazz, priority);
+      }
+    }
+    // Hooks without filter only apply to classes instrumented by other hooks
+    for (int i = 0; i < newHooks.length; i++) {
+      if (newHooks[i].getFilter() == null) {
+        List<Class> transformedClasses = instrumentation.getTransformedClasses();
+        for (int c = 0; c < transformedClasses.size(); c++) {
+          scheduler.schedule(transformedClasses.get(c), PRIORITY_MATCH_BY_NAME);
+        }
+        break;
+      }
+    }
+    scheduler.start();
+  }
+
+  /**
+   * Loaded classes the hooks could match. Hooks targeting a specific class (non virtual direct
+   * method filters) are resolved looking up the loaded class registry by name, otherwise all the
+   * loaded classes are candidates.
+   */
+  private List<Class> getCandidateClasses(Hook[] newHooks) {
+    Set<String> classNames = new HashSet<String>();
+    for (int i = 0; i < newHooks.length; i++) {
+      MethodFilter filter = newHooks[i].getFilter();
+      if (filter == null) {
+        continue;
+      }
+      if (filter instanceof DirectMethodFilter && !((DirectMethodFilter) filter).isVirtual()) {
+        classNames.add(((DirectMethodFilter) filter).getClassName().replace('/', '.'));
+      } else {
+        return Arrays.asList(instrumentation.getAllLoadedClasses());
+      }
+    }
+    List<Class> ret = new ArrayList<Class>();
+    for (String className : classNames) {
+      ret.addAll(instrumentation.getLoadedClasses(className));
+    }
+    return ret;
+  }
+
+  /**
+   * Whether or not the hook at this index has been removed. Removed hooks keep their index, but are
+   * not applied to any further transformation.
+   */
+  public boolean isHookRemoved(int index) {
+    return removedHooks[index];
+  }
+
+  /**
+   * Removes all the hooks, and retransforms the instrumented classes back to their original
+   * bytecode.
+   */
+  public void removeAllHooks() {
+    boolean[] removing = new boolean[removedHooks.length];
+    for (int i = 0; i < removing.length; i++) {
+      removing[i] = true;
+    }
+    unhook(removing);
+  }
+
+  /**
+   * Removes the specified hooks and retransforms the classes instrumented by them, so they get
+   * their original bytecode back (or keep only the instrumentation of the remaining hooks).
+   */
+  public void removeHooks(Hook... hooksToRemove) {
+    Hook[] hooks = this.hooks;
+    boolean[] removing = new boolean[hooks.length];
+    for (int h = 0; h < hooksToRemove.length; h++) {
+      for (int i = 0; i < hooks.length; i++) {
+        if (hooks[i] == hooksToRemove[h]) {
+          removing[i] = true;
+        }
+      }
+    }
+    unhook(removing);
+  }
+
+  /**
+   * @param indexes indexes of the hooks in the {@link #getHooks()} array
+   */
+  public void removeHooks(int... indexes) {
+    boolean[] removing = new boolean[this.hooks.length];
+    for (int i = 0; i < indexes.length; i++) {
+      removing[indexes[i]] = true;
+    }
+    unhook(removing);
+  }
+
+  private void unhook(boolean[] removing) {
+    boolean additionalHookRemoved = false;
+    synchronized (this) {
+      boolean[] removed = this.removedHooks.clone();
+      boolean changed = false;
+      Hook[] hooks = this.hooks;
+      for (int i = 0; i < removing.length; i++) {
+        if (removing[i] && !removed[i]) {
+          removed[i] = true;
+          changed = true;
+          if (hooks[i].getFilter() == null) {
+            additionalHookRemoved = true;
+          }
+        } else {
+          removing[i] = false;
+        }
+      }
+      if (!changed) {
+        return;
+      }
+      this.removedHooks = removed;
+    }
+    if (instrumentation == null || !instrumentation.isRetransformClassesSupported()) {
+      return;
+    }
+    // The JVM passes the original class bytes to retransformation capable transformers, so
+    // retransforming is enough to get rid of the removed hooks
+    RetransformationScheduler scheduler = instrumentation.getRetransformationScheduler();
+    List<Class> transformedClasses = instrumentation.getTransformedClasses();
+    for (int c = 0; c < transformedClasses.size(); c++) {
+      Class clazz = transformedClasses.get(c);
+      if (additionalHookRemoved || isAcceptedByName(clazz, removing)) {
+        scheduler.schedule(clazz, PRIORITY_MATCH_EXACT);
+      }
+    }
+    scheduler.start();
+  }
+
+  private boolean isAcceptedByName(Class clazz, boolean[] hookMask) {
+    String jvmClassName = clazz.getName().replace('.', '/');
+    ClassLoader cl = clazz.getClassLoader();
+    ProtectionDomain protectionDomain = getProtectionDomain(clazz);
+    Hook[] hooks = this.hooks;
+    for (int i = 0; i < hookMask.length; i++) {
+      if (hookMask[i] && hooks[i].getFilter() != null
+          && hooks[i].getFilter().acceptClass(jvmClassName, protectionDomain, cl)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
   public void disableThreadNotification() {
     CallbackEnabler.disableThreadNotification();
   }
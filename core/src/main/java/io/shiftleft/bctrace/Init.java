@@ -45,11 +45,11 @@ public class Init {
   private static final String DESCRIPTOR_NAME = ".bctrace";
 
   public static void premain(String arg, Instrumentation inst) {
-    bootstrap(arg, inst);
+    bootstrap(arg, inst, false);
   }
 
   public static void agentmain(String arg, Instrumentation inst) {
-    bootstrap(arg, inst);
+    bootstrap(arg, inst, true);
   }
 
   public static void main(String args[]) {
@@ -63,7 +63,8 @@ public class Init {
     }
   }
 
-  private static void bootstrap(String agentArgs, Instrumentation inst) {
+  private static void bootstrap(String agentArgs, Instrumentation inst,
+      boolean retransformLoadedClasses) {
     try {
       CallbackEnabler.disableThreadNotification();
       wrapSystemProperties();
@@ -75,6 +76,9 @@ public class Init {
       Agent agent = factory.createAgent();
       Bctrace bctrace = new Bctrace(instrumentation, agent, true);
       bctrace.init();
+      if (retransformLoadedClasses) {
+        bctrace.retransformLoadedClasses();
+      }
       CallbackEnabler.enableThreadNotification();
     } catch (Throwable th) {
       th.printStackTrace(System.err);
@@ -25,15 +25,15 @@
 package io.shiftleft.bctrace;
 
 import io.shiftleft.bctrace.asm.TransformationSupport;
+import io.shiftleft.bctrace.hierarchy.HierarchyCache;
 import io.shiftleft.bctrace.jmx.ClassMetrics;
+import io.shiftleft.bctrace.runtime.CallbackEnabler;
 import java.lang.instrument.UnmodifiableClassException;
-import java.lang.ref.WeakReference;
 import java.security.AccessController;
 import java.security.PrivilegedAction;
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * Single implementation of the {@link Instrumentation Instrumentation} interface.
@@ -44,9 +44,12 @@ public final class InstrumentationImpl implements Instrumentation {
 
   private final java.lang.instrument.Instrumentation javaInstrumentation;
 
-  private final Map<String, List<WeakReference<ClassLoader>>> loadedClassesMap = new HashMap<String, List<WeakReference<ClassLoader>>>();
-  private final Map<String, List<WeakReference<ClassLoader>>> transformedClassesMap = new HashMap<String, List<WeakReference<ClassLoader>>>();
-
+  private final LoadedClassRegistry loadedClasses = new LoadedClassRegistry();
+  private final LoadedClassRegistry transformedClasses = new LoadedClassRegistry();
+  private final Object seedingLock = new Object();
+  private final AtomicBoolean seedingStarted = new AtomicBoolean();
+  private volatile boolean seeded;
+  private volatile RetransformationScheduler retransformationScheduler;
 
   public InstrumentationImpl(java.lang.instrument.Instrumentation javaInstrumentation) {
     this.javaInstrumentation = javaInstrumentation;
@@ -88,195 +91,189 @@ public final class InstrumentationImpl implements Instrumentation {
     }
   }
 
-  private void addAllLoadedClasses() {
-    synchronized (loadedClassesMap) {
-      if (javaInstrumentation != null) {
-        Class[] allLoadedClasses = javaInstrumentation.getAllLoadedClasses();
-        for (int i = 0; i < allLoadedClasses.length; i++) {
-          Class<?> clazz = allLoadedClasses[i];
-          registerClass(clazz.getName(), clazz.getClassLoader(), loadedClassesMap);
+  /**
+   * Returns the scheduler used to retransform classes in the background, in throttled batches.
+   */
+  public RetransformationScheduler getRetransformationScheduler() {
+    if (retransformationScheduler == null) {
+      synchronized (this) {
+        if (retransformationScheduler == null) {
+          retransformationScheduler = new RetransformationScheduler(this);
         }
       }
     }
+    return retransformationScheduler;
   }
 
-  public void addLoadedClass(String className, ClassLoader cl) {
-    synchronized (loadedClassesMap) {
-      if (loadedClassesMap.isEmpty()) {
-        addAllLoadedClasses();
+  /**
+   * Returns the classes currently instrumented by the framework.
+   */
+  public List<Class> getTransformedClasses() {
+    List<String> names = new ArrayList<String>();
+    List<ClassLoader> classLoaders = new ArrayList<ClassLoader>();
+    transformedClasses.getAll(names, classLoaders);
+    List<Class> ret = new ArrayList<Class>(names.size());
+    for (int i = 0; i < names.size(); i++) {
+      Class clazz = loadedClasses.getLoadedClass(names.get(i), classLoaders.get(i));
+      if (clazz == null) {
+        clazz = forName(names.get(i), classLoaders.get(i));
+      }
+      if (clazz != null) {
+        ret.add(clazz);
       }
-      registerClass(className, cl, loadedClassesMap);
     }
+    return ret;
   }
 
-  public void removeLoadedClass(String className, ClassLoader cl) {
-    synchronized (loadedClassesMap) {
-      removeClass(className, cl, loadedClassesMap);
+  /**
+   * Returns the loaded classes with this name, according to the loaded class registry, and to the
+   * JVM while the registry is being seeded.
+   *
+   * @param className class name according to the Java Language Specification (dot separated)
+   */
+  public List<Class> getLoadedClasses(String className) {
+    List<Class> ret = new ArrayList<Class>();
+    if (!seeded && javaInstrumentation != null) {
+      startSeeding();
+      Class[] allLoadedClasses = javaInstrumentation.getAllLoadedClasses();
+      for (int i = 0; i < allLoadedClasses.length; i++) {
+        if (allLoadedClasses[i].getName().equals(className)) {
+          ret.add(allLoadedClasses[i]);
+        }
+      }
+    }
+    List<ClassLoader> classLoaders = getClassLoadersLoading(className);
+    if (classLoaders != null) {
+      for (int i = 0; i < classLoaders.size(); i++) {
+        Class clazz = loadedClasses.getLoadedClass(className, classLoaders.get(i));
+        if (clazz != null && !ret.contains(clazz)) {
+          ret.add(clazz);
+        }
+      }
     }
+    return ret;
   }
 
-  public void addTransformedClass(String className, ClassLoader cl) {
-    synchronized (transformedClassesMap) {
-      registerClass(className, cl, transformedClassesMap);
-    }
+  private static Class forName(final String name, final ClassLoader cl) {
+    return AccessController.doPrivileged(
+        new PrivilegedAction<Class>() {
+          public Class run() {
+            try {
+              return Class.forName(name, false, cl);
+            } catch (ClassNotFoundException e) {
+              return null;
+            }
+          }
+        }
+    );
   }
 
-  public void removeTransformedClass(String className, ClassLoader cl) {
-    synchronized (transformedClassesMap) {
-      removeClass(className, cl, transformedClassesMap);
+  /**
+   * Registers the classes loaded before the agent, in a background thread so the class loading
+   * thread that triggers it does not stall. Until this completes, lookups missing the registry
+   * query the JVM for the classes initiated by the class loader (see {@link
+   * #findInitiatedClass(String, ClassLoader)}), and never wait for the seeding.
+   */
+  private void startSeeding() {
+    if (seeded || !seedingStarted.compareAndSet(false, true)) {
+      return;
     }
+    Thread thread = new Thread("bctrace-loaded-classes") {
+      @Override
+      public void run() {
+        CallbackEnabler.disableThreadNotification();
+        seed();
+      }
+    };
+    thread.setDaemon(true);
+    thread.start();
   }
 
-  private void registerClass(String className, ClassLoader cl,
-      Map<String, List<WeakReference<ClassLoader>>> map) {
-    List<WeakReference<ClassLoader>> list = map.get(className);
-    if (list == null) {
-      list = new ArrayList<WeakReference<ClassLoader>>();
-      map.put(className, list);
-    } else {
-      for (int i = 0; i < list.size(); i++) {
-        WeakReference<ClassLoader> wr = list.get(i);
-        if (cl == null) { // Bootstrap classloader
-          if (wr == null) {
-            return;
-          }
-        } else {
-          if (wr != null && wr.get() == cl) {
-            return;
-          }
+  private void seed() {
+    synchronized (seedingLock) {
+      if (seeded) {
+        return;
+      }
+      if (javaInstrumentation != null) {
+        Class[] allLoadedClasses = javaInstrumentation.getAllLoadedClasses();
+        for (int i = 0; i < allLoadedClasses.length; i++) {
+          loadedClasses.add(allLoadedClasses[i]);
         }
       }
-    }
-    if (cl == null) {
-      list.add(null);
-    } else {
-      list.add(new WeakReference<ClassLoader>(cl));
+      seeded = true;
     }
   }
 
-  private synchronized void removeClass(String className, ClassLoader cl,
-      Map<String, List<WeakReference<ClassLoader>>> map) {
-    ArrayList<WeakReference<ClassLoader>> list = (ArrayList<WeakReference<ClassLoader>>) map
-        .get(className);
-    if (list != null) {
-      if (cl == null) { // Bootstrap classloader
-        list.remove(null);
-      } else {
-        for (int i = 0; i < list.size(); i++) {
-          WeakReference<ClassLoader> wr = list.get(i);
-          if (wr != null && wr.get() == cl) {
-            list.remove(wr);
-            break;
-          }
-        }
-      }
-      if (list.isEmpty()) {
-        map.remove(className);
+  /**
+   * Queries the JVM directly. Used while the registry is being seeded.
+   *
+   * @return the class if defined by this class loader, or null if not or unknown
+   */
+  private Class findInitiatedClass(String name, ClassLoader cl) {
+    if (javaInstrumentation == null) {
+      return null;
+    }
+    Class[] classes = javaInstrumentation.getInitiatedClasses(cl);
+    for (int i = 0; i < classes.length; i++) {
+      if (classes[i].getClassLoader() == cl && classes[i].getName().equals(name)) {
+        return classes[i];
       }
     }
+    return null;
   }
 
+  public void addLoadedClass(String className, ClassLoader cl) {
+    startSeeding();
+    loadedClasses.add(className, cl);
+    HierarchyCache.getInstance().classDefined(className);
+  }
+
+  public void removeLoadedClass(String className, ClassLoader cl) {
+    loadedClasses.remove(className, cl);
+  }
 
+  public void addTransformedClass(String className, ClassLoader cl) {
+    transformedClasses.add(className, cl);
+  }
+
+  public void removeTransformedClass(String className, ClassLoader cl) {
+    transformedClasses.remove(className, cl);
+  }
+
+  /**
+   * Returns true if the class has been registered, or if not known yet since the registry has not
+   * been completely seeded.
+   */
   @Override
   public boolean isLoadedByAnyClassLoader(String name) {
-    List<WeakReference<ClassLoader>> classLoaders = this.loadedClassesMap.get(name);
-    if (classLoaders == null) {
-      return false;
-    }
-    for (int i = 0; i < classLoaders.size(); i++) {
-      WeakReference<ClassLoader> wk = classLoaders.get(i);
-      if (wk == null || wk.get() != null) {
-        return true;
-      }
-    }
-    return false;
+    return !seeded || loadedClasses.containsAny(name);
   }
 
+  /**
+   * Returns the registered class loaders. This may be incomplete while the registry is being
+   * seeded (see {@link #getLoadedClasses(String)}).
+   */
   @Override
   public List<ClassLoader> getClassLoadersLoading(String className) {
-    List<WeakReference<ClassLoader>> classLoaders = this.loadedClassesMap.get(className);
-    if (classLoaders == null) {
-      return null;
-    }
-    List<ClassLoader> ret = new ArrayList<ClassLoader>();
-    for (int i = 0; i < classLoaders.size(); i++) {
-      WeakReference<ClassLoader> wk = classLoaders.get(i);
-      if (wk == null) {
-        ret.add(null);
-      } else {
-        ClassLoader cl = wk.get();
-        if (cl != null) {
-          ret.add(cl);
-        }
-      }
-    }
-    return ret;
+    return loadedClasses.getClassLoaders(className);
   }
 
   @Override
   public Class getClassIfLoadedByClassLoader(final String name, final ClassLoader cl) {
-    List<WeakReference<ClassLoader>> classLoaders = this.loadedClassesMap.get(name);
-    if (classLoaders == null) {
-      return null;
-    }
-
-    for (int i = 0; i < classLoaders.size(); i++) {
-      WeakReference<ClassLoader> wk = classLoaders.get(i);
-      if (cl == null) {
-        if (wk == null) {
-          return (Class) AccessController.doPrivileged(
-              new PrivilegedAction<Class>() {
-                public Class run() {
-                  try {
-                    return Class.forName(name, false, null);
-                  } catch (ClassNotFoundException e) {
-                    // some classes like sun.reflect.GeneratedMethodAccessor cannot be loaded again
-                    return null;
-                  }
-                }
-              }
-          );
-        }
-      } else {
-        if (wk != null && wk.get() == cl) {
-          return (Class) AccessController.doPrivileged(
-              new PrivilegedAction<Class>() {
-                public Class run() {
-                  try {
-                    return Class.forName(name, false, cl);
-                  } catch (ClassNotFoundException e) {
-                    // some classes like sun.reflect.GeneratedMethodAccessor cannot be loaded again
-                    return null;
-                  }
-                }
-              }
-          );
-        }
+    Class ret = loadedClasses.getLoadedClass(name, cl);
+    if (ret == null && !seeded) {
+      ret = findInitiatedClass(name, cl);
+      if (ret != null) {
+        loadedClasses.add(ret);
       }
     }
-
-    return null;
+    return ret;
   }
 
   @Override
   public boolean isLoadedBy(String className, ClassLoader cl) {
-    List<WeakReference<ClassLoader>> classLoaders = this.loadedClassesMap.get(className);
-    if (classLoaders == null) {
-      return false;
-    }
-    for (int i = 0; i < classLoaders.size(); i++) {
-      WeakReference<ClassLoader> wk = classLoaders.get(i);
-      if (cl == null) {
-        if (wk == null) {
-          return true;
-        }
-      } else {
-        if (wk != null && wk.get() == cl) {
-          return true;
-        }
-      }
-    }
-    return false;
+    return loadedClasses.contains(className, cl)
+        || !seeded && findInitiatedClass(className, cl) != null;
   }
 
   @Override
@@ -0,0 +1,280 @@
+/*
+ * ShiftLeft, Inc. CONFIDENTIAL
+ * Unpublished Copyright (c) 2017 ShiftLeft, Inc., All Rights Reserved.
+ *
+ * NOTICE: All information contained herein is, and remains the property of ShiftLeft, Inc.
+ * The intellectual and technical concepts contained herein are proprietary to ShiftLeft, Inc.
+ * and may be covered by U.S. and Foreign Patents, patents in process, and are protected by
+ * trade secret or copyright law. Dissemination of this information or reproduction of this
+ * material is strictly forbidden unless prior written permission is obtained
+ * from ShiftLeft, Inc. Access to the source code contained herein is hereby forbidden to
+ * anyone except current ShiftLeft, Inc. employees, managers or contractors who have executed
+ * Confidentiality and Non-disclosure agreements explicitly covering such access.
+ *
+ * The copyright notice above does not evidence any actual or intended publication or disclosure
+ * of this source code, which includes information that is confidential and/or proprietary, and
+ * is a trade secret, of ShiftLeft, Inc.
+ *
+ * ANY REPRODUCTION, MODIFICATION, DISTRIBUTION, PUBLIC PERFORMANCE, OR PUBLIC DISPLAY
+ * OF OR THROUGH USE OF THIS SOURCE CODE WITHOUT THE EXPRESS WRITTEN CONSENT OF ShiftLeft, Inc.
+ * IS STRICTLY PROHIBITED, AND IN VIOLATION OF APPLICABLE LAWS AND INTERNATIONAL TREATIES.
+ * THE RECEIPT OR POSSESSION OF THIS SOURCE CODE AND/OR RELATED INFORMATION DOES NOT
+ * CONVEY OR IMPLY ANY RIGHTS TO REPRODUCE, DISCLOSE OR DISTRIBUTE ITS
+ * CONTENTS, OR TO MANUFACTURE, USE, OR SELL ANYTHING THAT IT MAY DESCRIBE, IN WHOLE OR IN PART.
+ */
+package io.shiftleft.bctrace;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.security.AccessController;
+import java.security.PrivilegedAction;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Lock-free registry of the class loaders that have loaded (or transformed) each class name.
+ * <br><br>
+ * Each name maps to an immutable array of weak class loader references, replaced atomically on
+ * updates, so readers never block and concurrent class loading threads only contend when
+ * registering the same name. References of garbage collected class loaders are purged on writes.
+ * <br><br>
+ * Each reference also holds a weak reference to the Class once known, so later lookups do not
+ * need to go through the class loader.
+ *
+ * @author Ignacio del Valle Alles idelvall@shiftleft.io
+ */
+final class LoadedClassRegistry {
+
+  private final ConcurrentHashMap<String, LoaderRef[]> map = new ConcurrentHashMap<String, LoaderRef[]>();
+  private final ReferenceQueue<ClassLoader> queue = new ReferenceQueue<ClassLoader>();
+
+  /**
+   * @param name class name according to the Java Language Specification (dot separated)
+   */
+  void add(String name, ClassLoader cl) {
+    add(name, cl, null);
+  }
+
+  void add(Class clazz) {
+    add(clazz.getName(), clazz.getClassLoader(), clazz);
+  }
+
+  private void add(String name, ClassLoader cl, Class clazz) {
+    purge();
+    name = name.intern();
+    LoaderRef[] current = map.get(name);
+    while (true) {
+      if (current == null) {
+        current = map.putIfAbsent(name, new LoaderRef[]{createRef(name, cl, clazz)});
+        if (current == null) {
+          return;
+        }
+      } else {
+        int index = indexOf(current, cl);
+        if (index >= 0) {
+          if (clazz != null && current[index].getClassIfCached() == null) {
+            current[index].setClass(clazz);
+          }
+          return;
+        }
+        LoaderRef[] updated = Arrays.copyOf(current, current.length + 1);
+        updated[current.length] = createRef(name, cl, clazz);
+        if (map.replace(name, current, updated)) {
+          return;
+        }
+        current = map.get(name);
+      }
+    }
+  }
+
+  void remove(String name, ClassLoader cl) {
+    purge();
+    LoaderRef[] current = map.get(name);
+    while (current != null) {
+      int index = indexOf(current, cl);
+      if (index < 0 || replace(name, current, index)) {
+        return;
+      }
+      current = map.get(name);
+    }
+  }
+
+  boolean contains(String name, ClassLoader cl) {
+    LoaderRef[] current = map.get(name);
+    return current != null && indexOf(current, cl) >= 0;
+  }
+
+  boolean containsAny(String name) {
+    LoaderRef[] current = map.get(name);
+    if (current == null) {
+      return false;
+    }
+    for (int i = 0; i < current.length; i++) {
+      if (current[i].bootstrap || current[i].get() != null) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * @return the live class loaders registered for the name (null element for the bootstrap class
+   * loader), or null if the name is not registered
+   */
+  List<ClassLoader> getClassLoaders(String name) {
+    LoaderRef[] current = map.get(name);
+    if (current == null) {
+      return null;
+    }
+    List<ClassLoader> ret = new ArrayList<ClassLoader>(current.length);
+    for (int i = 0; i < current.length; i++) {
+      if (current[i].bootstrap) {
+        ret.add(null);
+      } else {
+        ClassLoader cl = current[i].get();
+        if (cl != null) {
+          ret.add(cl);
+        }
+      }
+    }
+    return ret;
+  }
+
+  /**
+   * Appends all the registered (name, class loader) pairs to the given lists.
+   */
+  void getAll(List<String> names, List<ClassLoader> classLoaders) {
+    for (Map.Entry<String, LoaderRef[]> entry : map.entrySet()) {
+      LoaderRef[] current = entry.getValue();
+      for (int i = 0; i < current.length; i++) {
+        ClassLoader cl = current[i].get();
+        if (current[i].bootstrap || cl != null) {
+          names.add(entry.getKey());
+          classLoaders.add(cl);
+        }
+      }
+    }
+  }
+
+  /**
+   * @return the class if registered for this class loader, resolved (and cached) on the first call
+   */
+  Class getLoadedClass(final String name, final ClassLoader cl) {
+    LoaderRef[] current = map.get(name);
+    if (current == null) {
+      return null;
+    }
+    int index = indexOf(current, cl);
+    if (index < 0) {
+      return null;
+    }
+    Class ret = current[index].getClassIfCached();
+    if (ret == null) {
+      ret = AccessController.doPrivileged(new PrivilegedAction<Class>() {
+        public Class run() {
+          try {
+            return Class.forName(name, false, cl);
+          } catch (ClassNotFoundException e) {
+            // some classes like sun.reflect.GeneratedMethodAccessor cannot be loaded again
+            return null;
+          } catch (LinkageError e) {
+            return null;
+          }
+        }
+      });
+      if (ret != null) {
+        current[index].setClass(ret);
+      }
+    }
+    return ret;
+  }
+
+  boolean isEmpty() {
+    return map.isEmpty();
+  }
+
+  int size() {
+    return map.size();
+  }
+
+  private LoaderRef createRef(String name, ClassLoader cl, Class clazz) {
+    LoaderRef ret = new LoaderRef(name, cl, cl == null ? null : queue);
+    if (clazz != null) {
+      ret.setClass(clazz);
+    }
+    return ret;
+  }
+
+  private static int indexOf(LoaderRef[] refs, ClassLoader cl) {
+    for (int i = 0; i < refs.length; i++) {
+      if (cl == null ? refs[i].bootstrap : !refs[i].bootstrap && refs[i].get() == cl) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * Atomically replaces the array by a copy without the element at the given index
+   *
+   * @return false if the array was concurrently replaced
+   */
+  private boolean replace(String name, LoaderRef[] current, int index) {
+    if (current.length == 1) {
+      return map.remove(name, current);
+    }
+    LoaderRef[] updated = new LoaderRef[current.length - 1];
+    System.arraycopy(current, 0, updated, 0, index);
+    System.arraycopy(current, index + 1, updated, index, current.length - index - 1);
+    return map.replace(name, current, updated);
+  }
+
+  private void purge() {
+    Reference<? extends ClassLoader> ref;
+    while ((ref = queue.poll()) != null) {
+      LoaderRef loaderRef = (LoaderRef) ref;
+      while (true) {
+        LoaderRef[] current = map.get(loaderRef.name);
+        if (current == null) {
+          break;
+        }
+        int index = -1;
+        for (int i = 0; i < current.length; i++) {
+          if (current[i] == loaderRef) {
+            index = i;
+            break;
+          }
+        }
+        if (index < 0 || replace(loaderRef.name, current, index)) {
+          break;
+        }
+      }
+    }
+  }
+
+  private static final class LoaderRef extends WeakReference<ClassLoader> {
+
+    private final String name;
+    private final boolean bootstrap;
+    private volatile WeakReference<Class> classRef;
+
+    LoaderRef(String name, ClassLoader cl, ReferenceQueue<ClassLoader> queue) {
+      super(cl, queue);
+      this.name = name;
+      this.bootstrap = cl == null;
+    }
+
+    Class getClassIfCached() {
+      WeakReference<Class> ref = classRef;
+      return ref == null ? null : ref.get();
+    }
+
+    void setClass(Class clazz) {
+      classRef = new WeakReference<Class>(clazz);
+    }
+  }
+}
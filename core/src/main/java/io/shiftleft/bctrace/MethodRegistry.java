@@ -24,46 +24,257 @@
  */
 package io.shiftleft.bctrace;
 
-import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
+ * Registry of the instrumented methods, that assigns them consecutive integer ids (so methods of
+ * the same class, registered at once during its transformation, get a dense range of ids).
+ * <br><br>
+ * For a compact footprint with millions of methods, class names, method names and descriptors are
+ * deduplicated in string tables, and each method is stored as four ints (class name, method name
+ * and descriptor indexes, plus modifiers) in an append-only array of fixed size chunks. {@link
+ * MethodInfo} instances are created on demand by {@link #getMethod(int)}; the getters by id avoid
+ * that allocation.
+ * <br><br>
+ * Reads by id are wait-free: a volatile read and a few array loads. Lookups by method take no
+ * lock either, so registering an already registered method (what every primitive instrumenting it
+ * does) does not contend. Only the first registration of each method is serialized: the
+ * additions to the string tables and the index must be consistent with each other, and they are
+ * rare compared to the lookups, happening once per method.
+ *
  * @author Ignacio del Valle Alles idelvall@shiftleft.io
  */
 public final class MethodRegistry {
 
   private static final MethodRegistry INSTANCE = new MethodRegistry();
 
-  private final ArrayList<MethodInfo> methodArray = new ArrayList<MethodInfo>();
-  private final Map<MethodInfo, Integer> methodMap = new HashMap<MethodInfo, Integer>();
+  private static final int CHUNK_BITS = 12;
+  private static final int CHUNK_SIZE = 1 << CHUNK_BITS;
+  private static final int CHUNK_MASK = CHUNK_SIZE - 1;
+  private static final int FIELDS = 4;
+
+  private final StringTable classNames = new StringTable();
+  private final StringTable methodNames = new StringTable();
+  private final StringTable descriptors = new StringTable();
+
+  private volatile int[][] chunks = new int[1][];
+  private volatile int size;
+  // Open addressing table of (id + 1) by class, name and descriptor. Written under this lock,
+  // and replaced instead of modified on rehash, so readers probing a stale table just miss
+  private volatile int[] index = new int[1024];
 
   public static MethodRegistry getInstance() {
     return INSTANCE;
   }
 
-  private MethodRegistry() {
+  MethodRegistry() {
+  }
+
+  /**
+   * @throws IndexOutOfBoundsException if the id has not been registered
+   */
+  public MethodInfo getMethod(int id) {
+    int[] chunk = getChunk(id);
+    int offset = (id & CHUNK_MASK) * FIELDS;
+    return new MethodInfo(classNames.get(chunk[offset]), methodNames.get(chunk[offset + 1]),
+        descriptors.get(chunk[offset + 2]), chunk[offset + 3]);
+  }
+
+  /**
+   * @deprecated kept for binary compatibility with agents compiled against previous versions. Use
+   * {@link #getMethod(int)}
+   */
+  @Deprecated
+  public MethodInfo getMethod(Integer id) {
+    return getMethod(id.intValue());
+  }
+
+  public String getBinaryClassName(int id) {
+    return classNames.get(getChunk(id)[(id & CHUNK_MASK) * FIELDS]);
+  }
+
+  public String getMethodName(int id) {
+    return methodNames.get(getChunk(id)[(id & CHUNK_MASK) * FIELDS + 1]);
+  }
+
+  public String getMethodDescriptor(int id) {
+    return descriptors.get(getChunk(id)[(id & CHUNK_MASK) * FIELDS + 2]);
+  }
+
+  private int[] getChunk(int id) {
+    // Reading size first makes the registration writes visible
+    if (id < 0 || id >= size) {
+      throw new IndexOutOfBoundsException(String.valueOf(id));
+    }
+    return chunks[id >>> CHUNK_BITS];
   }
 
-  public synchronized MethodInfo getMethod(Integer id) {
-    return methodArray.get(id);
+  public int registerMethodId(MethodInfo mi) {
+    Integer ret = getMethodId(mi);
+    if (ret != null) {
+      return ret;
+    }
+    synchronized (this) {
+      return addMethod(mi);
+    }
   }
 
-  public synchronized Integer registerMethodId(MethodInfo mi) {
-    Integer id = methodMap.get(mi);
-    if (id == null) {
-      methodArray.add(mi);
-      id = methodArray.size() - 1;
-      methodMap.put(mi, id);
+  private int addMethod(MethodInfo mi) {
+    int classIndex = classNames.add(mi.getBinaryClassName());
+    int nameIndex = methodNames.add(mi.getMethodName());
+    int descriptorIndex = descriptors.add(mi.getMethodDescriptor());
+    int[] index = this.index;
+    int slot = findSlot(index, classIndex, nameIndex, descriptorIndex);
+    if (index[slot] != 0) {
+      return index[slot] - 1;
+    }
+    int id = size;
+    int chunkIndex = id >>> CHUNK_BITS;
+    int[][] chunks = this.chunks;
+    if (chunkIndex == chunks.length) {
+      int[][] grown = new int[chunks.length * 2][];
+      System.arraycopy(chunks, 0, grown, 0, chunks.length);
+      chunks = grown;
+    }
+    if (chunks[chunkIndex] == null) {
+      chunks[chunkIndex] = new int[CHUNK_SIZE * FIELDS];
+    }
+    int[] chunk = chunks[chunkIndex];
+    int offset = (id & CHUNK_MASK) * FIELDS;
+    chunk[offset] = classIndex;
+    chunk[offset + 1] = nameIndex;
+    chunk[offset + 2] = descriptorIndex;
+    chunk[offset + 3] = mi.getModifiers();
+    this.chunks = chunks;
+    size = id + 1;
+    index[slot] = id + 1;
+    if (size * 2 > index.length) {
+      rehash();
     }
     return id;
   }
 
-  public synchronized Integer getMethodId(MethodInfo mi) {
-    return methodMap.get(mi);
+  /**
+   * @return the id of the method, or null if not registered (or its registration is still in
+   * progress)
+   */
+  public Integer getMethodId(MethodInfo mi) {
+    int classIndex = classNames.indexOf(mi.getBinaryClassName());
+    int nameIndex = methodNames.indexOf(mi.getMethodName());
+    int descriptorIndex = descriptors.indexOf(mi.getMethodDescriptor());
+    if (classIndex < 0 || nameIndex < 0 || descriptorIndex < 0) {
+      return null;
+    }
+    int[] index = this.index;
+    int mask = index.length - 1;
+    int slot = hash(classIndex, nameIndex, descriptorIndex) & mask;
+    while (true) {
+      int value = index[slot];
+      if (value == 0) {
+        return null;
+      }
+      // Reading size after the slot makes the fields of the method visible
+      if (value <= size) {
+        int[] chunk = chunks[(value - 1) >>> CHUNK_BITS];
+        int offset = ((value - 1) & CHUNK_MASK) * FIELDS;
+        if (chunk[offset] == classIndex && chunk[offset + 1] == nameIndex
+            && chunk[offset + 2] == descriptorIndex) {
+          return value - 1;
+        }
+      }
+      slot = (slot + 1) & mask;
+    }
+  }
+
+  public int size() {
+    return size;
+  }
+
+  /**
+   * @return the slot holding the method, or the empty slot where it should be added
+   */
+  private int findSlot(int[] index, int classIndex, int nameIndex, int descriptorIndex) {
+    int mask = index.length - 1;
+    int slot = hash(classIndex, nameIndex, descriptorIndex) & mask;
+    while (true) {
+      int value = index[slot];
+      if (value == 0) {
+        return slot;
+      }
+      int[] chunk = chunks[(value - 1) >>> CHUNK_BITS];
+      int offset = ((value - 1) & CHUNK_MASK) * FIELDS;
+      if (chunk[offset] == classIndex && chunk[offset + 1] == nameIndex
+          && chunk[offset + 2] == descriptorIndex) {
+        return slot;
+      }
+      slot = (slot + 1) & mask;
+    }
+  }
+
+  private void rehash() {
+    int[] old = index;
+    int[] index = new int[old.length * 2];
+    int mask = index.length - 1;
+    for (int i = 0; i < old.length; i++) {
+      int value = old[i];
+      if (value != 0) {
+        int[] chunk = chunks[(value - 1) >>> CHUNK_BITS];
+        int offset = ((value - 1) & CHUNK_MASK) * FIELDS;
+        int slot = hash(chunk[offset], chunk[offset + 1], chunk[offset + 2]) & mask;
+        while (index[slot] != 0) {
+          slot = (slot + 1) & mask;
+        }
+        index[slot] = value;
+      }
+    }
+    this.index = index;
+  }
+
+  private static int hash(int classIndex, int nameIndex, int descriptorIndex) {
+    int h = classIndex * 0x9E3779B9 + nameIndex;
+    h = h * 0x9E3779B9 + descriptorIndex;
+    return h ^ (h >>> 16);
   }
 
-  public synchronized int size() {
-    return methodArray.size();
+  /**
+   * Append-only table of distinct strings. Reads take no lock, additions are performed under the
+   * registry lock.
+   */
+  private static final class StringTable {
+
+    private final ConcurrentHashMap<String, Integer> indexes =
+        new ConcurrentHashMap<String, Integer>();
+    private volatile String[][] chunks = new String[1][];
+
+    String get(int index) {
+      return chunks[index >>> CHUNK_BITS][index & CHUNK_MASK];
+    }
+
+    int indexOf(String value) {
+      Integer ret = indexes.get(value);
+      return ret == null ? -1 : ret;
+    }
+
+    int add(String value) {
+      Integer ret = indexes.get(value);
+      if (ret != null) {
+        return ret;
+      }
+      int index = indexes.size();
+      int chunkIndex = index >>> CHUNK_BITS;
+      String[][] chunks = this.chunks;
+      if (chunkIndex == chunks.length) {
+        String[][] grown = new String[chunks.length * 2][];
+        System.arraycopy(chunks, 0, grown, 0, chunks.length);
+        chunks = grown;
+      }
+      if (chunks[chunkIndex] == null) {
+        chunks[chunkIndex] = new String[CHUNK_SIZE];
+      }
+      chunks[chunkIndex][index & CHUNK_MASK] = value;
+      this.chunks = chunks;
+      indexes.put(value, index);
+      return index;
+    }
   }
 }
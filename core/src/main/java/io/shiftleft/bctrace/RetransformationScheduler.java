@@ -0,0 +1,332 @@
+/*
+ * ShiftLeft, Inc. CONFIDENTIAL
+ * Unpublished Copyright (c) 2017 ShiftLeft, Inc., All Rights Reserved.
+ *
+ * NOTICE: All information contained herein is, and remains the property of ShiftLeft, Inc.
+ * The intellectual and technical concepts contained herein are proprietary to ShiftLeft, Inc.
+ * and may be covered by U.S. and Foreign Patents, patents in process, and are protected by
+ * trade secret or copyright law. Dissemination of this information or reproduction of this
+ * material is strictly forbidden unless prior written permission is obtained
+ * from ShiftLeft, Inc. Access to the source code contained herein is hereby forbidden to
+ * anyone except current ShiftLeft, Inc. employees, managers or contractors who have executed
+ * Confidentiality and Non-disclosure agreements explicitly covering such access.
+ *
+ * The copyright notice above does not evidence any actual or intended publication or disclosure
+ * of this source code, which includes information that is confidential and/or proprietary, and
+ * is a trade secret, of ShiftLeft, Inc.
+ *
+ * ANY REPRODUCTION, MODIFICATION, DISTRIBUTION, PUBLIC PERFORMANCE, OR PUBLIC DISPLAY
+ * OF OR THROUGH USE OF THIS SOURCE CODE WITHOUT THE EXPRESS WRITTEN CONSENT OF ShiftLeft, Inc.
+ * IS STRICTLY PROHIBITED, AND IN VIOLATION OF APPLICABLE LAWS AND INTERNATIONAL TREATIES.
+ * THE RECEIPT OR POSSESSION OF THIS SOURCE CODE AND/OR RELATED INFORMATION DOES NOT
+ * CONVEY OR IMPLY ANY RIGHTS TO REPRODUCE, DISCLOSE OR DISTRIBUTE ITS
+ * CONTENTS, OR TO MANUFACTURE, USE, OR SELL ANYTHING THAT IT MAY DESCRIBE, IN WHOLE OR IN PART.
+ */
+package io.shiftleft.bctrace;
+
+import io.shiftleft.bctrace.logging.Level;
+import io.shiftleft.bctrace.runtime.CallbackEnabler;
+import java.lang.management.ManagementFactory;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.PriorityQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Retransforms already loaded classes from a background thread, in small batches, so a dynamic
+ * attach to a running JVM does not cause a single long safepoint pause and a deoptimization storm.
+ * <br><br>
+ * Classes are submitted in priority order (higher first). The batch size is adapted to the
+ * measured duration of each {@code retransformClasses} call: it is halved every time a batch
+ * exceeds the maximum pause allowed, and grows again by one class per batch (up to the configured
+ * size) while batches stay below it.
+ *
+ * @author Ignacio del Valle Alles idelvall@shiftleft.io
+ */
+public final class RetransformationScheduler implements RetransformationSchedulerMXBean {
+
+  private static final int DEFAULT_BATCH_SIZE = 50;
+  private static final int DEFAULT_PACING_MILLIS = 100;
+  private static final int DEFAULT_MAX_PAUSE_MILLIS = 20;
+
+  private static volatile boolean registeredMBean;
+
+  private final InstrumentationImpl instrumentation;
+  private final int maxBatchSize;
+  private final long pacingMillis;
+  private final long maxPauseMillis;
+
+  private final PriorityQueue<Entry> queue = new PriorityQueue<Entry>();
+  private long sequence;
+  private Thread worker;
+
+  private final AtomicInteger scheduledCount = new AtomicInteger();
+  private final AtomicInteger retransformedCount = new AtomicInteger();
+  private final AtomicInteger failedCount = new AtomicInteger();
+  private final AtomicInteger batchCount = new AtomicInteger();
+  private final AtomicInteger throttledBatchCount = new AtomicInteger();
+  private volatile int batchSize;
+  private volatile long lastBatchMillis;
+  private volatile long maxBatchMillis;
+
+  RetransformationScheduler(InstrumentationImpl instrumentation) {
+    this(instrumentation,
+        getIntegerProperty(SystemProperty.RETRANSFORM_BATCH_SIZE, DEFAULT_BATCH_SIZE),
+        getIntegerProperty(SystemProperty.RETRANSFORM_PACING_MILLIS, DEFAULT_PACING_MILLIS),
+        getIntegerProperty(SystemProperty.RETRANSFORM_MAX_PAUSE_MILLIS, DEFAULT_MAX_PAUSE_MILLIS));
+  }
+
+  RetransformationScheduler(InstrumentationImpl instrumentation, int maxBatchSize,
+      long pacingMillis, long maxPauseMillis) {
+    this.instrumentation = instrumentation;
+    this.maxBatchSize = Math.max(1, maxBatchSize);
+    this.pacingMillis = Math.max(0, pacingMillis);
+    this.maxPauseMillis = Math.max(1, maxPauseMillis);
+    this.batchSize = this.maxBatchSize;
+  }
+
+  private static int getIntegerProperty(String name, int defaultValue) {
+    String value = System.getProperty(name);
+    if (value != null) {
+      try {
+        return Integer.parseInt(value.trim());
+      } catch (NumberFormatException ex) {
+        Bctrace.getAgentLogger()
+            .log(Level.WARNING, "Invalid value for system property " + name + ": " + value);
+      }
+    }
+    return defaultValue;
+  }
+
+  /**
+   * Queues a class for retransformation. Non modifiable classes are discarded.
+   *
+   * @param priority classes with higher priority are retransformed first
+   */
+  public void schedule(Class<?> clazz, int priority) {
+    if (clazz == null || !instrumentation.isModifiableClass(clazz)) {
+      return;
+    }
+    synchronized (queue) {
+      queue.add(new Entry(clazz, priority, sequence++));
+    }
+    scheduledCount.incrementAndGet();
+  }
+
+  /**
+   * Starts the background retransformation of the queued classes, if not already running.
+   */
+  public void start() {
+    synchronized (queue) {
+      if (worker != null || queue.isEmpty()) {
+        return;
+      }
+      registerMBean();
+      Bctrace.getAgentLogger().log(Level.INFO,
+          "Scheduled retransformation of " + queue.size() + " loaded classes");
+      worker = new Thread("bctrace-retransformation") {
+        @Override
+        public void run() {
+          CallbackEnabler.disableThreadNotification();
+          runBatches();
+        }
+      };
+      worker.setDaemon(true);
+      worker.start();
+    }
+  }
+
+  /**
+   * Waits for the queue to be drained.
+   *
+   * @return true if there are no remaining classes to retransform
+   */
+  public boolean awaitCompletion(long timeoutMillis) throws InterruptedException {
+    long deadline = System.currentTimeMillis() + timeoutMillis;
+    synchronized (queue) {
+      while (worker != null) {
+        long remaining = deadline - System.currentTimeMillis();
+        if (remaining <= 0) {
+          return false;
+        }
+        queue.wait(remaining);
+      }
+      return queue.isEmpty();
+    }
+  }
+
+  private void runBatches() {
+    try {
+      Class[] batch;
+      while ((batch = nextBatch()) != null) {
+        retransform(batch);
+        Thread.sleep(Math.max(pacingMillis, lastBatchMillis));
+      }
+      Bctrace.getAgentLogger().log(Level.INFO,
+          "Retransformation of loaded classes completed: " + retransformedCount.get()
+              + " retransformed, " + failedCount.get() + " failed, " + batchCount.get()
+              + " batches, " + throttledBatchCount.get() + " throttled, max batch time "
+              + maxBatchMillis + " ms");
+    } catch (InterruptedException ex) {
+      Bctrace.getAgentLogger().log(Level.WARNING, "Retransformation of loaded classes interrupted");
+    } finally {
+      synchronized (queue) {
+        if (worker == Thread.currentThread()) {
+          worker = null;
+          queue.notifyAll();
+        }
+      }
+    }
+  }
+
+  private Class[] nextBatch() {
+    synchronized (queue) {
+      ArrayList<Class> batch = new ArrayList<Class>(batchSize);
+      while (batch.size() < batchSize && !queue.isEmpty()) {
+        Class clazz = queue.poll().get();
+        if (clazz != null) {
+          batch.add(clazz);
+        }
+      }
+      if (batch.isEmpty()) {
+        // Done. Cleared under the lock so a later start() can run a new worker
+        worker = null;
+        queue.notifyAll();
+        return null;
+      }
+      return batch.toArray(new Class[batch.size()]);
+    }
+  }
+
+  private void retransform(Class[] batch) {
+    long start = System.nanoTime();
+    try {
+      instrumentation.retransformClasses(batch);
+      retransformedCount.addAndGet(batch.length);
+    } catch (Throwable th) {
+      // Retry one by one, so a single failing class does not discard the whole batch
+      for (int i = 0; i < batch.length; i++) {
+        try {
+          instrumentation.retransformClasses(batch[i]);
+          retransformedCount.incrementAndGet();
+        } catch (Throwable th2) {
+          failedCount.incrementAndGet();
+          Bctrace.getAgentLogger().log(Level.DEBUG,
+              "Could not retransform class " + batch[i].getName(), th2);
+        }
+      }
+    }
+    long elapsed = (System.nanoTime() - start) / 1000000;
+    adapt(batch.length, elapsed);
+  }
+
+  private void adapt(int size, long elapsedMillis) {
+    batchCount.incrementAndGet();
+    lastBatchMillis = elapsedMillis;
+    if (elapsedMillis > maxBatchMillis) {
+      maxBatchMillis = elapsedMillis;
+    }
+    if (elapsedMillis > maxPauseMillis) {
+      throttledBatchCount.incrementAndGet();
+      batchSize = Math.max(1, size / 2);
+    } else if (size == batchSize && batchSize < maxBatchSize) {
+      batchSize++;
+    }
+    if (Bctrace.getAgentLogger().isLoggable(Level.DEBUG)) {
+      Bctrace.getAgentLogger().log(Level.DEBUG,
+          "Retransformed batch of " + size + " classes in " + elapsedMillis + " ms. "
+              + getPendingCount() + " pending");
+    }
+  }
+
+  private void registerMBean() {
+    if (registeredMBean || instrumentation.getJavaInstrumentation() == null) {
+      return;
+    }
+    try {
+      MBeanServer mbs = ManagementFactory.getPlatformMBeanServer();
+      ObjectName name = new ObjectName("io.shiftleft.bctrace:type=RetransformationScheduler");
+      mbs.registerMBean(this, name);
+      registeredMBean = true;
+    } catch (Throwable th) {
+      Bctrace.getAgentLogger().log(Level.ERROR,
+          "Error found while registering bctrace JMX retransformation scheduler mBean", th);
+    }
+  }
+
+  @Override
+  public boolean isRunning() {
+    synchronized (queue) {
+      return worker != null;
+    }
+  }
+
+  @Override
+  public int getScheduledCount() {
+    return scheduledCount.get();
+  }
+
+  @Override
+  public int getPendingCount() {
+    synchronized (queue) {
+      return queue.size();
+    }
+  }
+
+  @Override
+  public int getRetransformedCount() {
+    return retransformedCount.get();
+  }
+
+  @Override
+  public int getFailedCount() {
+    return failedCount.get();
+  }
+
+  @Override
+  public int getBatchCount() {
+    return batchCount.get();
+  }
+
+  @Override
+  public int getThrottledBatchCount() {
+    return throttledBatchCount.get();
+  }
+
+  @Override
+  public int getCurrentBatchSize() {
+    return batchSize;
+  }
+
+  @Override
+  public long getLastBatchMillis() {
+    return lastBatchMillis;
+  }
+
+  @Override
+  public long getMaxBatchMillis() {
+    return maxBatchMillis;
+  }
+
+  private static class Entry extends WeakReference<Class> implements Comparable<Entry> {
+
+    private final int priority;
+    private final long sequence;
+
+    Entry(Class clazz, int priority, long sequence) {
+      super(clazz);
+      this.priority = priority;
+      this.sequence = sequence;
+    }
+
+    @Override
+    public int compareTo(Entry o) {
+      if (priority != o.priority) {
+        return priority > o.priority ? -1 : 1;
+      }
+      return sequence < o.sequence ? -1 : (sequence == o.sequence ? 0 : 1);
+    }
+  }
+}
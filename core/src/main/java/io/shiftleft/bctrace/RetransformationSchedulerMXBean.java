@@ -22,30 +22,32 @@
  * CONVEY OR IMPLY ANY RIGHTS TO REPRODUCE, DISCLOSE OR DISTRIBUTE ITS
  * CONTENTS, OR TO MANUFACTURE, USE, OR SELL ANYTHING THAT IT MAY DESCRIBE, IN WHOLE OR IN PART.
  */
-package io.shiftleft.bctrace.jmx;
-
-import io.shiftleft.bctrace.filter.MethodFilter;
-import io.shiftleft.bctrace.hook.GenericMethodHook;
-import io.shiftleft.bctrace.runtime.listener.generic.GenericMethodStartListener;
+package io.shiftleft.bctrace;
 
 /**
+ * Progress of the background retransformation of already loaded classes.
+ *
  * @author Ignacio del Valle Alles idelvall@shiftleft.io
  */
-public class CallCounterHook extends
-    GenericMethodHook<MethodFilter, GenericMethodStartListener> {
-
-  public CallCounterHook() {
-    setListener(
-        new GenericMethodStartListener() {
-          @Override
-          public boolean requiresArguments() {
-            return false;
-          }
-
-          @Override
-          public void onStart(int methodId, Class clazz, Object instance, Object[] args) {
-            MethodMetrics.getInstance().incrementCallCounter(methodId);
-          }
-        });
-  }
+public interface RetransformationSchedulerMXBean {
+
+  public boolean isRunning();
+
+  public int getScheduledCount();
+
+  public int getPendingCount();
+
+  public int getRetransformedCount();
+
+  public int getFailedCount();
+
+  public int getBatchCount();
+
+  public int getThrottledBatchCount();
+
+  public int getCurrentBatchSize();
+
+  public long getLastBatchMillis();
+
+  public long getMaxBatchMillis();
 }
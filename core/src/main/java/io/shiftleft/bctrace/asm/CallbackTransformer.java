@@ -28,6 +28,7 @@ import io.shiftleft.bctrace.Bctrace;
 import io.shiftleft.bctrace.asm.util.ASMUtils;
 import io.shiftleft.bctrace.hook.Hook;
 import io.shiftleft.bctrace.logging.Level;
+import io.shiftleft.bctrace.runtime.Callback;
 import io.shiftleft.bctrace.runtime.listener.direct.DirectListener;
 import io.shiftleft.bctrace.util.Utils;
 import java.lang.instrument.ClassFileTransformer;
@@ -35,7 +36,10 @@ import java.lang.instrument.IllegalClassFormatException;
 import java.lang.reflect.Method;
 import java.security.ProtectionDomain;
 import java.util.HashSet;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
 import org.objectweb.asm.ClassReader;
 import org.objectweb.asm.ClassWriter;
 import org.objectweb.asm.Opcodes;
@@ -56,13 +60,24 @@ import org.objectweb.asm.tree.VarInsnNode;
 
 /**
  * Adds synthetic methods to Callback class to backup direct listeners.
+ * <br><br>
+ * Direct listeners of hooks added once Callback is loaded get their methods in a new synthetic
+ * class defined in the same package (see {@link #addDirectListeners(Hook[])}).
  *
  * @author Ignacio del Valle Alles idelvall@shiftleft.io
  */
 public class CallbackTransformer implements ClassFileTransformer {
 
   private static final String CALLBACK_JVM_CLASS_NAME = "io/shiftleft/bctrace/runtime/Callback";
+  private static final String LISTENERS_JVM_CLASS_NAME = CALLBACK_JVM_CLASS_NAME + "$Listeners";
+  private static final String DISPATCH_JVM_CLASS_NAME_PREFIX = CALLBACK_JVM_CLASS_NAME + "$Dispatch";
+
+  // Dynamic listener method name -> class declaring it, for those not declared in Callback
+  private static final Map<String, String> DYNAMIC_LISTENER_METHOD_OWNERS = new ConcurrentHashMap<String, String>();
+  private static final AtomicInteger DISPATCH_CLASS_COUNTER = new AtomicInteger();
+
   private final Hook[] hooks;
+  private final Set<String> methodsAdded = new HashSet<String>();
   private volatile boolean completed = false;
 
   public CallbackTransformer(Hook[] hooks) {
@@ -97,20 +112,8 @@ public class CallbackTransformer implements ClassFileTransformer {
       ClassNode cn = new ClassNode();
       cn.version = Opcodes.V1_6;
       cr.accept(cn, 0);
-      HashSet<String> methodsAdded = new HashSet<String>();
-      for (DirectListener dynamicListener : directListeners) {
-        String key = getDynamicListenerMethodName(dynamicListener);
-        if (methodsAdded.contains(key)) {
-          continue;
-        }
-        methodsAdded.add(key);
-        MethodNode mn;
-        if (dynamicListener.getListenerMethod().getReturnType().getName().equals("void")) {
-          mn = createVoidListenerMethod(dynamicListener);
-        } else {
-          mn = createMutableListenerCallbackMethod(dynamicListener);
-        }
-        cn.methods.add(mn);
+      synchronized (this) {
+        addListenerMethods(cn, directListeners);
       }
       ClassWriter cw = new ClassWriter(cr, ClassWriter.COMPUTE_MAXS);
       cn.accept(cw);
@@ -125,6 +128,75 @@ public class CallbackTransformer implements ClassFileTransformer {
     }
   }
 
+  /**
+   * Adds to the class node a callback method for each listener not yet backed up.
+   *
+   * @return names of the methods added
+   */
+  private Set<String> addListenerMethods(ClassNode cn, Set<DirectListener> directListeners) {
+    Set<String> ret = new HashSet<String>();
+    for (DirectListener dynamicListener : directListeners) {
+      String key = getDynamicListenerMethodName(dynamicListener);
+      if (methodsAdded.contains(key)) {
+        continue;
+      }
+      methodsAdded.add(key);
+      ret.add(key);
+      MethodNode mn;
+      if (dynamicListener.getListenerMethod().getReturnType().getName().equals("void")) {
+        mn = createVoidListenerMethod(dynamicListener);
+      } else {
+        mn = createMutableListenerCallbackMethod(dynamicListener);
+      }
+      cn.methods.add(mn);
+    }
+    return ret;
+  }
+
+  /**
+   * Backs up the direct listeners of hooks registered after Callback has been loaded. Being not
+   * possible to add methods to an already loaded class, the callback methods of the listeners not
+   * yet backed up are generated in a new synthetic class of the Callback package, defined in the
+   * Callback class loader.
+   */
+  public synchronized void addDirectListeners(Hook[] newHooks) {
+    Set<DirectListener> directListeners = new HashSet<DirectListener>();
+    for (int i = 0; i < newHooks.length; i++) {
+      if (newHooks[i].getListener() instanceof DirectListener) {
+        directListeners.add((DirectListener) newHooks[i].getListener());
+      }
+    }
+    if (directListeners.isEmpty()) {
+      return;
+    }
+    ClassNode cn = new ClassNode();
+    cn.version = Opcodes.V1_6;
+    cn.access = Opcodes.ACC_PUBLIC | Opcodes.ACC_FINAL | Opcodes.ACC_SUPER | Opcodes.ACC_SYNTHETIC;
+    cn.superName = "java/lang/Object";
+    Set<String> methodNames = addListenerMethods(cn, directListeners);
+    if (methodNames.isEmpty()) {
+      return;
+    }
+    cn.name = DISPATCH_JVM_CLASS_NAME_PREFIX + DISPATCH_CLASS_COUNTER.incrementAndGet();
+    ClassWriter cw = new ClassWriter(ClassWriter.COMPUTE_MAXS);
+    cn.accept(cw);
+    Utils.defineClass(cn.name.replace('/', '.'), cw.toByteArray(), Callback.class);
+    for (String methodName : methodNames) {
+      DYNAMIC_LISTENER_METHOD_OWNERS.put(methodName, cn.name);
+    }
+  }
+
+  /**
+   * Returns the class declaring the callback method of the listener.
+   */
+  public static String getDynamicListenerOwner(DirectListener listener) {
+    String owner = DYNAMIC_LISTENER_METHOD_OWNERS.get(getDynamicListenerMethodName(listener));
+    if (owner != null) {
+      return owner;
+    }
+    return CALLBACK_JVM_CLASS_NAME;
+  }
+
   public static String getDynamicListenerMethodName(DirectListener listener) {
     return listener.getClass().getName().replace('.', '_') + "_" +
         listener.getListenerMethod().getName();
@@ -147,7 +219,7 @@ public class CallbackTransformer implements ClassFileTransformer {
    *   try {
    *   // 3
    *     NOTIFYING_FLAG.set(Boolean.TRUE);
-   *     ((${DinamicListenerInterface})listeners[i]).${method}(${listenerMethodArgs});
+   *     ((${DinamicListenerInterface})listeners.array[i]).${method}(${listenerMethodArgs});
    *     NOTIFYING_FLAG.set(Boolean.FALSE);
    *   } catch (Throwable th) {
    *   // 4
@@ -201,8 +273,7 @@ public class CallbackTransformer implements ClassFileTransformer {
 
     insnList.add(start);
     addSetNotifyingFlagInstructions(insnList, "TRUE");
-    insnList.add(new FieldInsnNode(Opcodes.GETSTATIC, "io/shiftleft/bctrace/runtime/Callback",
-        "listeners", "[Ljava/lang/Object;"));
+    addGetListenersInstructions(insnList);
     insnList.add(new VarInsnNode(Opcodes.ILOAD, 0));
     insnList.add(new InsnNode(Opcodes.AALOAD));
 
@@ -253,7 +324,7 @@ public class CallbackTransformer implements ClassFileTransformer {
    *   try {
    *   // 3
    *     NOTIFYING_FLAG.set(Boolean.TRUE);
-   *     ret = ((${DinamicListenerInterface})listeners[i]).${method}(${listenerMethodArgs});
+   *     ret = ((${DinamicListenerInterface})listeners.array[i]).${method}(${listenerMethodArgs});
    *     NOTIFYING_FLAG.set(Boolean.FALSE);
    *     return ret;
    *   } catch (Throwable th) {
@@ -315,8 +386,7 @@ public class CallbackTransformer implements ClassFileTransformer {
 
     insnList.add(start);
     addSetNotifyingFlagInstructions(insnList, "TRUE");
-    insnList.add(new FieldInsnNode(Opcodes.GETSTATIC, "io/shiftleft/bctrace/runtime/Callback",
-        "listeners", "[Ljava/lang/Object;"));
+    addGetListenersInstructions(insnList);
     insnList.add(new VarInsnNode(Opcodes.ILOAD, 0));
     insnList.add(new InsnNode(Opcodes.AALOAD));
 
@@ -353,6 +423,13 @@ public class CallbackTransformer implements ClassFileTransformer {
     return mn;
   }
 
+  private static void addGetListenersInstructions(InsnList insnList) {
+    insnList.add(new FieldInsnNode(Opcodes.GETSTATIC, CALLBACK_JVM_CLASS_NAME, "listeners",
+        "L" + LISTENERS_JVM_CLASS_NAME + ";"));
+    insnList.add(new FieldInsnNode(Opcodes.GETFIELD, LISTENERS_JVM_CLASS_NAME, "array",
+        "[Ljava/lang/Object;"));
+  }
+
   private static void addSetNotifyingFlagInstructions(InsnList insnList, String value) {
     insnList.add(new FieldInsnNode(Opcodes.GETSTATIC, "io/shiftleft/bctrace/runtime/Callback",
         "NOTIFYING_FLAG", "Ljava/lang/ThreadLocal;"));
@@ -41,6 +41,20 @@ public class TransformationSupport {
 
   private static final String IGNORE_LIST_DESCRIPTOR_NAME = "bctrace.ignore";
   private static final String[] CLASSNAME_PREFIX_IGNORE_LIST = readIgnoreClassNamesFromDescriptors();
+  /**
+   * Classes used by the runtime probes injected in every instrumented method (call counters,
+   * method timers and hot method tracking). Probing them would make the probes recurse until
+   * StackOverflowError, since unlike listener notifications they are not guarded by the notifying
+   * flag of {@link io.shiftleft.bctrace.runtime.Callback}. Ignored regardless of the ignore lists.
+   */
+  private static final String[] PROBE_DEPENDENCY_PREFIXES = {
+      "java/util/concurrent/atomic/",
+      "java/lang/Thread",
+      "java/lang/Math",
+      "java/util/Arrays",
+      "sun/misc/Unsafe",
+      "jdk/internal/misc/Unsafe"
+  };
 
 
   private static String[] readIgnoreClassNamesFromDescriptors() {
@@ -96,6 +110,11 @@ public class TransformationSupport {
     if (jvmClassName.contains("$$Lambda$")) {
       return false;
     }
+    for (int i = 0; i < PROBE_DEPENDENCY_PREFIXES.length; i++) {
+      if (jvmClassName.startsWith(PROBE_DEPENDENCY_PREFIXES[i])) {
+        return false;
+      }
+    }
     if (CLASSNAME_PREFIX_IGNORE_LIST != null) {
       for (int i = 0; i < CLASSNAME_PREFIX_IGNORE_LIST.length; i++) {
         String prefix = CLASSNAME_PREFIX_IGNORE_LIST[i];
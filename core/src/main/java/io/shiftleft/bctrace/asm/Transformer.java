@@ -33,17 +33,25 @@ import io.shiftleft.bctrace.asm.primitive.direct.callsite.CallSitePrimitive;
 import io.shiftleft.bctrace.asm.primitive.direct.method.DirectMethodReturnPrimitive;
 import io.shiftleft.bctrace.asm.primitive.direct.method.DirectMethodStartPrimitive;
 import io.shiftleft.bctrace.asm.primitive.direct.method.DirectMethodThrowablePrimitive;
+import io.shiftleft.bctrace.asm.primitive.generic.method.CallCounterPrimitive;
 import io.shiftleft.bctrace.asm.primitive.generic.method.GenericMethodMutableStartPrimitive;
 import io.shiftleft.bctrace.asm.primitive.generic.method.GenericMethodReturnPrimitive;
 import io.shiftleft.bctrace.asm.primitive.generic.method.GenericMethodStartPrimitive;
 import io.shiftleft.bctrace.asm.primitive.generic.method.GenericMethodThrowablePrimitive;
+import io.shiftleft.bctrace.asm.primitive.generic.method.MethodTimerPrimitive;
 import io.shiftleft.bctrace.asm.util.ASMUtils;
+import io.shiftleft.bctrace.filter.CallSiteFilter;
+import io.shiftleft.bctrace.filter.MethodFilter;
 import io.shiftleft.bctrace.hierarchy.BctraceClass;
+import io.shiftleft.bctrace.hierarchy.HierarchyCache;
+import io.shiftleft.bctrace.hierarchy.TypeInfo;
 import io.shiftleft.bctrace.hierarchy.UnloadedClass;
 import io.shiftleft.bctrace.hook.GenericMethodHook;
 import io.shiftleft.bctrace.hook.Hook;
 import io.shiftleft.bctrace.jmx.ClassMetrics;
+import io.shiftleft.bctrace.jmx.HotMethodMetrics;
 import io.shiftleft.bctrace.jmx.MethodMetrics;
+import io.shiftleft.bctrace.jmx.MethodTimingMetrics;
 import io.shiftleft.bctrace.logging.Level;
 import io.shiftleft.bctrace.runtime.Callback;
 import io.shiftleft.bctrace.runtime.CallbackEnabler;
@@ -109,13 +117,15 @@ public class Transformer implements ClassFileTransformer {
   private final GenericMethodReturnPrimitive genericMethodReturnPrimitive = new GenericMethodReturnPrimitive();
   private final GenericMethodThrowablePrimitive genericMethodThrowablePrimitive = new GenericMethodThrowablePrimitive();
 
+  private final CallCounterPrimitive callCounterPrimitive = new CallCounterPrimitive();
+  private final MethodTimerPrimitive methodTimerPrimitive = new MethodTimerPrimitive();
+
   private final CallSitePrimitive callSitePrimitive = new CallSitePrimitive();
   private final DirectMethodStartPrimitive directMethodStartPrimitive = new DirectMethodStartPrimitive();
   private final DirectMethodReturnPrimitive directMethodReturnPrimitive = new DirectMethodReturnPrimitive();
   private final DirectMethodThrowablePrimitive directMethodThrowablePrimitive = new DirectMethodThrowablePrimitive();
 
   private final InstrumentationImpl instrumentation;
-  private final Hook[] hooks;
   private final Bctrace bctrace;
   private final AtomicInteger TRANSFORMATION_COUNTER = new AtomicInteger();
 
@@ -123,13 +133,14 @@ public class Transformer implements ClassFileTransformer {
       CallbackTransformer cbTransformer) {
     this.instrumentation = instrumentation;
     this.bctrace = bctrace;
-    this.hooks = bctrace.getHooks();
     this.cbTransformer = cbTransformer;
 
     this.genericMethodStartPrimitive.setBctrace(bctrace);
     this.genericMethodMutableStartPrimitive.setBctrace(bctrace);
     this.genericMethodReturnPrimitive.setBctrace(bctrace);
     this.genericMethodThrowablePrimitive.setBctrace(bctrace);
+    this.callCounterPrimitive.setBctrace(bctrace);
+    this.methodTimerPrimitive.setBctrace(bctrace);
 
     this.directMethodStartPrimitive.setBctrace(bctrace);
     this.directMethodReturnPrimitive.setBctrace(bctrace);
@@ -138,7 +149,10 @@ public class Transformer implements ClassFileTransformer {
     this.callSitePrimitive.setBctrace(bctrace);
 
     ClassMetrics.getInstance();
-
+    HotMethodMetrics.getInstance();
+    if (bctrace.isMethodTimerProbes()) {
+      MethodTimingMetrics.getInstance();
+    }
   }
 
   @Override
@@ -151,6 +165,8 @@ public class Transformer implements ClassFileTransformer {
 
     byte[] ret = null;
     boolean transformed = false;
+    boolean failed = false;
+    long start = System.nanoTime();
     int counter = TRANSFORMATION_COUNTER.incrementAndGet();
 
     try {
@@ -180,20 +196,27 @@ public class Transformer implements ClassFileTransformer {
         return null;
       }
       ClassReader cr = new ClassReader(classfileBuffer);
-      ClassNode cn = new ClassNode();
-      cr.accept(cn, 0);
-
-      UnloadedClass unloadedClass = new UnloadedClass(className.replace('/', '.'), loader, cn,
-          instrumentation);
+      classMatchingHooks = getMatchingHooksByMethodReferences(classMatchingHooks, cr);
+      if (classMatchingHooks.isEmpty()) {
+        return null;
+      }
+      // Header only. Registered in the hierarchy cache so subclasses loaded later are resolved
+      // without looking up the bytecode of their ancestors
+      TypeInfo typeInfo = HierarchyCache.getInstance().put(TypeInfo.from(cr), loader);
+      UnloadedClass unloadedClass = new UnloadedClass(typeInfo, loader, cr, instrumentation);
 
       classMatchingHooks = getMatchingHooksByClassInfo(classMatchingHooks, unloadedClass,
           protectionDomain,
           loader);
+      if (classMatchingHooks.isEmpty()) {
+        return null;
+      }
 
       transformed = transformMethods(unloadedClass, classMatchingHooks);
       if (!transformed) {
         return null;
       } else {
+        ClassNode cn = unloadedClass.getClassNode();
         if (classBeingRedefined != null && (cn.version & 0xFFFF) >= Opcodes.V1_7) {
           /**
            * Bytecode of (some) JCL classes does not contain stack maps frames on retransformation,
@@ -218,10 +241,13 @@ public class Transformer implements ClassFileTransformer {
         return ret;
       }
     } catch (Throwable th) {
+      failed = true;
       th.printStackTrace(System.err);
       return null;
     } finally {
       try {
+        ClassMetrics.getInstance()
+            .reportTransformation(ret != null, failed, System.nanoTime() - start);
         if (className != null) {
           if (DUMP_FOLDER != null) {
             dump(counter, className, classfileBuffer, ret);
@@ -264,12 +290,13 @@ public class Transformer implements ClassFileTransformer {
   private ArrayList<Integer> getMatchingHooksByName(String className,
       ProtectionDomain protectionDomain,
       ClassLoader loader) {
-    if (this.hooks == null) {
+    Hook[] hooks = bctrace.getHooks();
+    if (hooks == null) {
       return null;
     }
     ArrayList<Integer> ret = new ArrayList<Integer>(hooks.length);
     for (int i = 0; i < hooks.length; i++) {
-      if (hooks[i].getFilter() != null &&
+      if (hooks[i].getFilter() != null && !bctrace.isHookRemoved(i) &&
           hooks[i].getFilter().acceptClass(className, protectionDomain, loader)) {
         ret.add(i);
       }
@@ -277,6 +304,41 @@ public class Transformer implements ClassFileTransformer {
     return ret;
   }
 
+  /**
+   * Discards the call site hooks whose target method is not referenced from the constant pool of
+   * the class
+   */
+  private ArrayList<Integer> getMatchingHooksByMethodReferences(
+      ArrayList<Integer> candidateHookIndexes, ClassReader cr) {
+    Hook[] hooks = bctrace.getHooks();
+    String[] methodReferences = null;
+    ArrayList<Integer> ret = new ArrayList<Integer>(candidateHookIndexes.size());
+    for (int i = 0; i < candidateHookIndexes.size(); i++) {
+      Integer hookIndex = candidateHookIndexes.get(i);
+      MethodFilter filter = hooks[hookIndex].getFilter();
+      if (filter instanceof CallSiteFilter && ((CallSiteFilter) filter).isMethodReferenceFilter()) {
+        if (methodReferences == null) {
+          methodReferences = ASMUtils.getMethodReferences(cr);
+        }
+        if (!isReferenced((CallSiteFilter) filter, methodReferences)) {
+          continue;
+        }
+      }
+      ret.add(hookIndex);
+    }
+    return ret;
+  }
+
+  private static boolean isReferenced(CallSiteFilter filter, String[] methodReferences) {
+    for (int i = 0; i < methodReferences.length; i += 3) {
+      if (filter.acceptMethodReference(methodReferences[i], methodReferences[i + 1],
+          methodReferences[i + 2])) {
+        return true;
+      }
+    }
+    return false;
+  }
+
   private ArrayList<Integer> getMatchingHooksByClassInfo(ArrayList<Integer> candidateHookIndexes,
       UnloadedClass unloadedClass, ProtectionDomain protectionDomain,
       ClassLoader loader) {
@@ -284,6 +346,7 @@ public class Transformer implements ClassFileTransformer {
     if (candidateHookIndexes == null) {
       return null;
     }
+    Hook[] hooks = bctrace.getHooks();
     ArrayList<Integer> ret = new ArrayList<Integer>(hooks.length);
     for (int i = 0; i < candidateHookIndexes.size(); i++) {
       Integer hookIndex = candidateHookIndexes.get(i);
@@ -294,7 +357,7 @@ public class Transformer implements ClassFileTransformer {
     // Add additional hooks (those who have a null filter and apply only where others are registered)
     if (!ret.isEmpty()) {
       for (int i = 0; i < hooks.length; i++) {
-        if (hooks[i].getFilter() == null) {
+        if (hooks[i].getFilter() == null && !bctrace.isHookRemoved(i)) {
           ret.add(i);
         }
       }
@@ -304,6 +367,7 @@ public class Transformer implements ClassFileTransformer {
 
   private boolean transformMethods(UnloadedClass unloadedClass,
       ArrayList<Integer> classMatchingHooks) {
+    Hook[] hooks = bctrace.getHooks();
     ClassNode cn = unloadedClass.getClassNode();
     List<MethodNode> methods = cn.methods;
     boolean classTransformed = false;
@@ -334,6 +398,12 @@ public class Transformer implements ClassFileTransformer {
       if (methodTransformed) {
         modifyMethod(registryClassName, cn, mn,
             getAdditionalHooks(classMatchingHooks));
+        if (bctrace.isCallCounterProbes()) {
+          callCounterPrimitive.addByteCodeInstructions(registryClassName, cn, mn, null);
+        }
+        if (bctrace.isMethodTimerProbes()) {
+          methodTimerPrimitive.addByteCodeInstructions(registryClassName, cn, mn, null);
+        }
         classTransformed = true;
         MethodMetrics.getInstance().reportInstrumented(
             MethodRegistry.getInstance()
@@ -344,6 +414,7 @@ public class Transformer implements ClassFileTransformer {
   }
 
   private ArrayList<Integer> getAdditionalHooks(ArrayList<Integer> classMatchingHooks) {
+    Hook[] hooks = bctrace.getHooks();
     ArrayList<Integer> additionalHooks = new ArrayList<Integer>(1);
     // Add additional hooks
     for (int h = 0; h < classMatchingHooks.size(); h++) {
@@ -360,6 +431,7 @@ public class Transformer implements ClassFileTransformer {
     if (classRegistryName == null) {
       classRegistryName = cn.name;
     }
+    Hook[] hooks = bctrace.getHooks();
     boolean transformed = false;
     boolean hasGenericHooks = false;
     for (int h = 0; h < hooksToUse.size(); h++) {
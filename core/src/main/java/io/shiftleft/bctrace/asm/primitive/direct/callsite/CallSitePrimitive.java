@@ -206,7 +206,7 @@ public class CallSitePrimitive extends InstrumentationPrimitive {
               String desc = CallbackTransformer
                   .getDynamicListenerMutatorMethodDescriptor(directCallSiteStartListener);
               il.add(new MethodInsnNode(Opcodes.INVOKESTATIC,
-                  "io/shiftleft/bctrace/runtime/Callback",
+                  CallbackTransformer.getDynamicListenerOwner(directCallSiteStartListener),
                   CallbackTransformer.getDynamicListenerMethodName(directCallSiteStartListener),
                   desc,
                   false));
@@ -227,7 +227,7 @@ public class CallSitePrimitive extends InstrumentationPrimitive {
               }
             } else {
               il.add(new MethodInsnNode(Opcodes.INVOKESTATIC,
-                  "io/shiftleft/bctrace/runtime/Callback",
+                  CallbackTransformer.getDynamicListenerOwner(directCallSiteStartListener),
                   CallbackTransformer
                       .getDynamicListenerMethodName(directCallSiteStartListener),
                   CallbackTransformer
@@ -284,7 +284,7 @@ public class CallSitePrimitive extends InstrumentationPrimitive {
           }
           // Invoke dynamically generated callback method. See CallbackTransformer
           il.add(new MethodInsnNode(Opcodes.INVOKESTATIC,
-              "io/shiftleft/bctrace/runtime/Callback",
+              CallbackTransformer.getDynamicListenerOwner((DirectListener) listener),
               CallbackTransformer.getDynamicListenerMethodName((DirectListener) listener),
               CallbackTransformer.getDynamicListenerVoidMethodDescriptor((DirectListener) listener),
               false));
@@ -347,7 +347,7 @@ public class CallSitePrimitive extends InstrumentationPrimitive {
           }
           // Invoke dynamically generated callback method. See CallbackTransformer
           il.add(new MethodInsnNode(Opcodes.INVOKESTATIC,
-              "io/shiftleft/bctrace/runtime/Callback",
+              CallbackTransformer.getDynamicListenerOwner((DirectListener) listener),
               CallbackTransformer.getDynamicListenerMethodName((DirectListener) listener),
               CallbackTransformer
                   .getDynamicListenerMutatorMethodDescriptor((DirectListener) listener),
@@ -421,7 +421,7 @@ public class CallSitePrimitive extends InstrumentationPrimitive {
           il.add(new VarInsnNode(Opcodes.ALOAD, throwableVarIndex));
           // Invoke dynamically generated callback method. See CallbackTransformer
           il.add(new MethodInsnNode(Opcodes.INVOKESTATIC,
-              "io/shiftleft/bctrace/runtime/Callback",
+              CallbackTransformer.getDynamicListenerOwner((DirectListener) listener),
               CallbackTransformer.getDynamicListenerMethodName((DirectListener) listener),
               CallbackTransformer
                   .getDynamicListenerMutatorMethodDescriptor((DirectListener) listener),
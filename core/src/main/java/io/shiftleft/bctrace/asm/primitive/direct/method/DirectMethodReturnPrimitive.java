@@ -93,7 +93,7 @@ public class DirectMethodReturnPrimitive extends InstrumentationPrimitive {
       pushMethodArgs(il, mn); // method args
       // Invoke dynamically generated callback method. See CallbackTransformer
       il.add(new MethodInsnNode(Opcodes.INVOKESTATIC,
-          "io/shiftleft/bctrace/runtime/Callback",
+          CallbackTransformer.getDynamicListenerOwner(listener),
           CallbackTransformer.getDynamicListenerMethodName(listener),
           CallbackTransformer.getDynamicListenerVoidMethodDescriptor(listener),
           false));
@@ -124,7 +124,7 @@ public class DirectMethodReturnPrimitive extends InstrumentationPrimitive {
       il.add(ASMUtils.getLoadInst(returnType, returnVarIndex));
       // Invoke dynamically generated callback method. See CallbackTransformer
       il.add(new MethodInsnNode(Opcodes.INVOKESTATIC,
-          "io/shiftleft/bctrace/runtime/Callback",
+          CallbackTransformer.getDynamicListenerOwner(listener),
           CallbackTransformer.getDynamicListenerMethodName(listener),
           CallbackTransformer.getDynamicListenerMutatorMethodDescriptor(listener),
           false));
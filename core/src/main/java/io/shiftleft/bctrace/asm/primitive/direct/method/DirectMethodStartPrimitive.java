@@ -74,14 +74,14 @@ public class DirectMethodStartPrimitive extends InstrumentationPrimitive {
       pushMethodArgs(il, mn); // method args
       if (mai >= 0) {
         il.add(new MethodInsnNode(Opcodes.INVOKESTATIC,
-            "io/shiftleft/bctrace/runtime/Callback",
+            CallbackTransformer.getDynamicListenerOwner(listener),
             CallbackTransformer.getDynamicListenerMethodName(listener),
             mutableDesc,
             false));
         il.add(ASMUtils.getStoreInst(Type.getReturnType(mutableDesc), offset + mai));
       } else {
         il.add(new MethodInsnNode(Opcodes.INVOKESTATIC,
-            "io/shiftleft/bctrace/runtime/Callback",
+            CallbackTransformer.getDynamicListenerOwner(listener),
             CallbackTransformer.getDynamicListenerMethodName(listener),
             CallbackTransformer.getDynamicListenerVoidMethodDescriptor(listener),
             false));
@@ -97,7 +97,7 @@ public class DirectMethodThrowablePrimitive extends InstrumentationPrimitive {
       il.add(new VarInsnNode(Opcodes.ALOAD, thVarIndex));
       // Invoke dynamically generated callback method. See CallbackTransformer
       il.add(new MethodInsnNode(Opcodes.INVOKESTATIC,
-          "io/shiftleft/bctrace/runtime/Callback",
+          CallbackTransformer.getDynamicListenerOwner(listener),
           CallbackTransformer.getDynamicListenerMethodName(listener),
           CallbackTransformer.getDynamicListenerMutatorMethodDescriptor(listener),
           false));
@@ -0,0 +1,71 @@
+/*
+ * ShiftLeft, Inc. CONFIDENTIAL
+ * Unpublished Copyright (c) 2017 ShiftLeft, Inc., All Rights Reserved.
+ *
+ * NOTICE: All information contained herein is, and remains the property of ShiftLeft, Inc.
+ * The intellectual and technical concepts contained herein are proprietary to ShiftLeft, Inc.
+ * and may be covered by U.S. and Foreign Patents, patents in process, and are protected by
+ * trade secret or copyright law. Dissemination of this information or reproduction of this
+ * material is strictly forbidden unless prior written permission is obtained
+ * from ShiftLeft, Inc. Access to the source code contained herein is hereby forbidden to
+ * anyone except current ShiftLeft, Inc. employees, managers or contractors who have executed
+ * Confidentiality and Non-disclosure agreements explicitly covering such access.
+ *
+ * The copyright notice above does not evidence any actual or intended publication or disclosure
+ * of this source code, which includes information that is confidential and/or proprietary, and
+ * is a trade secret, of ShiftLeft, Inc.
+ *
+ * ANY REPRODUCTION, MODIFICATION, DISTRIBUTION, PUBLIC PERFORMANCE, OR PUBLIC DISPLAY
+ * OF OR THROUGH USE OF THIS SOURCE CODE WITHOUT THE EXPRESS WRITTEN CONSENT OF ShiftLeft, Inc.
+ * IS STRICTLY PROHIBITED, AND IN VIOLATION OF APPLICABLE LAWS AND INTERNATIONAL TREATIES.
+ * THE RECEIPT OR POSSESSION OF THIS SOURCE CODE AND/OR RELATED INFORMATION DOES NOT
+ * CONVEY OR IMPLY ANY RIGHTS TO REPRODUCE, DISCLOSE OR DISTRIBUTE ITS
+ * CONTENTS, OR TO MANUFACTURE, USE, OR SELL ANYTHING THAT IT MAY DESCRIBE, IN WHOLE OR IN PART.
+ */
+package io.shiftleft.bctrace.asm.primitive.generic.method;
+
+import io.shiftleft.bctrace.MethodInfo;
+import io.shiftleft.bctrace.MethodRegistry;
+import io.shiftleft.bctrace.asm.primitive.InstrumentationPrimitive;
+import io.shiftleft.bctrace.asm.util.ASMUtils;
+import io.shiftleft.bctrace.runtime.CallCounters;
+import java.util.ArrayList;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.tree.ClassNode;
+import org.objectweb.asm.tree.InsnList;
+import org.objectweb.asm.tree.MethodInsnNode;
+import org.objectweb.asm.tree.MethodNode;
+
+/**
+ * Inserts the built-in call counter probe at the start of an instrumented method, regardless of
+ * the hooks applied to it.
+ * <br><pre>{@code
+ * public Object foo(Object arg1, Object arg2, ..., Object argn){
+ *   CallCounters.onCall(1550);
+ *   ...
+ * }
+ * }
+ * </pre>
+ * The probe does not branch, so no stack map frames need to be recomputed, and it calls the
+ * counters directly, not going through the {@link io.shiftleft.bctrace.runtime.Callback} class.
+ *
+ * @author Ignacio del Valle Alles idelvall@shiftleft.io
+ */
+public class CallCounterPrimitive extends InstrumentationPrimitive {
+
+  private static final String CALL_COUNTERS_CLASS_NAME = CallCounters.class.getName()
+      .replace('.', '/');
+
+  @Override
+  public boolean addByteCodeInstructions(String classRegistryName, ClassNode cn, MethodNode mn,
+      ArrayList<Integer> hooksToUse) {
+    int methodId = MethodRegistry.getInstance()
+        .registerMethodId(MethodInfo.from(classRegistryName, mn));
+    InsnList il = new InsnList();
+    il.add(ASMUtils.getPushInstruction(methodId));
+    il.add(new MethodInsnNode(Opcodes.INVOKESTATIC, CALL_COUNTERS_CLASS_NAME, "onCall", "(I)V",
+        false));
+    mn.instructions.insert(il);
+    return true;
+  }
+}
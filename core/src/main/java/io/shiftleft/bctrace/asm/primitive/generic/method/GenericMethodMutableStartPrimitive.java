@@ -88,7 +88,7 @@ public class GenericMethodMutableStartPrimitive extends InstrumentationPrimitive
     if (!isInstrumentationNeeded(listenersToUse)) {
       return false;
     }
-    Integer methodId = MethodRegistry.getInstance()
+    int methodId = MethodRegistry.getInstance()
         .registerMethodId(MethodInfo.from(classRegistryName, mn));
     InsnList il = new InsnList();
     Type[] methodArguments = Type.getArgumentTypes(mn.desc);
@@ -122,7 +122,7 @@ public class GenericMethodReturnPrimitive extends InstrumentationPrimitive {
       // Store original return value into a local variable
       il.add(ASMUtils.getStoreInst(returnType, returnVarIndex));
     }
-    Integer methodId = MethodRegistry.getInstance().registerMethodId(MethodInfo.from(
+    int methodId = MethodRegistry.getInstance().registerMethodId(MethodInfo.from(
         classRegistryName, mn));
     for (int i = listenersToUse.size() - 1; i >= 0; i--) {
       Integer index = listenersToUse.get(i);
@@ -84,7 +84,7 @@ public class GenericMethodStartPrimitive extends InstrumentationPrimitive {
     if (!isInstrumentationNeeded(listenersToUse)) {
       return false;
     }
-    Integer methodId = MethodRegistry.getInstance().registerMethodId(MethodInfo.from(classRegistryName, mn));
+    int methodId = MethodRegistry.getInstance().registerMethodId(MethodInfo.from(classRegistryName, mn));
     InsnList il = new InsnList();
     boolean someRequiresArguments = false;
     for (int i = 0; i < listenersToUse.size(); i++) {
@@ -103,7 +103,7 @@ public class GenericMethodThrowablePrimitive extends InstrumentationPrimitive {
       return false;
     }
 
-    Integer methodId = MethodRegistry.getInstance()
+    int methodId = MethodRegistry.getInstance()
         .registerMethodId(MethodInfo.from(classRegistryName, mn));
 
     LabelNode endNode = new LabelNode();
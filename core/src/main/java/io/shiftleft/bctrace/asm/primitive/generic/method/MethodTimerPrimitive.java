@@ -0,0 +1,258 @@
+/*
+ * ShiftLeft, Inc. CONFIDENTIAL
+ * Unpublished Copyright (c) 2017 ShiftLeft, Inc., All Rights Reserved.
+ *
+ * NOTICE: All information contained herein is, and remains the property of ShiftLeft, Inc.
+ * The intellectual and technical concepts contained herein are proprietary to ShiftLeft, Inc.
+ * and may be covered by U.S. and Foreign Patents, patents in process, and are protected by
+ * trade secret or copyright law. Dissemination of this information or reproduction of this
+ * material is strictly forbidden unless prior written permission is obtained
+ * from ShiftLeft, Inc. Access to the source code contained herein is hereby forbidden to
+ * anyone except current ShiftLeft, Inc. employees, managers or contractors who have executed
+ * Confidentiality and Non-disclosure agreements explicitly covering such access.
+ *
+ * The copyright notice above does not evidence any actual or intended publication or disclosure
+ * of this source code, which includes information that is confidential and/or proprietary, and
+ * is a trade secret, of ShiftLeft, Inc.
+ *
+ * ANY REPRODUCTION, MODIFICATION, DISTRIBUTION, PUBLIC PERFORMANCE, OR PUBLIC DISPLAY
+ * OF OR THROUGH USE OF THIS SOURCE CODE WITHOUT THE EXPRESS WRITTEN CONSENT OF ShiftLeft, Inc.
+ * IS STRICTLY PROHIBITED, AND IN VIOLATION OF APPLICABLE LAWS AND INTERNATIONAL TREATIES.
+ * THE RECEIPT OR POSSESSION OF THIS SOURCE CODE AND/OR RELATED INFORMATION DOES NOT
+ * CONVEY OR IMPLY ANY RIGHTS TO REPRODUCE, DISCLOSE OR DISTRIBUTE ITS
+ * CONTENTS, OR TO MANUFACTURE, USE, OR SELL ANYTHING THAT IT MAY DESCRIBE, IN WHOLE OR IN PART.
+ */
+package io.shiftleft.bctrace.asm.primitive.generic.method;
+
+import io.shiftleft.bctrace.Bctrace;
+import io.shiftleft.bctrace.MethodInfo;
+import io.shiftleft.bctrace.MethodRegistry;
+import io.shiftleft.bctrace.asm.primitive.InstrumentationPrimitive;
+import io.shiftleft.bctrace.asm.util.ASMUtils;
+import io.shiftleft.bctrace.logging.Level;
+import io.shiftleft.bctrace.runtime.MethodTimers;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.Type;
+import org.objectweb.asm.tree.AbstractInsnNode;
+import org.objectweb.asm.tree.ClassNode;
+import org.objectweb.asm.tree.FrameNode;
+import org.objectweb.asm.tree.IincInsnNode;
+import org.objectweb.asm.tree.InsnList;
+import org.objectweb.asm.tree.InsnNode;
+import org.objectweb.asm.tree.LabelNode;
+import org.objectweb.asm.tree.LocalVariableNode;
+import org.objectweb.asm.tree.MethodInsnNode;
+import org.objectweb.asm.tree.MethodNode;
+import org.objectweb.asm.tree.TryCatchBlockNode;
+import org.objectweb.asm.tree.VarInsnNode;
+
+/**
+ * Inserts the built-in timer probe in an instrumented method, regardless of the hooks applied to
+ * it.
+ * <br><pre>{@code
+ * public Object foo(Object arg1, Object arg2, ..., Object argn){
+ *   long start = MethodTimers.onStart();
+ *   try {
+ *     ...
+ *     MethodTimers.onFinish(start, 1550);
+ *     return ret;
+ *   } catch (Throwable th) {
+ *     MethodTimers.onFinish(start, 1550);
+ *     throw th;
+ *   }
+ * }
+ * }
+ * </pre>
+ * The start timestamp is stored in a new local variable placed right after the method arguments,
+ * so the rest of the local variables are shifted two slots. Since it has to be live across the
+ * whole method, it is declared in every stack map frame, that are rewritten as full frames.
+ * <br><br>
+ * This primitive must be applied after all the others, so its handler also covers the code that
+ * they add, and the start timestamp is taken before any of their listeners is notified.
+ *
+ * @author Ignacio del Valle Alles idelvall@shiftleft.io
+ */
+public class MethodTimerPrimitive extends InstrumentationPrimitive {
+
+  private static final String METHOD_TIMERS_CLASS_NAME = MethodTimers.class.getName()
+      .replace('.', '/');
+
+  @Override
+  public boolean addByteCodeInstructions(String classRegistryName, ClassNode cn, MethodNode mn,
+      ArrayList<Integer> hooksToUse) {
+
+    int timerVarIndex = Type.getArgumentsAndReturnSizes(mn.desc) >> 2;
+    if (ASMUtils.isStatic(mn.access)) {
+      timerVarIndex--;
+    }
+    if (isSlotSplit(mn, timerVarIndex)) {
+      // Not generated from Java Language: an argument slot is reused by a long or double local
+      return false;
+    }
+    LabelNode startNode = getStartNodeForGlobalTryCatch(mn);
+    if (startNode == null) {
+      // Weird constructor, not generated from Java Language
+      Bctrace.getAgentLogger().log(Level.WARNING,
+          "Could not add timer probe to constructor " + cn.name + "." + mn.name + mn.desc);
+      return false;
+    }
+
+    int methodId = MethodRegistry.getInstance()
+        .registerMethodId(MethodInfo.from(classRegistryName, mn));
+
+    Object[] topLocals = ASMUtils.getTopLocals(cn, mn);
+    shiftLocals(mn, timerVarIndex);
+    updateFrames(mn, topLocals, timerVarIndex);
+
+    Iterator<AbstractInsnNode> it = mn.instructions.iterator();
+    while (it.hasNext()) {
+      AbstractInsnNode node = it.next();
+      if (node.getOpcode() >= Opcodes.IRETURN && node.getOpcode() <= Opcodes.RETURN) {
+        mn.instructions.insertBefore(node, getFinishInstructions(timerVarIndex, methodId));
+      }
+    }
+
+    LabelNode endNode = new LabelNode();
+    mn.instructions.add(endNode);
+
+    InsnList il = new InsnList();
+    List<Object> handlerLocals = addTimerLocal(Arrays.asList(topLocals), timerVarIndex);
+    il.add(new FrameNode(Opcodes.F_FULL, handlerLocals.size(), handlerLocals.toArray(), 1,
+        new Object[]{"java/lang/Throwable"}));
+    LabelNode handlerNode = new LabelNode();
+    il.add(handlerNode);
+    il.add(getFinishInstructions(timerVarIndex, methodId));
+    il.add(new InsnNode(Opcodes.ATHROW));
+
+    mn.tryCatchBlocks.add(new TryCatchBlockNode(startNode, endNode, handlerNode, null));
+    mn.instructions.add(il);
+
+    // Before the start node of all the try/catch blocks, so the timer is set in their handlers
+    InsnList start = new InsnList();
+    start.add(new MethodInsnNode(Opcodes.INVOKESTATIC, METHOD_TIMERS_CLASS_NAME, "onStart", "()J",
+        false));
+    start.add(new VarInsnNode(Opcodes.LSTORE, timerVarIndex));
+    mn.instructions.insert(start);
+    mn.maxLocals = mn.maxLocals + 2;
+    return true;
+  }
+
+  private static InsnList getFinishInstructions(int timerVarIndex, int methodId) {
+    InsnList il = new InsnList();
+    il.add(new VarInsnNode(Opcodes.LLOAD, timerVarIndex));
+    il.add(ASMUtils.getPushInstruction(methodId));
+    il.add(new MethodInsnNode(Opcodes.INVOKESTATIC, METHOD_TIMERS_CLASS_NAME, "onFinish", "(JI)V",
+        false));
+    return il;
+  }
+
+  private static boolean isSlotSplit(MethodNode mn, int timerVarIndex) {
+    Iterator<AbstractInsnNode> it = mn.instructions.iterator();
+    while (it.hasNext()) {
+      AbstractInsnNode node = it.next();
+      if (node instanceof VarInsnNode && ((VarInsnNode) node).var == timerVarIndex - 1) {
+        int opcode = node.getOpcode();
+        if (opcode == Opcodes.LLOAD || opcode == Opcodes.DLOAD || opcode == Opcodes.LSTORE
+            || opcode == Opcodes.DSTORE) {
+          return true;
+        }
+      }
+    }
+    return false;
+  }
+
+  private static void shiftLocals(MethodNode mn, int timerVarIndex) {
+    Iterator<AbstractInsnNode> it = mn.instructions.iterator();
+    while (it.hasNext()) {
+      AbstractInsnNode node = it.next();
+      if (node instanceof VarInsnNode) {
+        VarInsnNode vin = (VarInsnNode) node;
+        if (vin.var >= timerVarIndex) {
+          vin.var += 2;
+        }
+      } else if (node instanceof IincInsnNode) {
+        IincInsnNode iin = (IincInsnNode) node;
+        if (iin.var >= timerVarIndex) {
+          iin.var += 2;
+        }
+      }
+    }
+    if (mn.localVariables != null) {
+      for (LocalVariableNode lvn : mn.localVariables) {
+        if (lvn.index >= timerVarIndex) {
+          lvn.index += 2;
+        }
+      }
+    }
+  }
+
+  /**
+   * Expands the (possibly compressed) frames of the method into full frames, declaring the timer
+   * local in all of them.
+   */
+  private static void updateFrames(MethodNode mn, Object[] topLocals, int timerVarIndex) {
+    List<Object> locals = new ArrayList<Object>(Arrays.asList(topLocals));
+    if (mn.name.equals("<init>")) {
+      locals.set(0, Opcodes.UNINITIALIZED_THIS);
+    }
+    Iterator<AbstractInsnNode> it = mn.instructions.iterator();
+    while (it.hasNext()) {
+      AbstractInsnNode node = it.next();
+      if (!(node instanceof FrameNode)) {
+        continue;
+      }
+      FrameNode fn = (FrameNode) node;
+      List<Object> stack;
+      switch (fn.type) {
+        case Opcodes.F_NEW:
+        case Opcodes.F_FULL:
+          locals = fn.local == null ? new ArrayList<Object>()
+              : new ArrayList<Object>(fn.local);
+          stack = fn.stack == null ? new ArrayList<Object>() : fn.stack;
+          break;
+        case Opcodes.F_APPEND:
+          locals = new ArrayList<Object>(locals);
+          locals.addAll(fn.local);
+          stack = new ArrayList<Object>();
+          break;
+        case Opcodes.F_CHOP:
+          locals = new ArrayList<Object>(
+              locals.subList(0, Math.max(0, locals.size() - fn.local.size())));
+          stack = new ArrayList<Object>();
+          break;
+        case Opcodes.F_SAME1:
+          stack = fn.stack;
+          break;
+        default:
+          stack = new ArrayList<Object>();
+      }
+      fn.type = Opcodes.F_FULL;
+      fn.local = addTimerLocal(locals, timerVarIndex);
+      fn.stack = stack;
+    }
+  }
+
+  private static List<Object> addTimerLocal(List<Object> locals, int timerVarIndex) {
+    List<Object> ret = new ArrayList<Object>(locals.size() + 1);
+    int slot = 0;
+    int i = 0;
+    while (slot < timerVarIndex && i < locals.size()) {
+      Object local = locals.get(i++);
+      ret.add(local);
+      slot += (local == Opcodes.LONG || local == Opcodes.DOUBLE) ? 2 : 1;
+    }
+    while (slot < timerVarIndex) {
+      ret.add(Opcodes.TOP);
+      slot++;
+    }
+    ret.add(Opcodes.LONG);
+    while (i < locals.size()) {
+      ret.add(locals.get(i++));
+    }
+    return ret;
+  }
+}
@@ -26,6 +26,7 @@ package io.shiftleft.bctrace.asm.util;
 
 import java.io.PrintWriter;
 import java.io.StringWriter;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Iterator;
 import java.util.List;
@@ -51,6 +52,9 @@ import org.objectweb.asm.util.TraceMethodVisitor;
  */
 public final class ASMUtils {
 
+  private static final int CONSTANT_METHODREF_TAG = 10;
+  private static final int CONSTANT_INTERFACE_METHODREF_TAG = 11;
+
   private ASMUtils() {
 
   }
@@ -381,6 +385,32 @@ public final class ASMUtils {
     }
   }
 
+  /**
+   * Reads the method references (Methodref and InterfaceMethodref entries) from the constant pool
+   * of the class, without parsing fields, methods nor attributes.
+   *
+   * @return flat array of (owner, name, descriptor) triplets, with owners as internal names
+   */
+  public static String[] getMethodReferences(ClassReader cr) {
+    char[] buffer = new char[cr.getMaxStringLength()];
+    ArrayList<String> ret = new ArrayList<String>();
+    for (int i = 1; i < cr.getItemCount(); i++) {
+      int offset = cr.getItem(i);
+      if (offset == 0) {
+        // Second slot of a long or double entry
+        continue;
+      }
+      int tag = cr.readByte(offset - 1);
+      if (tag == CONSTANT_METHODREF_TAG || tag == CONSTANT_INTERFACE_METHODREF_TAG) {
+        int nameAndTypeOffset = cr.getItem(cr.readUnsignedShort(offset + 2));
+        ret.add(cr.readClass(offset, buffer));
+        ret.add(cr.readUTF8(nameAndTypeOffset, buffer));
+        ret.add(cr.readUTF8(nameAndTypeOffset + 2, buffer));
+      }
+    }
+    return ret.toArray(new String[ret.size()]);
+  }
+
   public static void viewByteCode(byte[] bytecode) {
     ClassReader cr = new ClassReader(bytecode);
     ClassNode cn = new ClassNode();
@@ -36,6 +36,7 @@ public abstract class CallSiteFilter extends MethodFilter {
   protected final String callSiteMethodName;
   protected final String callSiteMethodDescriptor;
   protected final Set<Integer> lineNumberSet;
+  private volatile Boolean methodReferenceFilter;
 
   public CallSiteFilter(String callSiteType, String callSiteMethodName,
       String callSiteMethodDescriptor) {
@@ -72,19 +73,41 @@ public abstract class CallSiteFilter extends MethodFilter {
    */
   public boolean acceptCallSite(ClassNode cn, MethodNode mn,
       MethodInsnNode callSite, int lineNumber) {
-    boolean ret = callSiteMethodDescriptor.equals(callSite.desc);
-    if (this.callSiteType != null) {
-      ret = ret && callSiteType.equals(callSite.owner);
-    }
-    if (this.callSiteMethodName != null) {
-      ret = ret && callSiteMethodName.equals(callSite.name);
-    }
+    boolean ret = acceptMethodReference(callSite.owner, callSite.name, callSite.desc);
     if (lineNumber >= 0 && this.lineNumberSet != null) {
       ret = ret && this.lineNumberSet.contains(lineNumber);
     }
     return ret;
   }
 
+  /**
+   * Whether a method reference (owner, name and descriptor) matches the call site type, name and
+   * descriptor specified in the constructor.
+   */
+  public final boolean acceptMethodReference(String owner, String name, String descriptor) {
+    return callSiteMethodDescriptor.equals(descriptor)
+        && (callSiteType == null || callSiteType.equals(owner))
+        && (callSiteMethodName == null || callSiteMethodName.equals(name));
+  }
+
+  /**
+   * Returns true if {@link #acceptCallSite(ClassNode, MethodNode, MethodInsnNode, int)} is not
+   * overridden, so classes whose constant pool does not contain a method reference accepted by
+   * {@link #acceptMethodReference(String, String, String)} can be discarded without being parsed.
+   */
+  public final boolean isMethodReferenceFilter() {
+    if (methodReferenceFilter == null) {
+      try {
+        methodReferenceFilter = getClass().getMethod("acceptCallSite", ClassNode.class,
+            MethodNode.class, MethodInsnNode.class, int.class).getDeclaringClass()
+            == CallSiteFilter.class;
+      } catch (NoSuchMethodException ex) {
+        throw new AssertionError(ex);
+      }
+    }
+    return methodReferenceFilter;
+  }
+
   public final String getMethodDescriptor() {
     return callSiteMethodDescriptor;
   }
@@ -48,9 +48,10 @@ public abstract class ClassFilter {
   }
 
   /**
-   * Second query once the class has been parsed. Whether or not instrument the methods of a class.
-   * The class bytecode has been parsed at this point, and the class hierarchy is accessible through
-   * the BctraceClass API.
+   * Second query once the class header has been read. Whether or not instrument the methods of a
+   * class. The class hierarchy is accessible through the BctraceClass API. The full bytecode is only
+   * parsed if {@link UnloadedClass#getClassNode()} is called, so filters answering from the
+   * hierarchy alone keep rejected classes cheap.
    */
   public boolean acceptClass(UnloadedClass clazz, ProtectionDomain protectionDomain,
       ClassLoader cl) {
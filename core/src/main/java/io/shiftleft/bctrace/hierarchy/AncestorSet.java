@@ -0,0 +1,108 @@
+/*
+ * ShiftLeft, Inc. CONFIDENTIAL
+ * Unpublished Copyright (c) 2017 ShiftLeft, Inc., All Rights Reserved.
+ *
+ * NOTICE: All information contained herein is, and remains the property of ShiftLeft, Inc.
+ * The intellectual and technical concepts contained herein are proprietary to ShiftLeft, Inc.
+ * and may be covered by U.S. and Foreign Patents, patents in process, and are protected by
+ * trade secret or copyright law. Dissemination of this information or reproduction of this
+ * material is strictly forbidden unless prior written permission is obtained
+ * from ShiftLeft, Inc. Access to the source code contained herein is hereby forbidden to
+ * anyone except current ShiftLeft, Inc. employees, managers or contractors who have executed
+ * Confidentiality and Non-disclosure agreements explicitly covering such access.
+ *
+ * The copyright notice above does not evidence any actual or intended publication or disclosure
+ * of this source code, which includes information that is confidential and/or proprietary, and
+ * is a trade secret, of ShiftLeft, Inc.
+ *
+ * ANY REPRODUCTION, MODIFICATION, DISTRIBUTION, PUBLIC PERFORMANCE, OR PUBLIC DISPLAY
+ * OF OR THROUGH USE OF THIS SOURCE CODE WITHOUT THE EXPRESS WRITTEN CONSENT OF ShiftLeft, Inc.
+ * IS STRICTLY PROHIBITED, AND IN VIOLATION OF APPLICABLE LAWS AND INTERNATIONAL TREATIES.
+ * THE RECEIPT OR POSSESSION OF THIS SOURCE CODE AND/OR RELATED INFORMATION DOES NOT
+ * CONVEY OR IMPLY ANY RIGHTS TO REPRODUCE, DISCLOSE OR DISTRIBUTE ITS
+ * CONTENTS, OR TO MANUFACTURE, USE, OR SELL ANYTHING THAT IT MAY DESCRIBE, IN WHOLE OR IN PART.
+ */
+package io.shiftleft.bctrace.hierarchy;
+
+import java.util.Collection;
+
+/**
+ * Immutable set of the names of a type and all its supertypes, used to answer subtype queries with
+ * a single membership test.
+ * <br><br>
+ * Names are stored interned in an open addressing table, and a 64-bit bloom filter discards most
+ * of the negative queries before probing it.
+ * <br><br>
+ * A set is incomplete if some supertype could not be resolved when it was computed.
+ *
+ * @author Ignacio del Valle Alles idelvall@shiftleft.io
+ */
+final class AncestorSet {
+
+  private final String[] table;
+  private final long bloom;
+  private final boolean complete;
+
+  AncestorSet(Collection<String> names, boolean complete) {
+    this.complete = complete;
+    int capacity = 4;
+    while (capacity < names.size() * 2) {
+      capacity <<= 1;
+    }
+    this.table = new String[capacity];
+    long bloom = 0;
+    for (String name : names) {
+      String interned = name.intern();
+      int h = name.hashCode();
+      bloom |= bloomMask(h);
+      int i = spread(h) & (capacity - 1);
+      while (table[i] != null) {
+        if (table[i] == interned) {
+          break;
+        }
+        i = (i + 1) & (capacity - 1);
+      }
+      table[i] = interned;
+    }
+    this.bloom = bloom;
+  }
+
+  private static long bloomMask(int h) {
+    return (1L << (h & 63)) | (1L << ((h >>> 6) & 63));
+  }
+
+  private static int spread(int h) {
+    return h ^ (h >>> 16);
+  }
+
+  boolean isComplete() {
+    return complete;
+  }
+
+  boolean contains(String name) {
+    int h = name.hashCode();
+    long mask = bloomMask(h);
+    if ((bloom & mask) != mask) {
+      return false;
+    }
+    int i = spread(h) & (table.length - 1);
+    while (true) {
+      String s = table[i];
+      if (s == null) {
+        return false;
+      }
+      if (s == name || s.equals(name)) {
+        return true;
+      }
+      i = (i + 1) & (table.length - 1);
+    }
+  }
+
+  void addTo(Collection<String> names) {
+    for (int i = 0; i < table.length; i++) {
+      if (table[i] != null) {
+        names.add(table[i]);
+      }
+    }
+  }
+}
@@ -28,7 +28,14 @@ import io.shiftleft.bctrace.Bctrace;
 import io.shiftleft.bctrace.Instrumentation;
 import io.shiftleft.bctrace.asm.util.ASMUtils;
 import io.shiftleft.bctrace.logging.Level;
+import java.io.IOException;
+import java.io.InputStream;
 import java.net.URL;
+import java.security.AccessController;
+import java.security.PrivilegedAction;
+import java.util.HashSet;
+import java.util.Set;
+import org.objectweb.asm.ClassReader;
 
 /**
  * @author Ignacio del Valle Alles idelvall@shiftleft.io
@@ -44,6 +51,7 @@ public abstract class BctraceClass {
   private volatile URL url;
   protected volatile BctraceClass superClass;
   protected volatile BctraceClass[] interfaces;
+  private volatile AncestorSet ancestors;
 
   BctraceClass(String name, ClassLoader cl, Instrumentation inst) {
     this.name = name;
@@ -131,7 +139,8 @@ public abstract class BctraceClass {
   public abstract int getModifiers();
 
   /**
-   * Factory method that constructs an instance given the class name and classloader.
+   * Factory method that constructs an instance given the class name and classloader. Type
+   * information is resolved once per class loader and kept in the {@link HierarchyCache}.
    *
    * @param name class name according to the Java Language Specification (dot separated)
    */
@@ -147,7 +156,32 @@ public abstract class BctraceClass {
       return null;
     }
 
-    //If the class has been loaded try to create a LoadedClass implementation
+    HierarchyCache cache = HierarchyCache.getInstance();
+    TypeInfo typeInfo = cache.get(name, cl);
+    if (typeInfo == null) {
+      if (cache.isUnresolved(name, cl)) {
+        return new UnresolvedClass(name, cl);
+      }
+      typeInfo = resolve(name, cl, inst);
+      if (typeInfo == null) {
+        Bctrace.getAgentLogger()
+            .log(Level.DEBUG, "Could not obtain class bytecode for unloaded class " + name);
+        cache.putUnresolved(name, cl);
+        return new UnresolvedClass(name, cl);
+      }
+      typeInfo = cache.put(typeInfo, cl);
+    }
+    return new CachedClass(typeInfo, cl, inst);
+  }
+
+  /**
+   * Resolves the type information from the loaded class, or otherwise from the header of its
+   * class file.
+   *
+   * @return null if the class can not be resolved
+   */
+  private static TypeInfo resolve(String name, ClassLoader cl, Instrumentation inst) {
+    //If the class has been loaded get the information from it
     if (inst.isLoadedByAnyClassLoader(name)) {
       // First check if the class has been loaded by this classloader
       Class clazz = inst.getClassIfLoadedByClassLoader(name, cl);
@@ -156,18 +190,37 @@ public abstract class BctraceClass {
         clazz = getClassIfLoadedByClassLoaderAncestors(name, cl, inst);
       }
       if (clazz != null) {
-        return new LoadedClass(clazz, inst);
+        return TypeInfo.from(clazz);
       }
     }
-    BctraceClass ret;
+    final URL url = Bctrace.getURL(name, cl);
+    if (url == null) {
+      return null;
+    }
+    InputStream is = AccessController.doPrivileged(new PrivilegedAction<InputStream>() {
+      @Override
+      public InputStream run() {
+        try {
+          return url.openStream();
+        } catch (IOException ex) {
+          return null;
+        }
+      }
+    });
+    if (is == null) {
+      return null;
+    }
     try {
-      ret = new UnloadedClass(name, cl, inst);
-    } catch (ClassNotFoundException ex) {
-      Bctrace.getAgentLogger()
-          .log(Level.DEBUG, "Could not obtain class bytecode for unloaded class " + name);
-      ret = new UnresolvedClass(name, cl);
+      return TypeInfo.from(new ClassReader(is));
+    } catch (IOException ex) {
+      return null;
+    } finally {
+      try {
+        is.close();
+      } catch (IOException ex) {
+        // Ignored
+      }
     }
-    return ret;
   }
 
   private static Class getClassIfLoadedByClassLoaderAncestors(String name, ClassLoader cl,
@@ -187,26 +240,56 @@ public abstract class BctraceClass {
     return getName().replace('.', '/');
   }
 
+  /**
+   * Whether this type is, or is a subtype of, the specified one. The set of supertypes is computed
+   * once, so this is a single membership test.
+   *
+   * @param typeName type name according to the Java Language Specification (dot separated)
+   */
   public final boolean isInstanceOf(String typeName) {
-    if (getName().equals(typeName)) {
-      return true;
+    return getAncestors().contains(typeName);
+  }
+
+  /**
+   * Sets including unresolved supertypes are not memoized, so they are computed again once these
+   * get defined.
+   */
+  AncestorSet getAncestors() {
+    AncestorSet ret = ancestors;
+    if (ret == null) {
+      ret = computeAncestors();
+      if (ret.isComplete()) {
+        ancestors = ret;
+      }
     }
+    return ret;
+  }
+
+  final AncestorSet computeAncestors() {
+    Set<String> names = new HashSet<String>();
+    names.add(getName());
+    boolean complete = true;
     BctraceClass superClass = getSuperClass();
-    if (superClass != null
-        && superClass.isInstanceOf(typeName)) {
-      return true;
+    if (superClass != null) {
+      AncestorSet superAncestors = superClass.getAncestors();
+      superAncestors.addTo(names);
+      complete &= superAncestors.isComplete();
+    } else if (getSuperClassName() != null) {
+      complete = false;
     }
     BctraceClass[] interfaces = getInterfaces();
     if (interfaces != null) {
       for (int i = 0; i < interfaces.length; i++) {
-        BctraceClass intf = interfaces[i];
-        if (intf != null
-            && intf.isInstanceOf(typeName)) {
-          return true;
+        if (interfaces[i] != null) {
+          AncestorSet interfaceAncestors = interfaces[i].getAncestors();
+          interfaceAncestors.addTo(names);
+          complete &= interfaceAncestors.isComplete();
+        } else {
+          complete = false;
         }
       }
     }
-    return false;
+    return new AncestorSet(names, complete);
   }
 
   public ClassLoader getClassloader() {
@@ -0,0 +1,72 @@
+/*
+ * ShiftLeft, Inc. CONFIDENTIAL
+ * Unpublished Copyright (c) 2017 ShiftLeft, Inc., All Rights Reserved.
+ *
+ * NOTICE: All information contained herein is, and remains the property of ShiftLeft, Inc.
+ * The intellectual and technical concepts contained herein are proprietary to ShiftLeft, Inc.
+ * and may be covered by U.S. and Foreign Patents, patents in process, and are protected by
+ * trade secret or copyright law. Dissemination of this information or reproduction of this
+ * material is strictly forbidden unless prior written permission is obtained
+ * from ShiftLeft, Inc. Access to the source code contained herein is hereby forbidden to
+ * anyone except current ShiftLeft, Inc. employees, managers or contractors who have executed
+ * Confidentiality and Non-disclosure agreements explicitly covering such access.
+ *
+ * The copyright notice above does not evidence any actual or intended publication or disclosure
+ * of this source code, which includes information that is confidential and/or proprietary, and
+ * is a trade secret, of ShiftLeft, Inc.
+ *
+ * ANY REPRODUCTION, MODIFICATION, DISTRIBUTION, PUBLIC PERFORMANCE, OR PUBLIC DISPLAY
+ * OF OR THROUGH USE OF THIS SOURCE CODE WITHOUT THE EXPRESS WRITTEN CONSENT OF ShiftLeft, Inc.
+ * IS STRICTLY PROHIBITED, AND IN VIOLATION OF APPLICABLE LAWS AND INTERNATIONAL TREATIES.
+ * THE RECEIPT OR POSSESSION OF THIS SOURCE CODE AND/OR RELATED INFORMATION DOES NOT
+ * CONVEY OR IMPLY ANY RIGHTS TO REPRODUCE, DISCLOSE OR DISTRIBUTE ITS
+ * CONTENTS, OR TO MANUFACTURE, USE, OR SELL ANYTHING THAT IT MAY DESCRIBE, IN WHOLE OR IN PART.
+ */
+package io.shiftleft.bctrace.hierarchy;
+
+import io.shiftleft.bctrace.Instrumentation;
+
+/**
+ * Class whose hierarchy information comes from the {@link HierarchyCache}.
+ *
+ * @author Ignacio del Valle Alles idelvall@shiftleft.io
+ */
+final class CachedClass extends BctraceClass {
+
+  private final TypeInfo typeInfo;
+
+  CachedClass(TypeInfo typeInfo, ClassLoader cl, Instrumentation inst) {
+    super(typeInfo.getName(), cl, inst);
+    this.typeInfo = typeInfo;
+  }
+
+  @Override
+  protected String getSuperClassName() {
+    return typeInfo.getSuperClassName();
+  }
+
+  @Override
+  protected String[] getInterfaceNames() {
+    return typeInfo.getInterfaceNames();
+  }
+
+  /**
+   * Shared by all the instances backed by the same type info, once all the supertypes are resolved
+   */
+  @Override
+  AncestorSet getAncestors() {
+    AncestorSet ret = typeInfo.getAncestors();
+    if (ret == null) {
+      ret = computeAncestors();
+      if (ret.isComplete()) {
+        typeInfo.setAncestors(ret);
+      }
+    }
+    return ret;
+  }
+
+  @Override
+  public int getModifiers() {
+    return typeInfo.getModifiers();
+  }
+}
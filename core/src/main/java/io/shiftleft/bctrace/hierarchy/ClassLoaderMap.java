@@ -0,0 +1,129 @@
+/*
+ * ShiftLeft, Inc. CONFIDENTIAL
+ * Unpublished Copyright (c) 2017 ShiftLeft, Inc., All Rights Reserved.
+ *
+ * NOTICE: All information contained herein is, and remains the property of ShiftLeft, Inc.
+ * The intellectual and technical concepts contained herein are proprietary to ShiftLeft, Inc.
+ * and may be covered by U.S. and Foreign Patents, patents in process, and are protected by
+ * trade secret or copyright law. Dissemination of this information or reproduction of this
+ * material is strictly forbidden unless prior written permission is obtained
+ * from ShiftLeft, Inc. Access to the source code contained herein is hereby forbidden to
+ * anyone except current ShiftLeft, Inc. employees, managers or contractors who have executed
+ * Confidentiality and Non-disclosure agreements explicitly covering such access.
+ *
+ * The copyright notice above does not evidence any actual or intended publication or disclosure
+ * of this source code, which includes information that is confidential and/or proprietary, and
+ * is a trade secret, of ShiftLeft, Inc.
+ *
+ * ANY REPRODUCTION, MODIFICATION, DISTRIBUTION, PUBLIC PERFORMANCE, OR PUBLIC DISPLAY
+ * OF OR THROUGH USE OF THIS SOURCE CODE WITHOUT THE EXPRESS WRITTEN CONSENT OF ShiftLeft, Inc.
+ * IS STRICTLY PROHIBITED, AND IN VIOLATION OF APPLICABLE LAWS AND INTERNATIONAL TREATIES.
+ * THE RECEIPT OR POSSESSION OF THIS SOURCE CODE AND/OR RELATED INFORMATION DOES NOT
+ * CONVEY OR IMPLY ANY RIGHTS TO REPRODUCE, DISCLOSE OR DISTRIBUTE ITS
+ * CONTENTS, OR TO MANUFACTURE, USE, OR SELL ANYTHING THAT IT MAY DESCRIBE, IN WHOLE OR IN PART.
+ */
+package io.shiftleft.bctrace.hierarchy;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.Collection;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Concurrent map holding a value per (non bootstrap) class loader, with class loaders held weakly
+ * and compared by identity. Lookups take no lock, and the value of the last class loader looked up
+ * is cached, since consecutive classes are usually loaded by the same class loader. Entries of
+ * garbage collected class loaders are purged when new entries are added, and when the size is
+ * queried.
+ *
+ * @author Ignacio del Valle Alles idelvall@shiftleft.io
+ */
+final class ClassLoaderMap<V> {
+
+  private final ConcurrentHashMap<LoaderKey, V> map = new ConcurrentHashMap<LoaderKey, V>();
+  private final ReferenceQueue<ClassLoader> queue = new ReferenceQueue<ClassLoader>();
+  private volatile LastEntry<V> last;
+
+  V get(ClassLoader cl) {
+    LastEntry<V> last = this.last;
+    if (last != null && last.key.get() == cl) {
+      return last.value;
+    }
+    LoaderKey key = new LoaderKey(cl, null);
+    V ret = map.get(key);
+    if (ret != null) {
+      this.last = new LastEntry<V>(key, ret);
+    }
+    return ret;
+  }
+
+  /**
+   * @return the value mapped to the class loader, that may be a previous one added concurrently
+   */
+  V putIfAbsent(ClassLoader cl, V value) {
+    purge();
+    V previous = map.putIfAbsent(new LoaderKey(cl, queue), value);
+    return previous == null ? value : previous;
+  }
+
+  /**
+   * @return weakly consistent view of the values
+   */
+  Collection<V> values() {
+    return map.values();
+  }
+
+  int size() {
+    purge();
+    return map.size();
+  }
+
+  private void purge() {
+    Reference<? extends ClassLoader> ref;
+    while ((ref = queue.poll()) != null) {
+      map.remove(ref);
+    }
+  }
+
+  private static final class LoaderKey extends WeakReference<ClassLoader> {
+
+    private final int hash;
+
+    LoaderKey(ClassLoader cl, ReferenceQueue<ClassLoader> queue) {
+      super(cl, queue);
+      this.hash = System.identityHashCode(cl);
+    }
+
+    @Override
+    public int hashCode() {
+      return hash;
+    }
+
+    /**
+     * Cleared keys are only equal to themselves, so they can still be removed
+     */
+    @Override
+    public boolean equals(Object obj) {
+      if (obj == this) {
+        return true;
+      }
+      if (!(obj instanceof LoaderKey)) {
+        return false;
+      }
+      ClassLoader cl = get();
+      return cl != null && cl == ((LoaderKey) obj).get();
+    }
+  }
+
+  private static final class LastEntry<V> {
+
+    private final LoaderKey key;
+    private final V value;
+
+    LastEntry(LoaderKey key, V value) {
+      this.key = key;
+      this.value = value;
+    }
+  }
+}
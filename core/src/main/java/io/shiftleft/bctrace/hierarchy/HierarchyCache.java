@@ -0,0 +1,190 @@
+/*
+ * ShiftLeft, Inc. CONFIDENTIAL
+ * Unpublished Copyright (c) 2017 ShiftLeft, Inc., All Rights Reserved.
+ *
+ * NOTICE: All information contained herein is, and remains the property of ShiftLeft, Inc.
+ * The intellectual and technical concepts contained herein are proprietary to ShiftLeft, Inc.
+ * and may be covered by U.S. and Foreign Patents, patents in process, and are protected by
+ * trade secret or copyright law. Dissemination of this information or reproduction of this
+ * material is strictly forbidden unless prior written permission is obtained
+ * from ShiftLeft, Inc. Access to the source code contained herein is hereby forbidden to
+ * anyone except current ShiftLeft, Inc. employees, managers or contractors who have executed
+ * Confidentiality and Non-disclosure agreements explicitly covering such access.
+ *
+ * The copyright notice above does not evidence any actual or intended publication or disclosure
+ * of this source code, which includes information that is confidential and/or proprietary, and
+ * is a trade secret, of ShiftLeft, Inc.
+ *
+ * ANY REPRODUCTION, MODIFICATION, DISTRIBUTION, PUBLIC PERFORMANCE, OR PUBLIC DISPLAY
+ * OF OR THROUGH USE OF THIS SOURCE CODE WITHOUT THE EXPRESS WRITTEN CONSENT OF ShiftLeft, Inc.
+ * IS STRICTLY PROHIBITED, AND IN VIOLATION OF APPLICABLE LAWS AND INTERNATIONAL TREATIES.
+ * THE RECEIPT OR POSSESSION OF THIS SOURCE CODE AND/OR RELATED INFORMATION DOES NOT
+ * CONVEY OR IMPLY ANY RIGHTS TO REPRODUCE, DISCLOSE OR DISTRIBUTE ITS
+ * CONTENTS, OR TO MANUFACTURE, USE, OR SELL ANYTHING THAT IT MAY DESCRIBE, IN WHOLE OR IN PART.
+ */
+package io.shiftleft.bctrace.hierarchy;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Type information of the classes visible by each class loader, so the hierarchy of a class is
+ * resolved (from its loaded Class or its bytecode) only once per class loader. Entries are
+ * discarded once their class loader is garbage collected. No lock is taken on lookups, so the cache
+ * does not serialize concurrent class loading.
+ * <br><br>
+ * Names that could not be resolved by a class loader are also remembered (up to {@link
+ * #MAX_UNRESOLVED_PER_LOADER} per class loader), so repeated queries do not scan the classpath
+ * again. These entries are invalidated as soon as the class gets defined.
+ *
+ * @author Ignacio del Valle Alles idelvall@shiftleft.io
+ */
+public final class HierarchyCache {
+
+  private static final HierarchyCache INSTANCE = new HierarchyCache();
+
+  static final int MAX_UNRESOLVED_PER_LOADER = 1024;
+
+  private final ClassLoaderMap<ConcurrentHashMap<String, TypeInfo>> classLoaderMaps = new ClassLoaderMap<ConcurrentHashMap<String, TypeInfo>>();
+  private final ConcurrentHashMap<String, TypeInfo> bootstrapMap = new ConcurrentHashMap<String, TypeInfo>();
+
+  private final ClassLoaderMap<ConcurrentHashMap<String, Boolean>> unresolvedMaps = new ClassLoaderMap<ConcurrentHashMap<String, Boolean>>();
+  private final ConcurrentHashMap<String, Boolean> bootstrapUnresolvedMap = new ConcurrentHashMap<String, Boolean>();
+  private final AtomicInteger unresolvedCount = new AtomicInteger();
+
+  private final AtomicLong hits = new AtomicLong();
+  private final AtomicLong misses = new AtomicLong();
+  private final AtomicLong unresolvedHits = new AtomicLong();
+
+  private HierarchyCache() {
+  }
+
+  public static HierarchyCache getInstance() {
+    return INSTANCE;
+  }
+
+  /**
+   * @param name class name according to the Java Language Specification (dot separated)
+   * @param cl class loader resolving the name
+   */
+  public TypeInfo get(String name, ClassLoader cl) {
+    ConcurrentHashMap<String, TypeInfo> map = getMap(cl, false);
+    TypeInfo ret = map == null ? null : map.get(name);
+    if (ret == null) {
+      misses.incrementAndGet();
+    } else {
+      hits.incrementAndGet();
+    }
+    return ret;
+  }
+
+  /**
+   * @return the type info cached for the class, that may be a previous one registered concurrently
+   */
+  public TypeInfo put(TypeInfo typeInfo, ClassLoader cl) {
+    TypeInfo previous = getMap(cl, true).putIfAbsent(typeInfo.getName(), typeInfo);
+    return previous == null ? typeInfo : previous;
+  }
+
+  /**
+   * @return true if a previous resolution of the name by this class loader failed, and the class
+   * has not been defined since then
+   */
+  public boolean isUnresolved(String name, ClassLoader cl) {
+    if (unresolvedCount.get() == 0) {
+      return false;
+    }
+    ConcurrentHashMap<String, Boolean> map = getUnresolvedMap(cl, false);
+    if (map != null && map.containsKey(name)) {
+      unresolvedHits.incrementAndGet();
+      return true;
+    }
+    return false;
+  }
+
+  public void putUnresolved(String name, ClassLoader cl) {
+    ConcurrentHashMap<String, Boolean> map = getUnresolvedMap(cl, true);
+    if (map.size() >= MAX_UNRESOLVED_PER_LOADER) {
+      // Bounded by simply starting over. Entries are cheap to recompute
+      int size = map.size();
+      map.clear();
+      unresolvedCount.addAndGet(-size);
+    }
+    if (map.putIfAbsent(name, Boolean.TRUE) == null) {
+      unresolvedCount.incrementAndGet();
+    }
+  }
+
+  /**
+   * Notifies that a class has been defined. Since the class may be visible by other class loaders
+   * delegating to the defining one, the name is invalidated for all of them.
+   */
+  public void classDefined(String name) {
+    if (unresolvedCount.get() == 0) {
+      return;
+    }
+    if (bootstrapUnresolvedMap.remove(name) != null) {
+      unresolvedCount.decrementAndGet();
+    }
+    for (ConcurrentHashMap<String, Boolean> map : unresolvedMaps.values()) {
+      if (map.remove(name) != null) {
+        unresolvedCount.decrementAndGet();
+      }
+    }
+  }
+
+  private ConcurrentHashMap<String, Boolean> getUnresolvedMap(ClassLoader cl, boolean create) {
+    if (cl == null) {
+      return bootstrapUnresolvedMap;
+    }
+    ConcurrentHashMap<String, Boolean> map = unresolvedMaps.get(cl);
+    if (map == null && create) {
+      map = unresolvedMaps.putIfAbsent(cl, new ConcurrentHashMap<String, Boolean>());
+    }
+    return map;
+  }
+
+  private ConcurrentHashMap<String, TypeInfo> getMap(ClassLoader cl, boolean create) {
+    if (cl == null) {
+      return bootstrapMap;
+    }
+    ConcurrentHashMap<String, TypeInfo> map = classLoaderMaps.get(cl);
+    if (map == null && create) {
+      map = classLoaderMaps.putIfAbsent(cl, new ConcurrentHashMap<String, TypeInfo>());
+    }
+    return map;
+  }
+
+  public long getHits() {
+    return hits.get();
+  }
+
+  public long getMisses() {
+    return misses.get();
+  }
+
+  public long getUnresolvedHits() {
+    return unresolvedHits.get();
+  }
+
+  /**
+   * @return approximate number of names remembered as unresolvable. Entries of garbage collected
+   * class loaders may still be accounted
+   */
+  public int getUnresolvedCount() {
+    return unresolvedCount.get();
+  }
+
+  public int getClassLoaderCount() {
+    return classLoaderMaps.size() + 1;
+  }
+
+  public int size() {
+    int ret = bootstrapMap.size();
+    for (ConcurrentHashMap<String, TypeInfo> map : classLoaderMaps.values()) {
+      ret += map.size();
+    }
+    return ret;
+  }
+}
@@ -0,0 +1,109 @@
+/*
+ * ShiftLeft, Inc. CONFIDENTIAL
+ * Unpublished Copyright (c) 2017 ShiftLeft, Inc., All Rights Reserved.
+ *
+ * NOTICE: All information contained herein is, and remains the property of ShiftLeft, Inc.
+ * The intellectual and technical concepts contained herein are proprietary to ShiftLeft, Inc.
+ * and may be covered by U.S. and Foreign Patents, patents in process, and are protected by
+ * trade secret or copyright law. Dissemination of this information or reproduction of this
+ * material is strictly forbidden unless prior written permission is obtained
+ * from ShiftLeft, Inc. Access to the source code contained herein is hereby forbidden to
+ * anyone except current ShiftLeft, Inc. employees, managers or contractors who have executed
+ * Confidentiality and Non-disclosure agreements explicitly covering such access.
+ *
+ * The copyright notice above does not evidence any actual or intended publication or disclosure
+ * of this source code, which includes information that is confidential and/or proprietary, and
+ * is a trade secret, of ShiftLeft, Inc.
+ *
+ * ANY REPRODUCTION, MODIFICATION, DISTRIBUTION, PUBLIC PERFORMANCE, OR PUBLIC DISPLAY
+ * OF OR THROUGH USE OF THIS SOURCE CODE WITHOUT THE EXPRESS WRITTEN CONSENT OF ShiftLeft, Inc.
+ * IS STRICTLY PROHIBITED, AND IN VIOLATION OF APPLICABLE LAWS AND INTERNATIONAL TREATIES.
+ * THE RECEIPT OR POSSESSION OF THIS SOURCE CODE AND/OR RELATED INFORMATION DOES NOT
+ * CONVEY OR IMPLY ANY RIGHTS TO REPRODUCE, DISCLOSE OR DISTRIBUTE ITS
+ * CONTENTS, OR TO MANUFACTURE, USE, OR SELL ANYTHING THAT IT MAY DESCRIBE, IN WHOLE OR IN PART.
+ */
+package io.shiftleft.bctrace.hierarchy;
+
+import org.objectweb.asm.ClassReader;
+
+/**
+ * Compact and immutable record of the information of a type needed to navigate the class
+ * hierarchy. Names follow the Java Language Specification (dot separated) and are interned.
+ *
+ * @author Ignacio del Valle Alles idelvall@shiftleft.io
+ */
+public final class TypeInfo {
+
+  private static final String[] EMPTY = new String[0];
+
+  private final String name;
+  private final int modifiers;
+  private final String superClassName;
+  private final String[] interfaceNames;
+  private volatile AncestorSet ancestors;
+
+  TypeInfo(String name, int modifiers, String superClassName, String[] interfaceNames) {
+    this.name = name.intern();
+    this.modifiers = modifiers;
+    this.superClassName = superClassName == null ? null : superClassName.intern();
+    if (interfaceNames == null || interfaceNames.length == 0) {
+      this.interfaceNames = EMPTY;
+    } else {
+      this.interfaceNames = new String[interfaceNames.length];
+      for (int i = 0; i < interfaceNames.length; i++) {
+        this.interfaceNames[i] = interfaceNames[i].intern();
+      }
+    }
+  }
+
+  static TypeInfo from(Class clazz) {
+    Class[] interfaces = clazz.getInterfaces();
+    String[] interfaceNames = new String[interfaces.length];
+    for (int i = 0; i < interfaces.length; i++) {
+      interfaceNames[i] = interfaces[i].getName();
+    }
+    return new TypeInfo(clazz.getName(), clazz.getModifiers(),
+        clazz.getSuperclass() == null ? null : clazz.getSuperclass().getName(), interfaceNames);
+  }
+
+  /**
+   * Reads the type information from the class file header (access flags, this class, super class
+   * and interfaces), without visiting fields, methods nor attributes.
+   */
+  public static TypeInfo from(ClassReader cr) {
+    String superName = cr.getSuperName();
+    String[] interfaces = cr.getInterfaces();
+    for (int i = 0; i < interfaces.length; i++) {
+      interfaces[i] = interfaces[i].replace('/', '.');
+    }
+    return new TypeInfo(cr.getClassName().replace('/', '.'), cr.getAccess(),
+        superName == null ? null : superName.replace('/', '.'), interfaces);
+  }
+
+  public String getName() {
+    return name;
+  }
+
+  public int getModifiers() {
+    return modifiers;
+  }
+
+  public String getSuperClassName() {
+    return superClassName;
+  }
+
+  /**
+   * The returned array must not be modified.
+   */
+  public String[] getInterfaceNames() {
+    return interfaceNames;
+  }
+
+  AncestorSet getAncestors() {
+    return ancestors;
+  }
+
+  void setAncestors(AncestorSet ancestors) {
+    this.ancestors = ancestors;
+  }
+}
@@ -25,32 +25,45 @@
 package io.shiftleft.bctrace.hierarchy;
 
 import io.shiftleft.bctrace.Instrumentation;
-import java.io.IOException;
-import java.io.InputStream;
-import java.net.URL;
-import java.security.AccessController;
-import java.security.PrivilegedAction;
 import org.objectweb.asm.ClassReader;
 import org.objectweb.asm.tree.ClassNode;
 
 /**
+ * Class being loaded (or retransformed). Hierarchy queries are answered from the class file header
+ * only, so the bytecode is not fully parsed into a {@link ClassNode} until {@link #getClassNode()}
+ * is called, typically once the class has passed the hook filters.
+ *
  * @author Ignacio del Valle Alles idelvall@shiftleft.io
  */
 public final class UnloadedClass extends BctraceClass {
 
-  private final ClassNode cn;
+  private final TypeInfo typeInfo;
+  private final ClassReader cr;
+  private ClassNode cn;
   private String registryClassName;
 
 
-  UnloadedClass(String name, ClassLoader cl, Instrumentation instrumentation)
-      throws ClassNotFoundException {
-    super(name, cl, instrumentation);
-    this.cn = createClassNode(getURL());
-  }
-
   public UnloadedClass(String name, ClassLoader cl, ClassNode cn, Instrumentation instrumentation) {
     super(name, cl, instrumentation);
     this.cn = cn;
+    this.cr = null;
+    String[] interfaceNames = new String[cn.interfaces.size()];
+    for (int i = 0; i < cn.interfaces.size(); i++) {
+      interfaceNames[i] = cn.interfaces.get(i).replace('/', '.');
+    }
+    this.typeInfo = new TypeInfo(name, cn.access,
+        cn.superName == null ? null : cn.superName.replace('/', '.'), interfaceNames);
+  }
+
+  /**
+   * @param typeInfo header information of the class, as registered in the {@link HierarchyCache}
+   * @param cr reader of the class bytecode, parsed on demand
+   */
+  public UnloadedClass(TypeInfo typeInfo, ClassLoader cl, ClassReader cr,
+      Instrumentation instrumentation) {
+    super(typeInfo.getName(), cl, instrumentation);
+    this.typeInfo = typeInfo;
+    this.cr = cr;
   }
 
   public void setRegistryClassName(String registryClassName) {
@@ -61,59 +74,43 @@ public final class UnloadedClass extends BctraceClass {
     return registryClassName;
   }
 
-  private static ClassNode createClassNode(final URL url) throws ClassNotFoundException {
-    if (url == null) {
-      throw new ClassNotFoundException();
-    }
-    InputStream is = AccessController.doPrivileged(new PrivilegedAction<InputStream>() {
-      @Override
-      public InputStream run() {
-        try {
-          return url.openStream();
-        } catch (IOException ex) {
-          return null;
-        }
-      }
-    });
-    if (is == null) {
-      return null;
-    }
-    try {
-      ClassReader cr = new ClassReader(is);
-      ClassNode cn = new ClassNode();
-      cr.accept(cn, 0);
-      return cn;
-    } catch (IOException ex) {
-      throw new RuntimeException(ex);
-    }
-
-  }
-
   public ClassNode getClassNode() {
+    if (cn == null) {
+      ClassNode classNode = new ClassNode();
+      cr.accept(classNode, 0);
+      cn = classNode;
+    }
     return cn;
   }
 
   @Override
   protected String getSuperClassName() {
-    if (this.cn.superName == null) {
-      return null;
-    } else {
-      return this.cn.superName.replace('/', '.');
-    }
+    return typeInfo.getSuperClassName();
   }
 
   @Override
   protected String[] getInterfaceNames() {
-    String[] ret = new String[this.cn.interfaces.size()];
-    for (int i = 0; i < this.cn.interfaces.size(); i++) {
-      ret[i] = this.cn.interfaces.get(i).replace('/', '.');
+    return typeInfo.getInterfaceNames();
+  }
+
+  /**
+   * Shared with the cached entry of the class, so subclasses loaded later do not recompute it
+   * (once all the supertypes are resolved)
+   */
+  @Override
+  AncestorSet getAncestors() {
+    AncestorSet ret = typeInfo.getAncestors();
+    if (ret == null) {
+      ret = computeAncestors();
+      if (ret.isComplete()) {
+        typeInfo.setAncestors(ret);
+      }
     }
     return ret;
   }
 
   @Override
   public int getModifiers() {
-    return this.cn.access;
+    return typeInfo.getModifiers();
   }
 }
-
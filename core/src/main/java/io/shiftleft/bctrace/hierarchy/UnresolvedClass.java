@@ -24,6 +24,8 @@
  */
 package io.shiftleft.bctrace.hierarchy;
 
+import java.util.Collections;
+
 /**
  * @author Ignacio del Valle Alles idelvall@shiftleft.io
  */
@@ -48,5 +50,13 @@ public class UnresolvedClass extends BctraceClass {
   public int getModifiers() {
     return 0;
   }
+
+  /**
+   * Its supertypes are unknown
+   */
+  @Override
+  AncestorSet getAncestors() {
+    return new AncestorSet(Collections.singleton(getName()), false);
+  }
 }
 
@@ -0,0 +1,115 @@
+/*
+ * ShiftLeft, Inc. CONFIDENTIAL
+ * Unpublished Copyright (c) 2017 ShiftLeft, Inc., All Rights Reserved.
+ *
+ * NOTICE: All information contained herein is, and remains the property of ShiftLeft, Inc.
+ * The intellectual and technical concepts contained herein are proprietary to ShiftLeft, Inc.
+ * and may be covered by U.S. and Foreign Patents, patents in process, and are protected by
+ * trade secret or copyright law. Dissemination of this information or reproduction of this
+ * material is strictly forbidden unless prior written permission is obtained
+ * from ShiftLeft, Inc. Access to the source code contained herein is hereby forbidden to
+ * anyone except current ShiftLeft, Inc. employees, managers or contractors who have executed
+ * Confidentiality and Non-disclosure agreements explicitly covering such access.
+ *
+ * The copyright notice above does not evidence any actual or intended publication or disclosure
+ * of this source code, which includes information that is confidential and/or proprietary, and
+ * is a trade secret, of ShiftLeft, Inc.
+ *
+ * ANY REPRODUCTION, MODIFICATION, DISTRIBUTION, PUBLIC PERFORMANCE, OR PUBLIC DISPLAY
+ * OF OR THROUGH USE OF THIS SOURCE CODE WITHOUT THE EXPRESS WRITTEN CONSENT OF ShiftLeft, Inc.
+ * IS STRICTLY PROHIBITED, AND IN VIOLATION OF APPLICABLE LAWS AND INTERNATIONAL TREATIES.
+ * THE RECEIPT OR POSSESSION OF THIS SOURCE CODE AND/OR RELATED INFORMATION DOES NOT
+ * CONVEY OR IMPLY ANY RIGHTS TO REPRODUCE, DISCLOSE OR DISTRIBUTE ITS
+ * CONTENTS, OR TO MANUFACTURE, USE, OR SELL ANYTHING THAT IT MAY DESCRIBE, IN WHOLE OR IN PART.
+ */
+package io.shiftleft.bctrace.jmx;
+
+import java.util.Collection;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Concurrent set of (class name, class loader id) entries that keeps only the most recently added
+ * ones, up to a fixed capacity.
+ * <br><br>
+ * Entries are kept in a hash map for deduplication and in a ring, in insertion order. Adding a new
+ * entry takes the next slot of the ring and removes from the map the entry previously occupying
+ * it. No locks are taken.
+ *
+ * @author Ignacio del Valle Alles idelvall@shiftleft.io
+ */
+final class BoundedClassSet {
+
+  private final ConcurrentHashMap<Entry, Boolean> map = new ConcurrentHashMap<Entry, Boolean>();
+  private final AtomicReferenceArray<Entry> ring;
+  private final AtomicInteger sequence = new AtomicInteger();
+  private final int mask;
+
+  /**
+   * @param capacity rounded up to a power of two
+   */
+  BoundedClassSet(int capacity) {
+    int size = 1;
+    while (size < capacity) {
+      size <<= 1;
+    }
+    this.ring = new AtomicReferenceArray<Entry>(size);
+    this.mask = size - 1;
+  }
+
+  void add(String className, int loaderId) {
+    Entry entry = new Entry(className, loaderId);
+    if (map.putIfAbsent(entry, Boolean.TRUE) != null) {
+      return;
+    }
+    Entry evicted = ring.getAndSet(sequence.getAndIncrement() & mask, entry);
+    if (evicted != null) {
+      map.remove(evicted);
+    }
+  }
+
+  Collection<Entry> entries() {
+    return map.keySet();
+  }
+
+  int size() {
+    return map.size();
+  }
+
+  static final class Entry {
+
+    private final String className;
+    private final int loaderId;
+
+    Entry(String className, int loaderId) {
+      this.className = className;
+      this.loaderId = loaderId;
+    }
+
+    String getClassName() {
+      return className;
+    }
+
+    int getLoaderId() {
+      return loaderId;
+    }
+
+    @Override
+    public int hashCode() {
+      return className.hashCode() * 31 + loaderId;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+      if (this == obj) {
+        return true;
+      }
+      if (!(obj instanceof Entry)) {
+        return false;
+      }
+      Entry other = (Entry) obj;
+      return loaderId == other.loaderId && className.equals(other.className);
+    }
+  }
+}
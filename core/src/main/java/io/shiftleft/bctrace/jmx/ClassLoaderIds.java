@@ -0,0 +1,181 @@
+/*
+ * ShiftLeft, Inc. CONFIDENTIAL
+ * Unpublished Copyright (c) 2017 ShiftLeft, Inc., All Rights Reserved.
+ *
+ * NOTICE: All information contained herein is, and remains the property of ShiftLeft, Inc.
+ * The intellectual and technical concepts contained herein are proprietary to ShiftLeft, Inc.
+ * and may be covered by U.S. and Foreign Patents, patents in process, and are protected by
+ * trade secret or copyright law. Dissemination of this information or reproduction of this
+ * material is strictly forbidden unless prior written permission is obtained
+ * from ShiftLeft, Inc. Access to the source code contained herein is hereby forbidden to
+ * anyone except current ShiftLeft, Inc. employees, managers or contractors who have executed
+ * Confidentiality and Non-disclosure agreements explicitly covering such access.
+ *
+ * The copyright notice above does not evidence any actual or intended publication or disclosure
+ * of this source code, which includes information that is confidential and/or proprietary, and
+ * is a trade secret, of ShiftLeft, Inc.
+ *
+ * ANY REPRODUCTION, MODIFICATION, DISTRIBUTION, PUBLIC PERFORMANCE, OR PUBLIC DISPLAY
+ * OF OR THROUGH USE OF THIS SOURCE CODE WITHOUT THE EXPRESS WRITTEN CONSENT OF ShiftLeft, Inc.
+ * IS STRICTLY PROHIBITED, AND IN VIOLATION OF APPLICABLE LAWS AND INTERNATIONAL TREATIES.
+ * THE RECEIPT OR POSSESSION OF THIS SOURCE CODE AND/OR RELATED INFORMATION DOES NOT
+ * CONVEY OR IMPLY ANY RIGHTS TO REPRODUCE, DISCLOSE OR DISTRIBUTE ITS
+ * CONTENTS, OR TO MANUFACTURE, USE, OR SELL ANYTHING THAT IT MAY DESCRIBE, IN WHOLE OR IN PART.
+ */
+package io.shiftleft.bctrace.jmx;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Assigns a small integer id to each class loader, so metrics can refer to class loaders without
+ * holding them, nor formatting them on the class loading path. The bootstrap class loader has id
+ * 0.
+ * <br><br>
+ * Class loaders are held weakly. Their descriptions are obtained when queried, and if the class
+ * loader has already been garbage collected, a description made of its class name and identity
+ * hash code at the time it was registered is used instead.
+ *
+ * @author Ignacio del Valle Alles idelvall@shiftleft.io
+ */
+final class ClassLoaderIds {
+
+  private static final ClassLoaderIds INSTANCE = new ClassLoaderIds();
+
+  private final ConcurrentHashMap<Integer, LoaderId[]> map = new ConcurrentHashMap<Integer, LoaderId[]>();
+  private final ReferenceQueue<ClassLoader> queue = new ReferenceQueue<ClassLoader>();
+  private volatile LoaderId[] byId = new LoaderId[16];
+  private volatile LoaderId last;
+  private int size = 1;
+
+  ClassLoaderIds() {
+  }
+
+  static ClassLoaderIds getInstance() {
+    return INSTANCE;
+  }
+
+  int getId(ClassLoader cl) {
+    if (cl == null) {
+      return 0;
+    }
+    // Consecutive classes are usually loaded by the same class loader
+    LoaderId last = this.last;
+    if (last != null && last.get() == cl) {
+      return last.id;
+    }
+    LoaderId loaderId = find(map.get(System.identityHashCode(cl)), cl);
+    if (loaderId == null) {
+      loaderId = register(cl);
+    }
+    this.last = loaderId;
+    return loaderId.id;
+  }
+
+  String getDescription(int id) {
+    if (id == 0) {
+      return String.valueOf((Object) null);
+    }
+    LoaderId[] byId = this.byId;
+    if (id >= byId.length || byId[id] == null) {
+      return null;
+    }
+    ClassLoader cl = byId[id].get();
+    if (cl != null) {
+      return String.valueOf(cl);
+    }
+    return byId[id].description;
+  }
+
+  synchronized int size() {
+    return size;
+  }
+
+  private static LoaderId find(LoaderId[] loaderIds, ClassLoader cl) {
+    if (loaderIds != null) {
+      for (int i = 0; i < loaderIds.length; i++) {
+        if (loaderIds[i].get() == cl) {
+          return loaderIds[i];
+        }
+      }
+    }
+    return null;
+  }
+
+  private synchronized LoaderId register(ClassLoader cl) {
+    purge();
+    Integer hash = System.identityHashCode(cl);
+    LoaderId[] current = map.get(hash);
+    LoaderId ret = find(current, cl);
+    if (ret != null) {
+      return ret;
+    }
+    ret = new LoaderId(cl, size, queue);
+    LoaderId[] byId = this.byId;
+    if (size == byId.length) {
+      LoaderId[] grown = new LoaderId[byId.length * 2];
+      System.arraycopy(byId, 0, grown, 0, byId.length);
+      byId = grown;
+    }
+    byId[size++] = ret;
+    this.byId = byId;
+    if (current == null) {
+      map.put(hash, new LoaderId[]{ret});
+    } else {
+      LoaderId[] updated = new LoaderId[current.length + 1];
+      System.arraycopy(current, 0, updated, 0, current.length);
+      updated[current.length] = ret;
+      map.put(hash, updated);
+    }
+    return ret;
+  }
+
+  /**
+   * Removes the entries of garbage collected class loaders from the lookup map. Their ids are not
+   * reused.
+   */
+  private void purge() {
+    Reference<? extends ClassLoader> ref;
+    while ((ref = queue.poll()) != null) {
+      LoaderId loaderId = (LoaderId) ref;
+      LoaderId[] current = map.get(loaderId.hash);
+      if (current == null) {
+        continue;
+      }
+      int count = 0;
+      for (int i = 0; i < current.length; i++) {
+        if (current[i] != loaderId) {
+          count++;
+        }
+      }
+      if (count == 0) {
+        map.remove(loaderId.hash);
+      } else if (count < current.length) {
+        LoaderId[] updated = new LoaderId[count];
+        int j = 0;
+        for (int i = 0; i < current.length; i++) {
+          if (current[i] != loaderId) {
+            updated[j++] = current[i];
+          }
+        }
+        map.put(loaderId.hash, updated);
+      }
+    }
+  }
+
+  private static final class LoaderId extends WeakReference<ClassLoader> {
+
+    private final int id;
+    private final Integer hash;
+    private final String description;
+
+    LoaderId(ClassLoader cl, int id, ReferenceQueue<ClassLoader> queue) {
+      super(cl, queue);
+      this.id = id;
+      this.hash = System.identityHashCode(cl);
+      this.description = cl.getClass().getName() + "@" + Integer.toHexString(hash);
+    }
+  }
+}
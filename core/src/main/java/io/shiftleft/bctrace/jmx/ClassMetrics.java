@@ -25,23 +25,26 @@
 package io.shiftleft.bctrace.jmx;
 
 import io.shiftleft.bctrace.Bctrace;
+import io.shiftleft.bctrace.hierarchy.HierarchyCache;
 import io.shiftleft.bctrace.logging.Level;
 import java.lang.management.ManagementFactory;
-import java.util.ArrayList;
-import java.util.Collections;
-import java.util.LinkedHashSet;
-import java.util.List;
-import java.util.Set;
 import java.util.TreeSet;
-import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import javax.management.MBeanServer;
 import javax.management.ObjectName;
 
 /**
+ * Classes seen by the transformer and classes requested to be retransformed. Only the most recent
+ * ones are kept (up to {@link #MAX_CLASSES} of each), and class loaders are stored as ids (see
+ * {@link ClassLoaderIds}), so the class loading path neither blocks nor grows the heap without
+ * bound.
+ *
  * @author Ignacio del Valle Alles idelvall@shiftleft.io
  */
 public class ClassMetrics implements ClassMetricsMXBean {
 
+  static final int MAX_CLASSES = 65536;
+
   private static final ClassMetrics INSTANCE = new ClassMetrics();
 
   static {
@@ -55,10 +58,13 @@ public class ClassMetrics implements ClassMetricsMXBean {
     }
   }
 
-  private final Set<ClassInfo> requestedToTransform = Collections
-      .synchronizedSet(new LinkedHashSet<ClassInfo>());
-  private final Set<ClassInfo> queriedClasses = Collections
-      .synchronizedSet(new LinkedHashSet<ClassInfo>());
+  private final ClassLoaderIds classLoaderIds = ClassLoaderIds.getInstance();
+  private final BoundedClassSet requestedToTransform = new BoundedClassSet(MAX_CLASSES);
+  private final BoundedClassSet queriedClasses = new BoundedClassSet(MAX_CLASSES);
+  private final AtomicLong transformationCount = new AtomicLong();
+  private final AtomicLong transformedClassCount = new AtomicLong();
+  private final AtomicLong transformationErrorCount = new AtomicLong();
+  private final AtomicLong transformationNanos = new AtomicLong();
 
   private ClassMetrics() {
   }
@@ -68,11 +74,23 @@ public class ClassMetrics implements ClassMetricsMXBean {
   }
 
   public void addRequestedToInstrument(Class clazz) {
-    this.requestedToTransform.add(new ClassInfo(clazz));
+    this.requestedToTransform.add(clazz.getName().replace('.', '/'),
+        classLoaderIds.getId(clazz.getClassLoader()));
   }
 
   public void addInstrumentableClass(String className, ClassLoader cl) {
-    this.queriedClasses.add(new ClassInfo(className, String.valueOf(cl)));
+    this.queriedClasses.add(className.replace('.', '/'), classLoaderIds.getId(cl));
+  }
+
+  public void reportTransformation(boolean transformed, boolean failed, long nanos) {
+    transformationCount.incrementAndGet();
+    if (transformed) {
+      transformedClassCount.incrementAndGet();
+    }
+    if (failed) {
+      transformationErrorCount.incrementAndGet();
+    }
+    transformationNanos.addAndGet(nanos);
   }
 
   @Override
@@ -85,17 +103,58 @@ public class ClassMetrics implements ClassMetricsMXBean {
     return filter(classNameToken, requestedToTransform);
   }
 
-  public ClassInfo[] filter(String classNameToken, Set<ClassInfo> classInfos) {
-    classNameToken = classNameToken.replace('.', '/');
+  @Override
+  public long getHierarchyCacheHits() {
+    return HierarchyCache.getInstance().getHits();
+  }
+
+  @Override
+  public long getHierarchyCacheMisses() {
+    return HierarchyCache.getInstance().getMisses();
+  }
+
+  @Override
+  public long getHierarchyCacheUnresolvedHits() {
+    return HierarchyCache.getInstance().getUnresolvedHits();
+  }
+
+  @Override
+  public int getHierarchyCacheSize() {
+    return HierarchyCache.getInstance().size();
+  }
+
+  @Override
+  public long getTransformationCount() {
+    return transformationCount.get();
+  }
+
+  @Override
+  public long getTransformedClassCount() {
+    return transformedClassCount.get();
+  }
+
+  @Override
+  public long getTransformationErrorCount() {
+    return transformationErrorCount.get();
+  }
+
+  @Override
+  public long getTransformationNanos() {
+    return transformationNanos.get();
+  }
+
+  private ClassInfo[] filter(String classNameToken, BoundedClassSet classes) {
+    if (classNameToken != null) {
+      classNameToken = classNameToken.replace('.', '/');
+    }
     TreeSet<ClassInfo> set = null;
-    synchronized (classInfos) {
-      for (ClassInfo ci : classInfos) {
-        if (classNameToken == null || ci.getClassName().contains(classNameToken)) {
-          if (set == null) {
-            set = new TreeSet<ClassInfo>();
-          }
-          set.add(ci);
+    for (BoundedClassSet.Entry entry : classes.entries()) {
+      if (classNameToken == null || entry.getClassName().contains(classNameToken)) {
+        if (set == null) {
+          set = new TreeSet<ClassInfo>();
         }
+        set.add(new ClassInfo(entry.getClassName(),
+            classLoaderIds.getDescription(entry.getLoaderId())));
       }
     }
     if (set == null) {
@@ -117,10 +176,6 @@ public class ClassMetrics implements ClassMetricsMXBean {
     private final String className;
     private final String classLoader;
 
-    private ClassInfo(Class clazz) {
-      this(clazz.getName(), String.valueOf(clazz.getClassLoader()));
-    }
-
     public ClassInfo(String className, String classLoader) {
       this.className = className.replace('.', '/');
       this.classLoader = classLoader;
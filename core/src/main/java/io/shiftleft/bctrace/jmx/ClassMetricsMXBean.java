@@ -7,4 +7,20 @@ public interface ClassMetricsMXBean {
   public ClassInfo[] getQueriedClasses(String classNameToken);
 
   public ClassInfo[] getClassesRequestedToTransform(String classNameToken);
+
+  public long getHierarchyCacheHits();
+
+  public long getHierarchyCacheMisses();
+
+  public long getHierarchyCacheUnresolvedHits();
+
+  public int getHierarchyCacheSize();
+
+  public long getTransformationCount();
+
+  public long getTransformedClassCount();
+
+  public long getTransformationErrorCount();
+
+  public long getTransformationNanos();
 }
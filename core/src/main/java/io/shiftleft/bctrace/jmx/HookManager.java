@@ -0,0 +1,109 @@
+/*
+ * ShiftLeft, Inc. CONFIDENTIAL
+ * Unpublished Copyright (c) 2017 ShiftLeft, Inc., All Rights Reserved.
+ *
+ * NOTICE: All information contained herein is, and remains the property of ShiftLeft, Inc.
+ * The intellectual and technical concepts contained herein are proprietary to ShiftLeft, Inc.
+ * and may be covered by U.S. and Foreign Patents, patents in process, and are protected by
+ * trade secret or copyright law. Dissemination of this information or reproduction of this
+ * material is strictly forbidden unless prior written permission is obtained
+ * from ShiftLeft, Inc. Access to the source code contained herein is hereby forbidden to
+ * anyone except current ShiftLeft, Inc. employees, managers or contractors who have executed
+ * Confidentiality and Non-disclosure agreements explicitly covering such access.
+ *
+ * The copyright notice above does not evidence any actual or intended publication or disclosure
+ * of this source code, which includes information that is confidential and/or proprietary, and
+ * is a trade secret, of ShiftLeft, Inc.
+ *
+ * ANY REPRODUCTION, MODIFICATION, DISTRIBUTION, PUBLIC PERFORMANCE, OR PUBLIC DISPLAY
+ * OF OR THROUGH USE OF THIS SOURCE CODE WITHOUT THE EXPRESS WRITTEN CONSENT OF ShiftLeft, Inc.
+ * IS STRICTLY PROHIBITED, AND IN VIOLATION OF APPLICABLE LAWS AND INTERNATIONAL TREATIES.
+ * THE RECEIPT OR POSSESSION OF THIS SOURCE CODE AND/OR RELATED INFORMATION DOES NOT
+ * CONVEY OR IMPLY ANY RIGHTS TO REPRODUCE, DISCLOSE OR DISTRIBUTE ITS
+ * CONTENTS, OR TO MANUFACTURE, USE, OR SELL ANYTHING THAT IT MAY DESCRIBE, IN WHOLE OR IN PART.
+ */
+package io.shiftleft.bctrace.jmx;
+
+import io.shiftleft.bctrace.Bctrace;
+import io.shiftleft.bctrace.hook.Hook;
+import io.shiftleft.bctrace.logging.Level;
+import java.lang.management.ManagementFactory;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Allows to remove hooks at runtime, restoring the original bytecode of the classes instrumented
+ * by them.
+ *
+ * @author Ignacio del Valle Alles idelvall@shiftleft.io
+ */
+public class HookManager implements HookManagerMXBean {
+
+  private static final HookManager INSTANCE = new HookManager();
+
+  static {
+    try {
+      MBeanServer mbs = ManagementFactory.getPlatformMBeanServer();
+      ObjectName name = new ObjectName("io.shiftleft.bctrace:type=HookManager");
+      mbs.registerMBean(INSTANCE, name);
+    } catch (Throwable th) {
+      Bctrace.getAgentLogger().log(Level.ERROR,
+          "Error found while registering bctrace JMX hook manager mBean", th);
+    }
+  }
+
+  private volatile Bctrace bctrace;
+
+  private HookManager() {
+  }
+
+  public static HookManager getInstance() {
+    return INSTANCE;
+  }
+
+  public void setBctrace(Bctrace bctrace) {
+    this.bctrace = bctrace;
+  }
+
+  private Bctrace getBctrace() {
+    Bctrace ret = this.bctrace;
+    if (ret == null) {
+      throw new IllegalStateException("Framework not initialized");
+    }
+    return ret;
+  }
+
+  @Override
+  public String viewHooks() {
+    Bctrace bctrace = getBctrace();
+    Hook[] hooks = bctrace.getHooks();
+    StringBuilder sb = new StringBuilder();
+    sb.append("# index").append("\t").append("hook").append("\t").append("filter").append("\t")
+        .append("listener").append("\t").append("removed");
+    sb.append("\n");
+    for (int i = 0; i < hooks.length; i++) {
+      sb.append(i).append("\t").append(hooks[i].getClass().getName()).append("\t")
+          .append(hooks[i].getFilter() == null ? null : hooks[i].getFilter().getClass().getName())
+          .append("\t")
+          .append(hooks[i].getListener() == null ? null
+              : hooks[i].getListener().getClass().getName())
+          .append("\t").append(bctrace.isHookRemoved(i));
+      sb.append("\n");
+    }
+    return sb.toString();
+  }
+
+  @Override
+  public void removeHook(int index) {
+    Bctrace bctrace = getBctrace();
+    if (index < 0 || index >= bctrace.getHooks().length) {
+      throw new IllegalArgumentException("Invalid hook index " + index);
+    }
+    bctrace.removeHooks(index);
+  }
+
+  @Override
+  public void removeAllHooks() {
+    getBctrace().removeAllHooks();
+  }
+}
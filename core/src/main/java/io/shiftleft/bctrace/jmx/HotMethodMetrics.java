@@ -0,0 +1,124 @@
+/*
+ * ShiftLeft, Inc. CONFIDENTIAL
+ * Unpublished Copyright (c) 2017 ShiftLeft, Inc., All Rights Reserved.
+ *
+ * NOTICE: All information contained herein is, and remains the property of ShiftLeft, Inc.
+ * The intellectual and technical concepts contained herein are proprietary to ShiftLeft, Inc.
+ * and may be covered by U.S. and Foreign Patents, patents in process, and are protected by
+ * trade secret or copyright law. Dissemination of this information or reproduction of this
+ * material is strictly forbidden unless prior written permission is obtained
+ * from ShiftLeft, Inc. Access to the source code contained herein is hereby forbidden to
+ * anyone except current ShiftLeft, Inc. employees, managers or contractors who have executed
+ * Confidentiality and Non-disclosure agreements explicitly covering such access.
+ *
+ * The copyright notice above does not evidence any actual or intended publication or disclosure
+ * of this source code, which includes information that is confidential and/or proprietary, and
+ * is a trade secret, of ShiftLeft, Inc.
+ *
+ * ANY REPRODUCTION, MODIFICATION, DISTRIBUTION, PUBLIC PERFORMANCE, OR PUBLIC DISPLAY
+ * OF OR THROUGH USE OF THIS SOURCE CODE WITHOUT THE EXPRESS WRITTEN CONSENT OF ShiftLeft, Inc.
+ * IS STRICTLY PROHIBITED, AND IN VIOLATION OF APPLICABLE LAWS AND INTERNATIONAL TREATIES.
+ * THE RECEIPT OR POSSESSION OF THIS SOURCE CODE AND/OR RELATED INFORMATION DOES NOT
+ * CONVEY OR IMPLY ANY RIGHTS TO REPRODUCE, DISCLOSE OR DISTRIBUTE ITS
+ * CONTENTS, OR TO MANUFACTURE, USE, OR SELL ANYTHING THAT IT MAY DESCRIBE, IN WHOLE OR IN PART.
+ */
+package io.shiftleft.bctrace.jmx;
+
+import io.shiftleft.bctrace.Bctrace;
+import io.shiftleft.bctrace.MethodRegistry;
+import io.shiftleft.bctrace.logging.Level;
+import io.shiftleft.bctrace.runtime.HeavyHitters;
+import io.shiftleft.bctrace.runtime.HotMethods;
+import java.lang.management.ManagementFactory;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Methods with the most invocations and cumulative time (see {@link HotMethods}). Reported values
+ * are estimates, that may exceed the real ones by a small fraction of the total.
+ *
+ * @author Ignacio del Valle Alles idelvall@shiftleft.io
+ */
+public class HotMethodMetrics implements HotMethodMetricsMXBean {
+
+  private static final HotMethodMetrics INSTANCE = new HotMethodMetrics();
+
+  static {
+    try {
+      MBeanServer mbs = ManagementFactory.getPlatformMBeanServer();
+      ObjectName name = new ObjectName("io.shiftleft.bctrace:type=HotMethodMetrics");
+      mbs.registerMBean(INSTANCE, name);
+    } catch (Throwable th) {
+      Bctrace.getAgentLogger().log(Level.ERROR,
+          "Error found while registering bctrace JMX hot method metrics mBean", th);
+    }
+  }
+
+  private HotMethodMetrics() {
+  }
+
+  public static HotMethodMetrics getInstance() {
+    return INSTANCE;
+  }
+
+  @Override
+  public boolean isHotMethodCallTrackingEnabled() {
+    return HotMethods.isCallTrackingEnabled();
+  }
+
+  @Override
+  public void setHotMethodCallTrackingEnabled(boolean enabled) {
+    HotMethods.setCallTrackingEnabled(enabled);
+  }
+
+  @Override
+  public boolean isHotMethodTimeTrackingEnabled() {
+    return HotMethods.isTimeTrackingEnabled();
+  }
+
+  @Override
+  public void setHotMethodTimeTrackingEnabled(boolean enabled) {
+    HotMethods.setTimeTrackingEnabled(enabled);
+  }
+
+  @Override
+  public String viewHotMethodsByCalls() {
+    HeavyHitters calls = HotMethods.getCalls();
+    if (calls == null) {
+      throw new IllegalStateException(
+          "Hot method call tracking is disabled. Run setHotMethodCallTrackingEnabled(true) to enable it");
+    }
+    return view(calls, "calls", 1);
+  }
+
+  @Override
+  public String viewHotMethodsByTime() {
+    HeavyHitters time = HotMethods.getTime();
+    if (time == null) {
+      throw new IllegalStateException(
+          "Hot method time tracking is disabled. Run setHotMethodTimeTrackingEnabled(true) to enable it");
+    }
+    return view(time, "time(ms)", 1000000);
+  }
+
+  private static String view(HeavyHitters tracker, String header, long divisor) {
+    StringBuilder sb = new StringBuilder();
+    sb.append("# id").append("\t").append("class").append("\t").append("method").append("\t")
+        .append(header);
+    sb.append("\n");
+    MethodRegistry mr = MethodRegistry.getInstance();
+    int size = mr.size();
+    int[] methodIds = tracker.getTopKeys();
+    for (int i = 0; i < methodIds.length; i++) {
+      int methodId = methodIds[i];
+      if (methodId >= size) {
+        continue;
+      }
+      sb.append(methodId).append("\t").append(mr.getBinaryClassName(methodId)).append("\t")
+          .append(mr.getMethodName(methodId)).append(mr.getMethodDescriptor(methodId)).append("\t")
+          .append(tracker.estimate(methodId) / divisor);
+      sb.append("\n");
+    }
+    return sb.toString();
+  }
+}
@@ -0,0 +1,16 @@
+package io.shiftleft.bctrace.jmx;
+
+public interface HotMethodMetricsMXBean {
+
+  public boolean isHotMethodCallTrackingEnabled();
+
+  public void setHotMethodCallTrackingEnabled(boolean enabled);
+
+  public boolean isHotMethodTimeTrackingEnabled();
+
+  public void setHotMethodTimeTrackingEnabled(boolean enabled);
+
+  public String viewHotMethodsByCalls();
+
+  public String viewHotMethodsByTime();
+}
@@ -27,29 +27,54 @@ package io.shiftleft.bctrace.jmx;
 import io.shiftleft.bctrace.Bctrace;
 import io.shiftleft.bctrace.MethodInfo;
 import io.shiftleft.bctrace.MethodRegistry;
-import io.shiftleft.bctrace.jmx.ClassMetrics.ClassInfo;
-import io.shiftleft.bctrace.jmx.ClassMetrics.ClassInfoMBean;
 import io.shiftleft.bctrace.logging.Level;
+import io.shiftleft.bctrace.runtime.CallCounters;
 import java.lang.management.ManagementFactory;
 import java.util.ArrayList;
 import java.util.Collections;
-import java.util.HashMap;
-import java.util.HashSet;
-import java.util.LinkedHashSet;
+import java.util.Comparator;
 import java.util.List;
-import java.util.Map;
-import java.util.Map.Entry;
-import java.util.Set;
-import java.util.TreeSet;
-import java.util.concurrent.atomic.AtomicInteger;
+import java.util.PriorityQueue;
+import java.util.concurrent.atomic.AtomicLongArray;
 import javax.management.MBeanServer;
 import javax.management.ObjectName;
+import javax.management.openmbean.CompositeDataSupport;
+import javax.management.openmbean.CompositeType;
+import javax.management.openmbean.OpenDataException;
+import javax.management.openmbean.OpenType;
+import javax.management.openmbean.SimpleType;
+import javax.management.openmbean.TabularData;
+import javax.management.openmbean.TabularDataSupport;
+import javax.management.openmbean.TabularType;
 
 /**
  * @author Ignacio del Valle Alles idelvall@shiftleft.io
  */
 public class MethodMetrics implements MethodMetricsMXBean {
 
+  static final int MAX_PAGE_SIZE = 1000;
+
+  private static final int CHUNK_BITS = 16;
+  private static final int CHUNK_MASK = (1 << CHUNK_BITS) - 1;
+
+  private static final String[] ITEM_NAMES = {"id", "class", "method", "descriptor", "calls"};
+  private static final CompositeType METHOD_TYPE;
+  private static final TabularType METHOD_PAGE_TYPE;
+
+  static {
+    try {
+      METHOD_TYPE = new CompositeType("MethodInfo", "Registered method", ITEM_NAMES,
+          new String[]{"Method id", "Binary class name", "Method name", "Method descriptor",
+              "Call count, or -1 if call counters are disabled"},
+          new OpenType[]{SimpleType.INTEGER, SimpleType.STRING, SimpleType.STRING,
+              SimpleType.STRING, SimpleType.LONG});
+      METHOD_PAGE_TYPE = new TabularType("MethodInfoPage", "Page of registered methods",
+          METHOD_TYPE, new String[]{"id"});
+    } catch (OpenDataException ex) {
+      throw new AssertionError(ex);
+    }
+  }
+
   private static final MethodMetrics INSTANCE = new MethodMetrics();
 
   static {
@@ -63,8 +88,8 @@ public class MethodMetrics implements MethodMetricsMXBean {
     }
   }
 
-  private volatile Map<Integer, AtomicInteger> instrumentedMethodCallCounters;
-  private final Set<Integer> instrumentedMethodIds = new TreeSet<Integer>();
+  // Bit set of instrumented method ids, in chunks that are never replaced
+  private volatile AtomicLongArray[] instrumentedMethodIds = new AtomicLongArray[16];
 
   private MethodMetrics() {
   }
@@ -73,56 +98,74 @@ public class MethodMetrics implements MethodMetricsMXBean {
     return INSTANCE;
   }
 
-  public synchronized void reportInstrumented(Integer methodId) {
-    instrumentedMethodIds.add(methodId);
+  public void reportInstrumented(int methodId) {
+    AtomicLongArray chunk = getChunk(methodId);
+    int bit = methodId & CHUNK_MASK;
+    while (true) {
+      long word = chunk.get(bit >>> 6);
+      long updated = word | (1L << bit);
+      if (word == updated || chunk.compareAndSet(bit >>> 6, word, updated)) {
+        return;
+      }
+    }
   }
 
-  public Integer getCallCount(int methodId) {
-    if (instrumentedMethodCallCounters != null) {
-      synchronized (this) {
-        if (instrumentedMethodCallCounters != null) {
-          AtomicInteger counter = instrumentedMethodCallCounters.get(methodId);
-          if (counter == null) {
-            return null;
-          }
-          return counter.get();
-        }
-      }
+  public boolean isInstrumented(int methodId) {
+    AtomicLongArray[] chunks = this.instrumentedMethodIds;
+    int chunkIndex = methodId >>> CHUNK_BITS;
+    if (chunkIndex >= chunks.length || chunks[chunkIndex] == null) {
+      return false;
     }
-    return null;
+    int bit = methodId & CHUNK_MASK;
+    return (chunks[chunkIndex].get(bit >>> 6) & (1L << bit)) != 0;
   }
 
-  public void incrementCallCounter(int methodId) {
-    if (instrumentedMethodCallCounters != null) {
-      synchronized (this) {
-        if (instrumentedMethodCallCounters != null) {
-          AtomicInteger counter = instrumentedMethodCallCounters.get(methodId);
-          if (counter == null) {
-            counter = new AtomicInteger();
-            instrumentedMethodCallCounters.put(methodId, counter);
-          }
-          counter.incrementAndGet();
-        }
-      }
+  private AtomicLongArray getChunk(int methodId) {
+    AtomicLongArray[] chunks = this.instrumentedMethodIds;
+    int chunkIndex = methodId >>> CHUNK_BITS;
+    if (chunkIndex < chunks.length && chunks[chunkIndex] != null) {
+      return chunks[chunkIndex];
+    }
+    return createChunk(chunkIndex);
+  }
+
+  private synchronized AtomicLongArray createChunk(int chunkIndex) {
+    AtomicLongArray[] chunks = this.instrumentedMethodIds;
+    if (chunkIndex >= chunks.length) {
+      AtomicLongArray[] grown = new AtomicLongArray[Math.max(chunks.length * 2, chunkIndex + 1)];
+      System.arraycopy(chunks, 0, grown, 0, chunks.length);
+      chunks = grown;
+    }
+    if (chunks[chunkIndex] == null) {
+      chunks[chunkIndex] = new AtomicLongArray(1 << (CHUNK_BITS - 6));
+    }
+    this.instrumentedMethodIds = chunks;
+    return chunks[chunkIndex];
+  }
+
+  /**
+   * @return null if call counters are disabled
+   */
+  public Long getCallCount(int methodId) {
+    CallCounters counters = CallCounters.getInstance();
+    if (counters == null) {
+      return null;
     }
+    return counters.get(methodId);
   }
 
   @Override
   public boolean isInstrumentedMethodCountersEnabled() {
-    return instrumentedMethodCallCounters != null;
+    return CallCounters.isEnabled();
   }
 
   @Override
-  public synchronized void setInstrumentedMethodCountersEnabled(boolean enabled) {
-    if (enabled == false) {
-      instrumentedMethodCallCounters = null;
-    } else if (instrumentedMethodCallCounters == null) {
-      instrumentedMethodCallCounters = new HashMap<Integer, AtomicInteger>();
-    }
+  public void setInstrumentedMethodCountersEnabled(boolean enabled) {
+    CallCounters.setEnabled(enabled);
   }
 
   @Override
-  public synchronized String viewMethodRegistry() {
+  public String viewMethodRegistry() {
     StringBuilder sb = new StringBuilder();
     MethodRegistry mr = MethodRegistry.getInstance();
     sb.append("# id").append("\t").append("class").append("\t").append("method");
@@ -137,8 +180,9 @@ public class MethodMetrics implements MethodMetricsMXBean {
   }
 
   @Override
-  public synchronized String viewInstrumentedMethodsCallCounters() {
-    if (instrumentedMethodCallCounters == null) {
+  public String viewInstrumentedMethodsCallCounters() {
+    CallCounters counters = CallCounters.getInstance();
+    if (counters == null) {
       throw new IllegalStateException(
           "Call counters are disabled. Run setInstrumentedMethodCountersEnabled(true) to enable them");
     }
@@ -146,11 +190,16 @@ public class MethodMetrics implements MethodMetricsMXBean {
     sb.append("# id").append("\t").append("class").append("\t").append("method").append("\t")
         .append("calls");
     sb.append("\n");
-    for (Entry<Integer, AtomicInteger> entry : instrumentedMethodCallCounters.entrySet()) {
-      MethodInfo mi = MethodRegistry.getInstance().getMethod(entry.getKey());
-      sb.append(entry.getKey()).append("\t").append(mi.getBinaryClassName()).append("\t")
-          .append(mi.getMethodName()).append(mi.getMethodDescriptor()).append("\t")
-          .append(entry.getValue().get());
+    MethodRegistry mr = MethodRegistry.getInstance();
+    int size = mr.size();
+    for (int methodId = 0; methodId < size; methodId++) {
+      long calls = counters.get(methodId);
+      if (calls == 0) {
+        continue;
+      }
+      sb.append(methodId).append("\t").append(mr.getBinaryClassName(methodId)).append("\t")
+          .append(mr.getMethodName(methodId)).append(mr.getMethodDescriptor(methodId)).append("\t")
+          .append(calls);
       sb.append("\n");
     }
     return sb.toString();
@@ -161,12 +210,114 @@ public class MethodMetrics implements MethodMetricsMXBean {
     StringBuilder sb = new StringBuilder();
     sb.append("# id").append("\t").append("class").append("\t").append("method").append("\t");
     sb.append("\n");
-    for (Integer methodId : instrumentedMethodIds) {
-      MethodInfo mi = MethodRegistry.getInstance().getMethod(methodId);
-      sb.append(methodId).append("\t").append(mi.getBinaryClassName()).append("\t")
-          .append(mi.getMethodName()).append(mi.getMethodDescriptor());
+    MethodRegistry mr = MethodRegistry.getInstance();
+    int size = mr.size();
+    for (int methodId = 0; methodId < size; methodId++) {
+      if (!isInstrumented(methodId)) {
+        continue;
+      }
+      sb.append(methodId).append("\t").append(mr.getBinaryClassName(methodId)).append("\t")
+          .append(mr.getMethodName(methodId)).append(mr.getMethodDescriptor(methodId));
       sb.append("\n");
     }
     return sb.toString();
   }
+
+  @Override
+  public int getRegisteredMethodCount() {
+    return MethodRegistry.getInstance().size();
+  }
+
+  @Override
+  public TabularData getMethodRegistryPage(String classPrefix, String methodPrefix,
+      boolean sortByCallCount, int offset, int limit) {
+    return getPage(false, classPrefix, methodPrefix, sortByCallCount, offset, limit);
+  }
+
+  @Override
+  public TabularData getInstrumentedMethodsPage(String classPrefix, String methodPrefix,
+      boolean sortByCallCount, int offset, int limit) {
+    return getPage(true, classPrefix, methodPrefix, sortByCallCount, offset, limit);
+  }
+
+  /**
+   * Scans the method registry without locking. When sorting by call count, only the best
+   * {@code offset + limit} methods are retained while scanning.
+   */
+  private TabularData getPage(boolean instrumentedOnly, String classPrefix, String methodPrefix,
+      boolean sortByCallCount, int offset, int limit) {
+    if (classPrefix != null) {
+      classPrefix = classPrefix.replace('.', '/');
+    }
+    final CallCounters counters = CallCounters.getInstance();
+    MethodRegistry mr = MethodRegistry.getInstance();
+    int size = mr.size();
+    // Both come from the remote client: no page starts beyond the registry size
+    offset = Math.max(0, Math.min(offset, size));
+    limit = Math.max(0, Math.min(limit, MAX_PAGE_SIZE));
+    List<long[]> selected;
+    if (sortByCallCount && counters != null) {
+      int retained = (int) Math.min((long) offset + limit, size);
+      // Min heap of (calls, id), so the lowest retained entry is evicted first
+      PriorityQueue<long[]> heap = new PriorityQueue<long[]>(retained + 1,
+          new Comparator<long[]>() {
+            @Override
+            public int compare(long[] o1, long[] o2) {
+              if (o1[0] != o2[0]) {
+                return o1[0] < o2[0] ? -1 : 1;
+              }
+              return o1[1] > o2[1] ? -1 : (o1[1] == o2[1] ? 0 : 1);
+            }
+          });
+      for (int methodId = 0; methodId < size && retained > 0; methodId++) {
+        if (matches(mr, methodId, instrumentedOnly, classPrefix, methodPrefix)) {
+          heap.add(new long[]{counters.get(methodId), methodId});
+          if (heap.size() > retained) {
+            heap.poll();
+          }
+        }
+      }
+      selected = new ArrayList<long[]>(heap.size());
+      while (!heap.isEmpty()) {
+        selected.add(heap.poll());
+      }
+      Collections.reverse(selected);
+      selected = selected.subList(Math.min(offset, selected.size()), selected.size());
+    } else {
+      selected = new ArrayList<long[]>(limit);
+      int skipped = 0;
+      for (int methodId = 0; methodId < size && selected.size() < limit; methodId++) {
+        if (matches(mr, methodId, instrumentedOnly, classPrefix, methodPrefix)) {
+          if (skipped < offset) {
+            skipped++;
+          } else {
+            selected.add(new long[]{counters == null ? -1 : counters.get(methodId), methodId});
+          }
+        }
+      }
+    }
+    TabularDataSupport ret = new TabularDataSupport(METHOD_PAGE_TYPE);
+    try {
+      for (int i = 0; i < selected.size(); i++) {
+        int methodId = (int) selected.get(i)[1];
+        ret.put(new CompositeDataSupport(METHOD_TYPE, ITEM_NAMES,
+            new Object[]{methodId, mr.getBinaryClassName(methodId), mr.getMethodName(methodId),
+                mr.getMethodDescriptor(methodId), selected.get(i)[0]}));
+      }
+    } catch (OpenDataException ex) {
+      throw new AssertionError(ex);
+    }
+    return ret;
+  }
+
+  private boolean matches(MethodRegistry mr, int methodId, boolean instrumentedOnly,
+      String classPrefix, String methodPrefix) {
+    if (instrumentedOnly && !isInstrumented(methodId)) {
+      return false;
+    }
+    if (classPrefix != null && !mr.getBinaryClassName(methodId).startsWith(classPrefix)) {
+      return false;
+    }
+    return methodPrefix == null || mr.getMethodName(methodId).startsWith(methodPrefix);
+  }
 }
@@ -1,6 +1,6 @@
 package io.shiftleft.bctrace.jmx;
 
-import io.shiftleft.bctrace.jmx.ClassMetrics.ClassInfo;
+import javax.management.openmbean.TabularData;
 
 public interface MethodMetricsMXBean {
 
@@ -13,4 +13,22 @@ public interface MethodMetricsMXBean {
   public String viewInstrumentedMethodsCallCounters();
 
   public String viewInstrumentedMethods();
+
+  public int getRegisteredMethodCount();
+
+  /**
+   * @param classPrefix binary class name prefix, or null for all the classes
+   * @param methodPrefix method name prefix, or null for all the methods
+   * @param sortByCallCount descending call count order (if enabled) instead of method id order
+   * @param limit page size, up to 1000
+   */
+  public TabularData getMethodRegistryPage(String classPrefix, String methodPrefix,
+      boolean sortByCallCount, int offset, int limit);
+
+  /**
+   * Same as {@link #getMethodRegistryPage(String, String, boolean, int, int)}, for the
+   * instrumented methods only.
+   */
+  public TabularData getInstrumentedMethodsPage(String classPrefix, String methodPrefix,
+      boolean sortByCallCount, int offset, int limit);
 }
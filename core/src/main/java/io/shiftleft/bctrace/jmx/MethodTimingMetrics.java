@@ -0,0 +1,133 @@
+/*
+ * ShiftLeft, Inc. CONFIDENTIAL
+ * Unpublished Copyright (c) 2017 ShiftLeft, Inc., All Rights Reserved.
+ *
+ * NOTICE: All information contained herein is, and remains the property of ShiftLeft, Inc.
+ * The intellectual and technical concepts contained herein are proprietary to ShiftLeft, Inc.
+ * and may be covered by U.S. and Foreign Patents, patents in process, and are protected by
+ * trade secret or copyright law. Dissemination of this information or reproduction of this
+ * material is strictly forbidden unless prior written permission is obtained
+ * from ShiftLeft, Inc. Access to the source code contained herein is hereby forbidden to
+ * anyone except current ShiftLeft, Inc. employees, managers or contractors who have executed
+ * Confidentiality and Non-disclosure agreements explicitly covering such access.
+ *
+ * The copyright notice above does not evidence any actual or intended publication or disclosure
+ * of this source code, which includes information that is confidential and/or proprietary, and
+ * is a trade secret, of ShiftLeft, Inc.
+ *
+ * ANY REPRODUCTION, MODIFICATION, DISTRIBUTION, PUBLIC PERFORMANCE, OR PUBLIC DISPLAY
+ * OF OR THROUGH USE OF THIS SOURCE CODE WITHOUT THE EXPRESS WRITTEN CONSENT OF ShiftLeft, Inc.
+ * IS STRICTLY PROHIBITED, AND IN VIOLATION OF APPLICABLE LAWS AND INTERNATIONAL TREATIES.
+ * THE RECEIPT OR POSSESSION OF THIS SOURCE CODE AND/OR RELATED INFORMATION DOES NOT
+ * CONVEY OR IMPLY ANY RIGHTS TO REPRODUCE, DISCLOSE OR DISTRIBUTE ITS
+ * CONTENTS, OR TO MANUFACTURE, USE, OR SELL ANYTHING THAT IT MAY DESCRIBE, IN WHOLE OR IN PART.
+ */
+package io.shiftleft.bctrace.jmx;
+
+import io.shiftleft.bctrace.Bctrace;
+import io.shiftleft.bctrace.MethodRegistry;
+import io.shiftleft.bctrace.logging.Level;
+import io.shiftleft.bctrace.runtime.LatencyHistogram;
+import io.shiftleft.bctrace.runtime.MethodTimers;
+import java.lang.management.ManagementFactory;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Latency percentiles of the instrumented methods, recorded by the timer probe injected when the
+ * {@link io.shiftleft.bctrace.SystemProperty#METHOD_TIMING} system property is set. Latencies are
+ * reported in nanoseconds.
+ *
+ * @author Ignacio del Valle Alles idelvall@shiftleft.io
+ */
+public class MethodTimingMetrics implements MethodTimingMetricsMXBean {
+
+  private static final MethodTimingMetrics INSTANCE = new MethodTimingMetrics();
+
+  static {
+    try {
+      MBeanServer mbs = ManagementFactory.getPlatformMBeanServer();
+      ObjectName name = new ObjectName("io.shiftleft.bctrace:type=MethodTimingMetrics");
+      mbs.registerMBean(INSTANCE, name);
+    } catch (Throwable th) {
+      Bctrace.getAgentLogger().log(Level.ERROR,
+          "Error found while registering bctrace JMX method timing metrics mBean", th);
+    }
+  }
+
+  private MethodTimingMetrics() {
+  }
+
+  public static MethodTimingMetrics getInstance() {
+    return INSTANCE;
+  }
+
+  /**
+   * @return null if method timing is disabled or the method has not been timed
+   */
+  public LatencyHistogram.Snapshot getSnapshot(int methodId) {
+    MethodTimers timers = MethodTimers.getInstance();
+    if (timers == null) {
+      return null;
+    }
+    LatencyHistogram histogram = timers.getHistogram(methodId);
+    if (histogram == null) {
+      return null;
+    }
+    return histogram.snapshot();
+  }
+
+  @Override
+  public boolean isInstrumentedMethodTimingEnabled() {
+    return MethodTimers.isEnabled();
+  }
+
+  @Override
+  public void setInstrumentedMethodTimingEnabled(boolean enabled) {
+    MethodTimers.setEnabled(enabled);
+  }
+
+  /**
+   * @return -1 if the method has not been timed
+   */
+  @Override
+  public long getMethodLatencyPercentile(int methodId, double percentile) {
+    LatencyHistogram.Snapshot snapshot = getSnapshot(methodId);
+    if (snapshot == null) {
+      return -1;
+    }
+    return snapshot.getValueAtPercentile(percentile);
+  }
+
+  @Override
+  public String viewInstrumentedMethodsLatencies() {
+    MethodTimers timers = MethodTimers.getInstance();
+    if (timers == null) {
+      throw new IllegalStateException(
+          "Method timing is disabled. Run setInstrumentedMethodTimingEnabled(true) to enable it");
+    }
+    StringBuilder sb = new StringBuilder();
+    sb.append("# id").append("\t").append("class").append("\t").append("method").append("\t")
+        .append("calls").append("\t").append("mean").append("\t").append("p50").append("\t")
+        .append("p90").append("\t").append("p99").append("\t").append("max");
+    sb.append("\n");
+    MethodRegistry mr = MethodRegistry.getInstance();
+    int size = mr.size();
+    for (int methodId = 0; methodId < size; methodId++) {
+      LatencyHistogram histogram = timers.getHistogram(methodId);
+      if (histogram == null) {
+        continue;
+      }
+      LatencyHistogram.Snapshot snapshot = histogram.snapshot();
+      sb.append(methodId).append("\t").append(mr.getBinaryClassName(methodId)).append("\t")
+          .append(mr.getMethodName(methodId)).append(mr.getMethodDescriptor(methodId)).append("\t")
+          .append(snapshot.getCount()).append("\t").append((long) snapshot.getMean()).append("\t")
+          .append(snapshot.getValueAtPercentile(50)).append("\t")
+          .append(snapshot.getValueAtPercentile(90)).append("\t")
+          .append(snapshot.getValueAtPercentile(99)).append("\t")
+          .append(snapshot.getMax());
+      sb.append("\n");
+    }
+    return sb.toString();
+  }
+}
@@ -0,0 +1,12 @@
+package io.shiftleft.bctrace.jmx;
+
+public interface MethodTimingMetricsMXBean {
+
+  public boolean isInstrumentedMethodTimingEnabled();
+
+  public void setInstrumentedMethodTimingEnabled(boolean enabled);
+
+  public long getMethodLatencyPercentile(int methodId, double percentile);
+
+  public String viewInstrumentedMethodsLatencies();
+}
@@ -0,0 +1,351 @@
+/*
+ * ShiftLeft, Inc. CONFIDENTIAL
+ * Unpublished Copyright (c) 2017 ShiftLeft, Inc., All Rights Reserved.
+ *
+ * NOTICE: All information contained herein is, and remains the property of ShiftLeft, Inc.
+ * The intellectual and technical concepts contained herein are proprietary to ShiftLeft, Inc.
+ * and may be covered by U.S. and Foreign Patents, patents in process, and are protected by
+ * trade secret or copyright law. Dissemination of this information or reproduction of this
+ * material is strictly forbidden unless prior written permission is obtained
+ * from ShiftLeft, Inc. Access to the source code contained herein is hereby forbidden to
+ * anyone except current ShiftLeft, Inc. employees, managers or contractors who have executed
+ * Confidentiality and Non-disclosure agreements explicitly covering such access.
+ *
+ * The copyright notice above does not evidence any actual or intended publication or disclosure
+ * of this source code, which includes information that is confidential and/or proprietary, and
+ * is a trade secret, of ShiftLeft, Inc.
+ *
+ * ANY REPRODUCTION, MODIFICATION, DISTRIBUTION, PUBLIC PERFORMANCE, OR PUBLIC DISPLAY
+ * OF OR THROUGH USE OF THIS SOURCE CODE WITHOUT THE EXPRESS WRITTEN CONSENT OF ShiftLeft, Inc.
+ * IS STRICTLY PROHIBITED, AND IN VIOLATION OF APPLICABLE LAWS AND INTERNATIONAL TREATIES.
+ * THE RECEIPT OR POSSESSION OF THIS SOURCE CODE AND/OR RELATED INFORMATION DOES NOT
+ * CONVEY OR IMPLY ANY RIGHTS TO REPRODUCE, DISCLOSE OR DISTRIBUTE ITS
+ * CONTENTS, OR TO MANUFACTURE, USE, OR SELL ANYTHING THAT IT MAY DESCRIBE, IN WHOLE OR IN PART.
+ */
+package io.shiftleft.bctrace.jmx;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import io.shiftleft.bctrace.Bctrace;
+import io.shiftleft.bctrace.MethodRegistry;
+import io.shiftleft.bctrace.SystemProperty;
+import io.shiftleft.bctrace.hierarchy.HierarchyCache;
+import io.shiftleft.bctrace.logging.Level;
+import io.shiftleft.bctrace.runtime.CallCounters;
+import io.shiftleft.bctrace.runtime.CallbackEnabler;
+import io.shiftleft.bctrace.runtime.HeavyHitters;
+import io.shiftleft.bctrace.runtime.HotMethods;
+import io.shiftleft.bctrace.runtime.LatencyHistogram;
+import io.shiftleft.bctrace.runtime.MethodTimers;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.concurrent.Executor;
+
+/**
+ * Optional HTTP endpoint, bound to the loopback interface, exposing the framework metrics in the
+ * Prometheus text format at {@code /metrics}. Started when the {@link
+ * SystemProperty#METRICS_PORT} system property is set.
+ * <br><br>
+ * The response is streamed (chunked) while reading the counters and histograms, so no full
+ * representation of the metrics is built in memory. By default per method series are only
+ * written for the hot methods (see {@link HotMethods}), so the cost of a scrape does not grow with
+ * the number of instrumented methods. All the methods with samples can be requested with {@code
+ * /metrics?methods=all}.
+ *
+ * @author Ignacio del Valle Alles idelvall@shiftleft.io
+ */
+public final class MetricsHttpServer implements HttpHandler {
+
+  private static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+  private static final double[] QUANTILES = {0.5, 0.9, 0.99};
+
+  private static HttpServer server;
+
+  private MetricsHttpServer() {
+  }
+
+  /**
+   * Starts the endpoint if the port system property is set.
+   */
+  public static synchronized void startIfConfigured() {
+    String value = System.getProperty(SystemProperty.METRICS_PORT);
+    if (value == null || server != null) {
+      return;
+    }
+    try {
+      start(Integer.parseInt(value.trim()));
+    } catch (NumberFormatException ex) {
+      Bctrace.getAgentLogger().log(Level.WARNING,
+          "Invalid value for system property " + SystemProperty.METRICS_PORT + ": " + value);
+    }
+  }
+
+  /**
+   * @param port 0 for an ephemeral port
+   * @return bound port, or -1 if the server could not be started
+   */
+  public static synchronized int start(final int port) {
+    if (server != null) {
+      return server.getAddress().getPort();
+    }
+    // The dispatcher thread created by the server inherits the daemon status of the thread that
+    // starts it, so the endpoint does not prevent the JVM from exiting
+    final HttpServer[] started = new HttpServer[1];
+    Thread starter = new Thread("bctrace-metrics-starter") {
+      @Override
+      public void run() {
+        CallbackEnabler.disableThreadNotification();
+        try {
+          HttpServer httpServer = HttpServer
+              .create(new InetSocketAddress(InetAddress.getByName("127.0.0.1"), port), 0);
+          httpServer.createContext("/metrics", new MetricsHttpServer());
+          httpServer.setExecutor(new Executor() {
+            @Override
+            public void execute(Runnable command) {
+              // Single threaded: scrapes are run by the dispatcher
+              command.run();
+            }
+          });
+          httpServer.start();
+          started[0] = httpServer;
+        } catch (Throwable th) {
+          Bctrace.getAgentLogger().log(Level.ERROR,
+              "Error found while starting bctrace metrics endpoint on port " + port, th);
+        }
+      }
+    };
+    starter.setDaemon(true);
+    starter.start();
+    try {
+      starter.join();
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+    }
+    server = started[0];
+    if (server == null) {
+      return -1;
+    }
+    Bctrace.getAgentLogger().log(Level.INFO,
+        "Started bctrace metrics endpoint at http://127.0.0.1:" + server.getAddress().getPort()
+            + "/metrics");
+    return server.getAddress().getPort();
+  }
+
+  public static synchronized void stop() {
+    if (server != null) {
+      server.stop(0);
+      server = null;
+    }
+  }
+
+  @Override
+  public void handle(HttpExchange exchange) throws IOException {
+    CallbackEnabler.disableThreadNotification();
+    try {
+      String query = exchange.getRequestURI().getQuery();
+      boolean allMethods = query != null && query.contains("methods=all");
+      exchange.getResponseHeaders().set("Content-Type", CONTENT_TYPE);
+      exchange.sendResponseHeaders(200, 0);
+      Writer writer = new BufferedWriter(
+          new OutputStreamWriter(exchange.getResponseBody(), "UTF-8"), 8192);
+      write(writer, allMethods);
+      writer.flush();
+    } finally {
+      exchange.close();
+    }
+  }
+
+  static void write(Writer w, boolean allMethods) throws IOException {
+    ClassMetrics classMetrics = ClassMetrics.getInstance();
+    writeHeader(w, "bctrace_transformations_total", "counter",
+        "Classes passed to the transformer");
+    writeSample(w, "bctrace_transformations_total", classMetrics.getTransformationCount());
+    writeHeader(w, "bctrace_transformed_classes_total", "counter", "Classes instrumented");
+    writeSample(w, "bctrace_transformed_classes_total", classMetrics.getTransformedClassCount());
+    writeHeader(w, "bctrace_transformation_errors_total", "counter", "Failed transformations");
+    writeSample(w, "bctrace_transformation_errors_total",
+        classMetrics.getTransformationErrorCount());
+    writeHeader(w, "bctrace_transformation_seconds_total", "counter",
+        "Time spent in the transformer");
+    writeSample(w, "bctrace_transformation_seconds_total",
+        classMetrics.getTransformationNanos() / 1e9);
+
+    HierarchyCache hierarchyCache = HierarchyCache.getInstance();
+    writeHeader(w, "bctrace_hierarchy_cache_hits_total", "counter", "Hierarchy cache hits");
+    writeSample(w, "bctrace_hierarchy_cache_hits_total", hierarchyCache.getHits());
+    writeHeader(w, "bctrace_hierarchy_cache_misses_total", "counter", "Hierarchy cache misses");
+    writeSample(w, "bctrace_hierarchy_cache_misses_total", hierarchyCache.getMisses());
+    writeHeader(w, "bctrace_hierarchy_cache_size", "gauge", "Types in the hierarchy cache");
+    writeSample(w, "bctrace_hierarchy_cache_size", hierarchyCache.size());
+
+    MethodRegistry mr = MethodRegistry.getInstance();
+    int size = mr.size();
+    writeHeader(w, "bctrace_registered_methods", "gauge", "Methods in the method registry");
+    writeSample(w, "bctrace_registered_methods", size);
+
+    HeavyHitters hotCalls = HotMethods.getCalls();
+    HeavyHitters hotTime = HotMethods.getTime();
+    int[] methodIds = null;
+    if (!allMethods) {
+      methodIds = getHotMethodIds(hotCalls, hotTime);
+    }
+
+    CallCounters counters = CallCounters.getInstance();
+    if (counters != null) {
+      writeHeader(w, "bctrace_method_calls_total", "counter",
+          "Invocations of instrumented methods");
+      int count = methodIds == null ? size : methodIds.length;
+      for (int i = 0; i < count; i++) {
+        int methodId = methodIds == null ? i : methodIds[i];
+        long calls = counters.get(methodId);
+        if (calls != 0) {
+          writeMethodSample(w, "bctrace_method_calls_total", mr, methodId, null, calls);
+        }
+      }
+    }
+
+    MethodTimers timers = MethodTimers.getInstance();
+    if (timers != null) {
+      writeHeader(w, "bctrace_method_latency_seconds", "summary",
+          "Latency of instrumented methods");
+      int count = methodIds == null ? size : methodIds.length;
+      for (int i = 0; i < count; i++) {
+        int methodId = methodIds == null ? i : methodIds[i];
+        LatencyHistogram histogram = timers.getHistogram(methodId);
+        if (histogram == null) {
+          continue;
+        }
+        LatencyHistogram.Snapshot snapshot = histogram.snapshot();
+        for (int q = 0; q < QUANTILES.length; q++) {
+          writeMethodSample(w, "bctrace_method_latency_seconds", mr, methodId,
+              String.valueOf(QUANTILES[q]),
+              snapshot.getValueAtPercentile(QUANTILES[q] * 100) / 1e9);
+        }
+        writeMethodSample(w, "bctrace_method_latency_seconds_count", mr, methodId, null,
+            snapshot.getCount());
+        writeMethodSample(w, "bctrace_method_latency_seconds_sum", mr, methodId, null,
+            snapshot.getMean() * snapshot.getCount() / 1e9);
+      }
+    }
+
+    if (hotCalls != null) {
+      writeHeader(w, "bctrace_hot_method_calls", "gauge",
+          "Estimated invocations of the hottest methods");
+      int[] keys = hotCalls.getTopKeys();
+      for (int i = 0; i < keys.length; i++) {
+        if (keys[i] < size) {
+          writeMethodSample(w, "bctrace_hot_method_calls", mr, keys[i], null,
+              hotCalls.estimate(keys[i]));
+        }
+      }
+    }
+    if (hotTime != null) {
+      writeHeader(w, "bctrace_hot_method_seconds", "gauge",
+          "Estimated cumulative time of the hottest methods");
+      int[] keys = hotTime.getTopKeys();
+      for (int i = 0; i < keys.length; i++) {
+        if (keys[i] < size) {
+          writeMethodSample(w, "bctrace_hot_method_seconds", mr, keys[i], null,
+              hotTime.estimate(keys[i]) / 1e9);
+        }
+      }
+    }
+  }
+
+  private static int[] getHotMethodIds(HeavyHitters hotCalls, HeavyHitters hotTime) {
+    int[] calls = hotCalls == null ? new int[0] : hotCalls.getTopKeys();
+    int[] time = hotTime == null ? new int[0] : hotTime.getTopKeys();
+    int[] ret = new int[calls.length + time.length];
+    System.arraycopy(calls, 0, ret, 0, calls.length);
+    int size = calls.length;
+    for (int i = 0; i < time.length; i++) {
+      boolean found = false;
+      for (int j = 0; j < calls.length && !found; j++) {
+        found = calls[j] == time[i];
+      }
+      if (!found) {
+        ret[size++] = time[i];
+      }
+    }
+    int[] trimmed = new int[size];
+    System.arraycopy(ret, 0, trimmed, 0, size);
+    return trimmed;
+  }
+
+  private static void writeHeader(Writer w, String name, String type, String help)
+      throws IOException {
+    w.write("# HELP ");
+    w.write(name);
+    w.write(' ');
+    w.write(help);
+    w.write("\n# TYPE ");
+    w.write(name);
+    w.write(' ');
+    w.write(type);
+    w.write('\n');
+  }
+
+  private static void writeSample(Writer w, String name, long value) throws IOException {
+    w.write(name);
+    w.write(' ');
+    w.write(Long.toString(value));
+    w.write('\n');
+  }
+
+  private static void writeSample(Writer w, String name, double value) throws IOException {
+    w.write(name);
+    w.write(' ');
+    w.write(Double.toString(value));
+    w.write('\n');
+  }
+
+  private static void writeMethodSample(Writer w, String name, MethodRegistry mr, int methodId,
+      String quantile, long value) throws IOException {
+    writeMethodLabels(w, name, mr, methodId, quantile);
+    w.write(Long.toString(value));
+    w.write('\n');
+  }
+
+  private static void writeMethodSample(Writer w, String name, MethodRegistry mr, int methodId,
+      String quantile, double value) throws IOException {
+    writeMethodLabels(w, name, mr, methodId, quantile);
+    w.write(Double.toString(value));
+    w.write('\n');
+  }
+
+  private static void writeMethodLabels(Writer w, String name, MethodRegistry mr, int methodId,
+      String quantile) throws IOException {
+    w.write(name);
+    w.write("{id=\"");
+    w.write(Integer.toString(methodId));
+    w.write("\",class=\"");
+    writeEscaped(w, mr.getBinaryClassName(methodId));
+    w.write("\",method=\"");
+    writeEscaped(w, mr.getMethodName(methodId));
+    writeEscaped(w, mr.getMethodDescriptor(methodId));
+    if (quantile != null) {
+      w.write("\",quantile=\"");
+      w.write(quantile);
+    }
+    w.write("\"} ");
+  }
+
+  private static void writeEscaped(Writer w, String value) throws IOException {
+    for (int i = 0; i < value.length(); i++) {
+      char c = value.charAt(i);
+      if (c == '\\' || c == '"') {
+        w.write('\\');
+        w.write(c);
+      } else if (c == '\n') {
+        w.write("\\n");
+      } else {
+        w.write(c);
+      }
+    }
+  }
+}
@@ -0,0 +1,418 @@
+/*
+ * ShiftLeft, Inc. CONFIDENTIAL
+ * Unpublished Copyright (c) 2017 ShiftLeft, Inc., All Rights Reserved.
+ *
+ * NOTICE: All information contained herein is, and remains the property of ShiftLeft, Inc.
+ * The intellectual and technical concepts contained herein are proprietary to ShiftLeft, Inc.
+ * and may be covered by U.S. and Foreign Patents, patents in process, and are protected by
+ * trade secret or copyright law. Dissemination of this information or reproduction of this
+ * material is strictly forbidden unless prior written permission is obtained
+ * from ShiftLeft, Inc. Access to the source code contained herein is hereby forbidden to
+ * anyone except current ShiftLeft, Inc. employees, managers or contractors who have executed
+ * Confidentiality and Non-disclosure agreements explicitly covering such access.
+ *
+ * The copyright notice above does not evidence any actual or intended publication or disclosure
+ * of this source code, which includes information that is confidential and/or proprietary, and
+ * is a trade secret, of ShiftLeft, Inc.
+ *
+ * ANY REPRODUCTION, MODIFICATION, DISTRIBUTION, PUBLIC PERFORMANCE, OR PUBLIC DISPLAY
+ * OF OR THROUGH USE OF THIS SOURCE CODE WITHOUT THE EXPRESS WRITTEN CONSENT OF ShiftLeft, Inc.
+ * IS STRICTLY PROHIBITED, AND IN VIOLATION OF APPLICABLE LAWS AND INTERNATIONAL TREATIES.
+ * THE RECEIPT OR POSSESSION OF THIS SOURCE CODE AND/OR RELATED INFORMATION DOES NOT
+ * CONVEY OR IMPLY ANY RIGHTS TO REPRODUCE, DISCLOSE OR DISTRIBUTE ITS
+ * CONTENTS, OR TO MANUFACTURE, USE, OR SELL ANYTHING THAT IT MAY DESCRIBE, IN WHOLE OR IN PART.
+ */
+package io.shiftleft.bctrace.jmx;
+
+import io.shiftleft.bctrace.Bctrace;
+import io.shiftleft.bctrace.MethodRegistry;
+import io.shiftleft.bctrace.SystemProperty;
+import io.shiftleft.bctrace.logging.Level;
+import io.shiftleft.bctrace.runtime.CallCounters;
+import io.shiftleft.bctrace.runtime.CallbackEnabler;
+import io.shiftleft.bctrace.runtime.LatencyHistogram;
+import io.shiftleft.bctrace.runtime.MethodTimers;
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.PriorityQueue;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.openmbean.CompositeDataSupport;
+import javax.management.openmbean.CompositeType;
+import javax.management.openmbean.OpenDataException;
+import javax.management.openmbean.OpenType;
+import javax.management.openmbean.SimpleType;
+import javax.management.openmbean.TabularData;
+import javax.management.openmbean.TabularDataSupport;
+import javax.management.openmbean.TabularType;
+
+/**
+ * Periodically captures the call counters and latency histograms of all the methods, keeping the
+ * per interval deltas in a fixed size ring, so rates over the last minutes can be queried without
+ * external tooling.
+ * <br><br>
+ * Each interval stores only the methods that changed during it, as parallel primitive arrays of
+ * method ids and deltas. The arrays of the ring slots are reused when the slot is overwritten, and
+ * only grow when more methods are active than ever before, so capturing allocates nothing in
+ * steady state.
+ *
+ * @author Ignacio del Valle Alles idelvall@shiftleft.io
+ */
+public class MetricsSnapshots implements MetricsSnapshotsMXBean {
+
+  static final int HISTORY_SIZE = 60;
+  static final long DEFAULT_INTERVAL_MILLIS = 5000;
+
+  private static final String[] ITEM_NAMES = {"id", "class", "method", "descriptor", "calls",
+      "callsPerSecond", "meanLatencyNanos"};
+  private static final CompositeType RATE_TYPE;
+  private static final TabularType RATES_TYPE;
+
+  static {
+    try {
+      RATE_TYPE = new CompositeType("MethodRate", "Method calls over an interval", ITEM_NAMES,
+          new String[]{"Method id", "Binary class name", "Method name", "Method descriptor",
+              "Calls", "Calls per second", "Mean latency in nanoseconds, or -1 if not timed"},
+          new OpenType[]{SimpleType.INTEGER, SimpleType.STRING, SimpleType.STRING,
+              SimpleType.STRING, SimpleType.LONG, SimpleType.DOUBLE, SimpleType.DOUBLE});
+      RATES_TYPE = new TabularType("MethodRates", "Methods calls over an interval", RATE_TYPE,
+          new String[]{"id"});
+    } catch (OpenDataException ex) {
+      throw new AssertionError(ex);
+    }
+  }
+
+  private static final MetricsSnapshots INSTANCE = new MetricsSnapshots(DEFAULT_INTERVAL_MILLIS);
+
+  static {
+    try {
+      MBeanServer mbs = ManagementFactory.getPlatformMBeanServer();
+      ObjectName name = new ObjectName("io.shiftleft.bctrace:type=MetricsSnapshots");
+      mbs.registerMBean(INSTANCE, name);
+    } catch (Throwable th) {
+      Bctrace.getAgentLogger().log(Level.ERROR,
+          "Error found while registering bctrace JMX metrics snapshots mBean", th);
+    }
+  }
+
+  private volatile long intervalMillis;
+  private Thread worker;
+
+  // Cumulative values at the last capture, indexed by method id
+  private long[] lastCalls = new long[0];
+  private long[] lastTimedCounts = new long[0];
+  private long[] lastTimedTotals = new long[0];
+  private long lastCaptureNanos;
+
+  private final Interval[] ring = new Interval[HISTORY_SIZE];
+  private int next;
+  private int count;
+
+  // Aggregation buffers for queries
+  private long[] aggregatedCalls = new long[0];
+  private long[] aggregatedTimedCounts = new long[0];
+  private long[] aggregatedTimedTotals = new long[0];
+  private int[] touched = new int[0];
+
+  MetricsSnapshots(long intervalMillis) {
+    this.intervalMillis = intervalMillis;
+    for (int i = 0; i < ring.length; i++) {
+      ring[i] = new Interval();
+    }
+  }
+
+  public static MetricsSnapshots getInstance() {
+    return INSTANCE;
+  }
+
+  /**
+   * Starts capturing if the snapshot interval system property is set.
+   */
+  public void startIfConfigured() {
+    String value = System.getProperty(SystemProperty.METRICS_SNAPSHOT_INTERVAL_MILLIS);
+    if (value == null) {
+      return;
+    }
+    try {
+      intervalMillis = Math.max(100, Long.parseLong(value.trim()));
+      setSnapshotsEnabled(true);
+    } catch (NumberFormatException ex) {
+      Bctrace.getAgentLogger().log(Level.WARNING,
+          "Invalid value for system property " + SystemProperty.METRICS_SNAPSHOT_INTERVAL_MILLIS
+              + ": " + value);
+    }
+  }
+
+  @Override
+  public synchronized boolean isSnapshotsEnabled() {
+    return worker != null;
+  }
+
+  @Override
+  public synchronized void setSnapshotsEnabled(boolean enabled) {
+    if (!enabled) {
+      if (worker != null) {
+        worker.interrupt();
+        worker = null;
+      }
+      return;
+    }
+    if (worker != null) {
+      return;
+    }
+    reset();
+    worker = new Thread("bctrace-metrics-snapshots") {
+      @Override
+      public void run() {
+        CallbackEnabler.disableThreadNotification();
+        try {
+          while (true) {
+            Thread.sleep(intervalMillis);
+            synchronized (MetricsSnapshots.this) {
+              if (worker != this) {
+                return;
+              }
+              capture();
+            }
+          }
+        } catch (InterruptedException ex) {
+          // Disabled
+        }
+      }
+    };
+    worker.setDaemon(true);
+    worker.start();
+  }
+
+  @Override
+  public long getIntervalMillis() {
+    return intervalMillis;
+  }
+
+  @Override
+  public synchronized int getIntervalCount() {
+    return count;
+  }
+
+  /**
+   * Discards the history, and takes the current values as the baseline of the next interval.
+   */
+  synchronized void reset() {
+    next = 0;
+    count = 0;
+    capture();
+    next = 0;
+    count = 0;
+  }
+
+  synchronized void capture() {
+    long now = System.nanoTime();
+    CallCounters counters = CallCounters.getInstance();
+    MethodTimers timers = MethodTimers.getInstance();
+    int size = MethodRegistry.getInstance().size();
+    if (lastCalls.length < size) {
+      int capacity = Math.max(size, lastCalls.length + (lastCalls.length >> 1));
+      lastCalls = grow(lastCalls, capacity);
+      lastTimedCounts = grow(lastTimedCounts, capacity);
+      lastTimedTotals = grow(lastTimedTotals, capacity);
+    }
+    Interval interval = ring[next];
+    interval.startNanos = lastCaptureNanos;
+    interval.endNanos = now;
+    interval.size = 0;
+    for (int methodId = 0; methodId < size; methodId++) {
+      long calls = counters == null ? 0 : counters.get(methodId);
+      long timedCount = 0;
+      long timedTotal = 0;
+      if (timers != null) {
+        LatencyHistogram histogram = timers.getHistogram(methodId);
+        if (histogram != null) {
+          timedCount = histogram.getCount();
+          timedTotal = histogram.getEstimatedTotal();
+        }
+      }
+      long callsDelta = getDelta(calls, lastCalls[methodId]);
+      long timedCountDelta = getDelta(timedCount, lastTimedCounts[methodId]);
+      long timedTotalDelta = getDelta(timedTotal, lastTimedTotals[methodId]);
+      lastCalls[methodId] = calls;
+      lastTimedCounts[methodId] = timedCount;
+      lastTimedTotals[methodId] = timedTotal;
+      if (callsDelta != 0 || timedCountDelta != 0) {
+        interval.add(methodId, callsDelta, timedCountDelta, timedTotalDelta);
+      }
+    }
+    lastCaptureNanos = now;
+    next = (next + 1) % ring.length;
+    if (count < ring.length) {
+      count++;
+    }
+  }
+
+  /**
+   * Counters restart from zero when they are disabled and enabled again.
+   */
+  private static long getDelta(long current, long last) {
+    return current >= last ? current - last : current;
+  }
+
+  @Override
+  public synchronized double getCallRate(int methodId, int seconds) {
+    int intervals = getIntervalsWithin(seconds);
+    if (intervals == 0) {
+      return 0;
+    }
+    long calls = 0;
+    for (int i = 0; i < intervals; i++) {
+      Interval interval = getInterval(i);
+      for (int j = 0; j < interval.size; j++) {
+        if (interval.ids[j] == methodId) {
+          calls += interval.calls[j];
+          break;
+        }
+      }
+    }
+    return calls / getSeconds(intervals);
+  }
+
+  @Override
+  public synchronized TabularData getTopCallRates(int seconds, int limit) {
+    TabularDataSupport ret = new TabularDataSupport(RATES_TYPE);
+    int intervals = getIntervalsWithin(seconds);
+    limit = Math.max(0, Math.min(limit, MethodMetrics.MAX_PAGE_SIZE));
+    if (intervals == 0 || limit == 0) {
+      return ret;
+    }
+    int touchedCount = aggregate(intervals);
+    PriorityQueue<Integer> heap = new PriorityQueue<Integer>(limit + 1,
+        new Comparator<Integer>() {
+          @Override
+          public int compare(Integer o1, Integer o2) {
+            long c1 = aggregatedCalls[o1];
+            long c2 = aggregatedCalls[o2];
+            return c1 < c2 ? -1 : (c1 == c2 ? 0 : 1);
+          }
+        });
+    for (int i = 0; i < touchedCount; i++) {
+      heap.add(touched[i]);
+      if (heap.size() > limit) {
+        heap.poll();
+      }
+    }
+    Integer[] top = heap.toArray(new Integer[heap.size()]);
+    Arrays.sort(top, Collections.reverseOrder(heap.comparator()));
+    double elapsedSeconds = getSeconds(intervals);
+    MethodRegistry mr = MethodRegistry.getInstance();
+    try {
+      for (int i = 0; i < top.length; i++) {
+        int methodId = top[i];
+        long timedCount = aggregatedTimedCounts[methodId];
+        ret.put(new CompositeDataSupport(RATE_TYPE, ITEM_NAMES,
+            new Object[]{methodId, mr.getBinaryClassName(methodId), mr.getMethodName(methodId),
+                mr.getMethodDescriptor(methodId), aggregatedCalls[methodId],
+                aggregatedCalls[methodId] / elapsedSeconds,
+                timedCount == 0 ? -1d : (double) aggregatedTimedTotals[methodId] / timedCount}));
+      }
+    } catch (OpenDataException ex) {
+      throw new AssertionError(ex);
+    } finally {
+      for (int i = 0; i < touchedCount; i++) {
+        int methodId = touched[i];
+        aggregatedCalls[methodId] = 0;
+        aggregatedTimedCounts[methodId] = 0;
+        aggregatedTimedTotals[methodId] = 0;
+      }
+    }
+    return ret;
+  }
+
+  /**
+   * Sums the deltas of the most recent intervals into the aggregation buffers.
+   *
+   * @return number of methods in {@link #touched}
+   */
+  private int aggregate(int intervals) {
+    if (aggregatedCalls.length < lastCalls.length) {
+      aggregatedCalls = new long[lastCalls.length];
+      aggregatedTimedCounts = new long[lastCalls.length];
+      aggregatedTimedTotals = new long[lastCalls.length];
+      touched = new int[lastCalls.length];
+    }
+    int touchedCount = 0;
+    for (int i = 0; i < intervals; i++) {
+      Interval interval = getInterval(i);
+      for (int j = 0; j < interval.size; j++) {
+        int methodId = interval.ids[j];
+        if (aggregatedCalls[methodId] == 0 && aggregatedTimedCounts[methodId] == 0) {
+          touched[touchedCount++] = methodId;
+        }
+        aggregatedCalls[methodId] += interval.calls[j];
+        aggregatedTimedCounts[methodId] += interval.timedCounts[j];
+        aggregatedTimedTotals[methodId] += interval.timedTotals[j];
+      }
+    }
+    return touchedCount;
+  }
+
+  /**
+   * @param index 0 for the most recent interval
+   */
+  private Interval getInterval(int index) {
+    return ring[(next - 1 - index + ring.length) % ring.length];
+  }
+
+  /**
+   * @return number of most recent intervals covering the given seconds (at least one, if any)
+   */
+  private int getIntervalsWithin(int seconds) {
+    if (count == 0) {
+      return 0;
+    }
+    long end = getInterval(0).endNanos;
+    long window = seconds * 1000000000L;
+    int ret = 1;
+    while (ret < count && end - getInterval(ret).startNanos <= window) {
+      ret++;
+    }
+    return ret;
+  }
+
+  private double getSeconds(int intervals) {
+    return Math.max(1, getInterval(0).endNanos - getInterval(intervals - 1).startNanos) / 1e9;
+  }
+
+  private static long[] grow(long[] array, int capacity) {
+    long[] ret = new long[capacity];
+    System.arraycopy(array, 0, ret, 0, array.length);
+    return ret;
+  }
+
+  private static final class Interval {
+
+    private long startNanos;
+    private long endNanos;
+    private int size;
+    private int[] ids = new int[16];
+    private long[] calls = new long[16];
+    private long[] timedCounts = new long[16];
+    private long[] timedTotals = new long[16];
+
+    void add(int methodId, long calls, long timedCount, long timedTotal) {
+      if (size == ids.length) {
+        int capacity = size * 2;
+        int[] grownIds = new int[capacity];
+        System.arraycopy(ids, 0, grownIds, 0, size);
+        ids = grownIds;
+        this.calls = grow(this.calls, capacity);
+        timedCounts = grow(timedCounts, capacity);
+        timedTotals = grow(timedTotals, capacity);
+      }
+      ids[size] = methodId;
+      this.calls[size] = calls;
+      timedCounts[size] = timedCount;
+      timedTotals[size] = timedTotal;
+      size++;
+    }
+  }
+}
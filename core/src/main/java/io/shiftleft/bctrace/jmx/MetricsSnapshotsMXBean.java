@@ -0,0 +1,24 @@
+package io.shiftleft.bctrace.jmx;
+
+import javax.management.openmbean.TabularData;
+
+public interface MetricsSnapshotsMXBean {
+
+  public boolean isSnapshotsEnabled();
+
+  public void setSnapshotsEnabled(boolean enabled);
+
+  public long getIntervalMillis();
+
+  public int getIntervalCount();
+
+  /**
+   * @return calls per second of the method over the last given seconds
+   */
+  public double getCallRate(int methodId, int seconds);
+
+  /**
+   * @return methods with the most calls over the last given seconds, in descending order
+   */
+  public TabularData getTopCallRates(int seconds, int limit);
+}
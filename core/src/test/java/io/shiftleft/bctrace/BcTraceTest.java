@@ -36,7 +36,8 @@ import java.io.InputStream;
  */
 public abstract class BcTraceTest {
 
-  private static Bctrace init(ByteClassLoader cl, final Hook[] hooks) throws Exception {
+  private static Bctrace init(ByteClassLoader cl, final Hook[] hooks, boolean callCounterProbes)
+      throws Exception {
     Agent agent = new Agent() {
       @Override
       public void init(Bctrace bctrace) {
@@ -51,7 +52,7 @@ public abstract class BcTraceTest {
         return hooks;
       }
     };
-    Bctrace bctrace = new Bctrace(null, agent, false);
+    Bctrace bctrace = new Bctrace(null, agent, callCounterProbes);
     bctrace.init();
     Object[] listeners = new Object[hooks.length];
     for (int i = 0; i < listeners.length; i++) {
@@ -59,7 +60,7 @@ public abstract class BcTraceTest {
     }
     Class callBackclass = cl.loadClass("io.shiftleft.bctrace.runtime.Callback");
 
-    callBackclass.getField("listeners").set(null, listeners);
+    callBackclass.getMethod("setListeners", Object[].class).invoke(null, (Object) listeners);
     return bctrace;
   }
 
@@ -69,25 +70,57 @@ public abstract class BcTraceTest {
 
   public static Class getInstrumentClass(Class clazz, final Hook[] hooks, boolean trace)
       throws Exception {
-    ByteClassLoader cl = new ByteClassLoader(hooks, clazz.getClassLoader());
-    Bctrace bctrace = init(cl, hooks);
-    Transformer transformer = new Transformer(new InstrumentationImpl(null),
-        bctrace, null);
-    String className = clazz.getCanonicalName();
-    String resourceName = className.replace('.', '/') + ".class";
-    InputStream is = clazz.getClassLoader().getResourceAsStream(resourceName);
-    byte[] bytes = Utils.toByteArray(is);
-    byte[] newBytes = transformer.transform(null, className.replace('.', '/'), clazz, null, bytes);
-    if (newBytes != null) {
-      bytes = newBytes;
-    } else {
+    return getInstrumentClass(clazz, hooks, trace, false);
+  }
+
+  public static Class getInstrumentClass(Class clazz, final Hook[] hooks, boolean trace,
+      boolean callCounterProbes) throws Exception {
+    ByteClassLoader cl = new ByteClassLoader(hooks, getClassLoader(clazz));
+    byte[] bytes = transform(cl, clazz, hooks, callCounterProbes);
+    if (bytes == null) {
       throw new Error(
           Transformer.class + " has returned a null byte array (no-op) for class " + clazz);
     }
     if (trace) {
       ASMUtils.viewByteCode(bytes);
     }
-    return cl.loadClass(className, bytes);
+    return cl.loadClass(clazz.getName(), bytes);
+  }
+
+  /**
+   * @return the instrumented bytecode of the class, or null if no hook applies to it
+   */
+  public static byte[] getInstrumentedBytes(Class clazz, final Hook[] hooks) throws Exception {
+    return getInstrumentedBytes(clazz, hooks, false);
+  }
+
+  public static byte[] getInstrumentedBytes(Class clazz, final Hook[] hooks,
+      boolean callCounterProbes) throws Exception {
+    return transform(new ByteClassLoader(hooks, getClassLoader(clazz)), clazz, hooks,
+        callCounterProbes);
+  }
+
+  private static byte[] transform(ByteClassLoader cl, Class clazz, final Hook[] hooks,
+      boolean callCounterProbes) throws Exception {
+    Bctrace bctrace = init(cl, hooks, callCounterProbes);
+    Transformer transformer = new Transformer(new InstrumentationImpl(null),
+        bctrace, null);
+    return transformer.transform(null, clazz.getName().replace('.', '/'), clazz, null,
+        getBytes(clazz));
+  }
+
+  /**
+   * Classes of the bootstrap class loader are looked up from the test class loader
+   */
+  private static ClassLoader getClassLoader(Class clazz) {
+    ClassLoader cl = clazz.getClassLoader();
+    return cl != null ? cl : BcTraceTest.class.getClassLoader();
+  }
+
+  private static byte[] getBytes(Class clazz) throws Exception {
+    String resourceName = clazz.getName().replace('.', '/') + ".class";
+    InputStream is = getClassLoader(clazz).getResourceAsStream(resourceName);
+    return Utils.toByteArray(is);
   }
 
   public static class ByteClassLoader extends ClassLoader {
@@ -105,8 +138,12 @@ public abstract class BcTraceTest {
       return super.defineClass(name, byteCode, 0, byteCode.length);
     }
 
+    /**
+     * Defines its own Callback, and the listener table it accesses
+     */
     protected Class<?> loadClass(String name, boolean resolve) throws ClassNotFoundException {
-      if (name.equals("io.shiftleft.bctrace.runtime.Callback")) {
+      if (name.equals("io.shiftleft.bctrace.runtime.Callback")
+          || name.equals("io.shiftleft.bctrace.runtime.Callback$Listeners")) {
         try {
           String resourceName = name.replace('.', '/') + ".class";
           InputStream is = CallBackTransformerTest.class.getClassLoader()
@@ -25,15 +25,17 @@
 package io.shiftleft.bctrace;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 
 import io.shiftleft.bctrace.BcTraceTest.ByteClassLoader;
+import io.shiftleft.bctrace.asm.CallbackTransformer;
 import io.shiftleft.bctrace.filter.MethodFilter.DirectMethodFilter;
 import io.shiftleft.bctrace.hook.DirectMethodHook;
 import io.shiftleft.bctrace.hook.Hook;
+import io.shiftleft.bctrace.runtime.Callback;
 import io.shiftleft.bctrace.runtime.listener.direct.$io_shiftleft_bctrace_CallBackTransformerTest$SampleListener1;
 import io.shiftleft.bctrace.runtime.listener.direct.$io_shiftleft_bctrace_CallBackTransformerTest$SampleListener2;
 import io.shiftleft.bctrace.runtime.listener.direct.DirectMethodStartListener;
-import java.lang.reflect.Field;
 import java.lang.reflect.Method;
 import org.junit.Test;
 
@@ -63,8 +65,8 @@ public class CallBackTransformerTest {
             listener2)};
 
     Class callBackClass = getCallBackClass(hooks);
-    Field listenersField = callBackClass.getField("listeners");
-    listenersField.set(null, new Object[]{listener1, listener2});
+    callBackClass.getMethod("setListeners", Object[].class)
+        .invoke(null, (Object) new Object[]{listener1, listener2});
 
     Method[] declaredMethods = callBackClass.getDeclaredMethods();
     for (int i = 0; i < declaredMethods.length; i++) {
@@ -80,6 +82,34 @@ public class CallBackTransformerTest {
     assertEquals(listener2.toString(), Long.toString(aLong));
   }
 
+  @Test
+  public void testHotAddedListener() throws Exception {
+    final long aLong = System.currentTimeMillis();
+    SampleListener1 listener1 = new SampleListener1();
+    Hook[] hooks = new Hook[]{
+        new DirectMethodHook(
+            new DirectMethodFilter("io/shiftleft/bctrace/TestClass", "fact", "(J)J"),
+            listener1) {
+        }};
+    // Callback already loaded, with no listener methods
+    CallbackTransformer cbTransformer = new CallbackTransformer(new Hook[0]);
+    cbTransformer.addDirectListeners(hooks);
+    String owner = CallbackTransformer.getDynamicListenerOwner(listener1);
+    assertFalse(owner.equals("io/shiftleft/bctrace/runtime/Callback"));
+
+    Object[] previousListeners = Callback.getListeners();
+    try {
+      Callback.setListeners(new Object[]{listener1});
+      Class dispatchClass = Class.forName(owner.replace('/', '.'));
+      Method m = dispatchClass.getMethod(CallbackTransformer.getDynamicListenerMethodName(listener1),
+          int.class, Class.class, Object.class, long.class);
+      m.invoke(null, 0, null, null, aLong);
+      assertEquals(listener1.toString(), Long.toString(aLong));
+    } finally {
+      Callback.setListeners(previousListeners);
+    }
+  }
+
   public static class SampleListener1 extends DirectMethodStartListener implements
       $io_shiftleft_bctrace_CallBackTransformerTest$SampleListener1 {
 
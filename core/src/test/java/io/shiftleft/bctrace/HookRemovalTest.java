@@ -0,0 +1,246 @@
+/*
+ * ShiftLeft, Inc. CONFIDENTIAL
+ * Unpublished Copyright (c) 2017 ShiftLeft, Inc., All Rights Reserved.
+ *
+ * NOTICE: All information contained herein is, and remains the property of ShiftLeft, Inc.
+ * The intellectual and technical concepts contained herein are proprietary to ShiftLeft, Inc.
+ * and may be covered by U.S. and Foreign Patents, patents in process, and are protected by
+ * trade secret or copyright law. Dissemination of this information or reproduction of this
+ * material is strictly forbidden unless prior written permission is obtained
+ * from ShiftLeft, Inc. Access to the source code contained herein is hereby forbidden to
+ * anyone except current ShiftLeft, Inc. employees, managers or contractors who have executed
+ * Confidentiality and Non-disclosure agreements explicitly covering such access.
+ *
+ * The copyright notice above does not evidence any actual or intended publication or disclosure
+ * of this source code, which includes information that is confidential and/or proprietary, and
+ * is a trade secret, of ShiftLeft, Inc.
+ *
+ * ANY REPRODUCTION, MODIFICATION, DISTRIBUTION, PUBLIC PERFORMANCE, OR PUBLIC DISPLAY
+ * OF OR THROUGH USE OF THIS SOURCE CODE WITHOUT THE EXPRESS WRITTEN CONSENT OF ShiftLeft, Inc.
+ * IS STRICTLY PROHIBITED, AND IN VIOLATION OF APPLICABLE LAWS AND INTERNATIONAL TREATIES.
+ * THE RECEIPT OR POSSESSION OF THIS SOURCE CODE AND/OR RELATED INFORMATION DOES NOT
+ * CONVEY OR IMPLY ANY RIGHTS TO REPRODUCE, DISCLOSE OR DISTRIBUTE ITS
+ * CONTENTS, OR TO MANUFACTURE, USE, OR SELL ANYTHING THAT IT MAY DESCRIBE, IN WHOLE OR IN PART.
+ */
+package io.shiftleft.bctrace;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import io.shiftleft.bctrace.filter.MethodFilter.AllFilter;
+import io.shiftleft.bctrace.hook.GenericMethodHook;
+import io.shiftleft.bctrace.hook.Hook;
+import io.shiftleft.bctrace.jmx.HookManager;
+import io.shiftleft.bctrace.runtime.listener.generic.GenericMethodStartListener;
+import io.shiftleft.bctrace.util.Utils;
+import java.lang.instrument.ClassFileTransformer;
+import java.lang.instrument.Instrumentation;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.junit.Test;
+
+/**
+ * Removes hooks at runtime, with a fake {@link Instrumentation} that retransforms classes like the
+ * JVM does: passing the original class bytes to the retransformation capable transformers.
+ *
+ * @author Ignacio del Valle Alles idelvall@shiftleft.io
+ */
+public class HookRemovalTest {
+
+  @Test
+  public void testRemoveHooks() throws Exception {
+    final StringBuilder steps = new StringBuilder();
+    Hook hookA = new GenericMethodHook(new AllFilter(), new StepListener(steps, "A"));
+    Hook hookB = new GenericMethodHook(new AllFilter(), new StepListener(steps, "B"));
+    FakeInstrumentation fake = new FakeInstrumentation();
+    InstrumentationImpl instrumentation = new InstrumentationImpl(fake.proxy());
+    Bctrace bctrace = new Bctrace(instrumentation, new TestAgent(hookA, hookB), false);
+    bctrace.init();
+    // Instrumentation waits for the callback class to be loaded
+    fake.transform("io.shiftleft.bctrace.runtime.Callback", null);
+
+    byte[] original = getBytes(TestClass.class);
+    Class clazz = fake.load(TestClass.class.getName(), new TestLoader());
+    clazz.getMethod("execVoid").invoke(null);
+    assertEquals("AB", steps.toString());
+
+    bctrace.removeHooks(hookA);
+    assertTrue(bctrace.isHookRemoved(0));
+    assertTrue(instrumentation.getRetransformationScheduler().awaitCompletion(10000));
+    steps.setLength(0);
+    fake.reload(clazz).getMethod("execVoid").invoke(null);
+    assertEquals("B", steps.toString());
+
+    HookManager.getInstance().removeAllHooks();
+    assertTrue(instrumentation.getRetransformationScheduler().awaitCompletion(10000));
+    assertTrue(bctrace.isHookRemoved(1));
+    assertArrayEquals(original, fake.getCurrentBytes(clazz));
+    steps.setLength(0);
+    fake.reload(clazz).getMethod("execVoid").invoke(null);
+    assertEquals("", steps.toString());
+  }
+
+  private static byte[] getBytes(Class clazz) throws Exception {
+    return Utils.toByteArray(clazz.getClassLoader()
+        .getResourceAsStream(clazz.getName().replace('.', '/') + ".class"));
+  }
+
+  private static class StepListener extends GenericMethodStartListener {
+
+    private final StringBuilder steps;
+    private final String step;
+
+    StepListener(StringBuilder steps, String step) {
+      this.steps = steps;
+      this.step = step;
+    }
+
+    @Override
+    public boolean requiresArguments() {
+      return false;
+    }
+
+    @Override
+    public void onStart(int methodId, Class clazz, Object instance, Object[] args) {
+      if (clazz.getName().equals(TestClass.class.getName())) {
+        steps.append(step);
+      }
+    }
+  }
+
+  private static class TestAgent implements Agent {
+
+    private final Hook[] hooks;
+
+    TestAgent(Hook... hooks) {
+      this.hooks = hooks;
+    }
+
+    @Override
+    public void init(Bctrace bctrace) {
+    }
+
+    @Override
+    public void afterRegistration() {
+    }
+
+    @Override
+    public Hook[] getHooks() {
+      return hooks;
+    }
+  }
+
+  /**
+   * Defines the test class itself, instead of delegating to its parent
+   */
+  private static class TestLoader extends ClassLoader {
+
+    TestLoader() {
+      super(HookRemovalTest.class.getClassLoader());
+    }
+
+    Class define(String name, byte[] bytes) {
+      return defineClass(name, bytes, 0, bytes.length);
+    }
+  }
+
+  private static class FakeInstrumentation implements InvocationHandler {
+
+    private final List<ClassFileTransformer> transformers = new ArrayList<ClassFileTransformer>();
+    private final List<ClassFileTransformer> retransformers =
+        new ArrayList<ClassFileTransformer>();
+    private final Map<Class, byte[]> currentBytes = new HashMap<Class, byte[]>();
+
+    Instrumentation proxy() {
+      return (Instrumentation) Proxy.newProxyInstance(getClass().getClassLoader(),
+          new Class[]{Instrumentation.class}, this);
+    }
+
+    /**
+     * @return the bytes of the class after applying all the transformers, as in its first load
+     */
+    byte[] transform(String name, ClassLoader loader) throws Exception {
+      byte[] bytes = getBytes(Class.forName(name));
+      for (int i = 0; i < transformers.size(); i++) {
+        byte[] transformed = transformers.get(i)
+            .transform(loader, name.replace('.', '/'), null, null, bytes);
+        if (transformed != null) {
+          bytes = transformed;
+        }
+      }
+      return bytes;
+    }
+
+    /**
+     * Defines the class in the loader, after applying all the transformers
+     */
+    Class load(String name, TestLoader loader) throws Exception {
+      byte[] bytes = transform(name, loader);
+      Class ret = loader.define(name, bytes);
+      synchronized (currentBytes) {
+        currentBytes.put(ret, bytes);
+      }
+      return ret;
+    }
+
+    /**
+     * Defines the current bytecode of the class in a new loader, since a loaded class can not be
+     * redefined here
+     */
+    Class reload(Class clazz) {
+      return new TestLoader().define(clazz.getName(), getCurrentBytes(clazz));
+    }
+
+    byte[] getCurrentBytes(Class clazz) {
+      synchronized (currentBytes) {
+        return currentBytes.get(clazz);
+      }
+    }
+
+    private void retransform(Class clazz) throws Exception {
+      byte[] bytes = getBytes(clazz);
+      for (int i = 0; i < retransformers.size(); i++) {
+        byte[] transformed = retransformers.get(i).transform(clazz.getClassLoader(),
+            clazz.getName().replace('.', '/'), clazz, null, bytes);
+        if (transformed != null) {
+          bytes = transformed;
+        }
+      }
+      synchronized (currentBytes) {
+        currentBytes.put(clazz, bytes);
+      }
+    }
+
+    @Override
+    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+      String name = method.getName();
+      if (name.equals("isRetransformClassesSupported") || name.equals("isModifiableClass")) {
+        return true;
+      }
+      if (name.equals("getAllLoadedClasses")) {
+        return new Class[0];
+      }
+      if (name.equals("addTransformer")) {
+        transformers.add((ClassFileTransformer) args[0]);
+        if (args.length > 1 && (Boolean) args[1]) {
+          retransformers.add((ClassFileTransformer) args[0]);
+        }
+        return null;
+      }
+      if (name.equals("retransformClasses")) {
+        Class[] classes = (Class[]) args[0];
+        for (int i = 0; i < classes.length; i++) {
+          retransform(classes[i]);
+        }
+        return null;
+      }
+      return null;
+    }
+  }
+}
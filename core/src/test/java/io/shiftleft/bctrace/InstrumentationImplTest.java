@@ -0,0 +1,111 @@
+/*
+ * ShiftLeft, Inc. CONFIDENTIAL
+ * Unpublished Copyright (c) 2017 ShiftLeft, Inc., All Rights Reserved.
+ *
+ * NOTICE: All information contained herein is, and remains the property of ShiftLeft, Inc.
+ * The intellectual and technical concepts contained herein are proprietary to ShiftLeft, Inc.
+ * and may be covered by U.S. and Foreign Patents, patents in process, and are protected by
+ * trade secret or copyright law. Dissemination of this information or reproduction of this
+ * material is strictly forbidden unless prior written permission is obtained
+ * from ShiftLeft, Inc. Access to the source code contained herein is hereby forbidden to
+ * anyone except current ShiftLeft, Inc. employees, managers or contractors who have executed
+ * Confidentiality and Non-disclosure agreements explicitly covering such access.
+ *
+ * The copyright notice above does not evidence any actual or intended publication or disclosure
+ * of this source code, which includes information that is confidential and/or proprietary, and
+ * is a trade secret, of ShiftLeft, Inc.
+ *
+ * ANY REPRODUCTION, MODIFICATION, DISTRIBUTION, PUBLIC PERFORMANCE, OR PUBLIC DISPLAY
+ * OF OR THROUGH USE OF THIS SOURCE CODE WITHOUT THE EXPRESS WRITTEN CONSENT OF ShiftLeft, Inc.
+ * IS STRICTLY PROHIBITED, AND IN VIOLATION OF APPLICABLE LAWS AND INTERNATIONAL TREATIES.
+ * THE RECEIPT OR POSSESSION OF THIS SOURCE CODE AND/OR RELATED INFORMATION DOES NOT
+ * CONVEY OR IMPLY ANY RIGHTS TO REPRODUCE, DISCLOSE OR DISTRIBUTE ITS
+ * CONTENTS, OR TO MANUFACTURE, USE, OR SELL ANYTHING THAT IT MAY DESCRIBE, IN WHOLE OR IN PART.
+ */
+package io.shiftleft.bctrace;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.instrument.Instrumentation;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import org.junit.Test;
+
+/**
+ * @author Ignacio del Valle Alles idelvall@shiftleft.io
+ */
+public class InstrumentationImplTest {
+
+  @Test(timeout = 10000)
+  public void testLookupsWhileSeeding() throws Exception {
+    CountDownLatch seeding = new CountDownLatch(1);
+    InstrumentationImpl inst = new InstrumentationImpl(
+        fakeInstrumentation(seeding, getClass(), String.class));
+    ClassLoader cl = getClass().getClassLoader();
+    try {
+      // Starts seeding in the background, blocked until the end of the test
+      inst.addLoadedClass("foo.Baz", cl);
+      assertTrue(inst.isLoadedBy("foo.Baz", cl));
+      // Answered by the JVM instead of waiting for the seeding
+      assertTrue(inst.isLoadedByAnyClassLoader(getClass().getName()));
+      assertTrue(inst.isLoadedBy(getClass().getName(), cl));
+      assertSame(getClass(), inst.getClassIfLoadedByClassLoader(getClass().getName(), cl));
+      assertSame(String.class, inst.getClassIfLoadedByClassLoader(String.class.getName(), null));
+      assertFalse(inst.isLoadedBy(String.class.getName(), cl));
+      assertFalse(inst.isLoadedBy("foo.Bar", cl));
+    } finally {
+      seeding.countDown();
+    }
+  }
+
+  @Test(timeout = 10000)
+  public void testSeededOnDemand() throws Exception {
+    CountDownLatch seeding = new CountDownLatch(1);
+    InstrumentationImpl inst = new InstrumentationImpl(fakeInstrumentation(seeding, getClass()));
+    seeding.countDown();
+    // Queries the JVM and starts seeding
+    assertEquals(Arrays.asList(getClass()), inst.getLoadedClasses(getClass().getName()));
+    while (inst.isLoadedByAnyClassLoader("foo.Bar")) {
+      Thread.sleep(10);
+    }
+    assertEquals(Arrays.asList(getClass()), inst.getLoadedClasses(getClass().getName()));
+  }
+
+  /**
+   * @param seeding latch that the scans of all the loaded classes wait for, unless made by the
+   * test thread
+   */
+  private static Instrumentation fakeInstrumentation(final CountDownLatch seeding,
+      final Class... loaded) {
+    final Thread testThread = Thread.currentThread();
+    return (Instrumentation) Proxy.newProxyInstance(InstrumentationImplTest.class.getClassLoader(),
+        new Class[]{Instrumentation.class}, new InvocationHandler() {
+          @Override
+          public Object invoke(Object proxy, Method method, Object[] args) throws Exception {
+            if (method.getName().equals("getAllLoadedClasses")) {
+              if (Thread.currentThread() != testThread) {
+                seeding.await();
+              }
+              return loaded;
+            } else if (method.getName().equals("getInitiatedClasses")) {
+              List<Class> ret = new ArrayList<Class>();
+              for (int i = 0; i < loaded.length; i++) {
+                if (loaded[i].getClassLoader() == args[0]) {
+                  ret.add(loaded[i]);
+                }
+              }
+              return ret.toArray(new Class[ret.size()]);
+            }
+            return null;
+          }
+        });
+  }
+}
@@ -0,0 +1,132 @@
+/*
+ * ShiftLeft, Inc. CONFIDENTIAL
+ * Unpublished Copyright (c) 2017 ShiftLeft, Inc., All Rights Reserved.
+ *
+ * NOTICE: All information contained herein is, and remains the property of ShiftLeft, Inc.
+ * The intellectual and technical concepts contained herein are proprietary to ShiftLeft, Inc.
+ * and may be covered by U.S. and Foreign Patents, patents in process, and are protected by
+ * trade secret or copyright law. Dissemination of this information or reproduction of this
+ * material is strictly forbidden unless prior written permission is obtained
+ * from ShiftLeft, Inc. Access to the source code contained herein is hereby forbidden to
+ * anyone except current ShiftLeft, Inc. employees, managers or contractors who have executed
+ * Confidentiality and Non-disclosure agreements explicitly covering such access.
+ *
+ * The copyright notice above does not evidence any actual or intended publication or disclosure
+ * of this source code, which includes information that is confidential and/or proprietary, and
+ * is a trade secret, of ShiftLeft, Inc.
+ *
+ * ANY REPRODUCTION, MODIFICATION, DISTRIBUTION, PUBLIC PERFORMANCE, OR PUBLIC DISPLAY
+ * OF OR THROUGH USE OF THIS SOURCE CODE WITHOUT THE EXPRESS WRITTEN CONSENT OF ShiftLeft, Inc.
+ * IS STRICTLY PROHIBITED, AND IN VIOLATION OF APPLICABLE LAWS AND INTERNATIONAL TREATIES.
+ * THE RECEIPT OR POSSESSION OF THIS SOURCE CODE AND/OR RELATED INFORMATION DOES NOT
+ * CONVEY OR IMPLY ANY RIGHTS TO REPRODUCE, DISCLOSE OR DISTRIBUTE ITS
+ * CONTENTS, OR TO MANUFACTURE, USE, OR SELL ANYTHING THAT IT MAY DESCRIBE, IN WHOLE OR IN PART.
+ */
+package io.shiftleft.bctrace;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import org.junit.Test;
+
+/**
+ * @author Ignacio del Valle Alles idelvall@shiftleft.io
+ */
+public class LoadedClassRegistryTest {
+
+  @Test
+  public void testAddRemove() {
+    LoadedClassRegistry registry = new LoadedClassRegistry();
+    ClassLoader cl = new ClassLoader() {
+    };
+    registry.add("foo.Bar", null);
+    registry.add("foo.Bar", cl);
+    registry.add("foo.Bar", cl);
+    assertEquals(Arrays.asList(null, cl), registry.getClassLoaders("foo.Bar"));
+    assertTrue(registry.contains("foo.Bar", null));
+    assertFalse(registry.contains("foo.Baz", cl));
+
+    registry.remove("foo.Bar", null);
+    assertFalse(registry.contains("foo.Bar", null));
+    assertTrue(registry.containsAny("foo.Bar"));
+    registry.remove("foo.Bar", cl);
+    assertNull(registry.getClassLoaders("foo.Bar"));
+    assertTrue(registry.isEmpty());
+  }
+
+  @Test
+  public void testClassHandles() {
+    LoadedClassRegistry registry = new LoadedClassRegistry();
+    ClassLoader cl = getClass().getClassLoader();
+    registry.add(getClass().getName(), cl);
+    registry.add(String.class);
+    registry.add("foo.Bar", cl);
+
+    assertSame(getClass(), registry.getLoadedClass(getClass().getName(), cl));
+    assertSame(getClass(), registry.getLoadedClass(getClass().getName(), cl));
+    assertSame(String.class, registry.getLoadedClass("java.lang.String", null));
+    assertNull(registry.getLoadedClass("java.lang.String", cl));
+    assertNull(registry.getLoadedClass("foo.Bar", cl));
+  }
+
+  @Test
+  public void testConcurrentRegistration() throws Exception {
+    final LoadedClassRegistry registry = new LoadedClassRegistry();
+    final ClassLoader[] classLoaders = new ClassLoader[8];
+    for (int i = 0; i < classLoaders.length; i++) {
+      classLoaders[i] = new ClassLoader() {
+      };
+    }
+    final CountDownLatch start = new CountDownLatch(1);
+    List<Thread> threads = new ArrayList<Thread>();
+    for (int t = 0; t < classLoaders.length; t++) {
+      final ClassLoader cl = classLoaders[t];
+      Thread thread = new Thread() {
+        @Override
+        public void run() {
+          try {
+            start.await();
+          } catch (InterruptedException ex) {
+            return;
+          }
+          for (int i = 0; i < 1000; i++) {
+            registry.add("foo.Class" + i, cl);
+          }
+        }
+      };
+      thread.start();
+      threads.add(thread);
+    }
+    start.countDown();
+    for (int i = 0; i < threads.size(); i++) {
+      threads.get(i).join();
+    }
+    assertEquals(1000, registry.size());
+    for (int i = 0; i < 1000; i++) {
+      assertEquals(classLoaders.length, registry.getClassLoaders("foo.Class" + i).size());
+    }
+  }
+
+  @Test
+  public void testPurgedWhenClassLoaderCollected() throws Exception {
+    LoadedClassRegistry registry = new LoadedClassRegistry();
+    ClassLoader cl = new ClassLoader() {
+    };
+    registry.add("foo.Bar", cl);
+    cl = null;
+    for (int i = 0; i < 50 && registry.size() > 0; i++) {
+      System.gc();
+      Thread.sleep(10);
+      registry.add("foo.Other", null);
+      registry.remove("foo.Other", null);
+    }
+    assertTrue(registry.isEmpty());
+  }
+}
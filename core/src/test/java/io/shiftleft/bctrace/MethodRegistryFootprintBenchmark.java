@@ -0,0 +1,114 @@
+/*
+ * ShiftLeft, Inc. CONFIDENTIAL
+ * Unpublished Copyright (c) 2017 ShiftLeft, Inc., All Rights Reserved.
+ *
+ * NOTICE: All information contained herein is, and remains the property of ShiftLeft, Inc.
+ * The intellectual and technical concepts contained herein are proprietary to ShiftLeft, Inc.
+ * and may be covered by U.S. and Foreign Patents, patents in process, and are protected by
+ * trade secret or copyright law. Dissemination of this information or reproduction of this
+ * material is strictly forbidden unless prior written permission is obtained
+ * from ShiftLeft, Inc. Access to the source code contained herein is hereby forbidden to
+ * anyone except current ShiftLeft, Inc. employees, managers or contractors who have executed
+ * Confidentiality and Non-disclosure agreements explicitly covering such access.
+ *
+ * The copyright notice above does not evidence any actual or intended publication or disclosure
+ * of this source code, which includes information that is confidential and/or proprietary, and
+ * is a trade secret, of ShiftLeft, Inc.
+ *
+ * ANY REPRODUCTION, MODIFICATION, DISTRIBUTION, PUBLIC PERFORMANCE, OR PUBLIC DISPLAY
+ * OF OR THROUGH USE OF THIS SOURCE CODE WITHOUT THE EXPRESS WRITTEN CONSENT OF ShiftLeft, Inc.
+ * IS STRICTLY PROHIBITED, AND IN VIOLATION OF APPLICABLE LAWS AND INTERNATIONAL TREATIES.
+ * THE RECEIPT OR POSSESSION OF THIS SOURCE CODE AND/OR RELATED INFORMATION DOES NOT
+ * CONVEY OR IMPLY ANY RIGHTS TO REPRODUCE, DISCLOSE OR DISTRIBUTE ITS
+ * CONTENTS, OR TO MANUFACTURE, USE, OR SELL ANYTHING THAT IT MAY DESCRIBE, IN WHOLE OR IN PART.
+ */
+package io.shiftleft.bctrace;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Measures the retained heap of the {@link MethodRegistry} holding one million methods (50,000
+ * classes with 20 methods each), compared with a registry based on a list of {@link MethodInfo}
+ * instances and a map of boxed ids. Strings are copied for each class, as they are when parsed
+ * from the bytecode of the class.
+ * <br><br>
+ * Usage: MethodRegistryFootprintBenchmark [classes] [methodsPerClass]
+ *
+ * @author Ignacio del Valle Alles idelvall@shiftleft.io
+ */
+public class MethodRegistryFootprintBenchmark {
+
+  private static final String[] NAMES = {"<init>", "run", "get", "set", "toString", "hashCode",
+      "equals", "close", "execute", "handle", "process", "apply", "accept", "create", "init",
+      "destroy", "doGet", "doPost", "service", "invoke", "call", "read", "write", "flush"};
+
+  private static final String[] DESCRIPTORS = {"()V", "()Ljava/lang/String;", "()I",
+      "(Ljava/lang/Object;)Z", "(Ljava/lang/String;)V",
+      "(Ljavax/servlet/http/HttpServletRequest;Ljavax/servlet/http/HttpServletResponse;)V",
+      "(Ljava/util/Map;)Ljava/util/List;", "(I)Ljava/lang/Object;", "(Ljava/lang/Runnable;)V"};
+
+  public static void main(String[] args) {
+    int classes = args.length > 0 ? Integer.parseInt(args[0]) : 50000;
+    int methodsPerClass = args.length > 1 ? Integer.parseInt(args[1]) : 20;
+
+    long base = usedMemory();
+    long start = System.nanoTime();
+    MethodRegistry registry = new MethodRegistry();
+    for (int c = 0; c < classes; c++) {
+      String className = "com/acme/module" + (c % 200) + "/Class" + c;
+      for (int m = 0; m < methodsPerClass; m++) {
+        registry.registerMethodId(createMethod(className, c, m));
+      }
+    }
+    long elapsed = System.nanoTime() - start;
+    long compact = usedMemory() - base;
+    report("compact registry", registry.size(), compact, elapsed);
+
+    registry = null;
+    base = usedMemory();
+    start = System.nanoTime();
+    List<MethodInfo> list = new ArrayList<MethodInfo>();
+    Map<MethodInfo, Integer> map = new HashMap<MethodInfo, Integer>();
+    for (int c = 0; c < classes; c++) {
+      String className = "com/acme/module" + (c % 200) + "/Class" + c;
+      for (int m = 0; m < methodsPerClass; m++) {
+        MethodInfo mi = createMethod(className, c, m);
+        if (!map.containsKey(mi)) {
+          list.add(mi);
+          map.put(mi, list.size() - 1);
+        }
+      }
+    }
+    elapsed = System.nanoTime() - start;
+    long objects = usedMemory() - base;
+    report("object registry", list.size(), objects, elapsed);
+    System.out.println(String.format("Compact registry uses %.1f%% of the heap", 100.0 * compact
+        / objects));
+  }
+
+  private static MethodInfo createMethod(String className, int c, int m) {
+    return new MethodInfo(new String(className), new String(NAMES[(c + m) % NAMES.length]),
+        new String(DESCRIPTORS[(c * 7 + m) % DESCRIPTORS.length]), 1);
+  }
+
+  private static void report(String name, int methods, long bytes, long nanos) {
+    System.out.println(String.format("%s: %d methods, %.1f MB (%.1f bytes/method), %d ms", name,
+        methods, bytes / 1048576.0, (double) bytes / methods, nanos / 1000000));
+  }
+
+  private static long usedMemory() {
+    Runtime runtime = Runtime.getRuntime();
+    for (int i = 0; i < 5; i++) {
+      System.gc();
+      try {
+        Thread.sleep(50);
+      } catch (InterruptedException ex) {
+        Thread.currentThread().interrupt();
+      }
+    }
+    return runtime.totalMemory() - runtime.freeMemory();
+  }
+}
@@ -0,0 +1,123 @@
+/*
+ * ShiftLeft, Inc. CONFIDENTIAL
+ * Unpublished Copyright (c) 2017 ShiftLeft, Inc., All Rights Reserved.
+ *
+ * NOTICE: All information contained herein is, and remains the property of ShiftLeft, Inc.
+ * The intellectual and technical concepts contained herein are proprietary to ShiftLeft, Inc.
+ * and may be covered by U.S. and Foreign Patents, patents in process, and are protected by
+ * trade secret or copyright law. Dissemination of this information or reproduction of this
+ * material is strictly forbidden unless prior written permission is obtained
+ * from ShiftLeft, Inc. Access to the source code contained herein is hereby forbidden to
+ * anyone except current ShiftLeft, Inc. employees, managers or contractors who have executed
+ * Confidentiality and Non-disclosure agreements explicitly covering such access.
+ *
+ * The copyright notice above does not evidence any actual or intended publication or disclosure
+ * of this source code, which includes information that is confidential and/or proprietary, and
+ * is a trade secret, of ShiftLeft, Inc.
+ *
+ * ANY REPRODUCTION, MODIFICATION, DISTRIBUTION, PUBLIC PERFORMANCE, OR PUBLIC DISPLAY
+ * OF OR THROUGH USE OF THIS SOURCE CODE WITHOUT THE EXPRESS WRITTEN CONSENT OF ShiftLeft, Inc.
+ * IS STRICTLY PROHIBITED, AND IN VIOLATION OF APPLICABLE LAWS AND INTERNATIONAL TREATIES.
+ * THE RECEIPT OR POSSESSION OF THIS SOURCE CODE AND/OR RELATED INFORMATION DOES NOT
+ * CONVEY OR IMPLY ANY RIGHTS TO REPRODUCE, DISCLOSE OR DISTRIBUTE ITS
+ * CONTENTS, OR TO MANUFACTURE, USE, OR SELL ANYTHING THAT IT MAY DESCRIBE, IN WHOLE OR IN PART.
+ */
+package io.shiftleft.bctrace;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Test;
+
+/**
+ * @author Ignacio del Valle Alles idelvall@shiftleft.io
+ */
+public class MethodRegistryTest {
+
+  @Test
+  public void testConcurrentRegistration() throws Exception {
+    final MethodRegistry registry = MethodRegistry.getInstance();
+    final MethodInfo[] methods = new MethodInfo[5000];
+    for (int i = 0; i < methods.length; i++) {
+      methods[i] = new MethodInfo("foo/Registry" + i, "method", "()V", 0);
+    }
+    final int[][] ids = new int[4][methods.length];
+    List<Thread> threads = new ArrayList<Thread>();
+    for (int t = 0; t < ids.length; t++) {
+      final int[] threadIds = ids[t];
+      Thread thread = new Thread() {
+        @Override
+        public void run() {
+          for (int i = 0; i < methods.length; i++) {
+            threadIds[i] = registry.registerMethodId(methods[i]);
+          }
+        }
+      };
+      thread.start();
+      threads.add(thread);
+    }
+    for (int i = 0; i < threads.size(); i++) {
+      threads.get(i).join();
+    }
+    for (int i = 0; i < methods.length; i++) {
+      for (int t = 1; t < ids.length; t++) {
+        assertEquals(ids[0][i], ids[t][i]);
+      }
+      assertEquals(Integer.valueOf(ids[0][i]), registry.getMethodId(methods[i]));
+      assertEquals(methods[i], registry.getMethod(ids[0][i]));
+      assertEquals(methods[i].getBinaryClassName(), registry.getBinaryClassName(ids[0][i]));
+    }
+  }
+
+  @Test
+  public void testLookupsDuringRegistration() throws Exception {
+    final MethodRegistry registry = new MethodRegistry();
+    final MethodInfo registered = new MethodInfo("foo/Registered", "method", "()V", 0);
+    final int id = registry.registerMethodId(registered);
+    final AtomicInteger misses = new AtomicInteger();
+    final AtomicBoolean done = new AtomicBoolean();
+    Thread reader = new Thread() {
+      @Override
+      public void run() {
+        while (!done.get()) {
+          Integer ret = registry.getMethodId(registered);
+          if (ret == null || ret != id) {
+            misses.incrementAndGet();
+          }
+        }
+      }
+    };
+    reader.start();
+    // Rehashes the index several times while being read
+    for (int i = 0; i < 20000; i++) {
+      registry.registerMethodId(new MethodInfo("foo/Lookup" + i, "method", "()V", 0));
+    }
+    done.set(true);
+    reader.join();
+    assertEquals(0, misses.get());
+    assertEquals(Integer.valueOf(id), registry.getMethodId(registered));
+  }
+
+  @Test
+  public void testStringsShared() {
+    MethodRegistry registry = new MethodRegistry();
+    int id1 = registry.registerMethodId(new MethodInfo(new String("foo/Bar"), "run", "()V", 1));
+    int id2 = registry.registerMethodId(new MethodInfo(new String("foo/Bar"), "stop", "()V", 2));
+    assertEquals(id1 + 1, id2);
+    assertEquals(id1, registry.registerMethodId(new MethodInfo("foo/Bar", "run", "()V", 1)));
+    assertSame(registry.getBinaryClassName(id1), registry.getBinaryClassName(id2));
+    assertSame(registry.getMethodDescriptor(id1), registry.getMethodDescriptor(id2));
+    assertEquals(2, registry.getMethod(id2).getModifiers());
+    assertEquals(registry.getMethod(id2), registry.getMethod(Integer.valueOf(id2)));
+    assertEquals(null, registry.getMethodId(new MethodInfo("foo/Bar", "run", "(I)V", 1)));
+  }
+
+  @Test(expected = IndexOutOfBoundsException.class)
+  public void testUnknownId() {
+    MethodRegistry.getInstance().getMethod(Integer.MAX_VALUE);
+  }
+}
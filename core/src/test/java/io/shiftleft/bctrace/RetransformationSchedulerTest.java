@@ -0,0 +1,153 @@
+/*
+ * ShiftLeft, Inc. CONFIDENTIAL
+ * Unpublished Copyright (c) 2017 ShiftLeft, Inc., All Rights Reserved.
+ *
+ * NOTICE: All information contained herein is, and remains the property of ShiftLeft, Inc.
+ * The intellectual and technical concepts contained herein are proprietary to ShiftLeft, Inc.
+ * and may be covered by U.S. and Foreign Patents, patents in process, and are protected by
+ * trade secret or copyright law. Dissemination of this information or reproduction of this
+ * material is strictly forbidden unless prior written permission is obtained
+ * from ShiftLeft, Inc. Access to the source code contained herein is hereby forbidden to
+ * anyone except current ShiftLeft, Inc. employees, managers or contractors who have executed
+ * Confidentiality and Non-disclosure agreements explicitly covering such access.
+ *
+ * The copyright notice above does not evidence any actual or intended publication or disclosure
+ * of this source code, which includes information that is confidential and/or proprietary, and
+ * is a trade secret, of ShiftLeft, Inc.
+ *
+ * ANY REPRODUCTION, MODIFICATION, DISTRIBUTION, PUBLIC PERFORMANCE, OR PUBLIC DISPLAY
+ * OF OR THROUGH USE OF THIS SOURCE CODE WITHOUT THE EXPRESS WRITTEN CONSENT OF ShiftLeft, Inc.
+ * IS STRICTLY PROHIBITED, AND IN VIOLATION OF APPLICABLE LAWS AND INTERNATIONAL TREATIES.
+ * THE RECEIPT OR POSSESSION OF THIS SOURCE CODE AND/OR RELATED INFORMATION DOES NOT
+ * CONVEY OR IMPLY ANY RIGHTS TO REPRODUCE, DISCLOSE OR DISTRIBUTE ITS
+ * CONTENTS, OR TO MANUFACTURE, USE, OR SELL ANYTHING THAT IT MAY DESCRIBE, IN WHOLE OR IN PART.
+ */
+package io.shiftleft.bctrace;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.instrument.Instrumentation;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Random;
+import java.util.Stack;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.Vector;
+import org.junit.Test;
+
+/**
+ * @author Ignacio del Valle Alles idelvall@shiftleft.io
+ */
+public class RetransformationSchedulerTest {
+
+  @Test
+  public void testPriorityOrder() throws Exception {
+    FakeInstrumentation fake = new FakeInstrumentation(0, null);
+    RetransformationScheduler scheduler = new RetransformationScheduler(
+        new InstrumentationImpl(fake.proxy()), 2, 0, 10000);
+    scheduler.schedule(ArrayList.class, 1);
+    scheduler.schedule(HashMap.class, 3);
+    scheduler.schedule(LinkedList.class, 2);
+    scheduler.schedule(TreeMap.class, 3);
+    scheduler.start();
+    assertTrue(scheduler.awaitCompletion(10000));
+
+    assertEquals(2, fake.batches.size());
+    assertEquals(Arrays.asList(HashMap.class, TreeMap.class), fake.batches.get(0));
+    assertEquals(Arrays.asList(LinkedList.class, ArrayList.class), fake.batches.get(1));
+    assertEquals(4, scheduler.getScheduledCount());
+    assertEquals(4, scheduler.getRetransformedCount());
+    assertEquals(0, scheduler.getPendingCount());
+  }
+
+  @Test
+  public void testBatchSizeAdaptsToPauses() throws Exception {
+    FakeInstrumentation fake = new FakeInstrumentation(5, null);
+    RetransformationScheduler scheduler = new RetransformationScheduler(
+        new InstrumentationImpl(fake.proxy()), 8, 0, 1);
+    Class[] classes = new Class[]{ArrayList.class, HashMap.class, LinkedList.class,
+        TreeMap.class, HashSet.class, TreeSet.class, Vector.class, LinkedHashMap.class,
+        LinkedHashSet.class, StringBuilder.class, Stack.class, StringBuffer.class, Collections.class,
+        Random.class, Proxy.class, Method.class};
+    for (int i = 0; i < classes.length; i++) {
+      scheduler.schedule(classes[i], 0);
+    }
+    scheduler.start();
+    assertTrue(scheduler.awaitCompletion(10000));
+
+    List<Integer> sizes = new ArrayList<Integer>();
+    for (int i = 0; i < fake.batches.size(); i++) {
+      sizes.add(fake.batches.get(i).size());
+    }
+    assertEquals(Arrays.asList(8, 4, 2, 1, 1), sizes);
+    assertEquals(5, scheduler.getThrottledBatchCount());
+    assertEquals(1, scheduler.getCurrentBatchSize());
+    assertEquals(classes.length, scheduler.getRetransformedCount());
+  }
+
+  @Test
+  public void testFailingClassDoesNotDiscardBatch() throws Exception {
+    FakeInstrumentation fake = new FakeInstrumentation(0, HashMap.class);
+    RetransformationScheduler scheduler = new RetransformationScheduler(
+        new InstrumentationImpl(fake.proxy()), 10, 0, 10000);
+    scheduler.schedule(ArrayList.class, 0);
+    scheduler.schedule(HashMap.class, 0);
+    scheduler.schedule(LinkedList.class, 0);
+    scheduler.start();
+    assertTrue(scheduler.awaitCompletion(10000));
+
+    assertEquals(2, scheduler.getRetransformedCount());
+    assertEquals(1, scheduler.getFailedCount());
+  }
+
+  private static class FakeInstrumentation implements InvocationHandler {
+
+    private final long pauseMillis;
+    private final Class failingClass;
+    private final List<List<Class>> batches = Collections
+        .synchronizedList(new ArrayList<List<Class>>());
+
+    FakeInstrumentation(long pauseMillis, Class failingClass) {
+      this.pauseMillis = pauseMillis;
+      this.failingClass = failingClass;
+    }
+
+    Instrumentation proxy() {
+      return (Instrumentation) Proxy.newProxyInstance(getClass().getClassLoader(),
+          new Class[]{Instrumentation.class}, this);
+    }
+
+    @Override
+    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+      String name = method.getName();
+      if (name.equals("isRetransformClassesSupported") || name.equals("isModifiableClass")) {
+        return true;
+      }
+      if (name.equals("getAllLoadedClasses")) {
+        return new Class[0];
+      }
+      if (name.equals("retransformClasses")) {
+        List<Class> batch = Arrays.asList((Class[]) args[0]);
+        if (failingClass != null && batch.contains(failingClass)) {
+          throw new IllegalStateException("Failing " + failingClass);
+        }
+        Thread.sleep(pauseMillis);
+        batches.add(batch);
+        return null;
+      }
+      return null;
+    }
+  }
+}
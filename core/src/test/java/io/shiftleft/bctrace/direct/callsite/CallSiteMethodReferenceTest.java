@@ -0,0 +1,192 @@
+/*
+ * ShiftLeft, Inc. CONFIDENTIAL
+ * Unpublished Copyright (c) 2017 ShiftLeft, Inc., All Rights Reserved.
+ *
+ * NOTICE: All information contained herein is, and remains the property of ShiftLeft, Inc.
+ * The intellectual and technical concepts contained herein are proprietary to ShiftLeft, Inc.
+ * and may be covered by U.S. and Foreign Patents, patents in process, and are protected by
+ * trade secret or copyright law. Dissemination of this information or reproduction of this
+ * material is strictly forbidden unless prior written permission is obtained
+ * from ShiftLeft, Inc. Access to the source code contained herein is hereby forbidden to
+ * anyone except current ShiftLeft, Inc. employees, managers or contractors who have executed
+ * Confidentiality and Non-disclosure agreements explicitly covering such access.
+ *
+ * The copyright notice above does not evidence any actual or intended publication or disclosure
+ * of this source code, which includes information that is confidential and/or proprietary, and
+ * is a trade secret, of ShiftLeft, Inc.
+ *
+ * ANY REPRODUCTION, MODIFICATION, DISTRIBUTION, PUBLIC PERFORMANCE, OR PUBLIC DISPLAY
+ * OF OR THROUGH USE OF THIS SOURCE CODE WITHOUT THE EXPRESS WRITTEN CONSENT OF ShiftLeft, Inc.
+ * IS STRICTLY PROHIBITED, AND IN VIOLATION OF APPLICABLE LAWS AND INTERNATIONAL TREATIES.
+ * THE RECEIPT OR POSSESSION OF THIS SOURCE CODE AND/OR RELATED INFORMATION DOES NOT
+ * CONVEY OR IMPLY ANY RIGHTS TO REPRODUCE, DISCLOSE OR DISTRIBUTE ITS
+ * CONTENTS, OR TO MANUFACTURE, USE, OR SELL ANYTHING THAT IT MAY DESCRIBE, IN WHOLE OR IN PART.
+ */
+package io.shiftleft.bctrace.direct.callsite;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import io.shiftleft.bctrace.BcTraceTest;
+import io.shiftleft.bctrace.TestClass;
+import io.shiftleft.bctrace.TestSuperClass;
+import io.shiftleft.bctrace.asm.util.ASMUtils;
+import io.shiftleft.bctrace.direct.callsite.DirectCallSiteStartTest.ArrayCopyListener;
+import io.shiftleft.bctrace.filter.CallSiteFilter;
+import io.shiftleft.bctrace.hierarchy.UnloadedClass;
+import io.shiftleft.bctrace.hook.DirectCallSiteHook;
+import io.shiftleft.bctrace.hook.Hook;
+import io.shiftleft.bctrace.runtime.listener.direct.$io_shiftleft_bctrace_direct_callsite_CallSiteMethodReferenceTest$SizeListener;
+import io.shiftleft.bctrace.runtime.listener.direct.DirectCallSiteStartListener;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.junit.Test;
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.tree.ClassNode;
+import org.objectweb.asm.tree.MethodInsnNode;
+import org.objectweb.asm.tree.MethodNode;
+
+/**
+ * Classes whose constant pool does not reference the call site of a hook are discarded before
+ * being parsed.
+ *
+ * @author Ignacio del Valle Alles idelvall@shiftleft.io
+ */
+public class CallSiteMethodReferenceTest extends BcTraceTest {
+
+  private static final String ARRAY_COPY_DESCRIPTOR = "(Ljava/lang/Object;ILjava/lang/Object;II)V";
+
+  @Test
+  public void testMethodReferences() throws Exception {
+    List<String> references = Arrays.asList(ASMUtils.getMethodReferences(
+        new ClassReader(InterfaceCaller.class.getName())));
+    assertTrue(references.size() % 3 == 0);
+    assertTrue(containsReference(references, "java/util/List", "size", "()I"));
+    assertTrue(containsReference(references, "java/util/Map", "get",
+        "(Ljava/lang/Object;)Ljava/lang/Object;"));
+    assertTrue(containsReference(references, "java/lang/Object", "<init>", "()V"));
+    assertFalse(containsReference(references, "java/lang/System", "arraycopy",
+        ARRAY_COPY_DESCRIPTOR));
+  }
+
+  @Test
+  public void testReferencingClassInstrumented() throws Exception {
+    RecordingFilter filter = new RecordingFilter("java/lang/System", "arraycopy",
+        ARRAY_COPY_DESCRIPTOR, true);
+    assertTrue(filter.isMethodReferenceFilter());
+    StringBuilder steps = new StringBuilder();
+    Class clazz = getInstrumentClass(TestClass.class, new Hook[]{
+        new DirectCallSiteHook(filter, new ArrayCopyListener(steps, "1"))
+    });
+    assertTrue(filter.queriedMethods > 0);
+    clazz.getMethod("arrayCopyWrapper2").invoke(null);
+    assertEquals("1", steps.toString());
+  }
+
+  @Test
+  public void testNonReferencingClassSkipped() throws Exception {
+    RecordingFilter filter = new RecordingFilter("java/lang/System", "arraycopy",
+        ARRAY_COPY_DESCRIPTOR, true);
+    assertNull(getInstrumentedBytes(TestSuperClass.class, new Hook[]{
+        new DirectCallSiteHook(filter, new ArrayCopyListener(new StringBuilder(), "1"))
+    }));
+    assertEquals(0, filter.queriedMethods);
+  }
+
+  @Test
+  public void testInterfaceMethodReference() throws Exception {
+    RecordingFilter filter = new RecordingFilter("java/util/List", "size", "()I", true);
+    StringBuilder steps = new StringBuilder();
+    Class clazz = getInstrumentClass(InterfaceCaller.class, new Hook[]{
+        new DirectCallSiteHook(filter, new SizeListener(steps))
+    });
+    assertTrue(filter.queriedMethods > 0);
+    Object size = clazz.getMethod("size", List.class, Map.class)
+        .invoke(null, Arrays.asList("a", "b"), new HashMap());
+    assertEquals(1234567890125L, size);
+    assertEquals("1", steps.toString());
+
+    filter = new RecordingFilter("java/util/List", "isEmpty", "()Z", true);
+    assertNull(getInstrumentedBytes(InterfaceCaller.class, new Hook[]{
+        new DirectCallSiteHook(filter, new SizeListener(new StringBuilder()))
+    }));
+    assertEquals(0, filter.queriedMethods);
+  }
+
+  @Test
+  public void testCallSiteFilterNotPrescanned() throws Exception {
+    RecordingFilter filter = new RecordingFilter("java/lang/System", "arraycopy",
+        ARRAY_COPY_DESCRIPTOR, false) {
+      @Override
+      public boolean acceptCallSite(ClassNode cn, MethodNode mn, MethodInsnNode callSite,
+          int lineNumber) {
+        return super.acceptCallSite(cn, mn, callSite, lineNumber);
+      }
+    };
+    assertFalse(filter.isMethodReferenceFilter());
+    getInstrumentedBytes(TestSuperClass.class, new Hook[]{
+        new DirectCallSiteHook(filter, new ArrayCopyListener(new StringBuilder(), "1"))
+    });
+    assertTrue(filter.queriedMethods > 0);
+  }
+
+  private static boolean containsReference(List<String> references, String owner, String name,
+      String descriptor) {
+    for (int i = 0; i < references.size(); i += 3) {
+      if (references.get(i).equals(owner) && references.get(i + 1).equals(name)
+          && references.get(i + 2).equals(descriptor)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Counts the methods it is asked about, so it is known whether the class got parsed
+   */
+  private static class RecordingFilter extends CallSiteFilter {
+
+    private final boolean accept;
+    private int queriedMethods;
+
+    RecordingFilter(String callSiteType, String callSiteMethodName,
+        String callSiteMethodDescriptor, boolean accept) {
+      super(callSiteType, callSiteMethodName, callSiteMethodDescriptor);
+      this.accept = accept;
+    }
+
+    @Override
+    public boolean acceptMethod(UnloadedClass clazz, MethodNode mn) {
+      queriedMethods++;
+      return accept;
+    }
+  }
+
+  public static class SizeListener extends DirectCallSiteStartListener implements
+      $io_shiftleft_bctrace_direct_callsite_CallSiteMethodReferenceTest$SizeListener {
+
+    private final StringBuilder steps;
+
+    public SizeListener(StringBuilder steps) {
+      this.steps = steps;
+    }
+
+    @ListenerMethod
+    public void onStart(Class clazz, Object instance, Object callSiteInstance) {
+      steps.append("1");
+      assertTrue(callSiteInstance instanceof List);
+    }
+  }
+
+  public static class InterfaceCaller {
+
+    public static long size(List list, Map map) {
+      // Long constants take two constant pool slots
+      return list.size() + (map.get("key") == null ? 1234567890123L : 0L);
+    }
+  }
+}
@@ -0,0 +1,104 @@
+/*
+ * ShiftLeft, Inc. CONFIDENTIAL
+ * Unpublished Copyright (c) 2017 ShiftLeft, Inc., All Rights Reserved.
+ *
+ * NOTICE: All information contained herein is, and remains the property of ShiftLeft, Inc.
+ * The intellectual and technical concepts contained herein are proprietary to ShiftLeft, Inc.
+ * and may be covered by U.S. and Foreign Patents, patents in process, and are protected by
+ * trade secret or copyright law. Dissemination of this information or reproduction of this
+ * material is strictly forbidden unless prior written permission is obtained
+ * from ShiftLeft, Inc. Access to the source code contained herein is hereby forbidden to
+ * anyone except current ShiftLeft, Inc. employees, managers or contractors who have executed
+ * Confidentiality and Non-disclosure agreements explicitly covering such access.
+ *
+ * The copyright notice above does not evidence any actual or intended publication or disclosure
+ * of this source code, which includes information that is confidential and/or proprietary, and
+ * is a trade secret, of ShiftLeft, Inc.
+ *
+ * ANY REPRODUCTION, MODIFICATION, DISTRIBUTION, PUBLIC PERFORMANCE, OR PUBLIC DISPLAY
+ * OF OR THROUGH USE OF THIS SOURCE CODE WITHOUT THE EXPRESS WRITTEN CONSENT OF ShiftLeft, Inc.
+ * IS STRICTLY PROHIBITED, AND IN VIOLATION OF APPLICABLE LAWS AND INTERNATIONAL TREATIES.
+ * THE RECEIPT OR POSSESSION OF THIS SOURCE CODE AND/OR RELATED INFORMATION DOES NOT
+ * CONVEY OR IMPLY ANY RIGHTS TO REPRODUCE, DISCLOSE OR DISTRIBUTE ITS
+ * CONTENTS, OR TO MANUFACTURE, USE, OR SELL ANYTHING THAT IT MAY DESCRIBE, IN WHOLE OR IN PART.
+ */
+package io.shiftleft.bctrace.generic.method;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import io.shiftleft.bctrace.BcTraceTest;
+import io.shiftleft.bctrace.TestClass;
+import io.shiftleft.bctrace.asm.TransformationSupport;
+import io.shiftleft.bctrace.filter.MethodFilter.AllFilter;
+import io.shiftleft.bctrace.hierarchy.UnloadedClass;
+import io.shiftleft.bctrace.hook.GenericMethodHook;
+import io.shiftleft.bctrace.hook.Hook;
+import io.shiftleft.bctrace.runtime.CallCounters;
+import io.shiftleft.bctrace.runtime.listener.generic.GenericMethodStartListener;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import org.junit.Test;
+import org.objectweb.asm.tree.MethodNode;
+
+/**
+ * @author Ignacio del Valle Alles idelvall@shiftleft.io
+ */
+public class CallCounterTest extends BcTraceTest {
+
+  @Test
+  public void testCountCalls() throws Exception {
+    final Integer[] methodId = new Integer[1];
+    Class clazz = getInstrumentClass(TestClass.class, new Hook[]{
+        new GenericMethodHook(
+            new AllFilter() {
+              @Override
+              public boolean acceptMethod(UnloadedClass clazz, MethodNode mn) {
+                return mn.name.equals("fact");
+              }
+            },
+            new GenericMethodStartListener() {
+              @Override
+              public void onStart(int id, Class clazz, Object instance, Object[] args) {
+                methodId[0] = id;
+              }
+            }
+        )
+    }, false, true);
+    CallCounters.setEnabled(true);
+    try {
+      assertEquals(120L, clazz.getMethod("fact", long.class).invoke(null, 5L));
+      assertNotNull(methodId[0]);
+      assertEquals(5, CallCounters.getInstance().get(methodId[0]));
+    } finally {
+      CallCounters.setEnabled(false);
+    }
+  }
+
+  /**
+   * The probe would recurse if the classes it uses were instrumented, so they are skipped even if
+   * the ignore lists don't exclude them
+   */
+  @Test
+  public void testProbeDependenciesNotInstrumented() throws Exception {
+    Hook[] hooks = new Hook[]{
+        new GenericMethodHook(
+            new AllFilter(),
+            new GenericMethodStartListener() {
+              @Override
+              public void onStart(int methodId, Class clazz, Object instance, Object[] args) {
+              }
+            }
+        )
+    };
+    assertNull(getInstrumentedBytes(AtomicLongArray.class, hooks, true));
+    assertNull(getInstrumentedBytes(AtomicReferenceArray.class, hooks, true));
+    assertNull(getInstrumentedBytes(Thread.class, hooks, true));
+    assertNotNull(getInstrumentedBytes(TestClass.class, hooks, true));
+    assertFalse(
+        TransformationSupport.isTransformable("java/lang/ThreadLocal$ThreadLocalMap", null));
+    assertFalse(TransformationSupport.isTransformable("sun/misc/Unsafe", null));
+  }
+}
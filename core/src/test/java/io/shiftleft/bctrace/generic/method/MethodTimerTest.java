@@ -0,0 +1,193 @@
+/*
+ * ShiftLeft, Inc. CONFIDENTIAL
+ * Unpublished Copyright (c) 2017 ShiftLeft, Inc., All Rights Reserved.
+ *
+ * NOTICE: All information contained herein is, and remains the property of ShiftLeft, Inc.
+ * The intellectual and technical concepts contained herein are proprietary to ShiftLeft, Inc.
+ * and may be covered by U.S. and Foreign Patents, patents in process, and are protected by
+ * trade secret or copyright law. Dissemination of this information or reproduction of this
+ * material is strictly forbidden unless prior written permission is obtained
+ * from ShiftLeft, Inc. Access to the source code contained herein is hereby forbidden to
+ * anyone except current ShiftLeft, Inc. employees, managers or contractors who have executed
+ * Confidentiality and Non-disclosure agreements explicitly covering such access.
+ *
+ * The copyright notice above does not evidence any actual or intended publication or disclosure
+ * of this source code, which includes information that is confidential and/or proprietary, and
+ * is a trade secret, of ShiftLeft, Inc.
+ *
+ * ANY REPRODUCTION, MODIFICATION, DISTRIBUTION, PUBLIC PERFORMANCE, OR PUBLIC DISPLAY
+ * OF OR THROUGH USE OF THIS SOURCE CODE WITHOUT THE EXPRESS WRITTEN CONSENT OF ShiftLeft, Inc.
+ * IS STRICTLY PROHIBITED, AND IN VIOLATION OF APPLICABLE LAWS AND INTERNATIONAL TREATIES.
+ * THE RECEIPT OR POSSESSION OF THIS SOURCE CODE AND/OR RELATED INFORMATION DOES NOT
+ * CONVEY OR IMPLY ANY RIGHTS TO REPRODUCE, DISCLOSE OR DISTRIBUTE ITS
+ * CONTENTS, OR TO MANUFACTURE, USE, OR SELL ANYTHING THAT IT MAY DESCRIBE, IN WHOLE OR IN PART.
+ */
+package io.shiftleft.bctrace.generic.method;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import io.shiftleft.bctrace.BcTraceTest;
+import io.shiftleft.bctrace.SystemProperty;
+import io.shiftleft.bctrace.TestClass;
+import io.shiftleft.bctrace.TestSuperClass;
+import io.shiftleft.bctrace.TestClass.TestRuntimeException;
+import io.shiftleft.bctrace.filter.MethodFilter.AllFilter;
+import io.shiftleft.bctrace.hierarchy.UnloadedClass;
+import io.shiftleft.bctrace.hook.GenericMethodHook;
+import io.shiftleft.bctrace.hook.Hook;
+import io.shiftleft.bctrace.runtime.LatencyHistogram;
+import io.shiftleft.bctrace.runtime.MethodTimers;
+import io.shiftleft.bctrace.runtime.listener.generic.GenericMethodStartListener;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Member;
+import java.lang.reflect.Method;
+import java.util.HashMap;
+import java.util.Map;
+import org.junit.Test;
+import org.objectweb.asm.tree.MethodNode;
+
+/**
+ * @author Ignacio del Valle Alles idelvall@shiftleft.io
+ */
+public class MethodTimerTest extends BcTraceTest {
+
+  @Test
+  public void testReturnAndThrow() throws Exception {
+    final Map<String, Integer> methodIds = new HashMap<String, Integer>();
+    Class clazz;
+    System.setProperty(SystemProperty.METHOD_TIMING, "true");
+    try {
+      clazz = getInstrumentClass(TestClass.class, new Hook[]{
+          new GenericMethodHook(
+              new AllFilter() {
+                @Override
+                public boolean acceptMethod(UnloadedClass clazz, MethodNode mn) {
+                  return mn.name.equals("getLongWithConditionalException")
+                      || mn.name.equals("concatenateStringArrays") || mn.name.equals("fact");
+                }
+              },
+              new GenericMethodStartListener() {
+                @Override
+                public void onStart(int methodId, Class clazz, Object instance, Object[] args) {
+                  methodIds.put(args.length == 1 && args[0] instanceof Long ? "fact"
+                      : String.valueOf(args.length), methodId);
+                }
+              }
+          )
+      });
+    } finally {
+      System.clearProperty(SystemProperty.METHOD_TIMING);
+    }
+    MethodTimers.setEnabled(true);
+    try {
+      Method method = clazz.getMethod("getLongWithConditionalException", boolean.class);
+      assertEquals(1L, method.invoke(null, false));
+      boolean captured = false;
+      try {
+        method.invoke(null, true);
+      } catch (InvocationTargetException ite) {
+        captured = ite.getTargetException() instanceof TestRuntimeException;
+      }
+      assertTrue("Expected exception", captured);
+      String[] array = (String[]) clazz.getMethod("concatenateStringArrays", String[].class,
+          String[].class).invoke(null, new String[]{"a"}, new String[]{"b", "c"});
+      assertEquals(3, array.length);
+      assertEquals(120L, clazz.getMethod("fact", long.class).invoke(null, 5L));
+
+      assertEquals(2, getSnapshot(methodIds.get("1")).getCount());
+      assertEquals(1, getSnapshot(methodIds.get("2")).getCount());
+      assertEquals(5, getSnapshot(methodIds.get("fact")).getCount());
+    } finally {
+      MethodTimers.setEnabled(false);
+    }
+  }
+
+  @Test
+  public void testInstanceMethodAndConstructor() throws Exception {
+    final Map<Integer, Integer> methodIds = new HashMap<Integer, Integer>();
+    Class clazz;
+    System.setProperty(SystemProperty.METHOD_TIMING, "true");
+    try {
+      clazz = getInstrumentClass(Timed.class, new Hook[]{
+          new GenericMethodHook(
+              new AllFilter() {
+                @Override
+                public boolean acceptMethod(UnloadedClass clazz, MethodNode mn) {
+                  return mn.name.equals("<init>") || mn.name.equals("getLong");
+                }
+              },
+              new GenericMethodStartListener() {
+                @Override
+                public void onStart(int methodId, Class clazz, Object instance, Object[] args) {
+                  // 1 argument for the constructor, 2 for the method
+                  methodIds.put(args.length, methodId);
+                }
+              }
+          )
+      });
+    } finally {
+      System.clearProperty(SystemProperty.METHOD_TIMING);
+    }
+    MethodTimers.setEnabled(true);
+    try {
+      Constructor constructor = clazz.getConstructor(boolean.class);
+      Object instance = constructor.newInstance(false);
+      assertThrows(constructor, null, true);
+      Method method = clazz.getMethod("getLong", String.class, boolean.class);
+      assertEquals(1L, method.invoke(instance, "a", false));
+      assertEquals(1L, method.invoke(instance, "b", false));
+      assertThrows(method, instance, "c", true);
+
+      assertEquals(2, getSnapshot(methodIds.get(1)).getCount());
+      assertEquals(3, getSnapshot(methodIds.get(2)).getCount());
+    } finally {
+      MethodTimers.setEnabled(false);
+    }
+  }
+
+  private static void assertThrows(Member member, Object instance, Object... args)
+      throws Exception {
+    boolean captured = false;
+    try {
+      if (member instanceof Constructor) {
+        ((Constructor) member).newInstance(args);
+      } else {
+        ((Method) member).invoke(instance, args);
+      }
+    } catch (InvocationTargetException ite) {
+      captured = ite.getTargetException() instanceof TestRuntimeException;
+    }
+    assertTrue("Expected exception", captured);
+  }
+
+  private static LatencyHistogram.Snapshot getSnapshot(Integer methodId) {
+    assertNotNull(methodId);
+    LatencyHistogram histogram = MethodTimers.getInstance().getHistogram(methodId);
+    assertNotNull(histogram);
+    return histogram.snapshot();
+  }
+
+  public static class Timed extends TestSuperClass {
+
+    /**
+     * The handler of the timer probe has to start after the call to the super constructor, since
+     * the instance is not initialized before
+     */
+    public Timed(boolean throwException) {
+      super(String.valueOf(throwException));
+      if (throwException) {
+        throw new TestRuntimeException(TestClass.RTE_MESSAGE);
+      }
+    }
+
+    public long getLong(String name, boolean throwException) {
+      if (throwException) {
+        throw new TestRuntimeException(name);
+      }
+      return 1;
+    }
+  }
+}
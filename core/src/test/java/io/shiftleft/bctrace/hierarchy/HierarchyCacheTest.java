@@ -0,0 +1,133 @@
+/*
+ * ShiftLeft, Inc. CONFIDENTIAL
+ * Unpublished Copyright (c) 2017 ShiftLeft, Inc., All Rights Reserved.
+ *
+ * NOTICE: All information contained herein is, and remains the property of ShiftLeft, Inc.
+ * The intellectual and technical concepts contained herein are proprietary to ShiftLeft, Inc.
+ * and may be covered by U.S. and Foreign Patents, patents in process, and are protected by
+ * trade secret or copyright law. Dissemination of this information or reproduction of this
+ * material is strictly forbidden unless prior written permission is obtained
+ * from ShiftLeft, Inc. Access to the source code contained herein is hereby forbidden to
+ * anyone except current ShiftLeft, Inc. employees, managers or contractors who have executed
+ * Confidentiality and Non-disclosure agreements explicitly covering such access.
+ *
+ * The copyright notice above does not evidence any actual or intended publication or disclosure
+ * of this source code, which includes information that is confidential and/or proprietary, and
+ * is a trade secret, of ShiftLeft, Inc.
+ *
+ * ANY REPRODUCTION, MODIFICATION, DISTRIBUTION, PUBLIC PERFORMANCE, OR PUBLIC DISPLAY
+ * OF OR THROUGH USE OF THIS SOURCE CODE WITHOUT THE EXPRESS WRITTEN CONSENT OF ShiftLeft, Inc.
+ * IS STRICTLY PROHIBITED, AND IN VIOLATION OF APPLICABLE LAWS AND INTERNATIONAL TREATIES.
+ * THE RECEIPT OR POSSESSION OF THIS SOURCE CODE AND/OR RELATED INFORMATION DOES NOT
+ * CONVEY OR IMPLY ANY RIGHTS TO REPRODUCE, DISCLOSE OR DISTRIBUTE ITS
+ * CONTENTS, OR TO MANUFACTURE, USE, OR SELL ANYTHING THAT IT MAY DESCRIBE, IN WHOLE OR IN PART.
+ */
+package io.shiftleft.bctrace.hierarchy;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import io.shiftleft.bctrace.InstrumentationImpl;
+import org.junit.Test;
+import org.objectweb.asm.ClassReader;
+
+/**
+ * @author Ignacio del Valle Alles idelvall@shiftleft.io
+ */
+public class HierarchyCacheTest {
+
+  @Test
+  public void testHierarchyResolvedOnce() {
+    HierarchyCache cache = HierarchyCache.getInstance();
+    ClassLoader cl = new ClassLoader(getClass().getClassLoader()) {
+    };
+    InstrumentationImpl inst = new InstrumentationImpl(null);
+
+    BctraceClass bc = BctraceClass.from("java.util.ArrayList", cl, inst);
+    assertTrue(bc.isInstanceOf("java.util.Collection"));
+    assertFalse(bc.isInstanceOf("java.util.Map"));
+
+    long misses = cache.getMisses();
+    long hits = cache.getHits();
+    bc = BctraceClass.from("java.util.ArrayList", cl, inst);
+    assertTrue(bc.isInstanceOf("java.util.Collection"));
+    assertEquals(misses, cache.getMisses());
+    assertTrue(cache.getHits() > hits);
+    assertSame(cache.get("java.util.ArrayList", cl), cache.get("java.util.ArrayList", cl));
+  }
+
+  @Test
+  public void testUnloadedClassFromHeader() throws Exception {
+    ClassLoader cl = new ClassLoader(getClass().getClassLoader()) {
+    };
+    InstrumentationImpl inst = new InstrumentationImpl(null);
+    ClassReader cr = new ClassReader("java.util.ArrayList");
+    TypeInfo typeInfo = HierarchyCache.getInstance().put(TypeInfo.from(cr), cl);
+
+    UnloadedClass uc = new UnloadedClass(typeInfo, cl, cr, inst);
+    assertTrue(uc.isInstanceOf("java.util.List"));
+    assertFalse(uc.isInstanceOf("java.util.Set"));
+    assertSame(typeInfo.getAncestors(), BctraceClass.from("java.util.ArrayList", cl, inst)
+        .getAncestors());
+    assertEquals("java/util/ArrayList", uc.getClassNode().name);
+  }
+
+  @Test
+  public void testUnresolvedClassRemembered() {
+    HierarchyCache cache = HierarchyCache.getInstance();
+    ClassLoader cl = new ClassLoader(getClass().getClassLoader()) {
+    };
+    InstrumentationImpl inst = new InstrumentationImpl(null);
+
+    assertTrue(BctraceClass.from("foo.Missing", cl, inst) instanceof UnresolvedClass);
+    assertTrue(cache.isUnresolved("foo.Missing", cl));
+    assertFalse(cache.isUnresolved("foo.Missing", getClass().getClassLoader()));
+
+    long unresolvedHits = cache.getUnresolvedHits();
+    assertTrue(BctraceClass.from("foo.Missing", cl, inst) instanceof UnresolvedClass);
+    assertEquals(unresolvedHits + 1, cache.getUnresolvedHits());
+
+    inst.addLoadedClass("foo.Missing", getClass().getClassLoader());
+    assertFalse(cache.isUnresolved("foo.Missing", cl));
+  }
+
+  @Test
+  public void testAncestorsRecomputedOnceSuperClassDefined() {
+    HierarchyCache cache = HierarchyCache.getInstance();
+    ClassLoader cl = new ClassLoader(getClass().getClassLoader()) {
+    };
+    InstrumentationImpl inst = new InstrumentationImpl(null);
+    cache.put(new TypeInfo("foo.Sub", 0, "foo.Base", null), cl);
+
+    BctraceClass sub = BctraceClass.from("foo.Sub", cl, inst);
+    assertTrue(sub.isInstanceOf("foo.Base"));
+    assertFalse(sub.isInstanceOf("java.io.Serializable"));
+    assertNull(cache.get("foo.Sub", cl).getAncestors());
+
+    cache.put(new TypeInfo("foo.Base", 0, "java.lang.Object",
+        new String[]{"java.io.Serializable"}), cl);
+    inst.addLoadedClass("foo.Base", cl);
+    sub = BctraceClass.from("foo.Sub", cl, inst);
+    assertTrue(sub.isInstanceOf("java.io.Serializable"));
+    assertNotNull(cache.get("foo.Sub", cl).getAncestors());
+  }
+
+  @Test
+  public void testEvictedWhenClassLoaderCollected() throws Exception {
+    HierarchyCache cache = HierarchyCache.getInstance();
+    ClassLoader cl = new ClassLoader(getClass().getClassLoader()) {
+    };
+    cache.put(new TypeInfo("foo.Bar", 0, "java.lang.Object", null), cl);
+    int count = cache.getClassLoaderCount();
+    cl = null;
+    for (int i = 0; i < 50 && cache.getClassLoaderCount() >= count; i++) {
+      System.gc();
+      Thread.sleep(10);
+    }
+    assertTrue(cache.getClassLoaderCount() < count);
+  }
+}
@@ -0,0 +1,154 @@
+/*
+ * ShiftLeft, Inc. CONFIDENTIAL
+ * Unpublished Copyright (c) 2017 ShiftLeft, Inc., All Rights Reserved.
+ *
+ * NOTICE: All information contained herein is, and remains the property of ShiftLeft, Inc.
+ * The intellectual and technical concepts contained herein are proprietary to ShiftLeft, Inc.
+ * and may be covered by U.S. and Foreign Patents, patents in process, and are protected by
+ * trade secret or copyright law. Dissemination of this information or reproduction of this
+ * material is strictly forbidden unless prior written permission is obtained
+ * from ShiftLeft, Inc. Access to the source code contained herein is hereby forbidden to
+ * anyone except current ShiftLeft, Inc. employees, managers or contractors who have executed
+ * Confidentiality and Non-disclosure agreements explicitly covering such access.
+ *
+ * The copyright notice above does not evidence any actual or intended publication or disclosure
+ * of this source code, which includes information that is confidential and/or proprietary, and
+ * is a trade secret, of ShiftLeft, Inc.
+ *
+ * ANY REPRODUCTION, MODIFICATION, DISTRIBUTION, PUBLIC PERFORMANCE, OR PUBLIC DISPLAY
+ * OF OR THROUGH USE OF THIS SOURCE CODE WITHOUT THE EXPRESS WRITTEN CONSENT OF ShiftLeft, Inc.
+ * IS STRICTLY PROHIBITED, AND IN VIOLATION OF APPLICABLE LAWS AND INTERNATIONAL TREATIES.
+ * THE RECEIPT OR POSSESSION OF THIS SOURCE CODE AND/OR RELATED INFORMATION DOES NOT
+ * CONVEY OR IMPLY ANY RIGHTS TO REPRODUCE, DISCLOSE OR DISTRIBUTE ITS
+ * CONTENTS, OR TO MANUFACTURE, USE, OR SELL ANYTHING THAT IT MAY DESCRIBE, IN WHOLE OR IN PART.
+ */
+package io.shiftleft.bctrace.hierarchy;
+
+import io.shiftleft.bctrace.InstrumentationImpl;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * Compares subtype queries answered by the memoized ancestor sets with a recursive walk of the
+ * hierarchy, over the Swing, AWT and collections classes of the running JRE (rt.jar), a corpus with
+ * deep and diamond shaped interface hierarchies.
+ * <br><br>
+ * Usage: IsInstanceOfBenchmark [iterations]
+ *
+ * @author Ignacio del Valle Alles idelvall@shiftleft.io
+ */
+public class IsInstanceOfBenchmark {
+
+  private static final String[] PACKAGES = {"javax/swing/", "java/awt/", "java/util/",
+      "java/beans/"};
+
+  private static final String[] QUERIES = {"java.util.Collection", "javax.swing.JComponent",
+      "java.io.Serializable", "java.util.EventListener", "javax.accessibility.Accessible",
+      "javax.servlet.Servlet"};
+
+  public static void main(String[] args) throws Exception {
+    int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 20;
+    List<String> corpus = readCorpus();
+    if (corpus.isEmpty()) {
+      System.err.println("rt.jar not found in " + System.getProperty("java.home"));
+      return;
+    }
+    ClassLoader cl = IsInstanceOfBenchmark.class.getClassLoader();
+    InstrumentationImpl inst = new InstrumentationImpl(null);
+    List<BctraceClass> classes = new ArrayList<BctraceClass>(corpus.size());
+    long start = System.nanoTime();
+    for (String name : corpus) {
+      classes.add(BctraceClass.from(name, cl, inst));
+    }
+    System.out.println(corpus.size() + " classes resolved in "
+        + (System.nanoTime() - start) / 1000000 + " ms");
+
+    for (int round = 0; round < 3; round++) {
+      long walkMatches = 0;
+      start = System.nanoTime();
+      for (int it = 0; it < iterations; it++) {
+        for (int i = 0; i < classes.size(); i++) {
+          for (int q = 0; q < QUERIES.length; q++) {
+            if (walk(classes.get(i), QUERIES[q])) {
+              walkMatches++;
+            }
+          }
+        }
+      }
+      long walkNanos = System.nanoTime() - start;
+
+      long setMatches = 0;
+      start = System.nanoTime();
+      for (int it = 0; it < iterations; it++) {
+        for (int i = 0; i < classes.size(); i++) {
+          for (int q = 0; q < QUERIES.length; q++) {
+            if (classes.get(i).isInstanceOf(QUERIES[q])) {
+              setMatches++;
+            }
+          }
+        }
+      }
+      long setNanos = System.nanoTime() - start;
+      long queries = (long) iterations * classes.size() * QUERIES.length;
+      System.out.println("round " + round + ": " + queries + " queries. recursive walk "
+          + walkNanos / queries + " ns/query (" + walkMatches + " matches), ancestor set "
+          + setNanos / queries + " ns/query (" + setMatches + " matches)");
+    }
+    System.out.println("hierarchy cache: " + HierarchyCache.getInstance().size() + " entries, "
+        + HierarchyCache.getInstance().getHits() + " hits, "
+        + HierarchyCache.getInstance().getMisses() + " misses");
+  }
+
+  /**
+   * Previous implementation of isInstanceOf
+   */
+  private static boolean walk(BctraceClass bc, String typeName) {
+    if (bc.getName().equals(typeName)) {
+      return true;
+    }
+    BctraceClass superClass = bc.getSuperClass();
+    if (superClass != null && walk(superClass, typeName)) {
+      return true;
+    }
+    BctraceClass[] interfaces = bc.getInterfaces();
+    if (interfaces != null) {
+      for (int i = 0; i < interfaces.length; i++) {
+        if (interfaces[i] != null && walk(interfaces[i], typeName)) {
+          return true;
+        }
+      }
+    }
+    return false;
+  }
+
+  private static List<String> readCorpus() throws Exception {
+    List<String> ret = new ArrayList<String>();
+    File rtJar = new File(System.getProperty("java.home"), "lib/rt.jar");
+    if (!rtJar.exists()) {
+      return ret;
+    }
+    ZipFile zf = new ZipFile(rtJar);
+    try {
+      Enumeration<? extends ZipEntry> entries = zf.entries();
+      while (entries.hasMoreElements()) {
+        String name = entries.nextElement().getName();
+        if (!name.endsWith(".class")) {
+          continue;
+        }
+        for (int i = 0; i < PACKAGES.length; i++) {
+          if (name.startsWith(PACKAGES[i])) {
+            ret.add(name.substring(0, name.length() - 6).replace('/', '.'));
+            break;
+          }
+        }
+      }
+    } finally {
+      zf.close();
+    }
+    return ret;
+  }
+}
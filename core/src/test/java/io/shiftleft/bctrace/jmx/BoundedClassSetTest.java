@@ -0,0 +1,74 @@
+/*
+ * ShiftLeft, Inc. CONFIDENTIAL
+ * Unpublished Copyright (c) 2017 ShiftLeft, Inc., All Rights Reserved.
+ *
+ * NOTICE: All information contained herein is, and remains the property of ShiftLeft, Inc.
+ * The intellectual and technical concepts contained herein are proprietary to ShiftLeft, Inc.
+ * and may be covered by U.S. and Foreign Patents, patents in process, and are protected by
+ * trade secret or copyright law. Dissemination of this information or reproduction of this
+ * material is strictly forbidden unless prior written permission is obtained
+ * from ShiftLeft, Inc. Access to the source code contained herein is hereby forbidden to
+ * anyone except current ShiftLeft, Inc. employees, managers or contractors who have executed
+ * Confidentiality and Non-disclosure agreements explicitly covering such access.
+ *
+ * The copyright notice above does not evidence any actual or intended publication or disclosure
+ * of this source code, which includes information that is confidential and/or proprietary, and
+ * is a trade secret, of ShiftLeft, Inc.
+ *
+ * ANY REPRODUCTION, MODIFICATION, DISTRIBUTION, PUBLIC PERFORMANCE, OR PUBLIC DISPLAY
+ * OF OR THROUGH USE OF THIS SOURCE CODE WITHOUT THE EXPRESS WRITTEN CONSENT OF ShiftLeft, Inc.
+ * IS STRICTLY PROHIBITED, AND IN VIOLATION OF APPLICABLE LAWS AND INTERNATIONAL TREATIES.
+ * THE RECEIPT OR POSSESSION OF THIS SOURCE CODE AND/OR RELATED INFORMATION DOES NOT
+ * CONVEY OR IMPLY ANY RIGHTS TO REPRODUCE, DISCLOSE OR DISTRIBUTE ITS
+ * CONTENTS, OR TO MANUFACTURE, USE, OR SELL ANYTHING THAT IT MAY DESCRIBE, IN WHOLE OR IN PART.
+ */
+package io.shiftleft.bctrace.jmx;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.HashSet;
+import java.util.Set;
+import org.junit.Test;
+
+/**
+ * @author Ignacio del Valle Alles idelvall@shiftleft.io
+ */
+public class BoundedClassSetTest {
+
+  @Test
+  public void testMostRecentKept() {
+    BoundedClassSet set = new BoundedClassSet(100);
+    for (int i = 0; i < 1000; i++) {
+      set.add("a/Class" + i, 1);
+      set.add("a/Class" + i, 1);
+    }
+    assertEquals(128, set.size());
+    Set<String> names = new HashSet<String>();
+    for (BoundedClassSet.Entry entry : set.entries()) {
+      names.add(entry.getClassName());
+    }
+    assertTrue(names.contains("a/Class999"));
+    assertTrue(names.contains("a/Class872"));
+    assertTrue(!names.contains("a/Class871"));
+  }
+
+  @Test
+  public void testClassLoaderIds() {
+    ClassLoaderIds ids = new ClassLoaderIds();
+    ClassLoader cl1 = new URLClassLoader(new URL[0]);
+    ClassLoader cl2 = new URLClassLoader(new URL[0]);
+    assertEquals(0, ids.getId(null));
+    int id1 = ids.getId(cl1);
+    int id2 = ids.getId(cl2);
+    assertNotEquals(id1, id2);
+    assertEquals(id1, ids.getId(cl1));
+    assertEquals(id2, ids.getId(cl2));
+    assertEquals(String.valueOf(cl1), ids.getDescription(id1));
+    assertEquals("null", ids.getDescription(0));
+    assertEquals(3, ids.size());
+  }
+}
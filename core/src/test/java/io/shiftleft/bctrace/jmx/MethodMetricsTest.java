@@ -0,0 +1,120 @@
+/*
+ * ShiftLeft, Inc. CONFIDENTIAL
+ * Unpublished Copyright (c) 2017 ShiftLeft, Inc., All Rights Reserved.
+ *
+ * NOTICE: All information contained herein is, and remains the property of ShiftLeft, Inc.
+ * The intellectual and technical concepts contained herein are proprietary to ShiftLeft, Inc.
+ * and may be covered by U.S. and Foreign Patents, patents in process, and are protected by
+ * trade secret or copyright law. Dissemination of this information or reproduction of this
+ * material is strictly forbidden unless prior written permission is obtained
+ * from ShiftLeft, Inc. Access to the source code contained herein is hereby forbidden to
+ * anyone except current ShiftLeft, Inc. employees, managers or contractors who have executed
+ * Confidentiality and Non-disclosure agreements explicitly covering such access.
+ *
+ * The copyright notice above does not evidence any actual or intended publication or disclosure
+ * of this source code, which includes information that is confidential and/or proprietary, and
+ * is a trade secret, of ShiftLeft, Inc.
+ *
+ * ANY REPRODUCTION, MODIFICATION, DISTRIBUTION, PUBLIC PERFORMANCE, OR PUBLIC DISPLAY
+ * OF OR THROUGH USE OF THIS SOURCE CODE WITHOUT THE EXPRESS WRITTEN CONSENT OF ShiftLeft, Inc.
+ * IS STRICTLY PROHIBITED, AND IN VIOLATION OF APPLICABLE LAWS AND INTERNATIONAL TREATIES.
+ * THE RECEIPT OR POSSESSION OF THIS SOURCE CODE AND/OR RELATED INFORMATION DOES NOT
+ * CONVEY OR IMPLY ANY RIGHTS TO REPRODUCE, DISCLOSE OR DISTRIBUTE ITS
+ * CONTENTS, OR TO MANUFACTURE, USE, OR SELL ANYTHING THAT IT MAY DESCRIBE, IN WHOLE OR IN PART.
+ */
+package io.shiftleft.bctrace.jmx;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import io.shiftleft.bctrace.MethodInfo;
+import io.shiftleft.bctrace.MethodRegistry;
+import io.shiftleft.bctrace.runtime.CallCounters;
+import java.util.ArrayList;
+import java.util.List;
+import javax.management.openmbean.CompositeData;
+import javax.management.openmbean.TabularData;
+import org.junit.Test;
+
+/**
+ * @author Ignacio del Valle Alles idelvall@shiftleft.io
+ */
+public class MethodMetricsTest {
+
+  @Test
+  public void testPages() {
+    MethodRegistry mr = MethodRegistry.getInstance();
+    MethodMetrics metrics = MethodMetrics.getInstance();
+    int[] ids = new int[10];
+    for (int i = 0; i < ids.length; i++) {
+      ids[i] = mr.registerMethodId(new MethodInfo("paged/Class" + (i % 2), "m" + i, "()V", 1));
+      if (i % 3 != 0) {
+        metrics.reportInstrumented(ids[i]);
+      }
+    }
+    CallCounters.setEnabled(true);
+    try {
+      for (int i = 0; i < ids.length; i++) {
+        for (int c = 0; c < i; c++) {
+          CallCounters.onCall(ids[i]);
+        }
+      }
+      // paged/Class1: m1, m3, m5, m7, m9
+      assertEquals(toList(ids[3], ids[5]),
+          getIds(metrics.getMethodRegistryPage("paged.Class1", null, false, 1, 2)));
+      assertEquals(toList(ids[9], ids[7]),
+          getIds(metrics.getMethodRegistryPage("paged/Class1", "m", true, 0, 2)));
+      assertEquals(toList(ids[5], ids[4]),
+          getIds(metrics.getInstrumentedMethodsPage("paged/", null, true, 2, 2)));
+      assertEquals(toList(ids[1], ids[2], ids[4]),
+          getIds(metrics.getInstrumentedMethodsPage("paged/", null, false, 0, 3)));
+      TabularData page = metrics.getMethodRegistryPage("paged/Class0", "m8", false, 0, 10);
+      CompositeData row = (CompositeData) page.values().iterator().next();
+      assertEquals("paged/Class0", row.get("class"));
+      assertEquals("()V", row.get("descriptor"));
+      assertEquals(8L, row.get("calls"));
+      assertTrue(metrics.isInstrumented(ids[1]));
+      assertTrue(!metrics.isInstrumented(ids[3]));
+    } finally {
+      CallCounters.setEnabled(false);
+    }
+    assertEquals(-1L, ((CompositeData) metrics.getMethodRegistryPage("paged/", "m8", true, 0, 1)
+        .values().iterator().next()).get("calls"));
+  }
+
+  @Test
+  public void testPageBounds() {
+    MethodRegistry mr = MethodRegistry.getInstance();
+    MethodMetrics metrics = MethodMetrics.getInstance();
+    int id = mr.registerMethodId(new MethodInfo("bounded/Class", "m", "()V", 1));
+    CallCounters.setEnabled(true);
+    try {
+      assertTrue(metrics.getMethodRegistryPage("bounded/", null, true,
+          Integer.MAX_VALUE - MethodMetrics.MAX_PAGE_SIZE, Integer.MAX_VALUE).isEmpty());
+      assertTrue(metrics.getMethodRegistryPage("bounded/", null, true, Integer.MAX_VALUE,
+          Integer.MAX_VALUE).isEmpty());
+      assertTrue(metrics.getMethodRegistryPage("bounded/", null, false, Integer.MAX_VALUE,
+          Integer.MAX_VALUE).isEmpty());
+      assertEquals(toList(id), getIds(metrics.getMethodRegistryPage("bounded/", null, true,
+          Integer.MIN_VALUE, Integer.MAX_VALUE)));
+    } finally {
+      CallCounters.setEnabled(false);
+    }
+  }
+
+  private static List<Integer> getIds(TabularData page) {
+    List<Integer> ret = new ArrayList<Integer>();
+    for (Object row : page.values()) {
+      ret.add((Integer) ((CompositeData) row).get("id"));
+    }
+    return ret;
+  }
+
+  private static List<Integer> toList(int... ids) {
+    List<Integer> ret = new ArrayList<Integer>();
+    for (int i = 0; i < ids.length; i++) {
+      ret.add(ids[i]);
+    }
+    return ret;
+  }
+}
@@ -0,0 +1,93 @@
+/*
+ * ShiftLeft, Inc. CONFIDENTIAL
+ * Unpublished Copyright (c) 2017 ShiftLeft, Inc., All Rights Reserved.
+ *
+ * NOTICE: All information contained herein is, and remains the property of ShiftLeft, Inc.
+ * The intellectual and technical concepts contained herein are proprietary to ShiftLeft, Inc.
+ * and may be covered by U.S. and Foreign Patents, patents in process, and are protected by
+ * trade secret or copyright law. Dissemination of this information or reproduction of this
+ * material is strictly forbidden unless prior written permission is obtained
+ * from ShiftLeft, Inc. Access to the source code contained herein is hereby forbidden to
+ * anyone except current ShiftLeft, Inc. employees, managers or contractors who have executed
+ * Confidentiality and Non-disclosure agreements explicitly covering such access.
+ *
+ * The copyright notice above does not evidence any actual or intended publication or disclosure
+ * of this source code, which includes information that is confidential and/or proprietary, and
+ * is a trade secret, of ShiftLeft, Inc.
+ *
+ * ANY REPRODUCTION, MODIFICATION, DISTRIBUTION, PUBLIC PERFORMANCE, OR PUBLIC DISPLAY
+ * OF OR THROUGH USE OF THIS SOURCE CODE WITHOUT THE EXPRESS WRITTEN CONSENT OF ShiftLeft, Inc.
+ * IS STRICTLY PROHIBITED, AND IN VIOLATION OF APPLICABLE LAWS AND INTERNATIONAL TREATIES.
+ * THE RECEIPT OR POSSESSION OF THIS SOURCE CODE AND/OR RELATED INFORMATION DOES NOT
+ * CONVEY OR IMPLY ANY RIGHTS TO REPRODUCE, DISCLOSE OR DISTRIBUTE ITS
+ * CONTENTS, OR TO MANUFACTURE, USE, OR SELL ANYTHING THAT IT MAY DESCRIBE, IN WHOLE OR IN PART.
+ */
+package io.shiftleft.bctrace.jmx;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import io.shiftleft.bctrace.MethodInfo;
+import io.shiftleft.bctrace.MethodRegistry;
+import io.shiftleft.bctrace.runtime.CallCounters;
+import io.shiftleft.bctrace.runtime.HotMethods;
+import io.shiftleft.bctrace.util.Utils;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import org.junit.Test;
+
+/**
+ * @author Ignacio del Valle Alles idelvall@shiftleft.io
+ */
+public class MetricsHttpServerTest {
+
+  @Test
+  public void testScrape() throws Exception {
+    int coldId = MethodRegistry.getInstance()
+        .registerMethodId(new MethodInfo("a/Cold", "run", "()V", 1));
+    int hotId = MethodRegistry.getInstance()
+        .registerMethodId(new MethodInfo("a/Hot\"", "run", "(I)V", 1));
+    CallCounters.setEnabled(true);
+    HotMethods.setCallTrackingEnabled(true);
+    int port = MetricsHttpServer.start(0);
+    try {
+      assertTrue(port > 0);
+      CallCounters.onCall(coldId);
+      HotMethods.setCallTrackingEnabled(false);
+      HotMethods.setCallTrackingEnabled(true);
+      CallCounters.onCall(hotId);
+      CallCounters.onCall(hotId);
+
+      String all = get(port, "/metrics?methods=all");
+      assertTrue(all.contains("# TYPE bctrace_method_calls_total counter\n"));
+      assertTrue(all.contains("bctrace_method_calls_total{id=\"" + coldId
+          + "\",class=\"a/Cold\",method=\"run()V\"} 1\n"));
+      assertTrue(all.contains("bctrace_method_calls_total{id=\"" + hotId
+          + "\",class=\"a/Hot\\\"\",method=\"run(I)V\"} 2\n"));
+      assertTrue(all.contains("bctrace_hot_method_calls{id=\"" + hotId));
+
+      String hot = get(port, "/metrics");
+      assertTrue(hot.contains("bctrace_method_calls_total{id=\"" + hotId));
+      assertTrue(!hot.contains("bctrace_method_calls_total{id=\"" + coldId));
+      assertTrue(hot.contains("bctrace_transformations_total "));
+    } finally {
+      MetricsHttpServer.stop();
+      CallCounters.setEnabled(false);
+      HotMethods.setCallTrackingEnabled(false);
+    }
+  }
+
+  private static String get(int port, String path) throws Exception {
+    HttpURLConnection conn = (HttpURLConnection) new URL("http://127.0.0.1:" + port + path)
+        .openConnection();
+    assertEquals(200, conn.getResponseCode());
+    assertTrue(conn.getContentType().startsWith("text/plain"));
+    InputStream is = conn.getInputStream();
+    try {
+      return new String(Utils.toByteArray(is), "UTF-8");
+    } finally {
+      is.close();
+    }
+  }
+}
@@ -0,0 +1,105 @@
+/*
+ * ShiftLeft, Inc. CONFIDENTIAL
+ * Unpublished Copyright (c) 2017 ShiftLeft, Inc., All Rights Reserved.
+ *
+ * NOTICE: All information contained herein is, and remains the property of ShiftLeft, Inc.
+ * The intellectual and technical concepts contained herein are proprietary to ShiftLeft, Inc.
+ * and may be covered by U.S. and Foreign Patents, patents in process, and are protected by
+ * trade secret or copyright law. Dissemination of this information or reproduction of this
+ * material is strictly forbidden unless prior written permission is obtained
+ * from ShiftLeft, Inc. Access to the source code contained herein is hereby forbidden to
+ * anyone except current ShiftLeft, Inc. employees, managers or contractors who have executed
+ * Confidentiality and Non-disclosure agreements explicitly covering such access.
+ *
+ * The copyright notice above does not evidence any actual or intended publication or disclosure
+ * of this source code, which includes information that is confidential and/or proprietary, and
+ * is a trade secret, of ShiftLeft, Inc.
+ *
+ * ANY REPRODUCTION, MODIFICATION, DISTRIBUTION, PUBLIC PERFORMANCE, OR PUBLIC DISPLAY
+ * OF OR THROUGH USE OF THIS SOURCE CODE WITHOUT THE EXPRESS WRITTEN CONSENT OF ShiftLeft, Inc.
+ * IS STRICTLY PROHIBITED, AND IN VIOLATION OF APPLICABLE LAWS AND INTERNATIONAL TREATIES.
+ * THE RECEIPT OR POSSESSION OF THIS SOURCE CODE AND/OR RELATED INFORMATION DOES NOT
+ * CONVEY OR IMPLY ANY RIGHTS TO REPRODUCE, DISCLOSE OR DISTRIBUTE ITS
+ * CONTENTS, OR TO MANUFACTURE, USE, OR SELL ANYTHING THAT IT MAY DESCRIBE, IN WHOLE OR IN PART.
+ */
+package io.shiftleft.bctrace.jmx;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import io.shiftleft.bctrace.MethodInfo;
+import io.shiftleft.bctrace.MethodRegistry;
+import io.shiftleft.bctrace.runtime.CallCounters;
+import java.util.Iterator;
+import javax.management.openmbean.CompositeData;
+import javax.management.openmbean.TabularData;
+import org.junit.Test;
+
+/**
+ * @author Ignacio del Valle Alles idelvall@shiftleft.io
+ */
+public class MetricsSnapshotsTest {
+
+  @Test
+  public void testDeltas() throws Exception {
+    MethodRegistry mr = MethodRegistry.getInstance();
+    int busy = mr.registerMethodId(new MethodInfo("snapshots/Busy", "run", "()V", 1));
+    int idle = mr.registerMethodId(new MethodInfo("snapshots/Idle", "run", "()V", 1));
+    CallCounters.setEnabled(true);
+    try {
+      for (int i = 0; i < 5; i++) {
+        CallCounters.onCall(busy);
+      }
+      CallCounters.onCall(idle);
+      MetricsSnapshots snapshots = new MetricsSnapshots(1000);
+      snapshots.reset();
+      assertEquals(0, snapshots.getIntervalCount());
+      assertEquals(0, snapshots.getCallRate(busy, 60), 0);
+
+      for (int i = 0; i < 10; i++) {
+        CallCounters.onCall(busy);
+      }
+      CallCounters.onCall(idle);
+      Thread.sleep(20);
+      snapshots.capture();
+      for (int i = 0; i < 20; i++) {
+        CallCounters.onCall(busy);
+      }
+      Thread.sleep(20);
+      snapshots.capture();
+      assertEquals(2, snapshots.getIntervalCount());
+
+      TabularData top = snapshots.getTopCallRates(60, 10);
+      Iterator<?> it = top.values().iterator();
+      CompositeData first = (CompositeData) it.next();
+      assertEquals(busy, first.get("id"));
+      assertEquals(30L, first.get("calls"));
+      assertEquals(-1d, first.get("meanLatencyNanos"));
+      CompositeData second = (CompositeData) it.next();
+      assertEquals(idle, second.get("id"));
+      assertEquals(1L, second.get("calls"));
+      assertTrue(!it.hasNext());
+
+      double rate = snapshots.getCallRate(busy, 60);
+      assertTrue(rate > 0 && rate < 30 / 0.04);
+      // Aggregation buffers are cleared after each query
+      assertEquals(30L, ((CompositeData) snapshots.getTopCallRates(60, 1).values().iterator()
+          .next()).get("calls"));
+      // Only the last interval
+      assertEquals(20L, ((CompositeData) snapshots.getTopCallRates(0, 1).values().iterator()
+          .next()).get("calls"));
+    } finally {
+      CallCounters.setEnabled(false);
+    }
+  }
+
+  @Test
+  public void testRingWraps() {
+    MetricsSnapshots snapshots = new MetricsSnapshots(1000);
+    snapshots.reset();
+    for (int i = 0; i < MetricsSnapshots.HISTORY_SIZE * 2; i++) {
+      snapshots.capture();
+    }
+    assertEquals(MetricsSnapshots.HISTORY_SIZE, snapshots.getIntervalCount());
+  }
+}
@@ -0,0 +1,142 @@
+/*
+ * ShiftLeft, Inc. CONFIDENTIAL
+ * Unpublished Copyright (c) 2017 ShiftLeft, Inc., All Rights Reserved.
+ *
+ * NOTICE: All information contained herein is, and remains the property of ShiftLeft, Inc.
+ * The intellectual and technical concepts contained herein are proprietary to ShiftLeft, Inc.
+ * and may be covered by U.S. and Foreign Patents, patents in process, and are protected by
+ * trade secret or copyright law. Dissemination of this information or reproduction of this
+ * material is strictly forbidden unless prior written permission is obtained
+ * from ShiftLeft, Inc. Access to the source code contained herein is hereby forbidden to
+ * anyone except current ShiftLeft, Inc. employees, managers or contractors who have executed
+ * Confidentiality and Non-disclosure agreements explicitly covering such access.
+ *
+ * The copyright notice above does not evidence any actual or intended publication or disclosure
+ * of this source code, which includes information that is confidential and/or proprietary, and
+ * is a trade secret, of ShiftLeft, Inc.
+ *
+ * ANY REPRODUCTION, MODIFICATION, DISTRIBUTION, PUBLIC PERFORMANCE, OR PUBLIC DISPLAY
+ * OF OR THROUGH USE OF THIS SOURCE CODE WITHOUT THE EXPRESS WRITTEN CONSENT OF ShiftLeft, Inc.
+ * IS STRICTLY PROHIBITED, AND IN VIOLATION OF APPLICABLE LAWS AND INTERNATIONAL TREATIES.
+ * THE RECEIPT OR POSSESSION OF THIS SOURCE CODE AND/OR RELATED INFORMATION DOES NOT
+ * CONVEY OR IMPLY ANY RIGHTS TO REPRODUCE, DISCLOSE OR DISTRIBUTE ITS
+ * CONTENTS, OR TO MANUFACTURE, USE, OR SELL ANYTHING THAT IT MAY DESCRIBE, IN WHOLE OR IN PART.
+ */
+package io.shiftleft.bctrace.runtime;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import io.shiftleft.bctrace.asm.TransformationSupport;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import org.junit.Test;
+
+/**
+ * @author Ignacio del Valle Alles idelvall@shiftleft.io
+ */
+public class HeavyHittersTest {
+
+  @Test
+  public void testTopKeys() {
+    HeavyHitters hh = new HeavyHitters(10, 4, 11);
+    // Long tail of 100000 keys called once or twice, and 5 heavy keys
+    for (int round = 0; round < 2; round++) {
+      for (int key = 0; key < 100000; key++) {
+        hh.add(key, 1);
+        if (key % 1000 == 0) {
+          for (int heavy = 0; heavy < 5; heavy++) {
+            hh.add(200000 + heavy, heavy + 1);
+          }
+        }
+      }
+    }
+    int[] top = hh.getTopKeys();
+    assertEquals(10, top.length);
+    assertEquals(Arrays.asList(200004, 200003, 200002, 200001, 200000),
+        Arrays.asList(top[0], top[1], top[2], top[3], top[4]));
+    for (int heavy = 0; heavy < 5; heavy++) {
+      long estimate = hh.estimate(200000 + heavy);
+      long real = 200 * (heavy + 1);
+      assertTrue(estimate >= real);
+      // Error bounded by e/width of the total added
+      assertTrue(estimate - real <= 3 * 203000 / 2048);
+    }
+  }
+
+  @Test
+  public void testConcurrentAdds() throws Exception {
+    final HeavyHitters hh = new HeavyHitters(10, 4, 11);
+    Thread[] threads = new Thread[4];
+    for (int t = 0; t < threads.length; t++) {
+      final int key = t;
+      threads[t] = new Thread() {
+        @Override
+        public void run() {
+          for (int i = 0; i < 64000; i++) {
+            hh.add(100, 1);
+            hh.add(key, 2);
+          }
+        }
+      };
+      threads[t].start();
+    }
+    for (int t = 0; t < threads.length; t++) {
+      threads[t].join();
+    }
+    // Each thread may have up to 63 additions still buffered
+    assertEquals(256000, hh.estimate(100), threads.length * 63);
+    assertEquals(100, hh.getTopKeys()[0]);
+    for (int t = 0; t < threads.length; t++) {
+      assertEquals(128000, hh.estimate(t), 63 * 2);
+    }
+  }
+
+  @Test
+  public void testProbesFeedHotMethods() {
+    HotMethods.setCallTrackingEnabled(true);
+    HotMethods.setTimeTrackingEnabled(true);
+    try {
+      assertTrue(MethodTimers.onStart() != 0);
+      for (int i = 0; i < 10; i++) {
+        CallCounters.onCall(3);
+        MethodTimers.onFinish(System.nanoTime() - 1000, 4);
+      }
+      CallCounters.onCall(5);
+      assertEquals(3, HotMethods.getCalls().getTopKeys()[0]);
+      assertEquals(10, HotMethods.getCalls().estimate(3));
+      assertEquals(new HashSet<Integer>(Arrays.asList(3, 5)),
+          toSet(HotMethods.getCalls().getTopKeys()));
+      assertEquals(4, HotMethods.getTime().getTopKeys()[0]);
+      assertTrue(HotMethods.getTime().estimate(4) >= 10000);
+      assertNull(MethodTimers.getInstance());
+    } finally {
+      HotMethods.setCallTrackingEnabled(false);
+      HotMethods.setTimeTrackingEnabled(false);
+    }
+    assertEquals(0, MethodTimers.onStart());
+  }
+
+  private static Set<Integer> toSet(int[] array) {
+    Set<Integer> ret = new HashSet<Integer>();
+    for (int i = 0; i < array.length; i++) {
+      ret.add(array[i]);
+    }
+    return ret;
+  }
+
+  /**
+   * Adding from a probe of any of these classes would recurse
+   */
+  @Test
+  public void testDependenciesNotTransformable() {
+    String[] dependencies = {"java/util/concurrent/atomic/AtomicLongArray", "java/lang/ThreadLocal",
+        "java/lang/ThreadLocal$ThreadLocalMap", "java/lang/Thread", "java/util/Arrays"};
+    for (int i = 0; i < dependencies.length; i++) {
+      assertFalse(dependencies[i], TransformationSupport.isTransformable(dependencies[i], null));
+    }
+  }
+}
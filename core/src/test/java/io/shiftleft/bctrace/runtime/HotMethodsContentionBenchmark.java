@@ -0,0 +1,139 @@
+/*
+ * ShiftLeft, Inc. CONFIDENTIAL
+ * Unpublished Copyright (c) 2017 ShiftLeft, Inc., All Rights Reserved.
+ *
+ * NOTICE: All information contained herein is, and remains the property of ShiftLeft, Inc.
+ * The intellectual and technical concepts contained herein are proprietary to ShiftLeft, Inc.
+ * and may be covered by U.S. and Foreign Patents, patents in process, and are protected by
+ * trade secret or copyright law. Dissemination of this information or reproduction of this
+ * material is strictly forbidden unless prior written permission is obtained
+ * from ShiftLeft, Inc. Access to the source code contained herein is hereby forbidden to
+ * anyone except current ShiftLeft, Inc. employees, managers or contractors who have executed
+ * Confidentiality and Non-disclosure agreements explicitly covering such access.
+ *
+ * The copyright notice above does not evidence any actual or intended publication or disclosure
+ * of this source code, which includes information that is confidential and/or proprietary, and
+ * is a trade secret, of ShiftLeft, Inc.
+ *
+ * ANY REPRODUCTION, MODIFICATION, DISTRIBUTION, PUBLIC PERFORMANCE, OR PUBLIC DISPLAY
+ * OF OR THROUGH USE OF THIS SOURCE CODE WITHOUT THE EXPRESS WRITTEN CONSENT OF ShiftLeft, Inc.
+ * IS STRICTLY PROHIBITED, AND IN VIOLATION OF APPLICABLE LAWS AND INTERNATIONAL TREATIES.
+ * THE RECEIPT OR POSSESSION OF THIS SOURCE CODE AND/OR RELATED INFORMATION DOES NOT
+ * CONVEY OR IMPLY ANY RIGHTS TO REPRODUCE, DISCLOSE OR DISTRIBUTE ITS
+ * CONTENTS, OR TO MANUFACTURE, USE, OR SELL ANYTHING THAT IT MAY DESCRIBE, IN WHOLE OR IN PART.
+ */
+package io.shiftleft.bctrace.runtime;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Measures the throughput of the call probe structures when all threads hit the same few hot
+ * methods: the {@link HeavyHitters} tracker of {@link HotMethods}, compared with its previous
+ * implementation that added to the shared sketch counters on every call, and the striped {@link
+ * CallCounters}.
+ * <br><br>
+ * Usage: HotMethodsContentionBenchmark [maxThreads] [callsPerThread]
+ *
+ * @author Ignacio del Valle Alles idelvall@shiftleft.io
+ */
+public class HotMethodsContentionBenchmark {
+
+  private static final int HOT_METHODS = 4;
+
+  public static void main(String[] args) throws Exception {
+    int maxThreads = args.length > 0 ? Integer.parseInt(args[0])
+        : Runtime.getRuntime().availableProcessors();
+    final int calls = args.length > 1 ? Integer.parseInt(args[1]) : 10000000;
+    for (int round = 0; round < 3; round++) {
+      for (int threads = 1; threads <= maxThreads; threads *= 2) {
+        final SharedSketch shared = new SharedSketch(4, 11);
+        final HeavyHitters buffered = new HeavyHitters(100, 4, 11);
+        final CallCounters counters = new CallCounters();
+        long sharedNanos = run(threads, new Probe() {
+          @Override
+          public void onCall(int methodId) {
+            shared.add(methodId, 1);
+          }
+        }, calls);
+        long bufferedNanos = run(threads, new Probe() {
+          @Override
+          public void onCall(int methodId) {
+            buffered.add(methodId, 1);
+          }
+        }, calls);
+        long countersNanos = run(threads, new Probe() {
+          @Override
+          public void onCall(int methodId) {
+            counters.increment(methodId);
+          }
+        }, calls);
+        long total = (long) threads * calls;
+        System.out.println("round " + round + ", " + threads + " threads: shared sketch "
+            + total * 1000 / sharedNanos + " calls/us, buffered sketch "
+            + total * 1000 / bufferedNanos + " calls/us, call counters "
+            + total * 1000 / countersNanos + " calls/us");
+      }
+    }
+  }
+
+  private static long run(int threads, final Probe probe, final int calls) throws Exception {
+    final CountDownLatch start = new CountDownLatch(1);
+    final CountDownLatch end = new CountDownLatch(threads);
+    for (int t = 0; t < threads; t++) {
+      new Thread() {
+        @Override
+        public void run() {
+          try {
+            start.await();
+            for (int i = 0; i < calls; i++) {
+              probe.onCall(i & (HOT_METHODS - 1));
+            }
+          } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+          } finally {
+            end.countDown();
+          }
+        }
+      }.start();
+    }
+    long startNanos = System.nanoTime();
+    start.countDown();
+    end.await();
+    return System.nanoTime() - startNanos;
+  }
+
+  private interface Probe {
+
+    void onCall(int methodId);
+  }
+
+  /**
+   * Previous hot path of HeavyHitters.add: one atomic addition per row on every call
+   */
+  private static final class SharedSketch {
+
+    private final int depth;
+    private final int widthBits;
+    private final AtomicLongArray counters;
+
+    SharedSketch(int depth, int widthBits) {
+      this.depth = depth;
+      this.widthBits = widthBits;
+      this.counters = new AtomicLongArray(depth << widthBits);
+    }
+
+    long add(int key, long amount) {
+      long estimate = Long.MAX_VALUE;
+      for (int row = 0; row < depth; row++) {
+        int h = key * (0x9E3779B1 + row);
+        h ^= h >>> 15;
+        long value = counters.addAndGet((row << widthBits) | (h >>> (32 - widthBits)), amount);
+        if (value < estimate) {
+          estimate = value;
+        }
+      }
+      return estimate;
+    }
+  }
+}
@@ -0,0 +1,114 @@
+/*
+ * ShiftLeft, Inc. CONFIDENTIAL
+ * Unpublished Copyright (c) 2017 ShiftLeft, Inc., All Rights Reserved.
+ *
+ * NOTICE: All information contained herein is, and remains the property of ShiftLeft, Inc.
+ * The intellectual and technical concepts contained herein are proprietary to ShiftLeft, Inc.
+ * and may be covered by U.S. and Foreign Patents, patents in process, and are protected by
+ * trade secret or copyright law. Dissemination of this information or reproduction of this
+ * material is strictly forbidden unless prior written permission is obtained
+ * from ShiftLeft, Inc. Access to the source code contained herein is hereby forbidden to
+ * anyone except current ShiftLeft, Inc. employees, managers or contractors who have executed
+ * Confidentiality and Non-disclosure agreements explicitly covering such access.
+ *
+ * The copyright notice above does not evidence any actual or intended publication or disclosure
+ * of this source code, which includes information that is confidential and/or proprietary, and
+ * is a trade secret, of ShiftLeft, Inc.
+ *
+ * ANY REPRODUCTION, MODIFICATION, DISTRIBUTION, PUBLIC PERFORMANCE, OR PUBLIC DISPLAY
+ * OF OR THROUGH USE OF THIS SOURCE CODE WITHOUT THE EXPRESS WRITTEN CONSENT OF ShiftLeft, Inc.
+ * IS STRICTLY PROHIBITED, AND IN VIOLATION OF APPLICABLE LAWS AND INTERNATIONAL TREATIES.
+ * THE RECEIPT OR POSSESSION OF THIS SOURCE CODE AND/OR RELATED INFORMATION DOES NOT
+ * CONVEY OR IMPLY ANY RIGHTS TO REPRODUCE, DISCLOSE OR DISTRIBUTE ITS
+ * CONTENTS, OR TO MANUFACTURE, USE, OR SELL ANYTHING THAT IT MAY DESCRIBE, IN WHOLE OR IN PART.
+ */
+package io.shiftleft.bctrace.runtime;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import org.junit.Test;
+
+/**
+ * @author Ignacio del Valle Alles idelvall@shiftleft.io
+ */
+public class LatencyHistogramTest {
+
+  @Test
+  public void testBuckets() {
+    for (long value = 0; value < 1 << 20; value++) {
+      int index = LatencyHistogram.getBucketIndex(value);
+      assertTrue(LatencyHistogram.getLowestValue(index) <= value);
+      assertTrue(LatencyHistogram.getHighestValue(index) >= value);
+      assertTrue(value - LatencyHistogram.getLowestValue(index) <= value / 16);
+    }
+    assertEquals(LatencyHistogram.BUCKET_COUNT - 1, LatencyHistogram.getBucketIndex(1L << 39));
+    assertEquals(LatencyHistogram.BUCKET_COUNT - 1,
+        LatencyHistogram.getBucketIndex(Long.MAX_VALUE));
+    assertEquals(0, LatencyHistogram.getBucketIndex(-5));
+  }
+
+  @Test
+  public void testPercentilesAndMerge() {
+    LatencyHistogram h1 = new LatencyHistogram();
+    LatencyHistogram h2 = new LatencyHistogram();
+    for (int i = 1; i <= 100; i++) {
+      h1.record(i * 1000);
+    }
+    h2.record(1000000);
+    LatencyHistogram.Snapshot s1 = h1.snapshot();
+    assertEquals(100, s1.getCount());
+    assertEquals(50000, s1.getValueAtPercentile(50), 50000 / 16);
+    assertEquals(99000, s1.getValueAtPercentile(99), 99000 / 16);
+    assertEquals(100000, s1.getMax(), 100000 / 16);
+    assertEquals(50500, s1.getMean(), 50500 / 16);
+
+    LatencyHistogram.Snapshot merged = s1.merge(h2.snapshot());
+    assertEquals(101, merged.getCount());
+    assertEquals(1000000, merged.getMax(), 1000000 / 16);
+    assertEquals(s1.getValueAtPercentile(50), merged.getValueAtPercentile(50));
+    assertEquals(0, new LatencyHistogram().snapshot().getValueAtPercentile(99));
+  }
+
+  @Test
+  public void testConcurrentRecords() throws Exception {
+    final LatencyHistogram histogram = new LatencyHistogram();
+    final long[] values = {5, 1000, 1001, 1000000};
+    final int records = 100000;
+    final CountDownLatch start = new CountDownLatch(1);
+    List<Thread> threads = new ArrayList<Thread>();
+    for (int t = 0; t < 8; t++) {
+      Thread thread = new Thread() {
+        @Override
+        public void run() {
+          try {
+            start.await();
+          } catch (InterruptedException ex) {
+            return;
+          }
+          for (int i = 0; i < records; i++) {
+            histogram.record(values[i % values.length]);
+          }
+        }
+      };
+      thread.start();
+      threads.add(thread);
+    }
+    start.countDown();
+    for (int i = 0; i < threads.size(); i++) {
+      threads.get(i).join();
+    }
+    long count = threads.size() * records;
+    assertEquals(count, histogram.getCount());
+    LatencyHistogram.Snapshot snapshot = histogram.snapshot();
+    assertEquals(count, snapshot.getCount());
+    assertEquals(5, snapshot.getValueAtPercentile(25));
+    assertEquals(LatencyHistogram.getHighestValue(LatencyHistogram.getBucketIndex(1001)),
+        snapshot.getValueAtPercentile(75));
+    assertEquals(LatencyHistogram.getHighestValue(LatencyHistogram.getBucketIndex(1000000)),
+        snapshot.getMax());
+  }
+}
@@ -0,0 +1,176 @@
+/*
+ * ShiftLeft, Inc. CONFIDENTIAL
+ * Unpublished Copyright (c) 2017 ShiftLeft, Inc., All Rights Reserved.
+ *
+ * NOTICE: All information contained herein is, and remains the property of ShiftLeft, Inc.
+ * The intellectual and technical concepts contained herein are proprietary to ShiftLeft, Inc.
+ * and may be covered by U.S. and Foreign Patents, patents in process, and are protected by
+ * trade secret or copyright law. Dissemination of this information or reproduction of this
+ * material is strictly forbidden unless prior written permission is obtained
+ * from ShiftLeft, Inc. Access to the source code contained herein is hereby forbidden to
+ * anyone except current ShiftLeft, Inc. employees, managers or contractors who have executed
+ * Confidentiality and Non-disclosure agreements explicitly covering such access.
+ *
+ * The copyright notice above does not evidence any actual or intended publication or disclosure
+ * of this source code, which includes information that is confidential and/or proprietary, and
+ * is a trade secret, of ShiftLeft, Inc.
+ *
+ * ANY REPRODUCTION, MODIFICATION, DISTRIBUTION, PUBLIC PERFORMANCE, OR PUBLIC DISPLAY
+ * OF OR THROUGH USE OF THIS SOURCE CODE WITHOUT THE EXPRESS WRITTEN CONSENT OF ShiftLeft, Inc.
+ * IS STRICTLY PROHIBITED, AND IN VIOLATION OF APPLICABLE LAWS AND INTERNATIONAL TREATIES.
+ * THE RECEIPT OR POSSESSION OF THIS SOURCE CODE AND/OR RELATED INFORMATION DOES NOT
+ * CONVEY OR IMPLY ANY RIGHTS TO REPRODUCE, DISCLOSE OR DISTRIBUTE ITS
+ * CONTENTS, OR TO MANUFACTURE, USE, OR SELL ANYTHING THAT IT MAY DESCRIBE, IN WHOLE OR IN PART.
+ */
+package io.shiftleft.bctrace.runtime;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Dense table of 64-bit call counters indexed by method id, incremented by the probe that the
+ * framework injects at the start of every instrumented method (see {@link #onCall(int)}).
+ * <br><br>
+ * The probe is disarmed by default: it only reads a volatile field, and since the method is tiny
+ * it is inlined by the JIT, so instrumented methods pay nothing noticeable for it while counting is
+ * disabled. When enabled, a call costs a counter increment.
+ * <br><br>
+ * Each counter starts as a single cell in a shared array, updated with a CAS. The first time a
+ * CAS fails due to contention the counter is inflated (as in a LongAdder) into a set of cells
+ * padded to their own cache lines, and each thread then increments the cell of its stripe. Hence
+ * uncontended counters take 8 bytes, and only hot methods pay for striping.
+ *
+ * @author Ignacio del Valle Alles idelvall@shiftleft.io
+ */
+public final class CallCounters {
+
+  private static final int CHUNK_BITS = 10;
+  private static final int CHUNK_SIZE = 1 << CHUNK_BITS;
+  private static final int CHUNK_MASK = CHUNK_SIZE - 1;
+  // 128 bytes between cells, to avoid false sharing also with adjacent line prefetching
+  static final int PADDING = 16;
+  static final int STRIPES = getStripes();
+
+  private static volatile CallCounters instance;
+
+  private volatile Chunk[] chunks = new Chunk[16];
+
+  CallCounters() {
+  }
+
+  /**
+   * Probe injected in instrumented methods. Also feeds {@link HotMethods}.
+   */
+  public static void onCall(int methodId) {
+    CallCounters counters = instance;
+    if (counters != null) {
+      counters.increment(methodId);
+    }
+    HotMethods.onCall(methodId);
+  }
+
+  /**
+   * @return current counters, or null if call counting is disabled
+   */
+  public static CallCounters getInstance() {
+    return instance;
+  }
+
+  /**
+   * Enabling call counting starts from zero counts.
+   */
+  public static synchronized void setEnabled(boolean enabled) {
+    if (!enabled) {
+      instance = null;
+    } else if (instance == null) {
+      instance = new CallCounters();
+    }
+  }
+
+  public static boolean isEnabled() {
+    return instance != null;
+  }
+
+  private static int getStripes() {
+    int ret = 1;
+    while (ret < Runtime.getRuntime().availableProcessors() && ret < 64) {
+      ret <<= 1;
+    }
+    return ret;
+  }
+
+  void increment(int methodId) {
+    Chunk chunk = getChunk(methodId);
+    int index = methodId & CHUNK_MASK;
+    AtomicLongArray cells = chunk.cells.get(index);
+    if (cells == null) {
+      long value = chunk.base.get(index);
+      if (chunk.base.compareAndSet(index, value, value + 1)) {
+        return;
+      }
+      // Contended. Inflate
+      cells = new AtomicLongArray(STRIPES * PADDING);
+      if (!chunk.cells.compareAndSet(index, null, cells)) {
+        cells = chunk.cells.get(index);
+      }
+    }
+    cells.getAndIncrement(getStripe() * PADDING);
+  }
+
+  public long get(int methodId) {
+    Chunk[] chunks = this.chunks;
+    int chunkIndex = methodId >>> CHUNK_BITS;
+    if (chunkIndex >= chunks.length || chunks[chunkIndex] == null) {
+      return 0;
+    }
+    Chunk chunk = chunks[chunkIndex];
+    int index = methodId & CHUNK_MASK;
+    long ret = chunk.base.get(index);
+    AtomicLongArray cells = chunk.cells.get(index);
+    if (cells != null) {
+      for (int i = 0; i < STRIPES; i++) {
+        ret += cells.get(i * PADDING);
+      }
+    }
+    return ret;
+  }
+
+  static int getStripe() {
+    long id = Thread.currentThread().getId();
+    int h = (int) (id ^ (id >>> 32)) * 0x9E3779B9;
+    return (h ^ (h >>> 16)) & (STRIPES - 1);
+  }
+
+  private Chunk getChunk(int methodId) {
+    Chunk[] chunks = this.chunks;
+    int chunkIndex = methodId >>> CHUNK_BITS;
+    if (chunkIndex < chunks.length) {
+      Chunk ret = chunks[chunkIndex];
+      if (ret != null) {
+        return ret;
+      }
+    }
+    return createChunk(chunkIndex);
+  }
+
+  private synchronized Chunk createChunk(int chunkIndex) {
+    Chunk[] chunks = this.chunks;
+    if (chunkIndex >= chunks.length) {
+      Chunk[] grown = new Chunk[Math.max(chunks.length * 2, chunkIndex + 1)];
+      System.arraycopy(chunks, 0, grown, 0, chunks.length);
+      chunks = grown;
+    }
+    if (chunks[chunkIndex] == null) {
+      chunks[chunkIndex] = new Chunk();
+    }
+    this.chunks = chunks;
+    return chunks[chunkIndex];
+  }
+
+  private static final class Chunk {
+
+    private final AtomicLongArray base = new AtomicLongArray(CHUNK_SIZE);
+    private final AtomicReferenceArray<AtomicLongArray> cells = new AtomicReferenceArray<AtomicLongArray>(
+        CHUNK_SIZE);
+  }
+}
@@ -35,11 +35,14 @@ import io.shiftleft.bctrace.runtime.listener.generic.GenericMethodThrowableListe
  */
 public final class Callback {
 
-  public static Object[] listeners;
+  // Not volatile, since it is read on every notification (see Listeners). Package-private, so it
+  // can be used by the synthetic dispatch classes generated for hooks added at runtime
+  static Listeners listeners;
   public static ErrorListener errorListener;
 
-  // Avoid notifications caused by listener methods code
-  private static final ThreadLocal<Boolean> NOTIFYING_FLAG = new ThreadLocal<Boolean>();
+  // Avoid notifications caused by listener methods code. Package-private, so it can be used by the
+  // synthetic dispatch classes generated for hooks added at runtime
+  static final ThreadLocal<Boolean> NOTIFYING_FLAG = new ThreadLocal<Boolean>();
 
   @SuppressWarnings("BoxedValueEquality")
   public static void onStart(Object[] args, int methodId, Class clazz, Object instance, int i) {
@@ -51,7 +54,7 @@ public final class Callback {
     }
     try {
       NOTIFYING_FLAG.set(Boolean.TRUE);
-      ((GenericMethodStartListener) listeners[i]).onStart(methodId, clazz, instance, args);
+      ((GenericMethodStartListener) listeners.array[i]).onStart(methodId, clazz, instance, args);
     } catch (Throwable th) {
       handleThrowable(th);
       return;
@@ -71,7 +74,7 @@ public final class Callback {
     }
     try {
       NOTIFYING_FLAG.set(Boolean.TRUE);
-      return ((GenericMethodMutableStartListener) listeners[i])
+      return ((GenericMethodMutableStartListener) listeners.array[i])
           .onStart(methodId, clazz, instance, args);
     } catch (Throwable th) {
       handleThrowable(th);
@@ -97,7 +100,7 @@ public final class Callback {
     }
     try {
       NOTIFYING_FLAG.set(Boolean.TRUE);
-      return ((GenericMethodReturnListener) listeners[i])
+      return ((GenericMethodReturnListener) listeners.array[i])
           .onReturn(methodId, clazz, instance, args, ret);
     } catch (Throwable thr) {
       handleThrowable(thr);
@@ -124,7 +127,7 @@ public final class Callback {
     }
     try {
       NOTIFYING_FLAG.set(Boolean.TRUE);
-      return ((GenericMethodThrowableListener) listeners[i])
+      return ((GenericMethodThrowableListener) listeners.array[i])
           .onThrow(methodId, clazz, instance, args, th);
     } catch (Throwable thr) {
       handleThrowable(thr);
@@ -135,7 +138,23 @@ public final class Callback {
     }
   }
 
-  private static void handleThrowable(Throwable th) {
+  /**
+   * @return a copy of the listeners by hook index, or null if not set
+   */
+  public static Object[] getListeners() {
+    Listeners listeners = Callback.listeners;
+    return listeners == null ? null : listeners.array.clone();
+  }
+
+  /**
+   * Replaces the listeners by hook index. Indexes of the hooks already instrumented must not
+   * change.
+   */
+  public static void setListeners(Object[] listeners) {
+    Callback.listeners = listeners == null ? null : new Listeners(listeners.clone());
+  }
+
+  static void handleThrowable(Throwable th) {
     if (th instanceof BctraceRuntimeException) {
       throw ((BctraceRuntimeException) th).getWrappedException();
     } else {
@@ -147,6 +166,23 @@ public final class Callback {
     }
   }
 
+  /**
+   * Immutable listener table, replaced as a whole when hooks are added at runtime.
+   * <br><br>
+   * Its final field guarantees that any thread seeing a table also sees the listeners in it, so
+   * notifications read it with no volatile access. A thread may still see the previous table for a
+   * while, but the indexes of the added hooks are only reached from code retransformed after the
+   * table is replaced, and retransformation is a VM operation every thread synchronizes with.
+   */
+  public static final class Listeners {
+
+    final Object[] array;
+
+    Listeners(Object[] array) {
+      this.array = array;
+    }
+  }
+
   public static interface ErrorListener {
 
     public void onError(Throwable th);
@@ -0,0 +1,299 @@
+/*
+ * ShiftLeft, Inc. CONFIDENTIAL
+ * Unpublished Copyright (c) 2017 ShiftLeft, Inc., All Rights Reserved.
+ *
+ * NOTICE: All information contained herein is, and remains the property of ShiftLeft, Inc.
+ * The intellectual and technical concepts contained herein are proprietary to ShiftLeft, Inc.
+ * and may be covered by U.S. and Foreign Patents, patents in process, and are protected by
+ * trade secret or copyright law. Dissemination of this information or reproduction of this
+ * material is strictly forbidden unless prior written permission is obtained
+ * from ShiftLeft, Inc. Access to the source code contained herein is hereby forbidden to
+ * anyone except current ShiftLeft, Inc. employees, managers or contractors who have executed
+ * Confidentiality and Non-disclosure agreements explicitly covering such access.
+ *
+ * The copyright notice above does not evidence any actual or intended publication or disclosure
+ * of this source code, which includes information that is confidential and/or proprietary, and
+ * is a trade secret, of ShiftLeft, Inc.
+ *
+ * ANY REPRODUCTION, MODIFICATION, DISTRIBUTION, PUBLIC PERFORMANCE, OR PUBLIC DISPLAY
+ * OF OR THROUGH USE OF THIS SOURCE CODE WITHOUT THE EXPRESS WRITTEN CONSENT OF ShiftLeft, Inc.
+ * IS STRICTLY PROHIBITED, AND IN VIOLATION OF APPLICABLE LAWS AND INTERNATIONAL TREATIES.
+ * THE RECEIPT OR POSSESSION OF THIS SOURCE CODE AND/OR RELATED INFORMATION DOES NOT
+ * CONVEY OR IMPLY ANY RIGHTS TO REPRODUCE, DISCLOSE OR DISTRIBUTE ITS
+ * CONTENTS, OR TO MANUFACTURE, USE, OR SELL ANYTHING THAT IT MAY DESCRIBE, IN WHOLE OR IN PART.
+ */
+package io.shiftleft.bctrace.runtime;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Streaming tracker of the keys with the highest accumulated amounts, using a fixed amount of
+ * memory regardless of the number of distinct keys.
+ * <br><br>
+ * Amounts are accumulated in a Count-Min sketch: a few rows of counters, each key being added to
+ * one counter per row chosen by a different hash. The estimate of a key is the minimum of its
+ * counters, which is never lower than the real value and exceeds it by at most a small fraction
+ * of the total amount added.
+ * <br><br>
+ * The keys with the highest estimates are kept in a small table of candidates. Adding to a
+ * candidate, or to a key whose estimate is below the lowest candidate estimate, only updates the
+ * sketch counters. Only keys that overtake the lowest candidate take a lock, to replace it.
+ * <br><br>
+ * Since the sketch counters of the hot keys are written by all threads, each thread accumulates
+ * the additions to candidates in a small buffer of its own, that is folded into the sketch every
+ * 64 additions (or when a key collides with a different one buffered). A hot key then costs
+ * {@code depth} atomic additions every few dozens of calls instead of on every call. Additions to
+ * other keys go straight to the sketch, so a key becomes a candidate as soon as it would. The
+ * price is that the estimates of candidates may lag behind by the additions still buffered by
+ * other threads (those of terminated threads are lost); queries fold the buffer of the calling
+ * thread first.
+ * <br><br>
+ * Additions are made from the probes injected in instrumented methods, with no re-entrance guard.
+ * The JDK classes used by {@link #add(int, long)} (atomic arrays, ThreadLocal, Thread and Arrays)
+ * are therefore never instrumented, whatever the ignore lists say.
+ * <br><br>
+ * Keys must be non negative.
+ *
+ * @author Ignacio del Valle Alles idelvall@shiftleft.io
+ */
+public final class HeavyHitters {
+
+  private static final int BUFFER_SIZE = 16;
+  private static final int FOLD_ADDS = 64;
+  private static final int[] SEEDS = {0x9E3779B1, 0x85EBCA77, 0xC2B2AE3D, 0x27D4EB2F,
+      0x165667B1, 0xD3A2646C, 0xFD7046C5, 0xB55A4F09};
+
+  private final int capacity;
+  private final int depth;
+  private final int widthBits;
+  private final AtomicLongArray counters;
+  private final ThreadLocal<Buffer> buffers = new ThreadLocal<Buffer>() {
+    @Override
+    protected Buffer initialValue() {
+      return new Buffer();
+    }
+  };
+
+  // Open addressing table with the current candidates (-1 empty). Copied on write
+  private volatile int[] candidates;
+  private volatile long threshold;
+  private int size;
+
+  /**
+   * @param capacity number of keys tracked
+   * @param depth number of rows of the sketch (up to 8)
+   * @param widthBits log2 of the number of counters per row
+   */
+  public HeavyHitters(int capacity, int depth, int widthBits) {
+    this.capacity = capacity;
+    this.depth = Math.min(depth, SEEDS.length);
+    this.widthBits = widthBits;
+    this.counters = new AtomicLongArray(this.depth << widthBits);
+    int tableSize = 1;
+    while (tableSize < capacity * 2) {
+      tableSize <<= 1;
+    }
+    this.candidates = newTable(tableSize);
+  }
+
+  public void add(int key, long amount) {
+    if (!contains(candidates, key)) {
+      fold(key, amount);
+      return;
+    }
+    Buffer buffer = buffers.get();
+    int slot = getSlot(buffer.keys, key);
+    if (buffer.keys[slot] == key) {
+      buffer.amounts[slot] += amount;
+    } else {
+      if (buffer.keys[slot] != -1) {
+        fold(buffer.keys[slot], buffer.amounts[slot]);
+      }
+      buffer.keys[slot] = key;
+      buffer.amounts[slot] = amount;
+    }
+    if (++buffer.adds == FOLD_ADDS) {
+      fold(buffer);
+    }
+  }
+
+  /**
+   * Folds the pending additions of the calling thread into the sketch.
+   */
+  private void flush() {
+    fold(buffers.get());
+  }
+
+  private void fold(Buffer buffer) {
+    for (int i = 0; i < BUFFER_SIZE; i++) {
+      if (buffer.keys[i] != -1) {
+        fold(buffer.keys[i], buffer.amounts[i]);
+        buffer.keys[i] = -1;
+      }
+    }
+    buffer.adds = 0;
+  }
+
+  private void fold(int key, long amount) {
+    long estimate = Long.MAX_VALUE;
+    for (int row = 0; row < depth; row++) {
+      long value = counters.addAndGet(getCounterIndex(row, key), amount);
+      if (value < estimate) {
+        estimate = value;
+      }
+    }
+    if (estimate > threshold && !contains(candidates, key)) {
+      offer(key);
+    }
+  }
+
+  public long estimate(int key) {
+    flush();
+    return getEstimate(key);
+  }
+
+  private long getEstimate(int key) {
+    long estimate = Long.MAX_VALUE;
+    for (int row = 0; row < depth; row++) {
+      long value = counters.get(getCounterIndex(row, key));
+      if (value < estimate) {
+        estimate = value;
+      }
+    }
+    return estimate;
+  }
+
+  /**
+   * @return the tracked keys, in descending order of their estimates
+   */
+  public int[] getTopKeys() {
+    flush();
+    int[] table = candidates;
+    final int[] keys = new int[capacity];
+    final long[] estimates = new long[capacity];
+    int count = 0;
+    for (int i = 0; i < table.length; i++) {
+      if (table[i] != -1) {
+        keys[count] = table[i];
+        estimates[count] = getEstimate(table[i]);
+        count++;
+      }
+    }
+    Integer[] order = new Integer[count];
+    for (int i = 0; i < count; i++) {
+      order[i] = i;
+    }
+    Arrays.sort(order, new Comparator<Integer>() {
+      @Override
+      public int compare(Integer o1, Integer o2) {
+        long e1 = estimates[o1];
+        long e2 = estimates[o2];
+        return e1 > e2 ? -1 : (e1 == e2 ? 0 : 1);
+      }
+    });
+    int[] ret = new int[count];
+    for (int i = 0; i < count; i++) {
+      ret[i] = keys[order[i]];
+    }
+    return ret;
+  }
+
+  private synchronized void offer(int key) {
+    int[] table = candidates;
+    if (contains(table, key)) {
+      return;
+    }
+    if (size < capacity) {
+      table = table.clone();
+      insert(table, key);
+      size++;
+    } else {
+      int lowestKey = -1;
+      long lowest = Long.MAX_VALUE;
+      for (int i = 0; i < table.length; i++) {
+        if (table[i] != -1) {
+          long estimate = getEstimate(table[i]);
+          if (estimate < lowest) {
+            lowest = estimate;
+            lowestKey = table[i];
+          }
+        }
+      }
+      if (getEstimate(key) <= lowest) {
+        // Stale threshold
+        threshold = lowest;
+        return;
+      }
+      int[] newTable = newTable(table.length);
+      for (int i = 0; i < table.length; i++) {
+        if (table[i] != -1 && table[i] != lowestKey) {
+          insert(newTable, table[i]);
+        }
+      }
+      insert(newTable, key);
+      table = newTable;
+    }
+    candidates = table;
+    if (size == capacity) {
+      threshold = getLowestEstimate(table);
+    }
+  }
+
+  private long getLowestEstimate(int[] table) {
+    long lowest = Long.MAX_VALUE;
+    for (int i = 0; i < table.length; i++) {
+      if (table[i] != -1) {
+        lowest = Math.min(lowest, getEstimate(table[i]));
+      }
+    }
+    return lowest;
+  }
+
+  private int getCounterIndex(int row, int key) {
+    int h = key * SEEDS[row];
+    h ^= h >>> 15;
+    h *= SEEDS[(row + 1) & (SEEDS.length - 1)];
+    return (row << widthBits) | (h >>> (32 - widthBits));
+  }
+
+  private static final class Buffer {
+
+    private final int[] keys = newTable(BUFFER_SIZE);
+    private final long[] amounts = new long[BUFFER_SIZE];
+    private int adds;
+  }
+
+  private static int[] newTable(int size) {
+    int[] ret = new int[size];
+    Arrays.fill(ret, -1);
+    return ret;
+  }
+
+  private static int getSlot(int[] table, int key) {
+    int h = key * 0x9E3779B9;
+    return (h ^ (h >>> 16)) & (table.length - 1);
+  }
+
+  private static boolean contains(int[] table, int key) {
+    int mask = table.length - 1;
+    for (int i = getSlot(table, key); ; i = (i + 1) & mask) {
+      if (table[i] == key) {
+        return true;
+      }
+      if (table[i] == -1) {
+        return false;
+      }
+    }
+  }
+
+  private static void insert(int[] table, int key) {
+    int mask = table.length - 1;
+    int i = getSlot(table, key);
+    while (table[i] != -1) {
+      i = (i + 1) & mask;
+    }
+    table[i] = key;
+  }
+}
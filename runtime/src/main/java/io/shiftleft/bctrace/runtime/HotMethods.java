@@ -0,0 +1,108 @@
+/*
+ * ShiftLeft, Inc. CONFIDENTIAL
+ * Unpublished Copyright (c) 2017 ShiftLeft, Inc., All Rights Reserved.
+ *
+ * NOTICE: All information contained herein is, and remains the property of ShiftLeft, Inc.
+ * The intellectual and technical concepts contained herein are proprietary to ShiftLeft, Inc.
+ * and may be covered by U.S. and Foreign Patents, patents in process, and are protected by
+ * trade secret or copyright law. Dissemination of this information or reproduction of this
+ * material is strictly forbidden unless prior written permission is obtained
+ * from ShiftLeft, Inc. Access to the source code contained herein is hereby forbidden to
+ * anyone except current ShiftLeft, Inc. employees, managers or contractors who have executed
+ * Confidentiality and Non-disclosure agreements explicitly covering such access.
+ *
+ * The copyright notice above does not evidence any actual or intended publication or disclosure
+ * of this source code, which includes information that is confidential and/or proprietary, and
+ * is a trade secret, of ShiftLeft, Inc.
+ *
+ * ANY REPRODUCTION, MODIFICATION, DISTRIBUTION, PUBLIC PERFORMANCE, OR PUBLIC DISPLAY
+ * OF OR THROUGH USE OF THIS SOURCE CODE WITHOUT THE EXPRESS WRITTEN CONSENT OF ShiftLeft, Inc.
+ * IS STRICTLY PROHIBITED, AND IN VIOLATION OF APPLICABLE LAWS AND INTERNATIONAL TREATIES.
+ * THE RECEIPT OR POSSESSION OF THIS SOURCE CODE AND/OR RELATED INFORMATION DOES NOT
+ * CONVEY OR IMPLY ANY RIGHTS TO REPRODUCE, DISCLOSE OR DISTRIBUTE ITS
+ * CONTENTS, OR TO MANUFACTURE, USE, OR SELL ANYTHING THAT IT MAY DESCRIBE, IN WHOLE OR IN PART.
+ */
+package io.shiftleft.bctrace.runtime;
+
+/**
+ * Tracks the instrumented methods with the most invocations and with the most cumulative time,
+ * fed by the built-in call counter and timer probes (see {@link CallCounters} and {@link
+ * MethodTimers}).
+ * <br><br>
+ * Each tracker takes a fixed amount of memory (about 64 KB) regardless of the number of methods
+ * instrumented, so unlike the full per method counters, it can be left enabled permanently.
+ * Tracking time requires the timer probes to be injected.
+ *
+ * @author Ignacio del Valle Alles idelvall@shiftleft.io
+ */
+public final class HotMethods {
+
+  private static final int CAPACITY = 100;
+  private static final int DEPTH = 4;
+  private static final int WIDTH_BITS = 11;
+
+  private static volatile HeavyHitters calls;
+  private static volatile HeavyHitters time;
+
+  private HotMethods() {
+  }
+
+  static void onCall(int methodId) {
+    HeavyHitters tracker = calls;
+    if (tracker != null) {
+      tracker.add(methodId, 1);
+    }
+  }
+
+  static void onTime(int methodId, long nanos) {
+    HeavyHitters tracker = time;
+    if (tracker != null && nanos > 0) {
+      tracker.add(methodId, nanos);
+    }
+  }
+
+  /**
+   * @return null if invocation tracking is disabled
+   */
+  public static HeavyHitters getCalls() {
+    return calls;
+  }
+
+  /**
+   * @return cumulative nanoseconds tracker, or null if time tracking is disabled
+   */
+  public static HeavyHitters getTime() {
+    return time;
+  }
+
+  /**
+   * Enabling tracking starts from zero.
+   */
+  public static synchronized void setCallTrackingEnabled(boolean enabled) {
+    if (!enabled) {
+      calls = null;
+    } else if (calls == null) {
+      calls = new HeavyHitters(CAPACITY, DEPTH, WIDTH_BITS);
+    }
+  }
+
+  /**
+   * Enabling tracking starts from zero.
+   */
+  public static synchronized void setTimeTrackingEnabled(boolean enabled) {
+    if (!enabled) {
+      time = null;
+    } else if (time == null) {
+      time = new HeavyHitters(CAPACITY, DEPTH, WIDTH_BITS);
+    }
+    MethodTimers.updateArmed();
+  }
+
+  public static boolean isCallTrackingEnabled() {
+    return calls != null;
+  }
+
+  public static boolean isTimeTrackingEnabled() {
+    return time != null;
+  }
+}
@@ -0,0 +1,261 @@
+/*
+ * ShiftLeft, Inc. CONFIDENTIAL
+ * Unpublished Copyright (c) 2017 ShiftLeft, Inc., All Rights Reserved.
+ *
+ * NOTICE: All information contained herein is, and remains the property of ShiftLeft, Inc.
+ * The intellectual and technical concepts contained herein are proprietary to ShiftLeft, Inc.
+ * and may be covered by U.S. and Foreign Patents, patents in process, and are protected by
+ * trade secret or copyright law. Dissemination of this information or reproduction of this
+ * material is strictly forbidden unless prior written permission is obtained
+ * from ShiftLeft, Inc. Access to the source code contained herein is hereby forbidden to
+ * anyone except current ShiftLeft, Inc. employees, managers or contractors who have executed
+ * Confidentiality and Non-disclosure agreements explicitly covering such access.
+ *
+ * The copyright notice above does not evidence any actual or intended publication or disclosure
+ * of this source code, which includes information that is confidential and/or proprietary, and
+ * is a trade secret, of ShiftLeft, Inc.
+ *
+ * ANY REPRODUCTION, MODIFICATION, DISTRIBUTION, PUBLIC PERFORMANCE, OR PUBLIC DISPLAY
+ * OF OR THROUGH USE OF THIS SOURCE CODE WITHOUT THE EXPRESS WRITTEN CONSENT OF ShiftLeft, Inc.
+ * IS STRICTLY PROHIBITED, AND IN VIOLATION OF APPLICABLE LAWS AND INTERNATIONAL TREATIES.
+ * THE RECEIPT OR POSSESSION OF THIS SOURCE CODE AND/OR RELATED INFORMATION DOES NOT
+ * CONVEY OR IMPLY ANY RIGHTS TO REPRODUCE, DISCLOSE OR DISTRIBUTE ITS
+ * CONTENTS, OR TO MANUFACTURE, USE, OR SELL ANYTHING THAT IT MAY DESCRIBE, IN WHOLE OR IN PART.
+ */
+package io.shiftleft.bctrace.runtime;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Log-linear histogram of latencies in nanoseconds, in the style of HdrHistogram.
+ * <br><br>
+ * Values below 16 ns are counted exactly. Above that, each power of two range is split in 16
+ * linear sub-buckets, so the value reported for a bucket is within 1/16 (6.25%) of the recorded
+ * ones. Values over 2^38 ns (about 4.5 minutes) are counted in the last bucket.
+ * <br><br>
+ * Recording is a CAS on the bucket counter and allocates nothing. Summary statistics (count, mean,
+ * max) are derived from the buckets when they are read, so no total is maintained.
+ * <br><br>
+ * Threads recording latencies of the same method still contend on its buckets, since most calls
+ * fall in a few of them. The first time a CAS fails due to contention the histogram is inflated
+ * like the {@link CallCounters} cells: each stripe of threads then records into its own copy of
+ * the buckets, padded from the others, and the copies are merged when read.
+ *
+ * @author Ignacio del Valle Alles idelvall@shiftleft.io
+ */
+public final class LatencyHistogram {
+
+  static final int SUB_BUCKET_BITS = 4;
+  static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+  static final int MAX_EXPONENT = 38;
+  static final int BUCKET_COUNT = (MAX_EXPONENT - SUB_BUCKET_BITS + 2) * SUB_BUCKET_COUNT;
+
+  private final AtomicLongArray counts = new AtomicLongArray(BUCKET_COUNT);
+  // Per stripe bucket counts, offset by CallCounters.PADDING. Null until contended
+  private volatile AtomicReferenceArray<AtomicLongArray> stripes;
+
+  public void record(long nanos) {
+    int bucket = getBucketIndex(nanos);
+    AtomicReferenceArray<AtomicLongArray> stripes = this.stripes;
+    if (stripes == null) {
+      long value = counts.get(bucket);
+      if (counts.compareAndSet(bucket, value, value + 1)) {
+        return;
+      }
+      // Contended. Inflate
+      stripes = inflate();
+    }
+    int stripe = CallCounters.getStripe();
+    AtomicLongArray stripeCounts = stripes.get(stripe);
+    if (stripeCounts == null) {
+      stripeCounts = new AtomicLongArray(BUCKET_COUNT + 2 * CallCounters.PADDING);
+      if (!stripes.compareAndSet(stripe, null, stripeCounts)) {
+        stripeCounts = stripes.get(stripe);
+      }
+    }
+    stripeCounts.getAndIncrement(CallCounters.PADDING + bucket);
+  }
+
+  private synchronized AtomicReferenceArray<AtomicLongArray> inflate() {
+    if (stripes == null) {
+      stripes = new AtomicReferenceArray<AtomicLongArray>(CallCounters.STRIPES);
+    }
+    return stripes;
+  }
+
+  private long get(int bucket, AtomicReferenceArray<AtomicLongArray> stripes) {
+    long ret = counts.get(bucket);
+    if (stripes != null) {
+      for (int i = 0; i < CallCounters.STRIPES; i++) {
+        AtomicLongArray stripeCounts = stripes.get(i);
+        if (stripeCounts != null) {
+          ret += stripeCounts.get(CallCounters.PADDING + bucket);
+        }
+      }
+    }
+    return ret;
+  }
+
+  /**
+   * Reads the current counts without copying them.
+   */
+  public long getCount() {
+    AtomicReferenceArray<AtomicLongArray> stripes = this.stripes;
+    long ret = 0;
+    for (int i = 0; i < BUCKET_COUNT; i++) {
+      ret += get(i, stripes);
+    }
+    return ret;
+  }
+
+  /**
+   * Reads the current counts without copying them.
+   *
+   * @return sum of the recorded values, estimated from the middle value of each bucket
+   */
+  public long getEstimatedTotal() {
+    AtomicReferenceArray<AtomicLongArray> stripes = this.stripes;
+    double ret = 0;
+    for (int i = 0; i < BUCKET_COUNT; i++) {
+      long count = get(i, stripes);
+      if (count != 0) {
+        ret += count * getMiddleValue(i);
+      }
+    }
+    return (long) ret;
+  }
+
+  public Snapshot snapshot() {
+    AtomicReferenceArray<AtomicLongArray> stripes = this.stripes;
+    long[] snapshot = new long[BUCKET_COUNT];
+    for (int i = 0; i < snapshot.length; i++) {
+      snapshot[i] = get(i, stripes);
+    }
+    return new Snapshot(snapshot);
+  }
+
+  static int getBucketIndex(long value) {
+    if (value < SUB_BUCKET_COUNT) {
+      return value < 0 ? 0 : (int) value;
+    }
+    int exponent = 63 - Long.numberOfLeadingZeros(value);
+    if (exponent > MAX_EXPONENT) {
+      return BUCKET_COUNT - 1;
+    }
+    int subBucket = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKET_COUNT - 1);
+    return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKET_COUNT + subBucket;
+  }
+
+  /**
+   * @return lowest value counted in the bucket
+   */
+  static long getLowestValue(int index) {
+    if (index < SUB_BUCKET_COUNT) {
+      return index;
+    }
+    int shift = index / SUB_BUCKET_COUNT - 1;
+    return (long) (SUB_BUCKET_COUNT + index % SUB_BUCKET_COUNT) << shift;
+  }
+
+  /**
+   * @return highest value counted in the bucket
+   */
+  static long getHighestValue(int index) {
+    if (index < SUB_BUCKET_COUNT) {
+      return index;
+    }
+    if (index == BUCKET_COUNT - 1) {
+      return Long.MAX_VALUE;
+    }
+    int shift = index / SUB_BUCKET_COUNT - 1;
+    return getLowestValue(index) + (1L << shift) - 1;
+  }
+
+  static double getMiddleValue(int index) {
+    long lowest = getLowestValue(index);
+    if (index == BUCKET_COUNT - 1) {
+      return lowest;
+    }
+    return (lowest + getHighestValue(index)) / 2d;
+  }
+
+  /**
+   * Immutable copy of the bucket counts of a histogram. Snapshots of different histograms (or of
+   * the same histogram at different times) can be merged.
+   */
+  public static final class Snapshot {
+
+    private final long[] counts;
+    private final long count;
+
+    Snapshot(long[] counts) {
+      this.counts = counts;
+      long count = 0;
+      for (int i = 0; i < counts.length; i++) {
+        count += counts[i];
+      }
+      this.count = count;
+    }
+
+    public Snapshot merge(Snapshot other) {
+      long[] merged = new long[BUCKET_COUNT];
+      for (int i = 0; i < merged.length; i++) {
+        merged[i] = counts[i] + other.counts[i];
+      }
+      return new Snapshot(merged);
+    }
+
+    public long getCount() {
+      return count;
+    }
+
+    /**
+     * @param percentile between 0 and 100
+     * @return highest value equivalent to the one at the given percentile, or 0 if empty
+     */
+    public long getValueAtPercentile(double percentile) {
+      if (count == 0) {
+        return 0;
+      }
+      long rank = (long) Math.ceil(Math.min(100d, Math.max(0d, percentile)) / 100d * count);
+      if (rank < 1) {
+        rank = 1;
+      }
+      long accumulated = 0;
+      for (int i = 0; i < counts.length; i++) {
+        accumulated += counts[i];
+        if (accumulated >= rank) {
+          return getReportedValue(i);
+        }
+      }
+      return getMax();
+    }
+
+    public long getMax() {
+      for (int i = counts.length - 1; i >= 0; i--) {
+        if (counts[i] != 0) {
+          return getReportedValue(i);
+        }
+      }
+      return 0;
+    }
+
+    public double getMean() {
+      if (count == 0) {
+        return 0;
+      }
+      double total = 0;
+      for (int i = 0; i < counts.length; i++) {
+        if (counts[i] != 0) {
+          total += counts[i] * getMiddleValue(i);
+        }
+      }
+      return total / count;
+    }
+
+    private static long getReportedValue(int index) {
+      return index == BUCKET_COUNT - 1 ? getLowestValue(index) : getHighestValue(index);
+    }
+  }
+}
@@ -0,0 +1,181 @@
+/*
+ * ShiftLeft, Inc. CONFIDENTIAL
+ * Unpublished Copyright (c) 2017 ShiftLeft, Inc., All Rights Reserved.
+ *
+ * NOTICE: All information contained herein is, and remains the property of ShiftLeft, Inc.
+ * The intellectual and technical concepts contained herein are proprietary to ShiftLeft, Inc.
+ * and may be covered by U.S. and Foreign Patents, patents in process, and are protected by
+ * trade secret or copyright law. Dissemination of this information or reproduction of this
+ * material is strictly forbidden unless prior written permission is obtained
+ * from ShiftLeft, Inc. Access to the source code contained herein is hereby forbidden to
+ * anyone except current ShiftLeft, Inc. employees, managers or contractors who have executed
+ * Confidentiality and Non-disclosure agreements explicitly covering such access.
+ *
+ * The copyright notice above does not evidence any actual or intended publication or disclosure
+ * of this source code, which includes information that is confidential and/or proprietary, and
+ * is a trade secret, of ShiftLeft, Inc.
+ *
+ * ANY REPRODUCTION, MODIFICATION, DISTRIBUTION, PUBLIC PERFORMANCE, OR PUBLIC DISPLAY
+ * OF OR THROUGH USE OF THIS SOURCE CODE WITHOUT THE EXPRESS WRITTEN CONSENT OF ShiftLeft, Inc.
+ * IS STRICTLY PROHIBITED, AND IN VIOLATION OF APPLICABLE LAWS AND INTERNATIONAL TREATIES.
+ * THE RECEIPT OR POSSESSION OF THIS SOURCE CODE AND/OR RELATED INFORMATION DOES NOT
+ * CONVEY OR IMPLY ANY RIGHTS TO REPRODUCE, DISCLOSE OR DISTRIBUTE ITS
+ * CONTENTS, OR TO MANUFACTURE, USE, OR SELL ANYTHING THAT IT MAY DESCRIBE, IN WHOLE OR IN PART.
+ */
+package io.shiftleft.bctrace.runtime;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Latency histograms indexed by method id, recorded by the timer probe that the framework can
+ * inject in every instrumented method.
+ * <br><pre>{@code
+ * public Object foo(Object arg1, Object arg2, ..., Object argn){
+ *   long start = MethodTimers.onStart();
+ *   try {
+ *     ...
+ *     MethodTimers.onFinish(start, 1550);
+ *     return ret;
+ *   } catch (Throwable th) {
+ *     MethodTimers.onFinish(start, 1550);
+ *     throw th;
+ *   }
+ * }
+ * }
+ * </pre>
+ * The start timestamp is kept in a local variable of the instrumented method, so pairing a start
+ * with its end needs no thread local state. While timing is disabled {@link #onStart()} returns 0
+ * and {@link #onFinish(long, int)} ignores the call.
+ * <br><br>
+ * The histogram of a method is allocated the first time the method finishes with timing enabled.
+ * After that recording allocates nothing (see {@link LatencyHistogram}).
+ *
+ * @author Ignacio del Valle Alles idelvall@shiftleft.io
+ */
+public final class MethodTimers {
+
+  private static final int CHUNK_BITS = 10;
+  private static final int CHUNK_SIZE = 1 << CHUNK_BITS;
+  private static final int CHUNK_MASK = CHUNK_SIZE - 1;
+
+  private static volatile MethodTimers instance;
+  // Whether histograms or hot method time tracking are enabled
+  private static volatile boolean armed;
+
+  private volatile AtomicReferenceArray<LatencyHistogram>[] chunks = newChunkArray(16);
+
+  MethodTimers() {
+  }
+
+  /**
+   * Probe injected at the start of instrumented methods.
+   *
+   * @return start timestamp, or 0 if timing is disabled
+   */
+  public static long onStart() {
+    if (!armed) {
+      return 0L;
+    }
+    return System.nanoTime();
+  }
+
+  /**
+   * Probe injected before every return and throw of instrumented methods. Also feeds {@link
+   * HotMethods}.
+   */
+  public static void onFinish(long start, int methodId) {
+    if (start == 0L) {
+      return;
+    }
+    long elapsed = System.nanoTime() - start;
+    MethodTimers timers = instance;
+    if (timers != null) {
+      timers.record(methodId, elapsed);
+    }
+    HotMethods.onTime(methodId, elapsed);
+  }
+
+  /**
+   * @return current timers, or null if method timing is disabled
+   */
+  public static MethodTimers getInstance() {
+    return instance;
+  }
+
+  /**
+   * Enabling method timing starts from empty histograms.
+   */
+  public static synchronized void setEnabled(boolean enabled) {
+    if (!enabled) {
+      instance = null;
+    } else if (instance == null) {
+      instance = new MethodTimers();
+    }
+    updateArmed();
+  }
+
+  static synchronized void updateArmed() {
+    armed = instance != null || HotMethods.isTimeTrackingEnabled();
+  }
+
+  public static boolean isEnabled() {
+    return instance != null;
+  }
+
+  void record(int methodId, long nanos) {
+    AtomicReferenceArray<LatencyHistogram> chunk = getChunk(methodId);
+    int index = methodId & CHUNK_MASK;
+    LatencyHistogram histogram = chunk.get(index);
+    if (histogram == null) {
+      histogram = new LatencyHistogram();
+      if (!chunk.compareAndSet(index, null, histogram)) {
+        histogram = chunk.get(index);
+      }
+    }
+    histogram.record(nanos);
+  }
+
+  /**
+   * @return null if the method has not been timed
+   */
+  public LatencyHistogram getHistogram(int methodId) {
+    AtomicReferenceArray<LatencyHistogram>[] chunks = this.chunks;
+    int chunkIndex = methodId >>> CHUNK_BITS;
+    if (methodId < 0 || chunkIndex >= chunks.length || chunks[chunkIndex] == null) {
+      return null;
+    }
+    return chunks[chunkIndex].get(methodId & CHUNK_MASK);
+  }
+
+  @SuppressWarnings("unchecked")
+  private static AtomicReferenceArray<LatencyHistogram>[] newChunkArray(int size) {
+    return new AtomicReferenceArray[size];
+  }
+
+  private AtomicReferenceArray<LatencyHistogram> getChunk(int methodId) {
+    AtomicReferenceArray<LatencyHistogram>[] chunks = this.chunks;
+    int chunkIndex = methodId >>> CHUNK_BITS;
+    if (chunkIndex < chunks.length) {
+      AtomicReferenceArray<LatencyHistogram> ret = chunks[chunkIndex];
+      if (ret != null) {
+        return ret;
+      }
+    }
+    return createChunk(chunkIndex);
+  }
+
+  private synchronized AtomicReferenceArray<LatencyHistogram> createChunk(int chunkIndex) {
+    AtomicReferenceArray<LatencyHistogram>[] chunks = this.chunks;
+    if (chunkIndex >= chunks.length) {
+      AtomicReferenceArray<LatencyHistogram>[] grown = newChunkArray(
+          Math.max(chunks.length * 2, chunkIndex + 1));
+      System.arraycopy(chunks, 0, grown, 0, chunks.length);
+      chunks = grown;
+    }
+    if (chunks[chunkIndex] == null) {
+      chunks[chunkIndex] = new AtomicReferenceArray<LatencyHistogram>(CHUNK_SIZE);
+    }
+    this.chunks = chunks;
+    return chunks[chunkIndex];
+  }
+}
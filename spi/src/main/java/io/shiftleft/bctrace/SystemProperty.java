@@ -33,5 +33,11 @@ public interface SystemProperty {
   public static final String LOG_LEVEL = "bctrace.log.level";
   public static final String IGNORE_FILE = "bctrace.ignore";
   public static final String AGENT_JAR = "bctrace.agent.jar";
+  public static final String RETRANSFORM_BATCH_SIZE = "bctrace.retransform.batch.size";
+  public static final String RETRANSFORM_PACING_MILLIS = "bctrace.retransform.pacing.ms";
+  public static final String RETRANSFORM_MAX_PAUSE_MILLIS = "bctrace.retransform.max.pause.ms";
+  public static final String METHOD_TIMING = "bctrace.method.timing";
+  public static final String METRICS_PORT = "bctrace.metrics.port";
+  public static final String METRICS_SNAPSHOT_INTERVAL_MILLIS = "bctrace.metrics.snapshot.interval.ms";
 
 }